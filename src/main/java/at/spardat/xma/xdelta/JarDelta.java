@@ -49,6 +49,8 @@ import com.nothome.delta.GDiffWriter;
  * to all files contained in both zip files. All these binary differences are stored in the output zip file.
  * New files are simply copied to the output zip file. Additionally all files contained in the target zip
  * file are listed in <code>META-INF/file.list</code>.<p>
+ * The chunk size of each difference is chosen from the size of the source entry,
+ * see {@link com.nothome.delta.Delta#setAdaptiveChunkSize(boolean)}.<p>
  * Use {@link JarPatcher} to apply the output zip file.<p>
  *
  * @author gruber
@@ -171,6 +173,7 @@ public class JarDelta {
                 } else {
                   try (ByteArrayOutputStream outbytes = new ByteArrayOutputStream()) {
                     Delta d = new Delta();
+                    d.setAdaptiveChunkSize(true);
                     DiffWriter diffWriter = new GDiffWriter(new DataOutputStream(outbytes));
                     int sourceSize = (int) sourceEntry.getSize();
                     byte[] sourceBytes = new byte[sourceSize];
@@ -229,6 +232,7 @@ public class JarDelta {
     for (ZipArchiveEntry sourceEntry : ret) {
       try (ByteArrayOutputStream outbytes = new ByteArrayOutputStream()) {
         Delta d = new Delta();
+        d.setAdaptiveChunkSize(true);
         DiffWriter diffWriter = new GDiffWriter(new DataOutputStream(outbytes));
         int sourceSize = (int) sourceEntry.getSize();
         byte[] sourceBytes = new byte[sourceSize];
@@ -0,0 +1,78 @@
+/*
+ * AdlerHash.java
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a
+ * copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL
+ * THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS
+ * IN THE SOFTWARE.
+ *
+ */
+package com.nothome.delta;
+
+import java.nio.ByteBuffer;
+
+/**
+ * The 32-bit hash of {@link Checksum#queryChecksum(ByteBuffer, int)}, two
+ * 16-bit sums over a table of random values.
+ * Kept as the default for compatibility with existing indexes.
+ *
+ * @see RollingHash#ADLER
+ */
+final class AdlerHash implements RollingHash {
+  /** The table. */
+  private static final char[] single_hash = Checksum.getSingleHash();
+
+  /* (non-Javadoc)
+   * @see com.nothome.delta.RollingHash#hash(java.nio.ByteBuffer, int)
+   */
+  @Override
+  public long hash(ByteBuffer bb, int len) {
+    int high = 0;
+    int low = 0;
+    int pos = bb.position();
+    for (int i = 0; i < len; i++) {
+      low += single_hash[bb.get(pos + i) + 128];
+      high += low;
+    }
+    return ((high & 0xffff) << 16) | (low & 0xffff);
+  }
+
+  /* (non-Javadoc)
+   * @see com.nothome.delta.RollingHash#roll(long, byte, byte, int)
+   */
+  @Override
+  public long roll(long hash, byte out, byte in, int len) {
+    return Checksum.incrementChecksum(hash, out, in, len);
+  }
+
+  /* (non-Javadoc)
+   * @see com.nothome.delta.RollingHash#id()
+   */
+  @Override
+  public int id() {
+    return 1;
+  }
+
+  /**
+   * Returns a debug <code>String</code>.
+   *
+   * @return the string
+   */
+  @Override
+  public String toString() {
+    return "adler";
+  }
+}
@@ -0,0 +1,235 @@
+/*
+ * AsyncDiffWriter.java
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a
+ * copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL
+ * THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS
+ * IN THE SOFTWARE.
+ *
+ */
+package com.nothome.delta;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * Passes commands to another {@link DiffWriter} on another thread.
+ * Commands are recorded in batches of about <code>batchSize</code> target
+ * bytes, which the writing thread replays; when <code>depth</code> batches
+ * are waiting, adding commands waits for the writing thread.
+ * <p>
+ * An exception of the output is thrown by a later call, at the latest by
+ * {@link #close()}, which also closes the output on the calling thread.
+ */
+class AsyncDiffWriter implements DiffWriter {
+  /** Marks the end of the commands. */
+  private static final DiffOps END = new DiffOps();
+  /** Asks the writing thread to flush the output. */
+  private static final DiffOps FLUSH = new DiffOps();
+  /** The output. */
+  private final DiffWriter output;
+  /** The number of target bytes per batch. */
+  private final int batchSize;
+  /** Batches to write, in order. */
+  private final BlockingQueue<DiffOps> full = new LinkedBlockingQueue<DiffOps>();
+  /** Batches free to record into. */
+  private final BlockingQueue<DiffOps> free;
+  /** The writing thread. */
+  private final Thread thread;
+  /** The batch being recorded. */
+  private DiffOps ops;
+  /** The exception of the output, or null. */
+  private volatile Throwable failure;
+  /** Whether commands are being discarded. */
+  private volatile boolean aborted;
+  /** Whether the writing thread has been told to end. */
+  private boolean ended;
+
+  /**
+   * Starts the writing thread.
+   *
+   * @param output the output
+   * @param batchSize the number of target bytes per batch
+   * @param depth the number of batches
+   */
+  AsyncDiffWriter(DiffWriter output, int batchSize, int depth) {
+    this.output = output;
+    this.batchSize = batchSize;
+    free = new ArrayBlockingQueue<DiffOps>(depth);
+    for (int i = 0; i < depth; i++)
+      free.add(new DiffOps());
+    ops = free.remove();
+    thread = new Thread(this::write, "javaxdelta-writer");
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  /**
+   * Replays batches until the end; after an exception, discards them.
+   */
+  private void write() {
+    try {
+      while (true) {
+        DiffOps batch = full.take();
+        if (batch == END)
+          break;
+        try {
+          if (failure == null && !aborted) {
+            if (batch == FLUSH)
+              output.flush();
+            else
+              batch.replay(output, 0);
+          }
+        } catch (Throwable t) {
+          failure = t;
+        } finally {
+          if (batch != FLUSH) {
+            batch.clear();
+            free.add(batch);
+          }
+        }
+      }
+    } catch (InterruptedException e) {
+      failure = new InterruptedIOException();
+    }
+  }
+
+  /**
+   * Throws the exception of the output, if any.
+   *
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  private void check() throws IOException {
+    Throwable t = failure;
+    if (t instanceof IOException)
+      throw (IOException) t;
+    if (t instanceof RuntimeException)
+      throw (RuntimeException) t;
+    if (t instanceof Error)
+      throw (Error) t;
+    if (t != null)
+      throw new IOException(t);
+  }
+
+  /**
+   * Passes the batch being recorded to the writing thread once it is large
+   * enough, or when forced.
+   *
+   * @param force whether to pass a batch smaller than the batch size
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  private void handOff(boolean force) throws IOException {
+    if (ops.length() < batchSize && !(force && ops.length() > 0))
+      return;
+    check();
+    full.add(ops);
+    try {
+      ops = free.take();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException();
+    }
+  }
+
+  /* (non-Javadoc)
+   * @see com.nothome.delta.DiffWriter#addCopy(long, int)
+   */
+  @Override
+  public void addCopy(long offset, int length) throws IOException {
+    ops.addCopy(offset, length);
+    handOff(false);
+  }
+
+  /* (non-Javadoc)
+   * @see com.nothome.delta.DiffWriter#addData(byte)
+   */
+  @Override
+  public void addData(byte b) throws IOException {
+    ops.addData(b);
+    handOff(false);
+  }
+
+  /* (non-Javadoc)
+   * @see com.nothome.delta.DiffWriter#addData(byte[], int, int)
+   */
+  @Override
+  public void addData(byte[] buf, int off, int len) throws IOException {
+    ops.addData(buf, off, len);
+    handOff(false);
+  }
+
+  /**
+   * Passes the commands added so far on and asks the writing thread to
+   * flush the output, without waiting for it.
+   *
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  @Override
+  public void flush() throws IOException {
+    handOff(true);
+    full.add(FLUSH);
+  }
+
+  /**
+   * Waits for the commands to be written, then closes the output.
+   *
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  @Override
+  public void close() throws IOException {
+    if (ended)
+      return;
+    try {
+      handOff(true);
+    } finally {
+      end();
+    }
+    check();
+    output.close();
+  }
+
+  /**
+   * Stops the writing thread, discarding the commands not yet written.
+   * The output is not closed.
+   *
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  void abort() throws IOException {
+    aborted = true;
+    end();
+  }
+
+  /**
+   * Tells the writing thread to end and waits for it.
+   *
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  private void end() throws IOException {
+    if (ended)
+      return;
+    ended = true;
+    full.add(END);
+    try {
+      thread.join();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException();
+    }
+  }
+}
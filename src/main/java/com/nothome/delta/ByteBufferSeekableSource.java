@@ -81,14 +81,42 @@ public class ByteBufferSeekableSource implements SeekableSource {
   public int read(ByteBuffer dest) throws IOException {
     if (!cur.hasRemaining())
       return -1;
-    int c = 0;
-    while (cur.hasRemaining() && dest.hasRemaining()) {
-      dest.put(cur.get());
-      c++;
-    }
+    int c = Math.min(cur.remaining(), dest.remaining());
+    ByteBuffer src = cur.duplicate();
+    src.limit(src.position() + c);
+    dest.put(src);
+    cur.position(src.position());
     return c;
   }
 
+  /**
+   * Reads from a duplicate of the buffer, without using or changing the
+   * position set by {@link #seek(long)}. This method may be called concurrently.
+   *
+   * @param position the source offset
+   * @param dest the destination
+   * @return the number of bytes read, or -1 at EOF
+   */
+  @Override
+  public int read(long position, ByteBuffer dest) {
+    ByteBuffer src = bb.duplicate();
+    if (position >= src.limit())
+      return -1;
+    src.position((int) position);
+    int n = Math.min(src.remaining(), dest.remaining());
+    src.limit(src.position() + n);
+    dest.put(src);
+    return n;
+  }
+
+  /* (non-Javadoc)
+   * @see com.nothome.delta.SeekableSource#length()
+   */
+  @Override
+  public long length() {
+    return bb.limit();
+  }
+
   /* (non-Javadoc)
    * @see java.io.Closeable#close()
    */
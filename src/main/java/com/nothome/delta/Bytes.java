@@ -0,0 +1,65 @@
+/*
+ * Bytes.java
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a
+ * copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL
+ * THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS
+ * IN THE SOFTWARE.
+ *
+ */
+package com.nothome.delta;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Byte comparisons used to verify matches.
+ * <p>
+ * This version compares eight bytes at a time. The multi-release jar holds a
+ * version for Java 11 and later under <code>META-INF/versions/11</code> that
+ * uses the vectorized <code>mismatch</code> methods of the JDK.
+ */
+final class Bytes {
+  /**
+   * Not instantiable.
+   */
+  private Bytes() {}
+
+  /**
+   * Finds the first differing byte of two ranges.
+   * The buffer positions are not used or changed.
+   *
+   * @param a the first buffer
+   * @param aPos the index of the first range in <code>a</code>
+   * @param b the second buffer
+   * @param bPos the index of the second range in <code>b</code>
+   * @param len the length of the ranges
+   * @return the offset of the first mismatch in the ranges, or -1 if they are equal
+   */
+  static int mismatch(ByteBuffer a, int aPos, ByteBuffer b, int bPos, int len) {
+    int i = 0;
+    if (a.order() == b.order()) {
+      for (; i <= len - 8; i += 8) {
+        if (a.getLong(aPos + i) != b.getLong(bPos + i))
+          break;
+      }
+    }
+    for (; i < len; i++) {
+      if (a.get(aPos + i) != b.get(bPos + i))
+        return i;
+    }
+    return -1;
+  }
+}
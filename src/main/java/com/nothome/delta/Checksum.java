@@ -25,15 +25,48 @@
 package com.nothome.delta;
 
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.UncheckedIOException;
 import java.nio.ByteBuffer;
-import java.util.HashMap;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
 
 /**
  * Checksum computation class.
+ * Indexes up to 2^31 chunks in the heap; see {@link PagedChecksum} for more.
  */
-public class Checksum {
-  /** The checksums. */
-  private HashMap<Long, Integer> checksums = new HashMap<Long, Integer>();
+public class Checksum implements SourceIndex {
+  /**
+   * Default maximum number of chunks kept per checksum.
+   */
+  public static final int DEFAULT_MAX_CANDIDATES = 8;
+  /** Fewest chunks hashed by one task when building in parallel. */
+  private static final int MIN_TASK_CHUNKS = 1024;
+  /** Most bytes hashed by one task when building in parallel. */
+  private static final int MAX_TASK_BYTES = 16 << 20;
+  /** The checksums, mapping to the most recent chunk index. */
+  private LongIntHashMap checksums;
+  /** Chains chunks sharing a checksum, from newer to older; -1 ends a chain. */
+  private int[] next;
+  /** The number of chunks indexed, or of entries kept by a sampled index. */
+  private int chunks;
+  /** The chunk size. */
+  private final int chunkSize;
+  /** The rolling hash. */
+  private final RollingHash hash;
+  /** The most checksums kept by a sampled index, or 0 to keep every chunk. */
+  private final int maxEntries;
+  /** The number of high bits of a mixed checksum that must be zero for its chunk to be indexed. */
+  private int sampleBits;
+  /** The source offsets of content-defined anchors and sampled entries by index, or null for chunks at index * chunkSize. */
+  private long[] offsets;
+  /** The least distance between content-defined anchors. */
+  private int minChunkSize;
+  /** The greatest distance between content-defined anchors. */
+  private int maxChunkSize;
   /** The Constant single_hash. */
   private static final char single_hash[] = {
   /* Random numbers generated using SLIB's pseudo-random number generator. */
@@ -42,29 +75,541 @@ public class Checksum {
   /**
    * Initialize checksums for source. The checksum for the <code>chunkSize</code> bytes at offset
    * <code>chunkSize</code> * i is inserted into a hash map.
+   * The map is presized from the source length when it is known.
+   * At most {@link #DEFAULT_MAX_CANDIDATES} chunks are kept per checksum.
    *
    * @param source the source
    * @param chunkSize the chunk size
    * @throws IOException Signals that an I/O exception has occurred.
    */
   public Checksum(SeekableSource source, int chunkSize) throws IOException {
-    ByteBuffer bb = ByteBuffer.allocate(chunkSize * 2);
-    int count = 0;
+    this(source, chunkSize, DEFAULT_MAX_CANDIDATES);
+  }
+
+  /**
+   * Initialize checksums for source, keeping up to <code>maxCandidates</code>
+   * chunks per checksum. When more chunks share a checksum, the most recent
+   * ones are kept.
+   *
+   * @param source the source
+   * @param chunkSize the chunk size
+   * @param maxCandidates the maximum number of chunks per checksum, at least 1
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  public Checksum(SeekableSource source, int chunkSize, int maxCandidates) throws IOException {
+    this(source, chunkSize, maxCandidates, null);
+  }
+
+  /**
+   * Initialize checksums for source, hashing on several threads.
+   * The source is partitioned into ranges of chunks that are read and
+   * hashed concurrently, then added to the index in source order, so the
+   * result is the same as when built by one thread.
+   * <p>
+   * This requires a source of known {@link SeekableSource#length()}; other
+   * sources are read on the calling thread. Sources without concurrent
+   * {@link SeekableSource#read(long, ByteBuffer)} are read one range at a time.
+   *
+   * @param source the source
+   * @param chunkSize the chunk size
+   * @param maxCandidates the maximum number of chunks per checksum, at least 1
+   * @param pool the pool to hash on, or null to use the calling thread
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  public Checksum(SeekableSource source, int chunkSize, int maxCandidates, ForkJoinPool pool) throws IOException {
+    this(source, chunkSize, maxCandidates, pool, RollingHash.ADLER);
+  }
+
+  /**
+   * Initialize checksums for source using a rolling hash, optionally hashing
+   * on several threads; see {@link #Checksum(SeekableSource, int, int, ForkJoinPool)}.
+   *
+   * @param source the source
+   * @param chunkSize the chunk size
+   * @param maxCandidates the maximum number of chunks per checksum, at least 1
+   * @param pool the pool to hash on, or null to use the calling thread
+   * @param hash the rolling hash
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  public Checksum(SeekableSource source, int chunkSize, int maxCandidates, ForkJoinPool pool, RollingHash hash) throws IOException {
+    this(source, chunkSize, maxCandidates, pool, hash, 0);
+  }
+
+  /**
+   * Initialize a sampled index of the source, which keeps at most
+   * <code>maxEntries</code> checksums however long the source is.
+   * Only chunks whose checksum passes {@link #isAnchor(long)} are indexed,
+   * one in {@link #getSampling()} on average. When more than
+   * <code>maxEntries</code> chunks pass, the sampling is doubled and the
+   * chunks no longer passing are dropped. Chunks sharing a checksum are not
+   * chained; the last one in the source is kept. The entries hold source
+   * offsets, so the source may have any number of chunks.
+   * <p>
+   * Since the rule depends only on content, a target scanned with
+   * {@link #isAnchor(long)} finds the same chunks, and matches are extended
+   * from them in both directions.
+   *
+   * @param source the source
+   * @param chunkSize the chunk size
+   * @param maxEntries the most checksums kept, at least 1
+   * @param pool the pool to hash on, or null to use the calling thread
+   * @param hash the rolling hash
+   * @return the checksum
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  public static Checksum sampled(SeekableSource source, int chunkSize, int maxEntries, ForkJoinPool pool, RollingHash hash) throws IOException {
+    if (maxEntries <= 0)
+      throw new IllegalArgumentException("maxEntries " + maxEntries);
+    return new Checksum(source, chunkSize, 1, pool, hash, maxEntries);
+  }
+
+  /**
+   * Initialize an index of content-defined anchors of the source, so that
+   * matches are found after insertions that shift the target against the
+   * chunk boundaries of the source.
+   * <p>
+   * Every position of the source is hashed over <code>chunkSize</code>
+   * bytes. A position is an anchor when its checksum passes
+   * {@link #isAnchor(long)}, which happens once in
+   * <code>averageChunkSize</code> positions on average, and it is at least
+   * <code>minChunkSize</code> bytes after the previous anchor. A position
+   * <code>maxChunkSize</code> bytes after the previous anchor is always an
+   * anchor. A target scanned with {@link #isContentDefinedAnchor(long, long)}
+   * applies the same rule, so it finds anchors at the same content.
+   *
+   * @param source the source
+   * @param chunkSize the number of bytes hashed at each anchor
+   * @param minChunkSize the least distance between anchors
+   * @param averageChunkSize the average distance between anchors, a power of two
+   * @param maxChunkSize the greatest distance between anchors
+   * @param maxCandidates the maximum number of anchors per checksum, at least 1
+   * @param hash the rolling hash
+   * @return the checksum
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  public static Checksum contentDefined(SeekableSource source, int chunkSize, int minChunkSize, int averageChunkSize,
+      int maxChunkSize, int maxCandidates, RollingHash hash) throws IOException {
+    if (Integer.bitCount(averageChunkSize) != 1 || minChunkSize < 1 || maxChunkSize < minChunkSize)
+      throw new IllegalArgumentException("chunk sizes " + minChunkSize + " " + averageChunkSize + " " + maxChunkSize);
+    if (maxCandidates <= 0)
+      throw new IllegalArgumentException("maxCandidates " + maxCandidates);
+    if (hash == null)
+      throw new NullPointerException("hash");
+    long length = source.length();
+    long expected = Math.min(length > 0 ? length / Math.max(minChunkSize, averageChunkSize / 2) : 0, Integer.MAX_VALUE - 8);
+    Checksum checksum = new Checksum(chunkSize, hash, new LongIntHashMap(expected), new int[(int) Math.max(expected, 16)]);
+    checksum.sampleBits = Integer.numberOfTrailingZeros(averageChunkSize);
+    checksum.minChunkSize = minChunkSize;
+    checksum.maxChunkSize = maxChunkSize;
+    checksum.offsets = new long[checksum.next.length];
+    checksum.chunks = 0;
+    checksum.addContentDefined(source, maxCandidates);
+    return checksum;
+  }
+
+  /**
+   * Initialize checksums for source.
+   *
+   * @param source the source
+   * @param chunkSize the chunk size
+   * @param maxCandidates the maximum number of chunks per checksum, at least 1
+   * @param pool the pool to hash on, or null to use the calling thread
+   * @param hash the rolling hash
+   * @param maxEntries the most checksums kept, or 0 to keep every chunk
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  private Checksum(SeekableSource source, int chunkSize, int maxCandidates, ForkJoinPool pool, RollingHash hash, int maxEntries) throws IOException {
+    if (maxCandidates <= 0)
+      throw new IllegalArgumentException("maxCandidates " + maxCandidates);
+    if (hash == null)
+      throw new NullPointerException("hash");
+    this.chunkSize = chunkSize;
+    this.hash = hash;
+    this.maxEntries = maxEntries;
+    long length = source.length();
+    long expected = Math.min(length > 0 ? length / chunkSize : 0, Integer.MAX_VALUE - 8);
+    if (maxEntries > 0) {
+      // chunks sharing checksums are kept once, so the sampling is only raised when the entries overflow
+      expected = Math.min(expected, maxEntries);
+      checksums = new LongIntHashMap(expected);
+      offsets = new long[(int) Math.max(expected, 16)];
+      next = new int[0];
+    } else {
+      checksums = new LongIntHashMap(expected);
+      next = new int[(int) Math.max(expected, 16)];
+    }
+    if (pool != null && length > 0)
+      addParallel(source, length / chunkSize, chunkSize, maxCandidates, pool);
+    else
+      addAll(source, chunkSize, maxCandidates);
+  }
+
+  /**
+   * Constructs a Checksum from tables of an index built earlier.
+   *
+   * @param chunkSize the chunk size
+   * @param hash the rolling hash
+   * @param checksums the checksums
+   * @param next the chains, one entry per chunk
+   * @see ChecksumFile
+   */
+  Checksum(int chunkSize, RollingHash hash, LongIntHashMap checksums, int[] next) {
+    this.chunkSize = chunkSize;
+    this.hash = hash;
+    this.maxEntries = 0;
+    this.checksums = checksums;
+    this.next = next;
+    this.chunks = next.length;
+  }
+
+  /**
+   * Reads the source from its current position, adding each chunk.
+   *
+   * @param source the source
+   * @param chunkSize the chunk size
+   * @param maxCandidates the max candidates
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  private void addAll(SeekableSource source, int chunkSize, int maxCandidates) throws IOException {
+    ByteBuffer bb = ByteBuffer.allocate(Math.max(1 << 16, chunkSize * 2));
+    long count = 0;
     while (true) {
       source.read(bb);
       bb.flip();
       if (bb.remaining() < chunkSize)
         break;
       while (bb.remaining() >= chunkSize) {
-        long queryChecksum = queryChecksum0(bb, chunkSize);
-        checksums.put(queryChecksum, count++);
+        if (count == Integer.MAX_VALUE - 8 && maxEntries == 0)
+          throw new IOException("too many chunks, use a larger chunk size");
+        long queryChecksum = hash.hash(bb, chunkSize);
+        bb.position(bb.position() + chunkSize);
+        add(queryChecksum, count++, maxCandidates);
       }
       bb.compact();
     }
   }
 
   /**
-   * Finds the checksum computed from the buffer.
+   * Reads the source from its current position, hashing every position and
+   * adding the anchors.
+   *
+   * @param source the source
+   * @param maxCandidates the max candidates
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  private void addContentDefined(SeekableSource source, int maxCandidates) throws IOException {
+    ByteBuffer bb = ByteBuffer.allocate(Math.max(1 << 16, chunkSize * 2));
+    bb.limit(0);
+    if (!fill(source, bb, chunkSize))
+      return;
+    long h = hash.hash(bb, chunkSize);
+    long position = 0;
+    long last = -minChunkSize;
+    while (true) {
+      if (isContentDefinedAnchor(h, position - last)) {
+        if (chunks == Integer.MAX_VALUE - 8)
+          throw new IOException("too many anchors, use larger chunk sizes");
+        if (chunks == offsets.length)
+          offsets = Arrays.copyOf(offsets, (int) Math.min((long) chunks * 2, Integer.MAX_VALUE - 8));
+        offsets[chunks] = position;
+        add(h, chunks, maxCandidates);
+        last = position;
+      }
+      if (bb.remaining() <= chunkSize && !fill(source, bb, chunkSize + 1))
+        break;
+      byte out = bb.get();
+      h = hash.roll(h, out, bb.get(bb.position() + chunkSize - 1), chunkSize);
+      position++;
+    }
+  }
+
+  /**
+   * Reads the source until at least <code>n</code> bytes remain in the buffer.
+   *
+   * @param source the source
+   * @param bb the buffer, ready for reading
+   * @param n the number of bytes needed
+   * @return false if the source ended first
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  private static boolean fill(SeekableSource source, ByteBuffer bb, int n) throws IOException {
+    bb.compact();
+    while (bb.position() < n) {
+      if (source.read(bb) == -1)
+        break;
+    }
+    bb.flip();
+    return bb.remaining() >= n;
+  }
+
+  /**
+   * Hashes ranges of chunks on the pool, adding them in order as they complete.
+   * At most two ranges per thread are in progress.
+   *
+   * @param source the source
+   * @param chunks the number of chunks
+   * @param chunkSize the chunk size
+   * @param maxCandidates the max candidates
+   * @param pool the pool
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  private void addParallel(SeekableSource source, long chunks, int chunkSize, int maxCandidates, ForkJoinPool pool) throws IOException {
+    if (chunks > Integer.MAX_VALUE && maxEntries == 0)
+      throw new IOException("too many chunks " + chunks + ", use a larger chunk size");
+    int tasks = pool.getParallelism() * 4;
+    int perTask = (int) Math.min(Math.max(MIN_TASK_CHUNKS, chunks / tasks), Math.max(1, MAX_TASK_BYTES / chunkSize));
+    ArrayDeque<HashTask> running = new ArrayDeque<HashTask>();
+    long count = 0;
+    long nextChunk = 0;
+    try {
+      while (nextChunk < chunks || !running.isEmpty()) {
+        while (nextChunk < chunks && running.size() < tasks / 2 + 1) {
+          HashTask task = new HashTask(source, nextChunk, (int) Math.min(perTask, chunks - nextChunk), chunkSize, hash);
+          pool.execute(task);
+          running.add(task);
+          nextChunk += task.count;
+        }
+        long[] hashes = join(running.remove());
+        for (long hash : hashes)
+          add(hash, count++, maxCandidates);
+      }
+    } finally {
+      for (HashTask task : running)
+        task.cancel(true);
+    }
+  }
+
+  /**
+   * Waits for a task.
+   *
+   * @param task the task
+   * @return the hashes
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  private static long[] join(HashTask task) throws IOException {
+    try {
+      return task.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw (IOException) new InterruptedIOException().initCause(e);
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof UncheckedIOException)
+        throw ((UncheckedIOException) cause).getCause();
+      if (cause instanceof RuntimeException)
+        throw (RuntimeException) cause;
+      if (cause instanceof Error)
+        throw (Error) cause;
+      throw new IOException(cause);
+    }
+  }
+
+  /**
+   * Hashes a range of chunks using positional reads.
+   */
+  private static class HashTask extends RecursiveTask<long[]> {
+    /** The Constant serialVersionUID. */
+    private static final long serialVersionUID = 1;
+    /** The source. */
+    private final SeekableSource source;
+    /** The first chunk. */
+    private final long first;
+    /** The number of chunks. */
+    private final int count;
+    /** The chunk size. */
+    private final int chunkSize;
+    /** The hash. */
+    private final RollingHash hash;
+
+    /**
+     * Instantiates a new hash task.
+     *
+     * @param source the source
+     * @param first the first
+     * @param count the count
+     * @param chunkSize the chunk size
+     * @param hash the hash
+     */
+    HashTask(SeekableSource source, long first, int count, int chunkSize, RollingHash hash) {
+      this.source = source;
+      this.first = first;
+      this.count = count;
+      this.chunkSize = chunkSize;
+      this.hash = hash;
+    }
+
+    /* (non-Javadoc)
+     * @see java.util.concurrent.RecursiveTask#compute()
+     */
+    @Override
+    protected long[] compute() {
+      ByteBuffer bb = ByteBuffer.allocate(count * chunkSize);
+      long position = first * chunkSize;
+      try {
+        while (bb.hasRemaining()) {
+          int read = source.read(position + bb.position(), bb);
+          if (read == -1)
+            throw new IOException("source ended at " + (position + bb.position()));
+        }
+      } catch (IOException e) {
+        throw new UncheckedIOException(e);
+      }
+      bb.flip();
+      long[] hashes = new long[count];
+      for (int i = 0; i < count; i++) {
+        hashes[i] = hash.hash(bb, chunkSize);
+        bb.position(bb.position() + chunkSize);
+      }
+      return hashes;
+    }
+  }
+
+  /**
+   * Adds a chunk to the head of the chain for its checksum, dropping the
+   * oldest chunk when the chain grows beyond <code>maxCandidates</code>.
+   *
+   * @param hash the checksum
+   * @param chunk the chunk index, below 2^31 unless the index is sampled
+   * @param maxCandidates the maximum chain length
+   */
+  private void add(long hash, long chunk, int maxCandidates) {
+    if (maxEntries > 0) {
+      if (isAnchor(hash))
+        addSampled(hash, chunk * chunkSize);
+      return;
+    }
+    int index = (int) chunk;
+    if (index == next.length)
+      next = Arrays.copyOf(next, (int) Math.min((long) index * 2, Integer.MAX_VALUE - 8));
+    next[index] = checksums.put(hash, index);
+    chunks = index + 1;
+    int i = index;
+    for (int n = 1; n < maxCandidates && i != -1; n++)
+      i = next[i];
+    if (i != -1)
+      next[i] = -1;
+  }
+
+  /**
+   * Adds a chunk to a sampled index, replacing an earlier chunk with the
+   * same checksum.
+   *
+   * @param hash the checksum
+   * @param offset the source offset of the chunk
+   */
+  private void addSampled(long hash, long offset) {
+    int entry = checksums.get(hash);
+    if (entry != LongIntHashMap.NO_VALUE) {
+      offsets[entry] = offset;
+      return;
+    }
+    if (chunks == offsets.length)
+      offsets = Arrays.copyOf(offsets, (int) Math.min((long) chunks * 2, Integer.MAX_VALUE - 8));
+    offsets[chunks] = offset;
+    checksums.put(hash, chunks++);
+    if (chunks > maxEntries)
+      resample();
+  }
+
+  /**
+   * Doubles the sampling of a sampled index until it holds at most
+   * <code>maxEntries</code> checksums, dropping the chunks no longer passing.
+   * The entries kept are renumbered from 0.
+   */
+  private void resample() {
+    LongIntHashMap kept;
+    long[] keptOffsets = new long[offsets.length];
+    do {
+      sampleBits++;
+      kept = new LongIntHashMap(maxEntries);
+      long[] keys = checksums.keys();
+      int[] values = checksums.values();
+      for (int i = 0; i < keys.length; i++) {
+        if (values[i] != LongIntHashMap.NO_VALUE && isAnchor(keys[i])) {
+          keptOffsets[kept.size()] = offsets[values[i]];
+          kept.put(keys[i], kept.size());
+        }
+      }
+    } while (kept.size() > maxEntries);
+    checksums = kept;
+    offsets = keptOffsets;
+    chunks = kept.size();
+  }
+
+  /**
+   * Checks whether content-defined chunking places an anchor at a position.
+   *
+   * @param checksum the checksum at the position
+   * @param distance the distance from the previous anchor
+   * @return true, if the position is an anchor
+   * @see #contentDefined(SeekableSource, int, int, int, int, int, RollingHash)
+   */
+  public boolean isContentDefinedAnchor(long checksum, long distance) {
+    return distance >= maxChunkSize || distance >= minChunkSize && isAnchor(checksum);
+  }
+
+  /**
+   * Checks whether the index holds content-defined anchors rather than chunks
+   * at multiples of the chunk size.
+   *
+   * @return true, if content-defined
+   */
+  public boolean isContentDefined() {
+    return maxChunkSize > 0;
+  }
+
+  /**
+   * Returns the least distance between content-defined anchors.
+   *
+   * @return the int, 0 unless content-defined
+   */
+  public int getMinChunkSize() {
+    return minChunkSize;
+  }
+
+  /**
+   * Returns the greatest distance between content-defined anchors.
+   *
+   * @return the int, 0 unless content-defined
+   */
+  public int getMaxChunkSize() {
+    return maxChunkSize;
+  }
+
+  /**
+   * Returns the source offset of an indexed chunk.
+   *
+   * @param index a chunk index returned by {@link #findChecksumIndex(long)} or {@link #nextChecksumIndex(int)}
+   * @return the long
+   */
+  public long getOffset(int index) {
+    return offsets == null ? (long) index * chunkSize : offsets[index];
+  }
+
+  /**
+   * Checks whether chunks with a checksum are indexed. This is always true
+   * unless the index is sampled, see {@link #sampled(SeekableSource, int, int, ForkJoinPool, RollingHash)},
+   * or content-defined; then target positions failing it need not be looked up.
+   *
+   * @param checksum the checksum
+   * @return true, if chunks with the checksum are indexed
+   */
+  public boolean isAnchor(long checksum) {
+    return sampleBits == 0 || (checksum * 0x9e3779b97f4a7c15L) >>> (64 - sampleBits) == 0;
+  }
+
+  /**
+   * Returns how many chunks there are per indexed chunk on average,
+   * 1 unless the index is sampled.
+   *
+   * @return a power of two
+   */
+  public int getSampling() {
+    return maxEntries > 0 ? 1 << sampleBits : 1;
+  }
+
+  /**
+   * Finds the checksum computed from the buffer using {@link RollingHash#ADLER}.
    * Marks, gets, then resets the buffer.
    *
    * @param bb the bb
@@ -96,7 +641,7 @@ public class Checksum {
   }
 
   /**
-   * Increments a checksum.
+   * Increments a checksum computed using {@link RollingHash#ADLER}.
    * @param checksum initial checksum
    * @param out byte leaving view
    * @param in byte entering view
@@ -122,16 +667,120 @@ public class Checksum {
 
   /**
    * Finds the index of a checksum.
+   * If several chunks share the checksum, this is the last one in the source;
+   * use {@link #nextChecksumIndex(int)} for the others.
    *
    * @param hashf the hashf
-   * @return the int
+   * @return the int, or -1 if not found
    */
   public int findChecksumIndex(long hashf) {
-    if (!checksums.containsKey(hashf))
-      return -1;
     return checksums.get(hashf);
   }
 
+  /* (non-Javadoc)
+   * @see com.nothome.delta.SourceIndex#findEntry(long)
+   */
+  @Override
+  public long findEntry(long checksum) {
+    return findChecksumIndex(checksum);
+  }
+
+  /* (non-Javadoc)
+   * @see com.nothome.delta.SourceIndex#nextEntry(long)
+   */
+  @Override
+  public long nextEntry(long entry) {
+    return nextChecksumIndex((int) entry);
+  }
+
+  /* (non-Javadoc)
+   * @see com.nothome.delta.SourceIndex#getEntryOffset(long)
+   */
+  @Override
+  public long getEntryOffset(long entry) {
+    return getOffset((int) entry);
+  }
+
+  /**
+   * Returns the next, older chunk index sharing the checksum of the given chunk.
+   *
+   * @param index a chunk index returned by {@link #findChecksumIndex(long)} or this method
+   * @return the int, or -1 if there are no further chunks
+   */
+  public int nextChecksumIndex(int index) {
+    if (index >= next.length)
+      return -1;
+    return next[index];
+  }
+
+  /**
+   * Returns the chunk size the source was indexed with.
+   *
+   * @return the int
+   */
+  public int getChunkSize() {
+    return chunkSize;
+  }
+
+  /**
+   * Returns the rolling hash the source was indexed with.
+   *
+   * @return the rolling hash
+   */
+  public RollingHash getRollingHash() {
+    return hash;
+  }
+
+  /**
+   * Returns the number of source chunks indexed, or of the entries kept by
+   * a sampled index.
+   *
+   * @return the int
+   */
+  public int getChunkCount() {
+    return chunks;
+  }
+
+  /**
+   * Returns the approximate number of heap bytes used by the index.
+   *
+   * @return the long
+   */
+  public long estimateBytes() {
+    return checksums.capacity() * 12L + next.length * 4L + (offsets == null ? 0 : offsets.length * 8L);
+  }
+
+  /**
+   * Returns the approximate number of heap bytes used by an index of a
+   * source, before it is built.
+   *
+   * @param sourceLength the source length
+   * @param chunkSize the chunk size
+   * @return the long
+   */
+  public static long estimateBytes(long sourceLength, int chunkSize) {
+    long chunks = sourceLength / chunkSize;
+    return LongIntHashMap.estimateBytes(chunks) + Math.max(chunks, 16) * 4L;
+  }
+
+  /**
+   * Returns the checksum table.
+   *
+   * @return the long int hash map
+   */
+  LongIntHashMap checksums() {
+    return checksums;
+  }
+
+  /**
+   * Returns the chains, valid up to {@link #getChunkCount()}.
+   *
+   * @return the int[]
+   */
+  int[] next() {
+    return next;
+  }
+
   /**
    * Returns a debug <code>String</code>.
    *
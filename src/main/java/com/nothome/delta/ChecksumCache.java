@@ -0,0 +1,334 @@
+/*
+ * ChecksumCache.java
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a
+ * copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL
+ * THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS
+ * IN THE SOFTWARE.
+ *
+ */
+package com.nothome.delta;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Shares source {@link Checksum} indexes between deltas against the same source.
+ * <p>
+ * Indexes are keyed by a source identity, the chunk size, the number of
+ * candidates kept per checksum and the rolling hash. The least recently used indexes are evicted
+ * when the estimated size of all indexes exceeds the limit.
+ * An index is built once by the first thread asking for it; other threads
+ * asking meanwhile wait for it.
+ * <p>
+ * This class is thread safe.
+ */
+public class ChecksumCache {
+  /** The maximum estimated size of the cached indexes. */
+  private final long maxBytes;
+  /** The entries, least recently used first. */
+  private final LinkedHashMap<Key, Entry> entries = new LinkedHashMap<Key, Entry>(16, 0.75f, true);
+  /** The estimated size of the built indexes. */
+  private long bytes;
+  /** The hits. */
+  private long hits;
+  /** The misses. */
+  private long misses;
+  /** The evictions. */
+  private long evictions;
+
+  /**
+   * Constructs a new ChecksumCache.
+   *
+   * @param maxBytes the maximum estimated heap size of the cached indexes
+   */
+  public ChecksumCache(long maxBytes) {
+    if (maxBytes < 0)
+      throw new IllegalArgumentException("Invalid maxBytes");
+    this.maxBytes = maxBytes;
+  }
+
+  /**
+   * Returns an identity for the current content of a file, made of its path,
+   * modification time and length.
+   *
+   * @param file the file
+   * @return the string
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  public static String fileId(File file) throws IOException {
+    return file.getCanonicalPath() + ":" + file.lastModified() + ":" + file.length();
+  }
+
+  /**
+   * Returns the index of a file, reading it if not cached.
+   * The file is identified by {@link #fileId(File)}.
+   *
+   * @param file the file
+   * @param chunkSize the chunk size
+   * @param maxCandidates the maximum number of chunks per checksum
+   * @param hash the rolling hash
+   * @param pool the pool to build the index on, or null
+   * @return the checksum
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  public Checksum get(final File file, final int chunkSize, final int maxCandidates, final RollingHash hash, final ForkJoinPool pool) throws IOException {
+    return get(new Key(fileId(file), chunkSize, maxCandidates, hash), new Callable<Checksum>() {
+      @Override
+      public Checksum call() throws IOException {
+        try (SeekableSource source = new FileChannelSeekableSource(file)) {
+          return new Checksum(source, chunkSize, maxCandidates, pool, hash);
+        }
+      }
+    });
+  }
+
+  /**
+   * Returns the index of a source, reading it from its current position if not cached.
+   *
+   * @param sourceId identifies the source content, such as a digest from
+   *     {@link ChecksumFile#digest(SeekableSource)} in hex
+   * @param source the source
+   * @param chunkSize the chunk size
+   * @param maxCandidates the maximum number of chunks per checksum
+   * @param hash the rolling hash
+   * @param pool the pool to build the index on, or null
+   * @return the checksum
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  public Checksum get(String sourceId, final SeekableSource source, final int chunkSize, final int maxCandidates, final RollingHash hash, final ForkJoinPool pool) throws IOException {
+    return get(new Key(sourceId, chunkSize, maxCandidates, hash), new Callable<Checksum>() {
+      @Override
+      public Checksum call() throws IOException {
+        return new Checksum(source, chunkSize, maxCandidates, pool, hash);
+      }
+    });
+  }
+
+  /**
+   * Returns a cached index or builds it.
+   *
+   * @param key the key
+   * @param builder the builder
+   * @return the checksum
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  private Checksum get(Key key, Callable<Checksum> builder) throws IOException {
+    Entry entry;
+    boolean build = false;
+    synchronized (this) {
+      entry = entries.get(key);
+      if (entry != null) {
+        hits++;
+      } else {
+        misses++;
+        entry = new Entry(builder);
+        entries.put(key, entry);
+        build = true;
+      }
+    }
+    if (build) {
+      entry.task.run();
+      added(key, entry);
+    }
+    try {
+      return entry.task.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw (IOException) new InterruptedIOException().initCause(e);
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof IOException)
+        throw (IOException) cause;
+      if (cause instanceof RuntimeException)
+        throw (RuntimeException) cause;
+      if (cause instanceof Error)
+        throw (Error) cause;
+      throw new IOException(cause);
+    }
+  }
+
+  /**
+   * Accounts for a built index, evicting old indexes as needed.
+   * A failed build is removed so that it is retried.
+   *
+   * @param key the key
+   * @param entry the entry
+   */
+  private synchronized void added(Key key, Entry entry) {
+    Checksum checksum;
+    try {
+      checksum = entry.task.get();
+    } catch (InterruptedException | ExecutionException e) {
+      entries.remove(key);
+      return;
+    }
+    if (entries.get(key) != entry)
+      return;
+    entry.bytes = checksum.estimateBytes();
+    bytes += entry.bytes;
+    Iterator<Map.Entry<Key, Entry>> i = entries.entrySet().iterator();
+    while (bytes > maxBytes && i.hasNext()) {
+      Entry e = i.next().getValue();
+      if (e.bytes == 0)
+        continue;
+      i.remove();
+      bytes -= e.bytes;
+      evictions++;
+    }
+  }
+
+  /**
+   * Removes all indexes.
+   */
+  public synchronized void clear() {
+    entries.clear();
+    bytes = 0;
+  }
+
+  /**
+   * Returns the estimated heap size of the cached indexes.
+   *
+   * @return the long
+   */
+  public synchronized long getBytes() {
+    return bytes;
+  }
+
+  /**
+   * Returns the number of cached indexes, including ones being built.
+   *
+   * @return the int
+   */
+  public synchronized int size() {
+    return entries.size();
+  }
+
+  /**
+   * Returns the number of requests served from the cache.
+   *
+   * @return the long
+   */
+  public synchronized long getHitCount() {
+    return hits;
+  }
+
+  /**
+   * Returns the number of requests that built an index.
+   *
+   * @return the long
+   */
+  public synchronized long getMissCount() {
+    return misses;
+  }
+
+  /**
+   * Returns the number of indexes evicted.
+   *
+   * @return the long
+   */
+  public synchronized long getEvictionCount() {
+    return evictions;
+  }
+
+  /**
+   * Returns a debug <code>String</code>.
+   *
+   * @return the string
+   */
+  @Override
+  public synchronized String toString() {
+    return "ChecksumCache size=" + entries.size() + " bytes=" + bytes + " hits=" + hits + " misses=" + misses;
+  }
+
+  /**
+   * Identifies an index.
+   */
+  private static final class Key {
+    /** The source id. */
+    private final String sourceId;
+    /** The chunk size. */
+    private final int chunkSize;
+    /** The max candidates. */
+    private final int maxCandidates;
+    /** The hash. */
+    private final RollingHash hash;
+
+    /**
+     * Instantiates a new key.
+     *
+     * @param sourceId the source id
+     * @param chunkSize the chunk size
+     * @param maxCandidates the max candidates
+     * @param hash the hash
+     */
+    Key(String sourceId, int chunkSize, int maxCandidates, RollingHash hash) {
+      if (sourceId == null)
+        throw new NullPointerException("sourceId");
+      this.sourceId = sourceId;
+      this.chunkSize = chunkSize;
+      this.maxCandidates = maxCandidates;
+      this.hash = hash;
+    }
+
+    /* (non-Javadoc)
+     * @see java.lang.Object#hashCode()
+     */
+    @Override
+    public int hashCode() {
+      return ((sourceId.hashCode() * 31 + chunkSize) * 31 + maxCandidates) * 31 + hash.hashCode();
+    }
+
+    /* (non-Javadoc)
+     * @see java.lang.Object#equals(java.lang.Object)
+     */
+    @Override
+    public boolean equals(Object obj) {
+      if (!(obj instanceof Key))
+        return false;
+      Key other = (Key) obj;
+      return sourceId.equals(other.sourceId) && chunkSize == other.chunkSize && maxCandidates == other.maxCandidates
+          && hash.equals(other.hash);
+    }
+  }
+
+  /**
+   * An index, possibly being built.
+   */
+  private static final class Entry {
+    /** Builds the index. */
+    private final FutureTask<Checksum> task;
+    /** The estimated size once built, 0 while building. */
+    private long bytes;
+
+    /**
+     * Instantiates a new entry.
+     *
+     * @param builder the builder
+     */
+    Entry(Callable<Checksum> builder) {
+      task = new FutureTask<Checksum>(builder);
+    }
+  }
+}
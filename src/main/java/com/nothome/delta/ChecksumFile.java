@@ -0,0 +1,291 @@
+/*
+ * ChecksumFile.java
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a
+ * copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL
+ * THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS
+ * IN THE SOFTWARE.
+ *
+ */
+package com.nothome.delta;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+
+/**
+ * Stores a source {@link Checksum} index in a file, so that deltas against the
+ * same source can start without reading and hashing it again.
+ * <p>
+ * The file records the source length, a SHA-256 digest of the source content
+ * and the chunk size, which {@link #read(File, long, byte[])} checks against
+ * the values the caller expects. The tables are loaded from a memory mapping
+ * with bulk copies.
+ * <p>
+ * The format is a 72 byte big-endian header followed by the tables:
+ * <pre>
+ * int magic "JXDI", int version, int {@link RollingHash#id()}, int chunk size,
+ * long source length, byte[32] source digest,
+ * int chunk count, int table capacity, int table size, int reserved
+ * long[capacity] keys, int[capacity] values, int[chunk count] chains
+ * </pre>
+ */
+public final class ChecksumFile {
+  /** The magic number, "JXDI". */
+  public static final int MAGIC = 0x4a584449;
+  /** The format version. */
+  public static final int VERSION = 1;
+  /** The digest algorithm. */
+  public static final String DIGEST = "SHA-256";
+  /** The header length. */
+  static final int HEADER_SIZE = 72;
+  /** The digest length. */
+  private static final int DIGEST_SIZE = 32;
+  /** The buffer size used to read the source and write the file. */
+  private static final int BUFFER_SIZE = 1 << 20;
+  /** Largest number of array elements mapped at once. */
+  private static final int MAP_ELEMENTS = 1 << 24;
+
+  /**
+   * Not instantiable.
+   */
+  private ChecksumFile() {}
+
+  /**
+   * Computes the digest identifying the source content.
+   *
+   * @param source the source
+   * @return the SHA-256 digest of all source bytes
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  public static byte[] digest(SeekableSource source) throws IOException {
+    MessageDigest md = newDigest();
+    ByteBuffer bb = ByteBuffer.allocate(BUFFER_SIZE);
+    long position = 0;
+    int read;
+    while ((read = source.read(position, bb)) != -1) {
+      bb.flip();
+      md.update(bb);
+      bb.clear();
+      position += read;
+    }
+    return md.digest();
+  }
+
+  /**
+   * Writes an index, computing the length and digest of the source.
+   *
+   * @param checksum the index of the source
+   * @param source the source
+   * @param file the file
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  public static void write(Checksum checksum, SeekableSource source, File file) throws IOException {
+    byte[] digest = digest(source);
+    long length = source.length();
+    if (length < 0)
+      throw new IOException("source length is not known");
+    write(checksum, length, digest, file);
+  }
+
+  /**
+   * Writes an index. Sampled and content-defined indexes are not supported.
+   *
+   * @param checksum the index of the source
+   * @param sourceLength the source length
+   * @param digest the source digest, see {@link #digest(SeekableSource)}
+   * @param file the file
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  public static void write(Checksum checksum, long sourceLength, byte[] digest, File file) throws IOException {
+    if (digest.length != DIGEST_SIZE)
+      throw new IllegalArgumentException("digest length " + digest.length);
+    if (checksum.getSampling() != 1 || checksum.isContentDefined())
+      throw new IllegalArgumentException("sampled and content-defined indexes are not stored");
+    LongIntHashMap checksums = checksum.checksums();
+    long[] keys = checksums.keys();
+    int[] values = checksums.values();
+    int chunks = checksum.getChunkCount();
+    ByteBuffer bb = ByteBuffer.allocateDirect(BUFFER_SIZE);
+    try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE,
+        StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING)) {
+      bb.putInt(MAGIC).putInt(VERSION).putInt(checksum.getRollingHash().id()).putInt(checksum.getChunkSize());
+      bb.putLong(sourceLength).put(digest);
+      bb.putInt(chunks).putInt(keys.length).putInt(checksums.size()).putInt(0);
+      for (int i = 0; i < keys.length;) {
+        if (bb.remaining() < 8)
+          flush(bb, channel);
+        int n = Math.min(keys.length - i, bb.remaining() / 8);
+        bb.asLongBuffer().put(keys, i, n);
+        bb.position(bb.position() + n * 8);
+        i += n;
+      }
+      putInts(values, values.length, bb, channel);
+      putInts(checksum.next(), chunks, bb, channel);
+      flush(bb, channel);
+    }
+  }
+
+  /**
+   * Puts ints into the buffer, writing it out when full.
+   *
+   * @param a the array
+   * @param len the number of ints
+   * @param bb the buffer
+   * @param channel the channel
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  private static void putInts(int[] a, int len, ByteBuffer bb, FileChannel channel) throws IOException {
+    for (int i = 0; i < len;) {
+      if (bb.remaining() < 4)
+        flush(bb, channel);
+      int n = Math.min(len - i, bb.remaining() / 4);
+      bb.asIntBuffer().put(a, i, n);
+      bb.position(bb.position() + n * 4);
+      i += n;
+    }
+  }
+
+  /**
+   * Writes out the buffer.
+   *
+   * @param bb the bb
+   * @param channel the channel
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  private static void flush(ByteBuffer bb, FileChannel channel) throws IOException {
+    bb.flip();
+    while (bb.hasRemaining())
+      channel.write(bb);
+    bb.clear();
+  }
+
+  /**
+   * Reads an index without checking which source it belongs to.
+   *
+   * @param file the file
+   * @return the checksum
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  public static Checksum read(File file) throws IOException {
+    return read(file, -1, null);
+  }
+
+  /**
+   * Reads an index, checking that it was written for a source of the given
+   * length and digest.
+   *
+   * @param file the file
+   * @param sourceLength the expected source length, or -1 to not check
+   * @param digest the expected source digest, or null to not check
+   * @return the checksum
+   * @throws IOException if the file is not an index of the expected source,
+   *     or an I/O exception has occurred
+   */
+  public static Checksum read(File file, long sourceLength, byte[] digest) throws IOException {
+    try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+      if (channel.size() < HEADER_SIZE)
+        throw new IOException("not an index file: " + file);
+      ByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_SIZE);
+      if (header.getInt() != MAGIC)
+        throw new IOException("not an index file: " + file);
+      int version = header.getInt();
+      if (version != VERSION)
+        throw new IOException("unsupported index version " + version);
+      int hashType = header.getInt();
+      RollingHash hash = RollingHash.forId(hashType);
+      if (hash == null)
+        throw new IOException("unsupported hash type " + hashType);
+      int chunkSize = header.getInt();
+      long length = header.getLong();
+      byte[] d = new byte[DIGEST_SIZE];
+      header.get(d);
+      if (sourceLength >= 0 && sourceLength != length)
+        throw new IOException("index is for a source of length " + length + ", not " + sourceLength);
+      if (digest != null && !Arrays.equals(digest, d))
+        throw new IOException("index is for a different source");
+      int chunks = header.getInt();
+      int capacity = header.getInt();
+      int size = header.getInt();
+      if (chunkSize <= 0 || chunks < 0 || capacity < 0 || channel.size() != HEADER_SIZE + capacity * 12L + chunks * 4L)
+        throw new IOException("corrupt index file: " + file);
+      long[] keys = new long[capacity];
+      int[] values = new int[capacity];
+      int[] next = new int[chunks];
+      long position = HEADER_SIZE;
+      for (int i = 0; i < capacity;) {
+        int n = Math.min(capacity - i, MAP_ELEMENTS);
+        LongBuffer lb = channel.map(FileChannel.MapMode.READ_ONLY, position, n * 8L).asLongBuffer();
+        lb.get(keys, i, n);
+        position += n * 8L;
+        i += n;
+      }
+      position = getInts(channel, position, values);
+      getInts(channel, position, next);
+      for (int v : values)
+        if (v >= chunks)
+          throw new IOException("corrupt index file: " + file);
+      for (int i = 0; i < chunks; i++)
+        if (next[i] < -1 || next[i] >= i)
+          throw new IOException("corrupt index file: " + file);
+      try {
+        return new Checksum(chunkSize, hash, new LongIntHashMap(keys, values, size), next);
+      } catch (IllegalArgumentException e) {
+        throw new IOException("corrupt index file: " + file, e);
+      }
+    }
+  }
+
+  /**
+   * Fills an array from a mapping of the channel.
+   *
+   * @param channel the channel
+   * @param position the file position
+   * @param a the array
+   * @return the position after the ints
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  private static long getInts(FileChannel channel, long position, int[] a) throws IOException {
+    for (int i = 0; i < a.length;) {
+      int n = Math.min(a.length - i, MAP_ELEMENTS);
+      IntBuffer ib = channel.map(FileChannel.MapMode.READ_ONLY, position, n * 4L).asIntBuffer();
+      ib.get(a, i, n);
+      position += n * 4L;
+      i += n;
+    }
+    return position;
+  }
+
+  /**
+   * New digest.
+   *
+   * @return the message digest
+   */
+  private static MessageDigest newDigest() {
+    try {
+      return MessageDigest.getInstance(DIGEST);
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+}
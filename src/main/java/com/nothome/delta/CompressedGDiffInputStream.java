@@ -0,0 +1,278 @@
+/*
+ * CompressedGDiffInputStream.java
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a
+ * copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL
+ * THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS
+ * IN THE SOFTWARE.
+ *
+ */
+package com.nothome.delta;
+
+import static com.nothome.delta.GDiffWriter.COPY_INT_INT;
+import static com.nothome.delta.GDiffWriter.COPY_INT_UBYTE;
+import static com.nothome.delta.GDiffWriter.COPY_INT_USHORT;
+import static com.nothome.delta.GDiffWriter.COPY_LONG_INT;
+import static com.nothome.delta.GDiffWriter.COPY_USHORT_INT;
+import static com.nothome.delta.GDiffWriter.COPY_USHORT_UBYTE;
+import static com.nothome.delta.GDiffWriter.COPY_USHORT_USHORT;
+import static com.nothome.delta.GDiffWriter.DATA_INT;
+import static com.nothome.delta.GDiffWriter.DATA_MAX;
+import static com.nothome.delta.GDiffWriter.DATA_USHORT;
+import static com.nothome.delta.GDiffWriter.EOF;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Expands the container written by {@link CompressedGDiffWriter} back into
+ * a plain GDIFF stream, starting with the GDIFF magic string.
+ * Only the current frame is held in memory.
+ */
+class CompressedGDiffInputStream extends InputStream {
+  /** The largest deflated section accepted, which leaves room for incompressible frames. */
+  private static final int PACKED_MAX = CompressedGDiffWriter.FRAME_SIZE + (1 << 16);
+  /** The container, positioned after the magic string. */
+  private final DataInputStream in;
+  /** The inflater for the commands. */
+  private final Inflater opsInflater = new Inflater(true);
+  /** The inflater for the data. */
+  private final Inflater dataInflater = new Inflater(true);
+  /** The deflated sections of the current frame. */
+  private byte[] packed = new byte[0];
+  /** The commands of the current frame, with room to detect oversized frames. */
+  private final byte[] ops = new byte[CompressedGDiffWriter.OPS_MAX + 1];
+  /** The number of bytes in ops. */
+  private int opsLength;
+  /** The position of the next byte of ops to return. */
+  private int opsPos;
+  /** The end of the command being returned. */
+  private int opsEnd;
+  /** The number of data bytes following the command being returned. */
+  private int opData;
+  /** The number of data bytes still to return for the last command. */
+  private int dataRemaining;
+  /** Whether the EOF command has been reached. */
+  private boolean finished;
+  /** Holds a single byte read. */
+  private final byte[] single = new byte[1];
+
+  /**
+   * Instantiates a new compressed GDIFF input stream.
+   *
+   * @param in the container, positioned after the magic string
+   */
+  CompressedGDiffInputStream(InputStream in) {
+    this.in = new DataInputStream(in);
+    // the magic string is 'd1 ff d1 ff' + the version number
+    byte[] magic = { (byte) 0xd1, (byte) 0xff, (byte) 0xd1, (byte) 0xff, 0x04 };
+    System.arraycopy(magic, 0, ops, 0, magic.length);
+    opsLength = magic.length;
+    opsEnd = magic.length;
+  }
+
+  /**
+   * Checks whether bytes start with the magic string of the container.
+   *
+   * @param b the b
+   * @return true, if the bytes start with the magic string
+   */
+  static boolean isMagic(byte[] b) {
+    if (b.length < CompressedGDiffWriter.MAGIC.length)
+      return false;
+    for (int i = 0; i < CompressedGDiffWriter.MAGIC.length; i++) {
+      if (b[i] != CompressedGDiffWriter.MAGIC[i])
+        return false;
+    }
+    return true;
+  }
+
+  /* (non-Javadoc)
+   * @see java.io.InputStream#read()
+   */
+  @Override
+  public int read() throws IOException {
+    return read(single, 0, 1) == -1 ? -1 : single[0] & 0xff;
+  }
+
+  /* (non-Javadoc)
+   * @see java.io.InputStream#read(byte[], int, int)
+   */
+  @Override
+  public int read(byte[] b, int off, int len) throws IOException {
+    if (len == 0)
+      return 0;
+    while (true) {
+      if (dataRemaining > 0)
+        return inflateData(b, off, Math.min(len, dataRemaining));
+      if (opsPos < opsEnd) {
+        int n = Math.min(len, opsEnd - opsPos);
+        System.arraycopy(ops, opsPos, b, off, n);
+        opsPos += n;
+        if (opsPos == opsEnd)
+          dataRemaining = opData;
+        return n;
+      }
+      if (finished)
+        return -1;
+      if (opsPos == opsLength)
+        readFrame();
+      else
+        nextCommand();
+    }
+  }
+
+  /**
+   * Finds the extent of the next command and the number of data bytes
+   * following it.
+   *
+   * @throws PatchException if the command is incomplete
+   */
+  private void nextCommand() throws PatchException {
+    int command = ops[opsPos] & 0xff;
+    int size;
+    opData = 0;
+    if (command == EOF) {
+      size = 1;
+      finished = true;
+    } else if (command <= DATA_MAX) {
+      size = 1;
+      opData = command;
+    } else {
+      switch (command) {
+        case DATA_USHORT:
+          size = 3;
+          break;
+        case DATA_INT:
+          size = 5;
+          break;
+        case COPY_USHORT_UBYTE:
+          size = 4;
+          break;
+        case COPY_USHORT_USHORT:
+          size = 5;
+          break;
+        case COPY_USHORT_INT:
+        case COPY_INT_USHORT:
+          size = 7;
+          break;
+        case COPY_INT_UBYTE:
+          size = 6;
+          break;
+        case COPY_INT_INT:
+          size = 9;
+          break;
+        case COPY_LONG_INT:
+          size = 13;
+          break;
+        default:
+          throw new IllegalStateException("command " + command);
+      }
+    }
+    opsEnd = opsPos + size;
+    if (opsEnd > opsLength)
+      throw new PatchException("command split across frames");
+    if (command == DATA_USHORT)
+      opData = (ops[opsPos + 1] & 0xff) << 8 | ops[opsPos + 2] & 0xff;
+    else if (command == DATA_INT)
+      opData = (ops[opsPos + 1] & 0xff) << 24 | (ops[opsPos + 2] & 0xff) << 16 | (ops[opsPos + 3] & 0xff) << 8 | ops[opsPos + 4] & 0xff;
+    if (opData < 0)
+      throw new PatchException("invalid data length " + opData);
+  }
+
+  /**
+   * Reads the next frame and inflates its commands.
+   *
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  private void readFrame() throws IOException {
+    int opsPacked = in.readInt();
+    int dataPacked = in.readInt();
+    if (opsPacked < 0 || dataPacked < 0 || opsPacked > PACKED_MAX || dataPacked > PACKED_MAX)
+      throw new PatchException("invalid frame lengths " + opsPacked + " " + dataPacked);
+    if (packed.length < opsPacked + dataPacked)
+      packed = new byte[opsPacked + dataPacked];
+    in.readFully(packed, 0, opsPacked + dataPacked);
+    try {
+      opsInflater.setInput(packed, 0, opsPacked);
+      opsLength = 0;
+      while (true) {
+        int n = opsInflater.inflate(ops, opsLength, ops.length - opsLength);
+        opsLength += n;
+        if (n == 0) {
+          if (opsInflater.needsInput())
+            break;
+          throw new PatchException("invalid frame commands");
+        }
+      }
+      if (opsLength > CompressedGDiffWriter.OPS_MAX)
+        throw new PatchException("frame commands too large");
+      // consume the flush marker left after the last data command
+      if (!dataInflater.needsInput() && (dataInflater.inflate(single, 0, 1) != 0 || !dataInflater.needsInput()))
+        throw new PatchException("frame data exceeds its commands");
+      dataInflater.setInput(packed, opsPacked, dataPacked);
+    } catch (DataFormatException e) {
+      throw new PatchException(e.getMessage());
+    }
+    opsPos = 0;
+    opsEnd = 0;
+  }
+
+  /**
+   * Inflates data bytes of the current frame.
+   *
+   * @param b the b
+   * @param off the off
+   * @param len the len
+   * @return the number of bytes inflated
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  private int inflateData(byte[] b, int off, int len) throws IOException {
+    try {
+      int n;
+      while ((n = dataInflater.inflate(b, off, len)) == 0) {
+        if (dataInflater.needsInput() || dataInflater.finished())
+          throw new EOFException("frame data ended");
+      }
+      dataRemaining -= n;
+      return n;
+    } catch (DataFormatException e) {
+      throw new PatchException(e.getMessage());
+    }
+  }
+
+  /**
+   * Releases the inflaters without closing the container, which belongs to
+   * the caller. The stream cannot be read afterwards.
+   */
+  void end() {
+    opsInflater.end();
+    dataInflater.end();
+  }
+
+  /* (non-Javadoc)
+   * @see java.io.InputStream#close()
+   */
+  @Override
+  public void close() throws IOException {
+    end();
+    in.close();
+  }
+}
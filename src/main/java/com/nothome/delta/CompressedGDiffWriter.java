@@ -0,0 +1,240 @@
+/*
+ * CompressedGDiffWriter.java
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a
+ * copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL
+ * THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS
+ * IN THE SOFTWARE.
+ *
+ */
+package com.nothome.delta;
+
+import static com.nothome.delta.GDiffWriter.EOF;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.zip.Deflater;
+
+/**
+ * Outputs a GDIFF diff in a compressed container, which
+ * {@link GDiffPatcher} recognizes by its magic string and expands while
+ * patching.
+ * <p>
+ * The container starts with the magic string "4a 58 44 5a" ("JXDZ") and the
+ * version number, followed by frames of at most {@link #FRAME_SIZE}
+ * uncompressed bytes. Each frame holds two big-endian int lengths followed
+ * by the deflated GDIFF commands and the deflated data bytes of those
+ * commands. Commands and data are deflated as two separate streams, each
+ * flushed at the end of every frame, so the commands compress well apart
+ * from the data and the patcher needs only one frame in memory.
+ */
+public class CompressedGDiffWriter implements DiffWriter, AutoCloseable {
+  /** The magic string and version number. */
+  static final byte[] MAGIC = { 'J', 'X', 'D', 'Z', 1 };
+  /** The maximum number of uncompressed command and data bytes in a frame. */
+  public static final int FRAME_SIZE = 1 << 18;
+  /** The maximum size of the commands in a frame, which may end with a data and a copy command. */
+  static final int OPS_MAX = FRAME_SIZE + 5 + 1 + 8 + 4;
+  /** The commands of the current frame. */
+  private final byte[] ops = new byte[OPS_MAX];
+  /** The number of bytes in ops. */
+  private int opsLength;
+  /** The data bytes of the current frame. */
+  private final byte[] data = new byte[FRAME_SIZE];
+  /** The number of bytes in data. */
+  private int dataLength;
+  /** The number of data bytes not yet preceded by a command. */
+  private int pending;
+  /** The deflater for the commands. */
+  private final Deflater opsDeflater;
+  /** The deflater for the data. */
+  private final Deflater dataDeflater;
+  /** The deflated commands of the current frame. */
+  private final ByteArrayOutputStream packedOps = new ByteArrayOutputStream();
+  /** The deflated data of the current frame. */
+  private final ByteArrayOutputStream packedData = new ByteArrayOutputStream();
+  /** The deflater output buffer. */
+  private final byte[] buf = new byte[1 << 16];
+  /** The output. */
+  private final DataOutputStream output;
+  /** Whether the writer is closed. */
+  private boolean closed;
+
+  /**
+   * Constructs a new CompressedGDiffWriter with the default compression level.
+   *
+   * @param output the output
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  public CompressedGDiffWriter(OutputStream output) throws IOException {
+    this(output, Deflater.DEFAULT_COMPRESSION);
+  }
+
+  /**
+   * Constructs a new CompressedGDiffWriter.
+   *
+   * @param output the output
+   * @param level the compression level, 0-9 or {@link Deflater#DEFAULT_COMPRESSION}
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  public CompressedGDiffWriter(OutputStream output, int level) throws IOException {
+    this.output = new DataOutputStream(output);
+    this.opsDeflater = new Deflater(level, true);
+    this.dataDeflater = new Deflater(level, true);
+    this.output.write(MAGIC);
+  }
+
+  /* (non-Javadoc)
+   * @see com.nothome.delta.DiffWriter#addCopy(long, int)
+   */
+  @Override
+  public void addCopy(long offset, int length) throws IOException {
+    endData();
+    opsLength = GDiffWriter.encodeCopy(ops, opsLength, offset, length);
+    if (opsLength + dataLength >= FRAME_SIZE)
+      writeFrame();
+  }
+
+  /* (non-Javadoc)
+   * @see com.nothome.delta.DiffWriter#addData(byte)
+   */
+  @Override
+  public void addData(byte b) throws IOException {
+    data[dataLength++] = b;
+    pending++;
+    if (opsLength + dataLength >= FRAME_SIZE)
+      writeFrame();
+  }
+
+  /* (non-Javadoc)
+   * @see com.nothome.delta.DiffWriter#addData(byte[], int, int)
+   */
+  @Override
+  public void addData(byte[] b, int off, int len) throws IOException {
+    while (len > 0) {
+      int n = Math.min(len, FRAME_SIZE - opsLength - dataLength);
+      System.arraycopy(b, off, data, dataLength, n);
+      dataLength += n;
+      pending += n;
+      off += n;
+      len -= n;
+      if (opsLength + dataLength >= FRAME_SIZE)
+        writeFrame();
+    }
+  }
+
+  /* (non-Javadoc)
+   * @see com.nothome.delta.DiffWriter#addData(java.nio.ByteBuffer)
+   */
+  @Override
+  public void addData(ByteBuffer bb) throws IOException {
+    while (bb.hasRemaining()) {
+      int n = Math.min(bb.remaining(), FRAME_SIZE - opsLength - dataLength);
+      bb.get(data, dataLength, n);
+      dataLength += n;
+      pending += n;
+      if (opsLength + dataLength >= FRAME_SIZE)
+        writeFrame();
+    }
+  }
+
+  /**
+   * Writes the command for the pending data bytes.
+   */
+  private void endData() {
+    if (pending > 0) {
+      opsLength = GDiffWriter.encodeData(ops, opsLength, pending);
+      pending = 0;
+    }
+  }
+
+  /**
+   * Deflates and writes the current frame.
+   *
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  private void writeFrame() throws IOException {
+    endData();
+    if (opsLength == 0)
+      return;
+    deflate(opsDeflater, ops, opsLength, packedOps);
+    deflate(dataDeflater, data, dataLength, packedData);
+    output.writeInt(packedOps.size());
+    output.writeInt(packedData.size());
+    packedOps.writeTo(output);
+    packedData.writeTo(output);
+    opsLength = 0;
+    dataLength = 0;
+  }
+
+  /**
+   * Deflates bytes, flushing the deflater so the bytes can be inflated
+   * without the following frames.
+   *
+   * @param deflater the deflater
+   * @param b the bytes
+   * @param len the length
+   * @param packed receives the deflated bytes
+   */
+  private void deflate(Deflater deflater, byte[] b, int len, ByteArrayOutputStream packed) {
+    packed.reset();
+    deflater.setInput(b, 0, len);
+    while (true) {
+      int n = deflater.deflate(buf, 0, buf.length, Deflater.SYNC_FLUSH);
+      packed.write(buf, 0, n);
+      if (n < buf.length)
+        break;
+    }
+  }
+
+  /**
+   * Writes the current frame and flushes the output. Does nothing once the
+   * writer is closed.
+   *
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  @Override
+  public void flush() throws IOException {
+    if (closed)
+      return;
+    writeFrame();
+    output.flush();
+  }
+
+  /**
+   * Writes the final frame ending with the EOF command, closes the
+   * underlying stream. Closing again does nothing.
+   *
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  @Override
+  public void close() throws IOException {
+    if (closed)
+      return;
+    try (OutputStream os = output) {
+      endData();
+      ops[opsLength++] = EOF;
+      flush();
+    } finally {
+      closed = true;
+      opsDeflater.end();
+      dataDeflater.end();
+    }
+  }
+}
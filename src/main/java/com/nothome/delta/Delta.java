@@ -48,6 +48,7 @@ import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
 import java.nio.channels.Channels;
 import java.nio.channels.ReadableByteChannel;
+import java.util.concurrent.ForkJoinPool;
 
 /**
  * Class for computing deltas against a source.
@@ -57,8 +58,10 @@ import java.nio.channels.ReadableByteChannel;
  * This class is not thread safe. Use one instance per thread.
  * <p>
  * This class should support files over 4GB in length, although you must
- * use a larger checksum size, such as 1K, as all checksums use "int" indexing.
- * Newer versions may eventually support paging in/out of checksums.
+ * use a larger checksum size, such as 1K, as the checksums in the heap use
+ * "int" indexing. {@link #setAdaptiveChunkSize(boolean)} picks such a size
+ * from the source length. {@link #setPagedIndex(File)} keeps the checksums
+ * in memory-mapped files instead, without that limit.
  */
 public class Delta {
   /**
@@ -70,17 +73,83 @@ public class Delta {
    * For "Lorem ipsum" text files (see the tests) the ideal size is about 14.
    * Any smaller and the patch size becomes actually be larger.
    * <p>
-   * Use a size like 64 or 128 for large files.
+   * Use a size like 64 or 128 for large files, or see {@link #setAdaptiveChunkSize(boolean)}.
    */
   public static final int DEFAULT_CHUNK_SIZE = 1 << 4;
+  /**
+   * Default memory budget of 256MB for the source index when the chunk size
+   * is chosen adaptively.
+   */
+  public static final long DEFAULT_INDEX_BUDGET = 1L << 28;
+  /**
+   * The largest chunk size chosen adaptively.
+   */
+  public static final int MAX_ADAPTIVE_CHUNK_SIZE = 1 << 16;
+  /**
+   * The most source chunks an index is built for when the chunk size is chosen adaptively.
+   */
+  private static final long MAX_CHUNKS = 1L << 29;
+  /**
+   * Number of literal bytes held back before they are written.
+   */
+  private static final int PENDING_SIZE = 1 << 14;
+  /**
+   * Most literal bytes held back when the source index is sampled.
+   */
+  private static final int MAX_PENDING_SIZE = 1 << 20;
+  /**
+   * Size of the target blocks read ahead, and of the target bytes per batch
+   * of commands written, when pipelined.
+   */
+  private static final int PIPELINE_BLOCK_SIZE = 1 << 20;
+  /**
+   * Number of blocks and batches in flight between the threads when pipelined.
+   */
+  private static final int PIPELINE_DEPTH = 4;
   /**
    * Chunk Size.
    */
   private int S;
+  /** The chunk size set, which S is reset to for each source when it is not chosen. */
+  private int chunkSize;
   /** The source. */
   private SourceState source;
   /** The target. */
   private TargetState target;
+  /** Whether the chunk size is chosen from the source length. */
+  private boolean adaptiveChunkSize;
+  /** The memory budget of the source index when the chunk size is chosen. */
+  private long indexBudget = DEFAULT_INDEX_BUDGET;
+  /** The maximum number of source chunks kept per checksum. */
+  private int maxCandidates = Checksum.DEFAULT_MAX_CANDIDATES;
+  /** The rolling hash used to index the source. */
+  private RollingHash rollingHash = RollingHash.ADLER;
+  /** The pool checksums are computed on, or null. */
+  private ForkJoinPool indexPool;
+  /** Whether matches are extended backwards into pending data. */
+  private boolean backwardMatching;
+  /** The most checksums kept in a sampled source index, or 0 to index every chunk. */
+  private int maxIndexEntries;
+  /** The least distance between content-defined anchors. */
+  private int minChunkSize;
+  /** The average distance between content-defined anchors, or 0 to index chunks at multiples of the chunk size. */
+  private int averageChunkSize;
+  /** The greatest distance between content-defined anchors. */
+  private int maxChunkSize;
+  /** Whether source files are memory-mapped. */
+  private boolean memoryMapped;
+  /** The cache of source file indexes, or null. */
+  private ChecksumCache checksumCache;
+  /** The directory of paged source indexes, or null to index sources in the heap. */
+  private File pagedIndexDirectory;
+  /** Whether the target is read and the output written on threads of their own. */
+  private boolean pipelined;
+  /** Literal bytes not yet passed to the output. */
+  private byte[] pending = new byte[PENDING_SIZE];
+  /** The number of pending bytes. */
+  private int pendingLength;
+  /** Holds source bytes preceding a match. */
+  private ByteBuffer backBuf;
   /** The output. */
   private DiffWriter output;
 
@@ -102,9 +171,225 @@ public class Delta {
   public void setChunkSize(int size) {
     if (size <= 0)
       throw new IllegalArgumentException("Invalid size");
+    chunkSize = size;
     S = size;
   }
 
+  /**
+   * Returns the chunk size, as set or as chosen for the last source when
+   * the chunk size is chosen adaptively.
+   *
+   * @return the chunk size
+   */
+  public int getChunkSize() {
+    return S;
+  }
+
+  /**
+   * Sets whether the chunk size is chosen for each source from its length,
+   * see {@link #chooseChunkSize(long, long)}. The index of the source is
+   * then kept within the memory budget and half of the free heap.
+   * Sources of unknown length and sampled indexes use the chunk size set last.
+   * This is off by default.
+   *
+   * @param adaptiveChunkSize true to choose the chunk size
+   * @see #getChunkSize()
+   */
+  public void setAdaptiveChunkSize(boolean adaptiveChunkSize) {
+    this.adaptiveChunkSize = adaptiveChunkSize;
+  }
+
+  /**
+   * Sets the memory budget of the source index when the chunk size is
+   * chosen adaptively. The default is {@link #DEFAULT_INDEX_BUDGET}.
+   *
+   * @param indexBudget the budget in bytes
+   */
+  public void setIndexBudget(long indexBudget) {
+    if (indexBudget <= 0)
+      throw new IllegalArgumentException("Invalid indexBudget");
+    this.indexBudget = indexBudget;
+  }
+
+  /**
+   * Chooses the smallest chunk size, a power of two of at least
+   * {@link #DEFAULT_CHUNK_SIZE}, for which the index of a source fits the
+   * memory budget, up to {@link #MAX_ADAPTIVE_CHUNK_SIZE}.
+   *
+   * @param sourceLength the source length
+   * @param budget the memory budget in bytes
+   * @return the chunk size
+   * @see Checksum#estimateBytes(long, int)
+   */
+  public static int chooseChunkSize(long sourceLength, long budget) {
+    int size = DEFAULT_CHUNK_SIZE;
+    while (size < MAX_ADAPTIVE_CHUNK_SIZE
+        && (Checksum.estimateBytes(sourceLength, size) > budget || sourceLength / size > MAX_CHUNKS))
+      size <<= 1;
+    return size;
+  }
+
+  /**
+   * Chooses the chunk size for a source when the chunk size is chosen
+   * adaptively, otherwise uses the chunk size set.
+   *
+   * @param sourceLength the source length, or -1 if unknown
+   */
+  private void adaptChunkSize(long sourceLength) {
+    S = chunkSize;
+    if (!adaptiveChunkSize || sourceLength < 0 || pagedIndexDirectory != null || maxIndexEntries > 0)
+      return;
+    Runtime runtime = Runtime.getRuntime();
+    long free = runtime.maxMemory() - runtime.totalMemory() + runtime.freeMemory();
+    S = chooseChunkSize(sourceLength, Math.min(indexBudget, free / 2));
+    if (debug)
+      debug("chose chunk size " + S + " for " + sourceLength);
+  }
+
+  /**
+   * Sets the number of source chunks that are kept per checksum and tried
+   * against the target when their checksums match.
+   * The longest match among them is copied. Use 1 to keep a single candidate.
+   *
+   * @param maxCandidates the maximum number of candidates, at least 1
+   */
+  public void setMaxCandidates(int maxCandidates) {
+    if (maxCandidates <= 0)
+      throw new IllegalArgumentException("Invalid maxCandidates");
+    this.maxCandidates = maxCandidates;
+  }
+
+  /**
+   * Sets the rolling hash used to index the source and scan the target.
+   * The default is {@link RollingHash#ADLER}. When an index built earlier is
+   * passed in, its hash is used instead.
+   *
+   * @param rollingHash the rolling hash
+   */
+  public void setRollingHash(RollingHash rollingHash) {
+    if (rollingHash == null)
+      throw new NullPointerException("rollingHash");
+    this.rollingHash = rollingHash;
+  }
+
+  /**
+   * Sets a pool to compute the source checksums on.
+   * This applies to sources of known {@link SeekableSource#length()}, such as
+   * {@link RandomAccessFileSeekableSource} used for files.
+   *
+   * @param indexPool the pool, or null to compute them on the calling thread
+   * @see Checksum#Checksum(SeekableSource, int, int, ForkJoinPool)
+   */
+  public void setIndexPool(ForkJoinPool indexPool) {
+    this.indexPool = indexPool;
+  }
+
+  /**
+   * Sets whether a match is extended backwards into the data bytes preceding it.
+   * Matches are only found at chunk boundaries of the source, so bytes just
+   * before a match often also match the source. With this set, up to 16K data
+   * bytes are held back and bytes that match are copied instead.
+   * This is off by default.
+   *
+   * @param backwardMatching true to extend matches backwards
+   */
+  public void setBackwardMatching(boolean backwardMatching) {
+    this.backwardMatching = backwardMatching;
+  }
+
+  /**
+   * Sets a ceiling on the number of checksums kept in the source index.
+   * The index is then sampled by content, see
+   * {@link Checksum#sampled(SeekableSource, int, int, ForkJoinPool, RollingHash)},
+   * so its memory stays bounded however large the source is, at the cost of
+   * missing matches shorter than the distance between indexed chunks.
+   * Matches found are extended backwards as with {@link #setBackwardMatching(boolean)},
+   * holding back up to 1MB of data bytes. Sampled indexes are not cached.
+   * The chunk size set is kept even when it is chosen adaptively, since the
+   * ceiling already bounds the index.
+   * This is 0 by default, indexing every chunk.
+   *
+   * @param maxIndexEntries the most checksums kept, or 0 to index every chunk
+   */
+  public void setMaxIndexEntries(int maxIndexEntries) {
+    if (maxIndexEntries < 0)
+      throw new IllegalArgumentException("Invalid maxIndexEntries");
+    this.maxIndexEntries = maxIndexEntries;
+  }
+
+  /**
+   * Sets content-defined chunking, which indexes the source at anchors
+   * chosen by content rather than at multiples of the chunk size, see
+   * {@link Checksum#contentDefined(SeekableSource, int, int, int, int, int, RollingHash)}.
+   * The target is scanned for anchors by the same rule, so that matches are
+   * still found when insertions shift the target against the source. The
+   * chunk size is then the number of bytes hashed and verified at each
+   * anchor, and may be smaller than the distance between anchors. Matches
+   * are extended backwards as with {@link #setBackwardMatching(boolean)}.
+   * Content-defined indexes are not cached. This is off by default.
+   *
+   * @param minChunkSize the least distance between anchors, at least 1
+   * @param averageChunkSize the average distance between anchors, a power of two, or 0 to turn this off
+   * @param maxChunkSize the greatest distance between anchors
+   */
+  public void setContentDefinedChunking(int minChunkSize, int averageChunkSize, int maxChunkSize) {
+    if (averageChunkSize != 0 && (Integer.bitCount(averageChunkSize) != 1 || minChunkSize < 1 || maxChunkSize < minChunkSize))
+      throw new IllegalArgumentException("Invalid chunk sizes");
+    this.minChunkSize = minChunkSize;
+    this.averageChunkSize = averageChunkSize;
+    this.maxChunkSize = maxChunkSize;
+  }
+
+  /**
+   * Sets whether {@link #compute(File, File, DiffWriter)} memory-maps the
+   * source file using a {@link MappedFileSeekableSource}, rather than reading
+   * it with a {@link RandomAccessFileSeekableSource}.
+   * This is off by default.
+   *
+   * @param memoryMapped true to map the source file
+   */
+  public void setMemoryMapped(boolean memoryMapped) {
+    this.memoryMapped = memoryMapped;
+  }
+
+  /**
+   * Sets a cache that {@link #compute(File, File, DiffWriter)} takes the
+   * source file index from, so that deltas against the same file do not
+   * index it again. The cache may be shared by several instances.
+   *
+   * @param checksumCache the cache, or null to index the source each time
+   */
+  public void setChecksumCache(ChecksumCache checksumCache) {
+    this.checksumCache = checksumCache;
+  }
+
+  /**
+   * Sets a directory to keep source indexes in, as memory-mapped
+   * {@link PagedChecksum} segment files, instead of the heap. This indexes
+   * sources of any length with the chunk size set, which is not chosen
+   * adaptively, and ignores the sampled and content-defined settings.
+   * The files are deleted when the delta is computed.
+   *
+   * @param pagedIndexDirectory the directory, or null to index sources in the heap
+   */
+  public void setPagedIndex(File pagedIndexDirectory) {
+    this.pagedIndexDirectory = pagedIndexDirectory;
+  }
+
+  /**
+   * Sets whether the target is read and the output written on threads of
+   * their own while the calling thread matches, so that waiting for the
+   * disk or the network overlaps with matching. The target is read ahead by
+   * blocks of 1MB and the commands are passed to the output in batches;
+   * at most 4 of either are in flight, so memory use stays bounded.
+   * The output is the same as without. This is off by default.
+   *
+   * @param pipelined true to read and write on threads of their own
+   */
+  public void setPipelined(boolean pipelined) {
+    this.pipelined = pipelined;
+  }
+
   /**
    * Compares the source bytes with target bytes, writing to output.
    *
@@ -152,10 +437,13 @@ public class Delta {
    * @throws IOException Signals that an I/O exception has occurred.
    */
   public void compute(File sourceFile, File targetFile, DiffWriter output) throws IOException {
-    RandomAccessFileSeekableSource source = new RandomAccessFileSeekableSource(new RandomAccessFile(sourceFile, "r"));
+    adaptChunkSize(sourceFile.length());
+    Checksum checksum = checksumCache == null || maxIndexEntries > 0 || averageChunkSize > 0 || pagedIndexDirectory != null ? null : checksumCache.get(sourceFile, S, maxCandidates, rollingHash, indexPool);
+    SeekableSource source = memoryMapped ? new MappedFileSeekableSource(sourceFile)
+        : new RandomAccessFileSeekableSource(new RandomAccessFile(sourceFile, "r"));
     InputStream is = new BufferedInputStream(new FileInputStream(targetFile));
     try {
-      compute(source, is, output);
+      compute(checksum, source, is, output, Long.MAX_VALUE);
     } finally {
       source.close();
       is.close();
@@ -171,37 +459,141 @@ public class Delta {
    * @throws IOException Signals that an I/O exception has occurred.
    */
   public void compute(SeekableSource seekSource, InputStream targetIS, DiffWriter output) throws IOException {
+    adaptChunkSize(seekSource.length());
+    compute(null, seekSource, targetIS, output, Long.MAX_VALUE);
+  }
+
+  /**
+   * Compares the source with a target using an index of the source built
+   * earlier, for instance one loaded by {@link ChecksumFile#read(File, long, byte[])}
+   * or a {@link PagedChecksum}. The index may be shared by several threads.
+   *
+   * @param checksum the index of the source, built with the current chunk size, or with any chunk size when it is chosen adaptively
+   * @param seekSource the seek source
+   * @param targetIS the target is
+   * @param output will be closed
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  public void compute(SourceIndex checksum, SeekableSource seekSource, InputStream targetIS, DiffWriter output) throws IOException {
+    S = adaptiveChunkSize ? checksum.getChunkSize() : chunkSize;
+    if (checksum.getChunkSize() != S)
+      throw new IllegalArgumentException("index chunk size " + checksum.getChunkSize() + " is not " + S);
+    compute(checksum, seekSource, targetIS, output, Long.MAX_VALUE);
+  }
+
+  /**
+   * Compares the source with a target, writing to output.
+   * No command is started at or after <code>limit</code> target bytes, although
+   * the last copy may extend beyond it.
+   *
+   * @param checksum checksums of the source computed with the current chunk size, or null to compute them
+   * @param seekSource the seek source
+   * @param targetIS the target is
+   * @param output will be closed
+   * @param limit the number of target bytes to scan
+   * @return the number of target bytes written to output
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  long compute(SourceIndex checksum, SeekableSource seekSource, InputStream targetIS, DiffWriter output, long limit) throws IOException {
+    if (checksum == null && pagedIndexDirectory != null) {
+      try (PagedChecksum paged = new PagedChecksum(seekSource, S, maxCandidates, rollingHash, pagedIndexDirectory)) {
+        return compute(paged, seekSource, targetIS, output, limit);
+      }
+    }
+    if (pipelined && !(targetIS instanceof PrefetchInputStream)) {
+      PrefetchInputStream prefetch = new PrefetchInputStream(targetIS, PIPELINE_BLOCK_SIZE, PIPELINE_DEPTH);
+      AsyncDiffWriter async = new AsyncDiffWriter(output, PIPELINE_BLOCK_SIZE, PIPELINE_DEPTH);
+      boolean done = false;
+      try {
+        long length = compute(checksum, seekSource, prefetch, async, limit);
+        done = true;
+        return length;
+      } finally {
+        prefetch.close();
+        if (!done)
+          async.abort();
+      }
+    }
     if (debug) {
       debug("using match length S = " + S);
     }
-    source = new SourceState(seekSource);
-    target = new TargetState(targetIS);
+    source = checksum == null ? new SourceState(seekSource) : new SourceState(seekSource, checksum);
+    target = new TargetState(targetIS, source.checksum.getRollingHash());
     this.output = output;
+    pendingLength = 0;
+    SourceIndex sourceIndex = source.checksum;
+    long spacing = sourceIndex.isContentDefined() ? sourceIndex.getMaxChunkSize()
+        : sourceIndex.getSampling() > 1 ? (long) sourceIndex.getSampling() * S : 0;
+    boolean extendBack = backwardMatching || spacing > 0;
+    if (spacing > 0) {
+      // hold back the bytes between anchors so that they can be matched backwards
+      int size = (int) Math.min(MAX_PENDING_SIZE, Math.max(PENDING_SIZE, 2 * spacing));
+      if (pending.length < size)
+        pending = new byte[size];
+    }
     if (debug)
       debug("checksums " + source.checksum);
-    while (!target.eof()) {
+    while (!target.eof() && target.position() < limit) {
       debug("!target.eof()");
-      int index = target.find(source);
-      if (index != -1) {
+      long entry = target.find(source);
+      if (entry != -1) {
         if (debug)
-          debug("found hash " + index);
-        long offset = (long) index * S;
+          debug("found hash " + entry);
+        long offset = source.checksum.getEntryOffset(entry);
+        if (source.checksum.nextEntry(entry) != -1)
+          offset = target.bestCandidate(source, entry);
         source.seek(offset);
-        int match = target.longestMatch(source);
+        long match = target.longestMatch(source);
         if (match >= S) {
+          if (extendBack && pendingLength > 0 && offset > 0) {
+            int back = backwardMatch(offset);
+            pendingLength -= back;
+            offset -= back;
+            match += back;
+          }
+          flushData();
           if (debug)
             debug("output.addCopy(" + offset + "," + match + ")");
           output.addCopy(offset, match);
         } else {
           // move the position back according to how much we can't copy
-          target.tbuf.position(target.tbuf.position() - match);
+          target.tbuf.position(target.tbuf.position() - (int) match);
           addData();
         }
       } else {
         addData();
       }
     }
+    flushData();
     output.close();
+    return target.position();
+  }
+
+  /**
+   * Returns how many of the pending data bytes match the source bytes
+   * preceding <code>offset</code>, comparing backwards.
+   *
+   * @param offset the source offset of a match
+   * @return the int
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  private int backwardMatch(long offset) throws IOException {
+    int len = (int) Math.min(pendingLength, offset);
+    if (backBuf == null || backBuf.capacity() < pending.length)
+      backBuf = ByteBuffer.allocate(pending.length);
+    backBuf.clear().limit(len);
+    source.seek(offset - len);
+    while (backBuf.hasRemaining()) {
+      if (source.read(backBuf) == -1)
+        break;
+    }
+    int pos = backBuf.position();
+    int back = 0;
+    while (back < pos && backBuf.get(pos - 1 - back) == pending[pendingLength - 1 - back])
+      back++;
+    if (debug)
+      debug("backwardMatch " + back);
+    return back;
   }
 
   /**
@@ -215,7 +607,35 @@ public class Delta {
       debug("addData " + Integer.toHexString(i));
     if (i == -1)
       return;
-    output.addData((byte) i);
+    if (pendingLength == pending.length)
+      flushData();
+    pending[pendingLength++] = (byte) i;
+  }
+
+  /**
+   * Writes the pending data bytes to the output.
+   *
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  private void flushData() throws IOException {
+    if (pendingLength > 0)
+      output.addData(pending, 0, pendingLength);
+    pendingLength = 0;
+  }
+
+  /**
+   * Indexes a source as configured.
+   *
+   * @param source the source
+   * @return the checksum
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  private Checksum index(SeekableSource source) throws IOException {
+    if (averageChunkSize > 0)
+      return Checksum.contentDefined(source, S, minChunkSize, averageChunkSize, maxChunkSize, maxCandidates, rollingHash);
+    if (maxIndexEntries > 0)
+      return Checksum.sampled(source, S, maxIndexEntries, indexPool, rollingHash);
+    return new Checksum(source, S, maxCandidates, indexPool, rollingHash);
   }
 
   /**
@@ -223,9 +643,11 @@ public class Delta {
    */
   class SourceState {
     /** The checksum. */
-    private Checksum checksum;
+    private SourceIndex checksum;
     /** The source. */
     private SeekableSource source;
+    /** The position of the next read. */
+    private long position;
 
     /**
      * Instantiates a new source state.
@@ -234,19 +656,43 @@ public class Delta {
      * @throws IOException Signals that an I/O exception has occurred.
      */
     public SourceState(SeekableSource source) throws IOException {
-      checksum = new Checksum(source, S);
+      this(source, index(source));
+    }
+
+    /**
+     * Instantiates a new source state with existing checksums.
+     *
+     * @param source the source
+     * @param checksum the checksum
+     * @throws IOException Signals that an I/O exception has occurred.
+     */
+    public SourceState(SeekableSource source, SourceIndex checksum) throws IOException {
+      this.checksum = checksum;
       this.source = source;
-      source.seek(0);
     }
 
     /**
      * Seek.
      *
      * @param index the index
+     */
+    public void seek(long index) {
+      position = index;
+    }
+
+    /**
+     * Reads from the current position using a positional read, so that the
+     * source may be shared with other threads.
+     *
+     * @param bb the bb
+     * @return the number of bytes read, or -1 at EOF
      * @throws IOException Signals that an I/O exception has occurred.
      */
-    public void seek(long index) throws IOException {
-      source.seek(index);
+    public int read(ByteBuffer bb) throws IOException {
+      int read = source.read(position, bb);
+      if (read > 0)
+        position += read;
+      return read;
     }
 
     /**
@@ -276,15 +722,23 @@ public class Delta {
     private boolean hashReset = true;
     /** The eof. */
     private boolean eof;
+    /** The number of bytes read from the target. */
+    private long filled;
+    /** The rolling hash. */
+    private final RollingHash rollingHash;
+    /** The position of the last content-defined anchor. */
+    private long lastAnchor;
 
     /**
      * Instantiates a new target state.
      *
      * @param targetIS the target is
+     * @param rollingHash the hash the source was indexed with
      * @throws IOException Signals that an I/O exception has occurred.
      */
-    TargetState(InputStream targetIS) throws IOException {
+    TargetState(InputStream targetIS, RollingHash rollingHash) throws IOException {
       c = Channels.newChannel(targetIS);
+      this.rollingHash = rollingHash;
       tbuf.limit(0);
     }
 
@@ -294,17 +748,17 @@ public class Delta {
      * @return the int
      */
     private int blocksize() {
-      return Math.min(1024 * 16, S * 4);
+      return Math.max(1024 * 16, S * 4);
     }
 
     /**
-     * Returns the index of the next N bytes of the stream.
+     * Returns the index entry of the next N bytes of the stream.
      *
      * @param source the source
-     * @return the int
+     * @return the entry, or -1
      * @throws IOException Signals that an I/O exception has occurred.
      */
-    public int find(SourceState source) throws IOException {
+    public long find(SourceState source) throws IOException {
       if (eof)
         return -1;
       sbuf.clear();
@@ -315,17 +769,30 @@ public class Delta {
           tbuf.compact();
           int read = c.read(tbuf);
           tbuf.flip();
+          if (read > 0)
+            filled += read;
           if (read == -1) {
             debug("target ending");
             return -1;
           }
         }
-        hash = Checksum.queryChecksum(tbuf, S);
+        hash = rollingHash.hash(tbuf, S);
         hashReset = false;
+        // as at the start of the source, the next position may be an anchor
+        lastAnchor = position() - source.checksum.getMinChunkSize();
       }
       if (debug)
         debug("hash " + hash + " " + dump());
-      return source.checksum.findChecksumIndex(hash);
+      SourceIndex checksum = source.checksum;
+      if (checksum.isContentDefined()) {
+        long position = position();
+        if (!checksum.isContentDefinedAnchor(hash, position - lastAnchor))
+          return -1;
+        lastAnchor = position;
+      } else if (!checksum.isAnchor(hash)) {
+        return -1;
+      }
+      return checksum.findEntry(hash);
     }
 
     /**
@@ -354,7 +821,7 @@ public class Delta {
       byte b = tbuf.get();
       if (tbuf.remaining() >= S) {
         byte nchar = tbuf.get(tbuf.position() + S - 1);
-        hash = Checksum.incrementChecksum(hash, b, nchar, S);
+        hash = rollingHash.roll(hash, b, nchar, S);
       } else {
         debug("out of char");
       }
@@ -362,20 +829,98 @@ public class Delta {
     }
 
     /**
-     * Returns the longest match length at the source location.
+     * Returns the source offset of the chunk that matches the most buffered
+     * target bytes among the chunks sharing the checksum at the
+     * current position. Target bytes are not consumed.
+     *
+     * @param source the source
+     * @param entry the first index entry
+     * @return the source offset
+     * @throws IOException Signals that an I/O exception has occurred.
+     */
+    public long bestCandidate(SourceState source, long entry) throws IOException {
+      fill();
+      long best = source.checksum.getEntryOffset(entry);
+      int bestMatch = -1;
+      for (; entry != -1; entry = source.checksum.nextEntry(entry)) {
+        long offset = source.checksum.getEntryOffset(entry);
+        source.seek(offset);
+        int match = bufferedMatch(source);
+        if (debug)
+          debug("candidate " + offset + " matches " + match);
+        if (match > bestMatch) {
+          best = offset;
+          bestMatch = match;
+        }
+        if (match == tbuf.remaining())
+          break;
+      }
+      sbuf.clear();
+      sbuf.limit(0);
+      return best;
+    }
+
+    /**
+     * Returns how many of the buffered target bytes match the source at its
+     * current position. Target bytes are not consumed.
      *
      * @param source the source
      * @return the int
      * @throws IOException Signals that an I/O exception has occurred.
      */
-    public int longestMatch(SourceState source) throws IOException {
-      debug("longestMatch");
+    private int bufferedMatch(SourceState source) throws IOException {
+      int pos = tbuf.position();
       int match = 0;
+      sbuf.clear();
+      sbuf.limit(0);
+      while (pos + match < tbuf.limit()) {
+        if (!sbuf.hasRemaining()) {
+          sbuf.clear();
+          int read = source.read(sbuf);
+          sbuf.flip();
+          if (read == -1)
+            break;
+        }
+        int n = Math.min(sbuf.remaining(), tbuf.limit() - pos - match);
+        int m = Bytes.mismatch(sbuf, sbuf.position(), tbuf, pos + match, n);
+        if (m != -1)
+          return match + m;
+        sbuf.position(sbuf.position() + n);
+        match += n;
+      }
+      return match;
+    }
+
+    /**
+     * Reads target bytes until the buffer is full or the target ends.
+     *
+     * @throws IOException Signals that an I/O exception has occurred.
+     */
+    private void fill() throws IOException {
+      if (tbuf.limit() == tbuf.capacity() && tbuf.position() == 0)
+        return;
+      tbuf.compact();
+      int read;
+      while (tbuf.hasRemaining() && (read = c.read(tbuf)) > 0)
+        filled += read;
+      tbuf.flip();
+    }
+
+    /**
+     * Returns the longest match length at the source location.
+     *
+     * @param source the source
+     * @return the long
+     * @throws IOException Signals that an I/O exception has occurred.
+     */
+    public long longestMatch(SourceState source) throws IOException {
+      debug("longestMatch");
+      long match = 0;
       hashReset = true;
       while (true) {
         if (!sbuf.hasRemaining()) {
           sbuf.clear();
-          int read = source.source.read(sbuf);
+          int read = source.read(sbuf);
           sbuf.flip();
           if (read == -1)
             return match;
@@ -388,11 +933,14 @@ public class Delta {
             return match;
           }
         }
-        if (sbuf.get() != tbuf.get()) {
-          tbuf.position(tbuf.position() - 1);
+        int n = Math.min(sbuf.remaining(), tbuf.remaining());
+        int m = Bytes.mismatch(sbuf, sbuf.position(), tbuf, tbuf.position(), n);
+        int len = m == -1 ? n : m;
+        sbuf.position(sbuf.position() + len);
+        tbuf.position(tbuf.position() + len);
+        match += len;
+        if (m != -1)
           return match;
-        }
-        match++;
       }
     }
 
@@ -405,15 +953,26 @@ public class Delta {
       if (debug)
         debug("readMore " + tbuf);
       tbuf.compact();
-      c.read(tbuf);
+      int read;
+      while (tbuf.hasRemaining() && (read = c.read(tbuf)) > 0)
+        filled += read;
       tbuf.flip();
     }
 
+    /**
+     * Returns the number of target bytes consumed.
+     *
+     * @return the long
+     */
+    long position() {
+      return filled - tbuf.remaining();
+    }
+
     /**
      * Hash.
      */
     void hash() {
-      hash = Checksum.queryChecksum(tbuf, S);
+      hash = rollingHash.hash(tbuf, S);
     }
 
     /**
@@ -487,16 +1046,32 @@ public class Delta {
    * @throws Exception the exception
    */
   public static void main(String argv[]) throws Exception {
-    if (argv.length != 3) {
+    boolean compressed = argv.length == 4 && argv[0].equals("-z");
+    boolean segmented = argv.length == 4 && argv[0].equals("-s");
+    if (argv.length != 3 && !compressed && !segmented) {
       System.err.println("usage Delta [-d] source target [output]");
+      System.err.println("      Delta -z source target output");
+      System.err.println("      Delta -s source target output");
       System.err.println("either -d or an output filename must be specified.");
+      System.err.println("-z writes a compressed patch.");
+      System.err.println("-s writes a segmented patch, which can be patched in parallel and resumed.");
       System.err.println("aborting..");
       return;
     }
     DiffWriter output;
     File sourceFile;
     File targetFile;
-    if (argv[0].equals("-d")) {
+    SeekableSource checked = null;
+    if (segmented) {
+      sourceFile = new File(argv[1]);
+      targetFile = new File(argv[2]);
+      checked = new RandomAccessFileSeekableSource(new RandomAccessFile(sourceFile, "r"));
+      output = new SegmentedGDiffWriter(new BufferedOutputStream(new FileOutputStream(new File(argv[3]))), checked);
+    } else if (compressed) {
+      sourceFile = new File(argv[1]);
+      targetFile = new File(argv[2]);
+      output = new CompressedGDiffWriter(new BufferedOutputStream(new FileOutputStream(new File(argv[3]))));
+    } else if (argv[0].equals("-d")) {
       sourceFile = new File(argv[1]);
       targetFile = new File(argv[2]);
       output = new DebugDiffWriter();
@@ -505,16 +1080,17 @@ public class Delta {
       targetFile = new File(argv[1]);
       output = new GDiffWriter(new DataOutputStream(new BufferedOutputStream(new FileOutputStream(new File(argv[2])))));
     }
-    if (sourceFile.length() > Integer.MAX_VALUE || targetFile.length() > Integer.MAX_VALUE) {
-      System.err.println("source or target is too large, max length is " + Integer.MAX_VALUE);
-      System.err.println("aborting..");
+    Delta d = new Delta();
+    d.setAdaptiveChunkSize(true);
+    d.setPipelined(true);
+    try {
+      d.compute(sourceFile, targetFile, output);
+      output.flush();
       output.close();
-      return;
+    } finally {
+      if (checked != null)
+        checked.close();
     }
-    Delta d = new Delta();
-    d.compute(sourceFile, targetFile, output);
-    output.flush();
-    output.close();
     if (debug) //gls031504a
       System.out.println("finished generating delta");
   }
@@ -0,0 +1,174 @@
+/*
+ * DiffOps.java
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a
+ * copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL
+ * THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS
+ * IN THE SOFTWARE.
+ *
+ */
+package com.nothome.delta;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Records diff commands in memory so they can be replayed to another
+ * {@link DiffWriter} later.
+ * <p>
+ * Consecutive data bytes are recorded as one command.
+ */
+class DiffOps implements DiffWriter {
+  /** The copy offsets, or -1 for data commands. */
+  private long[] offsets = new long[64];
+  /** The command lengths. */
+  private int[] lengths = new int[64];
+  /** The number of commands. */
+  private int count;
+  /** The data bytes of all data commands. */
+  private byte[] data = new byte[1024];
+  /** The number of data bytes. */
+  private int dataLength;
+  /** The total length of all commands. */
+  private long length;
+
+  /* (non-Javadoc)
+   * @see com.nothome.delta.DiffWriter#addCopy(long, int)
+   */
+  @Override
+  public void addCopy(long offset, int len) throws IOException {
+    add(offset, len);
+  }
+
+  /* (non-Javadoc)
+   * @see com.nothome.delta.DiffWriter#addData(byte)
+   */
+  @Override
+  public void addData(byte b) throws IOException {
+    ensureData(1);
+    data[dataLength++] = b;
+    addData(1);
+  }
+
+  /* (non-Javadoc)
+   * @see com.nothome.delta.DiffWriter#addData(byte[], int, int)
+   */
+  @Override
+  public void addData(byte[] buf, int off, int len) throws IOException {
+    if (len == 0)
+      return;
+    ensureData(len);
+    System.arraycopy(buf, off, data, dataLength, len);
+    dataLength += len;
+    addData(len);
+  }
+
+  /**
+   * Records <code>len</code> data bytes, extending the last command if it is data.
+   *
+   * @param len the len
+   */
+  private void addData(int len) {
+    if (count > 0 && offsets[count - 1] == -1 && lengths[count - 1] <= Integer.MAX_VALUE - len) {
+      lengths[count - 1] += len;
+      length += len;
+    } else {
+      add(-1, len);
+    }
+  }
+
+  /**
+   * Adds a command.
+   *
+   * @param offset the offset
+   * @param len the len
+   */
+  private void add(long offset, int len) {
+    if (count == offsets.length) {
+      offsets = Arrays.copyOf(offsets, count * 2);
+      lengths = Arrays.copyOf(lengths, count * 2);
+    }
+    offsets[count] = offset;
+    lengths[count] = len;
+    count++;
+    length += len;
+  }
+
+  /**
+   * Makes room for data bytes.
+   *
+   * @param len the len
+   */
+  private void ensureData(int len) {
+    if (dataLength + len > data.length)
+      data = Arrays.copyOf(data, Math.max(dataLength + len, data.length * 2));
+  }
+
+  /**
+   * Returns the number of target bytes the commands produce.
+   *
+   * @return the long
+   */
+  long length() {
+    return length;
+  }
+
+  /**
+   * Writes the commands to output, leaving out the first <code>skip</code>
+   * target bytes. The output is not flushed or closed.
+   *
+   * @param output the output
+   * @param skip the number of target bytes to leave out
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  void replay(DiffWriter output, long skip) throws IOException {
+    int d = 0;
+    for (int i = 0; i < count; i++) {
+      long offset = offsets[i];
+      int len = lengths[i];
+      int cut = (int) Math.min(skip, len);
+      skip -= cut;
+      if (offset == -1) {
+        if (len > cut)
+          output.addData(data, d + cut, len - cut);
+        d += len;
+      } else if (len > cut) {
+        output.addCopy(offset + cut, len - cut);
+      }
+    }
+  }
+
+  /**
+   * Clears the commands.
+   */
+  void clear() {
+    count = 0;
+    dataLength = 0;
+    length = 0;
+  }
+
+  /* (non-Javadoc)
+   * @see com.nothome.delta.DiffWriter#flush()
+   */
+  @Override
+  public void flush() throws IOException {}
+
+  /* (non-Javadoc)
+   * @see com.nothome.delta.DiffWriter#close()
+   */
+  @Override
+  public void close() throws IOException {}
+}
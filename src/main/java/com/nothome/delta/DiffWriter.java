@@ -25,6 +25,7 @@ package com.nothome.delta;
 
 import java.io.Closeable;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 
 /**
  * Interface for DIFF writers.
@@ -39,6 +40,25 @@ public interface DiffWriter extends Closeable {
    */
   public void addCopy(long offset, int length) throws IOException;
 
+  /**
+   * Add a GDIFF copy instruction of any length.
+   * The default implementation splits it into copies of at most
+   * {@link Integer#MAX_VALUE} bytes, the longest a GDIFF copy can be.
+   *
+   * @param offset the offset
+   * @param length the length
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  public default void addCopy(long offset, long length) throws IOException {
+    while (length > Integer.MAX_VALUE) {
+      addCopy(offset, Integer.MAX_VALUE);
+      offset += Integer.MAX_VALUE;
+      length -= Integer.MAX_VALUE;
+    }
+    if (length > 0)
+      addCopy(offset, (int) length);
+  }
+
   /**
    * Add a GDIFF data instruction.
    * Implementors should buffer the data.
@@ -48,6 +68,38 @@ public interface DiffWriter extends Closeable {
    */
   public void addData(byte b) throws IOException;
 
+  /**
+   * Add a GDIFF data instruction for a run of bytes.
+   * The default implementation calls {@link #addData(byte)} for each byte;
+   * implementors should override it to avoid the per byte calls.
+   *
+   * @param buf the data
+   * @param off the offset of the first byte
+   * @param len the number of bytes
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  public default void addData(byte[] buf, int off, int len) throws IOException {
+    for (int i = off; i < off + len; i++)
+      addData(buf[i]);
+  }
+
+  /**
+   * Add a GDIFF data instruction for the remaining bytes of a buffer.
+   * The buffer position is moved to its limit.
+   *
+   * @param bb the data
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  public default void addData(ByteBuffer bb) throws IOException {
+    if (bb.hasArray()) {
+      addData(bb.array(), bb.arrayOffset() + bb.position(), bb.remaining());
+      bb.position(bb.limit());
+    } else {
+      while (bb.hasRemaining())
+        addData(bb.get());
+    }
+  }
+
   /**
    * Flushes to output, e.g. any data added.
    *
@@ -0,0 +1,115 @@
+/*
+ * FileChannelSeekableSource.java
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a
+ * copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL
+ * THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS
+ * IN THE SOFTWARE.
+ *
+ */
+package com.nothome.delta;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Wraps a file channel.
+ * Positional reads use {@link FileChannel#read(ByteBuffer, long)} and may be
+ * called concurrently; buffers may be heap or direct.
+ */
+public class FileChannelSeekableSource implements SeekableSource {
+  /** The channel. */
+  private final FileChannel channel;
+  /** The position for {@link #read(ByteBuffer)}. */
+  private long pos;
+
+  /**
+   * Constructs a new FileChannelSeekableSource.
+   *
+   * @param channel the channel
+   */
+  public FileChannelSeekableSource(FileChannel channel) {
+    if (channel == null)
+      throw new NullPointerException("channel");
+    this.channel = channel;
+  }
+
+  /**
+   * Constructs a new FileChannelSeekableSource opening a file for reading.
+   *
+   * @param file the file
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  public FileChannelSeekableSource(File file) throws IOException {
+    this(FileChannel.open(file.toPath(), StandardOpenOption.READ));
+  }
+
+  /* (non-Javadoc)
+   * @see com.nothome.delta.SeekableSource#seek(long)
+   */
+  @Override
+  public void seek(long pos) throws IOException {
+    this.pos = pos;
+  }
+
+  /* (non-Javadoc)
+   * @see com.nothome.delta.SeekableSource#read(java.nio.ByteBuffer)
+   */
+  @Override
+  public int read(ByteBuffer bb) throws IOException {
+    int c = channel.read(bb, pos);
+    if (c > 0)
+      pos += c;
+    return c;
+  }
+
+  /* (non-Javadoc)
+   * @see com.nothome.delta.SeekableSource#read(long, java.nio.ByteBuffer)
+   */
+  @Override
+  public int read(long position, ByteBuffer bb) throws IOException {
+    return channel.read(bb, position);
+  }
+
+  /* (non-Javadoc)
+   * @see com.nothome.delta.SeekableSource#length()
+   */
+  @Override
+  public long length() throws IOException {
+    return channel.size();
+  }
+
+  /* (non-Javadoc)
+   * @see java.io.Closeable#close()
+   */
+  @Override
+  public void close() throws IOException {
+    channel.close();
+  }
+
+  /**
+   * Returns a debug <code>String</code>.
+   *
+   * @return the string
+   */
+  @Override
+  public String toString() {
+    return "FileChannelSeekable pos=" + pos;
+  }
+}
@@ -36,6 +36,8 @@ import static com.nothome.delta.GDiffWriter.DATA_MAX;
 import static com.nothome.delta.GDiffWriter.DATA_USHORT;
 import static com.nothome.delta.GDiffWriter.EOF;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.DataInputStream;
@@ -47,26 +49,159 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.io.RandomAccessFile;
+import java.io.InterruptedIOException;
+import java.io.SequenceInputStream;
+import java.io.UncheckedIOException;
 import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 
 /**
  * This class patches an input file with a GDIFF patch file.
  *
  * The patch file follows the GDIFF file specification available at
  * <a href="http://www.w3.org/TR/NOTE-gdiff-19970901.html">NOTE-gdiff-19970901</a>.
+ * Patches in the compressed container written by {@link CompressedGDiffWriter}
+ * are recognized by their magic string and expanded while patching, and so
+ * are the segments written by {@link SegmentedGDiffWriter}, whose output is
+ * checked against their checksums.
  */
 public class GDiffPatcher {
+  /**
+   * Copies of at least this many bytes are transferred between the channels
+   * by {@link #patch(FileChannel, ReadableByteChannel, FileChannel)}.
+   */
+  public static final int TRANSFER_MIN = 1 << 15;
+  /** The size of the direct buffers used with channels. */
+  private static final int CHANNEL_BUFFER_SIZE = 1 << 20;
+  /** The fewest output bytes applied per task on the apply pool. */
+  private static final long MIN_TASK_BYTES = 1 << 20;
+  /** The most output bytes applied per task on the apply pool. */
+  private static final long MAX_TASK_BYTES = 1 << 26;
   /** The buf. */
-  private ByteBuffer buf = ByteBuffer.allocate(1024);
+  private ByteBuffer buf = ByteBuffer.allocate(1 << 16);
   /** The buf2. */
   private byte buf2[] = buf.array();
+  /** Whether source files are memory-mapped. */
+  private boolean memoryMapped;
+  /** The pool to apply patches on, or null. */
+  private ForkJoinPool applyPool;
+  /** Whether existing output files are resumed. */
+  private boolean resume;
 
   /**
    * Constructs a new GDiffPatcher.
    */
   public GDiffPatcher() {}
 
+  /**
+   * Sets whether {@link #patch(File, File, File)} memory-maps the source file
+   * using a {@link MappedFileSeekableSource}, so copies are served from the
+   * page cache rather than by reading the file.
+   * This is off by default, patching the files with
+   * {@link #patch(FileChannel, ReadableByteChannel, FileChannel)}.
+   *
+   * @param memoryMapped true to map the source file
+   */
+  public void setMemoryMapped(boolean memoryMapped) {
+    this.memoryMapped = memoryMapped;
+  }
+
+  /**
+   * Sets a pool to apply patches between files on. The patch is first
+   * scanned for the output offset of each command, then ranges of the
+   * output are written on the pool with positional reads and writes, so
+   * that large copies are not limited to one thread.
+   * This applies to {@link #patch(FileChannel, ReadableByteChannel, FileChannel)}
+   * with a patch {@link FileChannel}, as used by {@link #patch(File, File, File)}
+   * unless the source is memory-mapped, and not to compressed patches.
+   *
+   * @param applyPool the pool, or null to patch on the calling thread
+   */
+  public void setApplyPool(ForkJoinPool applyPool) {
+    this.applyPool = applyPool;
+  }
+
+  /**
+   * Sets whether {@link #patch(File, File, File)} resumes patching to an
+   * existing output file with a patch written by {@link SegmentedGDiffWriter}.
+   * Segments whose output in the file already matches their checksums are
+   * skipped, so an interrupted patch continues where it stopped.
+   * Other patches rewrite the whole output. This is off by default.
+   *
+   * @param resume true to skip segments already patched
+   */
+  public void setResume(boolean resume) {
+    this.resume = resume;
+  }
+
+  /**
+   * Checks the output of each segment of a patch written by
+   * {@link SegmentedGDiffWriter} against its checksum.
+   *
+   * @param patchFile the patch file
+   * @param outputFile the output file
+   * @return the indexes of the segments whose output does not match
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  public int[] verify(File patchFile, File outputFile) throws IOException {
+    try (FileChannel patch = FileChannel.open(patchFile.toPath(), StandardOpenOption.READ);
+         FileChannel output = FileChannel.open(outputFile.toPath(), StandardOpenOption.READ)) {
+      ByteBuffer magic = ByteBuffer.allocate(5);
+      if (patch.read(magic, 0) < magic.capacity() || !SegmentedPatch.isMagic(magic.array()))
+        throw new PatchException("not a segmented patch");
+      return new SegmentedPatch(patch, 0).verify(output, 0);
+    }
+  }
+
+  /**
+   * Patches a file in place, rewriting the source into the output without
+   * a second copy of the file. Copies that would read bytes already
+   * overwritten are ordered after the reads, and copies in a cycle are
+   * buffered, in memory or, if large, in a scratch file in the default
+   * temporary directory. The file is then truncated or extended to the
+   * output length. Compressed patches are not supported; the segments
+   * written by {@link SegmentedGDiffWriter} are checked after patching.
+   * <p>
+   * The file is damaged if patching fails or is interrupted.
+   *
+   * @param file the source file, which receives the output
+   * @param patchFile the patch file
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  public void patchInPlace(File file, File patchFile) throws IOException {
+    try (FileChannel out = FileChannel.open(file.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+         FileChannel patch = FileChannel.open(patchFile.toPath(), StandardOpenOption.READ)) {
+      byte[] magic = new byte[5];
+      if (patch.read(ByteBuffer.wrap(magic), 0) < magic.length)
+        throw new EOFException("patch ended");
+      SegmentedPatch segments = null;
+      Ops ops;
+      if (CompressedGDiffInputStream.isMagic(magic)) {
+        throw new PatchException("compressed patches cannot be patched in place");
+      } else if (SegmentedPatch.isMagic(magic)) {
+        segments = new SegmentedPatch(patch, 0);
+        ops = segments.scan();
+      } else if (magic[0] != (byte) 0xd1 || magic[1] != (byte) 0xff || magic[2] != (byte) 0xd1 || magic[3] != (byte) 0xff || magic[4] != 0x04) {
+        throw new PatchException("magic string not found, aborting!");
+      } else {
+        patch.position(magic.length);
+        ops = scan(patch, new Ops());
+      }
+      new InPlacePatch(ops).apply(out, patch, null, InPlacePatch.MEMORY_SCRATCH);
+      if (segments != null && segments.verify(out, 0).length > 0)
+        throw new PatchException("segment checksum mismatch after patching in place");
+    }
+  }
+
   /**
    * Patches to an output file.
    *
@@ -76,13 +211,610 @@ public class GDiffPatcher {
    * @throws IOException Signals that an I/O exception has occurred.
    */
   public void patch(File sourceFile, File patchFile, File outputFile) throws IOException {
-    try (RandomAccessFileSeekableSource source = new RandomAccessFileSeekableSource(new RandomAccessFile(sourceFile, "r"));
-         InputStream patch = new FileInputStream(patchFile);
-         OutputStream output = new FileOutputStream(outputFile)) {
+    if (!memoryMapped) {
+      try (FileChannel source = FileChannel.open(sourceFile.toPath(), StandardOpenOption.READ);
+           FileChannel patch = FileChannel.open(patchFile.toPath(), StandardOpenOption.READ);
+           FileChannel output = resume ? FileChannel.open(outputFile.toPath(), StandardOpenOption.WRITE,
+               StandardOpenOption.READ, StandardOpenOption.CREATE)
+               : FileChannel.open(outputFile.toPath(), StandardOpenOption.WRITE,
+               StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING)) {
+        patch(source, patch, output);
+        if (resume)
+          output.truncate(output.position());
+      }
+      return;
+    }
+    try (SeekableSource source = new MappedFileSeekableSource(sourceFile);
+         InputStream patch = new BufferedInputStream(new FileInputStream(patchFile), buf2.length);
+         OutputStream output = new BufferedOutputStream(new FileOutputStream(outputFile), buf2.length)) {
       patch(source, patch, output);
     }
   }
 
+  /**
+   * Patches between channels, writing from the current position of
+   * <code>out</code>.
+   * Copies of at least {@link #TRANSFER_MIN} bytes are done with
+   * {@link FileChannel#transferTo(long, long, java.nio.channels.WritableByteChannel)},
+   * so the data does not pass through the Java heap. Data and shorter copies
+   * are gathered in a direct buffer and written in large blocks.
+   * A compressed patch written by {@link CompressedGDiffWriter} is expanded
+   * and patched through streams instead.
+   * With an apply pool, see {@link #setApplyPool(ForkJoinPool)}, a patch
+   * file channel is applied in parallel from its current position.
+   * The segments of a patch file channel written by {@link SegmentedGDiffWriter}
+   * are patched independently, on the apply pool if set; with
+   * {@link #setResume(boolean)}, <code>out</code> must be readable.
+   *
+   * @param source the source
+   * @param patch the patch
+   * @param out the out
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  public void patch(FileChannel source, ReadableByteChannel patch, FileChannel out) throws IOException {
+    ByteBuffer in = ByteBuffer.allocateDirect(CHANNEL_BUFFER_SIZE);
+    ByteBuffer data = ByteBuffer.allocateDirect(CHANNEL_BUFFER_SIZE);
+    in.limit(0);
+    fill(patch, in, 5);
+    byte[] magic = new byte[5];
+    in.duplicate().get(magic);
+    if (CompressedGDiffInputStream.isMagic(magic)) {
+      in.position(in.position() + magic.length);
+      byte[] rest = new byte[in.remaining()];
+      in.get(rest);
+      InputStream is = new SequenceInputStream(new ByteArrayInputStream(rest), Channels.newInputStream(patch));
+      OutputStream os = new BufferedOutputStream(Channels.newOutputStream(out), buf2.length);
+      CompressedGDiffInputStream cis = new CompressedGDiffInputStream(is);
+      try {
+        patch(new FileChannelSeekableSource(source), cis, os);
+      } finally {
+        cis.end();
+      }
+      os.flush();
+      return;
+    }
+    if (SegmentedPatch.isMagic(magic)) {
+      if (patch instanceof FileChannel) {
+        FileChannel patchFile = (FileChannel) patch;
+        new SegmentedPatch(patchFile, patchFile.position() - in.remaining()).apply(source, out, applyPool, resume);
+        return;
+      }
+      byte[] rest = new byte[in.remaining()];
+      in.get(rest);
+      InputStream is = new SequenceInputStream(new ByteArrayInputStream(rest), Channels.newInputStream(patch));
+      OutputStream os = new BufferedOutputStream(Channels.newOutputStream(out), buf2.length);
+      patch(new FileChannelSeekableSource(source), is, os);
+      os.flush();
+      return;
+    }
+    if (in.get() != (byte) 0xd1 || in.get() != (byte) 0xff || in.get() != (byte) 0xd1 || in.get() != (byte) 0xff || in.get() != 0x04) {
+      throw new PatchException("magic string not found, aborting!");
+    }
+    if (applyPool != null && patch instanceof FileChannel) {
+      FileChannel patchFile = (FileChannel) patch;
+      patchFile.position(patchFile.position() - in.remaining());
+      apply(source, patchFile, out, scan(patchFile, new Ops()), applyPool);
+      return;
+    }
+    while (true) {
+      fill(patch, in, 1);
+      int command = in.get() & 0xff;
+      if (command == EOF)
+        break;
+      int length;
+      long offset;
+      if (command <= DATA_MAX) {
+        append(command, in, patch, data, out);
+        continue;
+      }
+      switch (command) {
+        case DATA_USHORT:
+          fill(patch, in, 2);
+          append(in.getShort() & 0xffff, in, patch, data, out);
+          break;
+        case DATA_INT:
+          fill(patch, in, 4);
+          append(in.getInt(), in, patch, data, out);
+          break;
+        case COPY_USHORT_UBYTE:
+          fill(patch, in, 3);
+          offset = in.getShort() & 0xffff;
+          length = in.get() & 0xff;
+          copy(offset, length, source, data, out);
+          break;
+        case COPY_USHORT_USHORT:
+          fill(patch, in, 4);
+          offset = in.getShort() & 0xffff;
+          length = in.getShort() & 0xffff;
+          copy(offset, length, source, data, out);
+          break;
+        case COPY_USHORT_INT:
+          fill(patch, in, 6);
+          offset = in.getShort() & 0xffff;
+          length = in.getInt();
+          copy(offset, length, source, data, out);
+          break;
+        case COPY_INT_UBYTE:
+          fill(patch, in, 5);
+          offset = in.getInt();
+          length = in.get() & 0xff;
+          copy(offset, length, source, data, out);
+          break;
+        case COPY_INT_USHORT:
+          fill(patch, in, 6);
+          offset = in.getInt();
+          length = in.getShort() & 0xffff;
+          copy(offset, length, source, data, out);
+          break;
+        case COPY_INT_INT:
+          fill(patch, in, 8);
+          offset = in.getInt();
+          length = in.getInt();
+          copy(offset, length, source, data, out);
+          break;
+        case COPY_LONG_INT:
+          fill(patch, in, 12);
+          offset = in.getLong();
+          length = in.getInt();
+          copy(offset, length, source, data, out);
+          break;
+        default:
+          throw new IllegalStateException("command " + command);
+      }
+    }
+    flush(data, out);
+  }
+
+  /**
+   * Reads from the channel until at least <code>n</code> bytes remain in the buffer.
+   *
+   * @param channel the channel
+   * @param bb the buffer, ready for reading
+   * @param n the number of bytes needed
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  private static void fill(ReadableByteChannel channel, ByteBuffer bb, int n) throws IOException {
+    if (bb.remaining() >= n)
+      return;
+    bb.compact();
+    while (bb.position() < n) {
+      if (channel.read(bb) == -1)
+        throw new EOFException("patch ended");
+    }
+    bb.flip();
+  }
+
+  /**
+   * Appends data from the patch to the data buffer.
+   *
+   * @param length the length
+   * @param in the patch buffer
+   * @param patch the patch
+   * @param data the data buffer
+   * @param out the out
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  private static void append(int length, ByteBuffer in, ReadableByteChannel patch, ByteBuffer data, FileChannel out) throws IOException {
+    check(0, length);
+    while (length > 0) {
+      fill(patch, in, 1);
+      int len = Math.min(in.remaining(), length);
+      if (len > data.remaining())
+        flush(data, out);
+      ByteBuffer slice = in.duplicate();
+      slice.limit(slice.position() + len);
+      data.put(slice);
+      in.position(slice.position());
+      length -= len;
+    }
+  }
+
+  /**
+   * Copies from the source, transferring long copies directly to the output.
+   *
+   * @param offset the offset
+   * @param length the length
+   * @param source the source
+   * @param data the data buffer
+   * @param out the out
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  private static void copy(long offset, int length, FileChannel source, ByteBuffer data, FileChannel out) throws IOException {
+    check(offset, length);
+    if (length >= TRANSFER_MIN) {
+      flush(data, out);
+      long position = offset;
+      long remaining = length;
+      while (remaining > 0) {
+        long n = source.transferTo(position, remaining, out);
+        if (n <= 0)
+          throw new EOFException("in copy " + offset + " " + length);
+        position += n;
+        remaining -= n;
+      }
+      return;
+    }
+    if (length > data.remaining())
+      flush(data, out);
+    int start = data.position();
+    data.limit(start + length);
+    while (data.hasRemaining()) {
+      if (source.read(data, offset + data.position() - start) == -1)
+        throw new EOFException("in copy " + offset + " " + length);
+    }
+    data.limit(data.capacity());
+  }
+
+  /**
+   * Rejects the negative offsets and lengths of a corrupt patch, which the
+   * signed GDIFF integers can encode.
+   *
+   * @param offset the offset
+   * @param length the length
+   * @throws PatchException the patch exception
+   */
+  private static void check(long offset, int length) throws PatchException {
+    if (offset < 0 || length < 0)
+      throw new PatchException("invalid offset " + offset + " or length " + length);
+  }
+
+  /**
+   * Writes out the data buffer.
+   *
+   * @param data the data
+   * @param out the out
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  private static void flush(ByteBuffer data, FileChannel out) throws IOException {
+    data.flip();
+    while (data.hasRemaining())
+      out.write(data);
+    data.clear();
+  }
+
+  /**
+   * Scans the commands of a patch, from after its magic string to its end,
+   * leaving the channel positioned after it.
+   *
+   * @param patch the patch
+   * @param ops the commands to add to
+   * @return the commands
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  static Ops scan(FileChannel patch, Ops ops) throws IOException {
+    ByteBuffer in = ByteBuffer.allocateDirect(CHANNEL_BUFFER_SIZE);
+    in.limit(0);
+    long size = patch.size();
+    while (true) {
+      fill(patch, in, 1);
+      int command = in.get() & 0xff;
+      if (command == EOF)
+        break;
+      int length;
+      long offset;
+      if (command <= DATA_USHORT || command == DATA_INT) {
+        if (command == DATA_USHORT) {
+          fill(patch, in, 2);
+          length = in.getShort() & 0xffff;
+        } else if (command == DATA_INT) {
+          fill(patch, in, 4);
+          length = in.getInt();
+        } else {
+          length = command;
+        }
+        check(0, length);
+        long at = patch.position() - in.remaining();
+        if (at + length > size)
+          throw new EOFException("patch ended");
+        ops.add(-1 - at, length);
+        if (in.remaining() >= length) {
+          in.position(in.position() + length);
+        } else {
+          patch.position(at + length);
+          in.limit(0);
+        }
+        continue;
+      }
+      switch (command) {
+        case COPY_USHORT_UBYTE:
+          fill(patch, in, 3);
+          offset = in.getShort() & 0xffff;
+          length = in.get() & 0xff;
+          break;
+        case COPY_USHORT_USHORT:
+          fill(patch, in, 4);
+          offset = in.getShort() & 0xffff;
+          length = in.getShort() & 0xffff;
+          break;
+        case COPY_USHORT_INT:
+          fill(patch, in, 6);
+          offset = in.getShort() & 0xffff;
+          length = in.getInt();
+          break;
+        case COPY_INT_UBYTE:
+          fill(patch, in, 5);
+          offset = in.getInt();
+          length = in.get() & 0xff;
+          break;
+        case COPY_INT_USHORT:
+          fill(patch, in, 6);
+          offset = in.getInt();
+          length = in.getShort() & 0xffff;
+          break;
+        case COPY_INT_INT:
+          fill(patch, in, 8);
+          offset = in.getInt();
+          length = in.getInt();
+          break;
+        case COPY_LONG_INT:
+          fill(patch, in, 12);
+          offset = in.getLong();
+          length = in.getInt();
+          break;
+        default:
+          throw new IllegalStateException("command " + command);
+      }
+      check(offset, length);
+      ops.add(offset, length);
+    }
+    patch.position(patch.position() - in.remaining());
+    return ops;
+  }
+
+  /**
+   * Writes the output of scanned commands from the current position of
+   * <code>out</code>, in ranges applied on the pool, leaving the channel
+   * positioned after it. The output is sized before it is written and
+   * anything after it is truncated.
+   *
+   * @param source the source
+   * @param patch the patch the commands were scanned from
+   * @param out the out
+   * @param ops the commands
+   * @param pool the pool
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  static void apply(FileChannel source, FileChannel patch, FileChannel out, Ops ops, ForkJoinPool pool) throws IOException {
+    long base = out.position();
+    long length = ops.length();
+    out.truncate(base + length);
+    if (length > 0 && out.size() < base + length)
+      out.write(ByteBuffer.allocate(1), base + length - 1);
+    long taskBytes = Math.min(MAX_TASK_BYTES, Math.max(MIN_TASK_BYTES, length / (pool.getParallelism() * 4)));
+    List<ApplyTask> tasks = new ArrayList<ApplyTask>();
+    try {
+      for (long start = 0; start < length; start += taskBytes) {
+        ApplyTask task = new ApplyTask(source, patch, out, base, ops, start, Math.min(length, start + taskBytes));
+        pool.execute(task);
+        tasks.add(task);
+      }
+      for (ApplyTask task : tasks)
+        join(task);
+    } finally {
+      for (ApplyTask task : tasks)
+        task.cancel(true);
+    }
+    out.position(base + length);
+  }
+
+  /**
+   * Waits for a task.
+   *
+   * @param task the task
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  private static void join(ApplyTask task) throws IOException {
+    try {
+      task.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw (IOException) new InterruptedIOException().initCause(e);
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof UncheckedIOException)
+        throw ((UncheckedIOException) cause).getCause();
+      if (cause instanceof RuntimeException)
+        throw (RuntimeException) cause;
+      if (cause instanceof Error)
+        throw (Error) cause;
+      throw new IOException(cause);
+    }
+  }
+
+  /**
+   * The commands of a patch with their output offsets.
+   * A copy keeps its source offset, data the offset of its bytes in the
+   * patch as <code>-1 - offset</code>.
+   */
+  static final class Ops {
+    /** The output offsets. */
+    private long[] targets = new long[1024];
+    /** The source offsets, or the encoded patch offsets of data. */
+    private long[] offsets = new long[1024];
+    /** The lengths. */
+    private int[] lengths = new int[1024];
+    /** The number of commands. */
+    private int count;
+    /** The output length. */
+    private long length;
+
+    /**
+     * Adds a command.
+     *
+     * @param offset the source offset, or the encoded patch offset of data
+     * @param len the length
+     */
+    void add(long offset, int len) {
+      if (len == 0)
+        return;
+      if (count == lengths.length) {
+        int n = count * 2;
+        targets = Arrays.copyOf(targets, n);
+        offsets = Arrays.copyOf(offsets, n);
+        lengths = Arrays.copyOf(lengths, n);
+      }
+      targets[count] = length;
+      offsets[count] = offset;
+      lengths[count] = len;
+      count++;
+      length += len;
+    }
+
+    /**
+     * Returns the index of the command writing an output offset.
+     *
+     * @param target the output offset, less than the output length
+     * @return the index
+     */
+    int find(long target) {
+      int i = Arrays.binarySearch(targets, 0, count, target);
+      return i >= 0 ? i : -i - 2;
+    }
+
+    /**
+     * Returns the number of commands.
+     *
+     * @return the count
+     */
+    int count() {
+      return count;
+    }
+
+    /**
+     * Returns the output offset of a command.
+     *
+     * @param i the index
+     * @return the output offset
+     */
+    long target(int i) {
+      return targets[i];
+    }
+
+    /**
+     * Returns the source offset of a copy, or the encoded patch offset of data.
+     *
+     * @param i the index
+     * @return the offset
+     */
+    long offset(int i) {
+      return offsets[i];
+    }
+
+    /**
+     * Returns the length of a command.
+     *
+     * @param i the index
+     * @return the length
+     */
+    int length(int i) {
+      return lengths[i];
+    }
+
+    /**
+     * Returns the output length.
+     *
+     * @return the length
+     */
+    long length() {
+      return length;
+    }
+  }
+
+  /**
+   * Writes a range of the output using positional reads and writes.
+   */
+  private static class ApplyTask extends RecursiveAction {
+    /** The Constant serialVersionUID. */
+    private static final long serialVersionUID = 1;
+    /** The source. */
+    private final FileChannel source;
+    /** The patch. */
+    private final FileChannel patch;
+    /** The out. */
+    private final FileChannel out;
+    /** The position in out of the output. */
+    private final long base;
+    /** The commands. */
+    private final Ops ops;
+    /** The first output offset. */
+    private final long start;
+    /** The output offset after the range. */
+    private final long end;
+
+    /**
+     * Instantiates a new apply task.
+     *
+     * @param source the source
+     * @param patch the patch
+     * @param out the out
+     * @param base the position in out of the output
+     * @param ops the commands
+     * @param start the first output offset
+     * @param end the output offset after the range
+     */
+    ApplyTask(FileChannel source, FileChannel patch, FileChannel out, long base, Ops ops, long start, long end) {
+      this.source = source;
+      this.patch = patch;
+      this.out = out;
+      this.base = base;
+      this.ops = ops;
+      this.start = start;
+      this.end = end;
+    }
+
+    /* (non-Javadoc)
+     * @see java.util.concurrent.RecursiveAction#compute()
+     */
+    @Override
+    protected void compute() {
+      ByteBuffer bb = ByteBuffer.allocateDirect((int) Math.min(CHANNEL_BUFFER_SIZE, end - start));
+      try {
+        long written = start;
+        long position = start;
+        for (int i = ops.find(start); position < end; i++) {
+          long skip = position - ops.targets[i];
+          long n = Math.min(ops.lengths[i] - skip, end - position);
+          long offset = ops.offsets[i];
+          FileChannel from = offset < 0 ? patch : source;
+          long at = (offset < 0 ? -1 - offset : offset) + skip;
+          while (n > 0) {
+            int len = (int) Math.min(n, bb.remaining());
+            int limit = bb.position() + len;
+            bb.limit(limit);
+            while (bb.hasRemaining()) {
+              if (from.read(bb, at + len - (limit - bb.position())) == -1)
+                throw new EOFException(from == patch ? "patch ended" : "in copy " + offset + " " + ops.lengths[i]);
+            }
+            bb.limit(bb.capacity());
+            at += len;
+            n -= len;
+            position += len;
+            if (!bb.hasRemaining() || position == end)
+              written = write(bb, written);
+          }
+        }
+      } catch (IOException e) {
+        throw new UncheckedIOException(e);
+      }
+    }
+
+    /**
+     * Writes out the buffer at an output offset.
+     *
+     * @param bb the buffer
+     * @param target the output offset
+     * @return the output offset after the bytes written
+     * @throws IOException Signals that an I/O exception has occurred.
+     */
+    private long write(ByteBuffer bb, long target) throws IOException {
+      bb.flip();
+      while (bb.hasRemaining())
+        target += out.write(bb, base + target);
+      bb.clear();
+      return target;
+    }
+  }
+
   /**
    * Patches to an output stream.
    *
@@ -120,8 +852,23 @@ public class GDiffPatcher {
   public void patch(SeekableSource source, InputStream patch, OutputStream out) throws IOException {
     DataOutputStream outOS = new DataOutputStream(out);
     DataInputStream patchIS = new DataInputStream(patch);
+    byte[] magic = new byte[5];
+    patchIS.readFully(magic);
+    if (CompressedGDiffInputStream.isMagic(magic)) {
+      CompressedGDiffInputStream cis = new CompressedGDiffInputStream(patch);
+      try {
+        patch(source, cis, out);
+      } finally {
+        cis.end();
+      }
+      return;
+    }
+    if (SegmentedPatch.isMagic(magic)) {
+      SegmentedPatch.patch(source, patchIS, out);
+      return;
+    }
     // the magic string is 'd1 ff d1 ff' + the version number
-    if (patchIS.readUnsignedByte() != 0xd1 || patchIS.readUnsignedByte() != 0xff || patchIS.readUnsignedByte() != 0xd1 || patchIS.readUnsignedByte() != 0xff || patchIS.readUnsignedByte() != 0x04) {
+    if (magic[0] != (byte) 0xd1 || magic[1] != (byte) 0xff || magic[2] != (byte) 0xd1 || magic[3] != (byte) 0xff || magic[4] != 0x04) {
       throw new PatchException("magic string not found, aborting!");
     }
     while (true) {
@@ -129,7 +876,7 @@ public class GDiffPatcher {
       if (command == EOF)
         break;
       int length;
-      int offset;
+      long offset;
       if (command <= DATA_MAX) {
         append(command, patchIS, outOS);
         continue;
@@ -174,9 +921,9 @@ public class GDiffPatcher {
           copy(offset, length, source, outOS);
           break;
         case COPY_LONG_INT:
-          long loffset = patchIS.readLong();
+          offset = patchIS.readLong();
           length = patchIS.readInt();
-          copy(loffset, length, source, outOS);
+          copy(offset, length, source, outOS);
           break;
         default:
           throw new IllegalStateException("command " + command);
@@ -195,6 +942,7 @@ public class GDiffPatcher {
    * @throws IOException Signals that an I/O exception has occurred.
    */
   private void copy(long offset, int length, SeekableSource source, OutputStream output) throws IOException {
+    check(offset, length);
     source.seek(offset);
     while (length > 0) {
       int len = Math.min(buf.capacity(), length);
@@ -216,6 +964,7 @@ public class GDiffPatcher {
    * @throws IOException Signals that an I/O exception has occurred.
    */
   private void append(int length, InputStream patch, OutputStream output) throws IOException {
+    check(0, length);
     while (length > 0) {
       int len = Math.min(buf2.length, length);
       int res = patch.read(buf2, 0, len);
@@ -232,21 +981,29 @@ public class GDiffPatcher {
    * @param argv the arguments
    */
   public static void main(String argv[]) {
-    if (argv.length != 3) {
-      System.err.println("usage GDiffPatch source patch output");
+    boolean resume = argv.length == 4 && argv[0].equals("-r");
+    boolean inPlace = argv.length == 3 && argv[0].equals("-i");
+    if (argv.length != 3 && !resume) {
+      System.err.println("usage GDiffPatch [-r] source patch output");
+      System.err.println("      GDiffPatch -i file patch");
+      System.err.println("-r resumes patching a segmented patch to an existing output.");
+      System.err.println("-i patches the file in place.");
       System.err.println("aborting..");
       return;
     }
     try {
-      File sourceFile = new File(argv[0]);
-      File patchFile = new File(argv[1]);
-      File outputFile = new File(argv[2]);
-      if (sourceFile.length() > Integer.MAX_VALUE || patchFile.length() > Integer.MAX_VALUE) {
-        System.err.println("source or patch is too large, max length is " + Integer.MAX_VALUE);
-        System.err.println("aborting..");
+      if (inPlace) {
+        new GDiffPatcher().patchInPlace(new File(argv[1]), new File(argv[2]));
+        System.out.println("finished patching file");
         return;
       }
+      int i = resume ? 1 : 0;
+      File sourceFile = new File(argv[i]);
+      File patchFile = new File(argv[i + 1]);
+      File outputFile = new File(argv[i + 2]);
       GDiffPatcher patcher = new GDiffPatcher();
+      patcher.setApplyPool(ForkJoinPool.commonPool());
+      patcher.setResume(resume);
       patcher.patch(sourceFile, patchFile, outputFile);
       System.out.println("finished patching file");
     } catch (Exception ioe) { //gls031504a
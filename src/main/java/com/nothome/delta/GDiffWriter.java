@@ -23,14 +23,17 @@
  */
 package com.nothome.delta;
 
-import java.io.ByteArrayOutputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
 
 /**
  * Outputs a diff following the GDIFF file specification available at
  * http://www.w3.org/TR/NOTE-gdiff-19970901.html.
+ * <p>
+ * Data bytes are collected in a fixed buffer and commands are encoded into a
+ * reusable array, so no objects are allocated per command.
  */
 public class GDiffWriter implements DiffWriter, AutoCloseable {
   /**
@@ -61,8 +64,12 @@ public class GDiffWriter implements DiffWriter, AutoCloseable {
   public static final int COPY_INT_INT = 254;
   /** The Constant COPY_LONG_INT. */
   public static final int COPY_LONG_INT = 255;
-  /** The buf. */
-  private ByteArrayOutputStream buf = new ByteArrayOutputStream();
+  /** The data bytes not yet written. */
+  private final byte[] buf = new byte[CHUNK_SIZE];
+  /** The number of bytes in buf. */
+  private int bufLength;
+  /** Holds an encoded command: the opcode plus at most a long and an int. */
+  private final byte[] cmd = new byte[1 + 8 + 4];
   /** The debug. */
   private boolean debug = false;
   /** The output. */
@@ -104,42 +111,121 @@ public class GDiffWriter implements DiffWriter, AutoCloseable {
     if (debug)
       System.err.println("COPY off: " + offset + ", len: " + length);
     // output real data
+    output.write(cmd, 0, encodeCopy(cmd, 0, offset, length));
+  }
+
+  /**
+   * Encodes a copy command, choosing the smallest opcode for the offset and length.
+   *
+   * @param b the destination, needs 13 bytes from <code>pos</code>
+   * @param pos the position in b
+   * @param offset the offset
+   * @param length the length
+   * @return the position after the command
+   */
+  static int encodeCopy(byte[] b, int pos, long offset, int length) {
     if (offset > Integer.MAX_VALUE) {
-      // Actually, we don't support longer files than int.MAX_VALUE at the moment..
-      output.writeByte(COPY_LONG_INT);
-      output.writeLong(offset);
-      output.writeInt(length);
-    } else if (offset < 65536) {
+      b[pos++] = (byte) COPY_LONG_INT;
+      pos = putLong(b, pos, offset);
+      return putInt(b, pos, length);
+    }
+    if (offset < 65536) {
       if (length < 256) {
-        output.writeByte(COPY_USHORT_UBYTE);
-        output.writeShort((int) offset);
-        output.writeByte(length);
+        b[pos++] = (byte) COPY_USHORT_UBYTE;
+        pos = putShort(b, pos, (int) offset);
+        b[pos++] = (byte) length;
+        return pos;
       } else if (length > 65535) {
-        output.writeByte(COPY_USHORT_INT);
-        output.writeShort((int) offset);
-        output.writeInt(length);
+        b[pos++] = (byte) COPY_USHORT_INT;
+        pos = putShort(b, pos, (int) offset);
+        return putInt(b, pos, length);
       } else {
-        output.writeByte(COPY_USHORT_USHORT);
-        output.writeShort((int) offset);
-        output.writeShort(length);
+        b[pos++] = (byte) COPY_USHORT_USHORT;
+        pos = putShort(b, pos, (int) offset);
+        return putShort(b, pos, length);
       }
     } else {
       if (length < 256) {
-        output.writeByte(COPY_INT_UBYTE);
-        output.writeInt((int) offset);
-        output.writeByte(length);
+        b[pos++] = (byte) COPY_INT_UBYTE;
+        pos = putInt(b, pos, (int) offset);
+        b[pos++] = (byte) length;
+        return pos;
       } else if (length > 65535) {
-        output.writeByte(COPY_INT_INT);
-        output.writeInt((int) offset);
-        output.writeInt(length);
+        b[pos++] = (byte) COPY_INT_INT;
+        pos = putInt(b, pos, (int) offset);
+        return putInt(b, pos, length);
       } else {
-        output.writeByte(COPY_INT_USHORT);
-        output.writeInt((int) offset);
-        output.writeShort(length);
+        b[pos++] = (byte) COPY_INT_USHORT;
+        pos = putInt(b, pos, (int) offset);
+        return putShort(b, pos, length);
       }
     }
   }
 
+  /**
+   * Encodes the command preceding <code>length</code> data bytes.
+   *
+   * @param b the destination, needs 5 bytes from <code>pos</code>
+   * @param pos the position in b
+   * @param length the number of data bytes
+   * @return the position after the command
+   */
+  static int encodeData(byte[] b, int pos, int length) {
+    if (length <= DATA_MAX) {
+      b[pos++] = (byte) length;
+      return pos;
+    } else if (length <= 65535) {
+      b[pos++] = (byte) DATA_USHORT;
+      return putShort(b, pos, length);
+    } else {
+      b[pos++] = (byte) DATA_INT;
+      return putInt(b, pos, length);
+    }
+  }
+
+  /**
+   * Puts a big-endian short.
+   *
+   * @param b the b
+   * @param pos the pos
+   * @param v the v
+   * @return the position after the value
+   */
+  private static int putShort(byte[] b, int pos, int v) {
+    b[pos] = (byte) (v >>> 8);
+    b[pos + 1] = (byte) v;
+    return pos + 2;
+  }
+
+  /**
+   * Puts a big-endian int.
+   *
+   * @param b the b
+   * @param pos the pos
+   * @param v the v
+   * @return the position after the value
+   */
+  private static int putInt(byte[] b, int pos, int v) {
+    b[pos] = (byte) (v >>> 24);
+    b[pos + 1] = (byte) (v >>> 16);
+    b[pos + 2] = (byte) (v >>> 8);
+    b[pos + 3] = (byte) v;
+    return pos + 4;
+  }
+
+  /**
+   * Puts a big-endian long.
+   *
+   * @param b the b
+   * @param pos the pos
+   * @param v the v
+   * @return the position after the value
+   */
+  private static int putLong(byte[] b, int pos, long v) {
+    putInt(b, pos, (int) (v >>> 32));
+    return putInt(b, pos + 4, (int) v);
+  }
+
   /**
    * Adds a data byte.
    *
@@ -148,32 +234,83 @@ public class GDiffWriter implements DiffWriter, AutoCloseable {
    */
   @Override
   public void addData(byte b) throws IOException {
-    buf.write(b);
-    if (buf.size() >= CHUNK_SIZE)
+    buf[bufLength++] = b;
+    if (bufLength >= CHUNK_SIZE)
       writeBuf();
   }
 
+  /**
+   * Adds data bytes. Runs of {@link #CHUNK_SIZE} bytes are written without
+   * copying them into the buffer.
+   *
+   * @param b the data
+   * @param off the offset
+   * @param len the length
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  @Override
+  public void addData(byte[] b, int off, int len) throws IOException {
+    while (len > 0) {
+      if (bufLength == 0 && len >= CHUNK_SIZE) {
+        writeData(b, off, CHUNK_SIZE);
+        off += CHUNK_SIZE;
+        len -= CHUNK_SIZE;
+        continue;
+      }
+      int n = Math.min(len, CHUNK_SIZE - bufLength);
+      System.arraycopy(b, off, buf, bufLength, n);
+      bufLength += n;
+      off += n;
+      len -= n;
+      if (bufLength >= CHUNK_SIZE)
+        writeBuf();
+    }
+  }
+
+  /* (non-Javadoc)
+   * @see com.nothome.delta.DiffWriter#addData(java.nio.ByteBuffer)
+   */
+  @Override
+  public void addData(ByteBuffer bb) throws IOException {
+    if (bb.hasArray()) {
+      addData(bb.array(), bb.arrayOffset() + bb.position(), bb.remaining());
+      bb.position(bb.limit());
+      return;
+    }
+    while (bb.hasRemaining()) {
+      int n = Math.min(bb.remaining(), CHUNK_SIZE - bufLength);
+      bb.get(buf, bufLength, n);
+      bufLength += n;
+      if (bufLength >= CHUNK_SIZE)
+        writeBuf();
+    }
+  }
+
   /**
    * Write buf.
    *
    * @throws IOException Signals that an I/O exception has occurred.
    */
   private void writeBuf() throws IOException {
-    if (buf.size() > 0) {
-      if (buf.size() <= DATA_MAX) {
-        output.writeByte(buf.size());
-      } else if (buf.size() <= 65535) {
-        output.writeByte(DATA_USHORT);
-        output.writeShort(buf.size());
-      } else {
-        output.writeByte(DATA_INT);
-        output.writeInt(buf.size());
-      }
-      buf.writeTo(output);
-      buf.reset();
+    if (bufLength > 0) {
+      writeData(buf, 0, bufLength);
+      bufLength = 0;
     }
   }
 
+  /**
+   * Writes a data command and its bytes.
+   *
+   * @param b the data
+   * @param off the offset
+   * @param len the length
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  private void writeData(byte[] b, int off, int len) throws IOException {
+    output.write(cmd, 0, encodeData(cmd, 0, len));
+    output.write(b, off, len);
+  }
+
   /**
    * Flushes accumulated data bytes, if any.
    *
@@ -0,0 +1,334 @@
+/*
+ * InPlacePatch.java
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a
+ * copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL
+ * THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS
+ * IN THE SOFTWARE.
+ *
+ */
+package com.nothome.delta;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * Plans and applies the commands of a patch to the source file itself.
+ * <p>
+ * A copy must read its source bytes before another copy overwrites them.
+ * The copies are ordered by these dependencies, reading before writing, as
+ * described by Burns and Long for in-place reconstruction. Where they form
+ * a cycle, the shortest copy of the cycle is read into a scratch buffer
+ * before anything is written and written after the other copies.
+ * Data is written last, then the file is truncated to the output length.
+ */
+final class InPlacePatch {
+  /** The size of the buffer moving bytes. */
+  private static final int BUFFER_SIZE = 1 << 20;
+  /** The most bytes of copies buffered in memory rather than in a scratch file. */
+  static final long MEMORY_SCRATCH = 1 << 26;
+  /** The commands. */
+  private final GDiffPatcher.Ops ops;
+  /** The copies, in the order they are run. */
+  private final int[] order;
+  /** The number of copies in order. */
+  private int ordered;
+  /** The copies buffered to break cycles. */
+  private int[] buffered = new int[16];
+  /** The number of copies buffered. */
+  private int bufferedCount;
+  /** The number of bytes buffered. */
+  private long bufferedBytes;
+
+  /**
+   * Plans the order of the copies.
+   *
+   * @param ops the commands
+   */
+  InPlacePatch(GDiffPatcher.Ops ops) {
+    this.ops = ops;
+    int n = ops.count();
+    int copies = 0;
+    for (int i = 0; i < n; i++) {
+      if (ops.offset(i) >= 0)
+        copies++;
+    }
+    order = new int[copies];
+    plan();
+  }
+
+  /**
+   * Orders the copies, buffering one copy of each cycle found.
+   */
+  private void plan() {
+    int n = ops.count();
+    // an edge u -> v when copy v overwrites bytes copy u reads
+    int[] from = new int[16];
+    int[] to = new int[16];
+    int edges = 0;
+    for (int u = 0; u < n; u++) {
+      long start = ops.offset(u);
+      if (start < 0 || start >= ops.length())
+        continue;
+      long end = start + ops.length(u);
+      for (int v = ops.find(start); v < n && ops.target(v) < end; v++) {
+        if (v == u || ops.offset(v) < 0)
+          continue;
+        if (edges == from.length) {
+          from = Arrays.copyOf(from, edges * 2);
+          to = Arrays.copyOf(to, edges * 2);
+        }
+        from[edges] = u;
+        to[edges] = v;
+        edges++;
+      }
+    }
+    int[] succStart = new int[n + 1];
+    int[] predStart = new int[n + 1];
+    for (int e = 0; e < edges; e++) {
+      succStart[from[e] + 1]++;
+      predStart[to[e] + 1]++;
+    }
+    for (int i = 0; i < n; i++) {
+      succStart[i + 1] += succStart[i];
+      predStart[i + 1] += predStart[i];
+    }
+    int[] succ = new int[edges];
+    int[] pred = new int[edges];
+    int[] succFill = Arrays.copyOf(succStart, n);
+    int[] predFill = Arrays.copyOf(predStart, n);
+    for (int e = 0; e < edges; e++) {
+      succ[succFill[from[e]]++] = to[e];
+      pred[predFill[to[e]]++] = from[e];
+    }
+    from = null;
+    to = null;
+
+    int[] indegree = new int[n];
+    for (int v = 0; v < n; v++)
+      indegree[v] = predStart[v + 1] - predStart[v];
+    boolean[] done = new boolean[n];
+    int[] ready = new int[order.length];
+    int head = 0;
+    int tail = 0;
+    for (int v = 0; v < n; v++) {
+      if (ops.offset(v) >= 0 && indegree[v] == 0)
+        ready[tail++] = v;
+    }
+    int[] walk = new int[n];
+    int[] path = new int[order.length];
+    int walks = 0;
+    int next = 0;
+    for (int remaining = order.length; remaining > 0; ) {
+      if (head == tail) {
+        // every copy left waits for another: follow waits back to a cycle
+        while (done[next] || ops.offset(next) < 0)
+          next++;
+        walks++;
+        int length = 0;
+        int v = next;
+        while (walk[v] != walks) {
+          walk[v] = walks;
+          path[length++] = v;
+          int p = predStart[v];
+          while (done[pred[p]])
+            p++;
+          v = pred[p];
+        }
+        int cheapest = v;
+        for (int i = length - 1; path[i] != v; i--) {
+          if (ops.length(path[i]) < ops.length(cheapest))
+            cheapest = path[i];
+        }
+        done[cheapest] = true;
+        remaining--;
+        if (bufferedCount == buffered.length)
+          buffered = Arrays.copyOf(buffered, bufferedCount * 2);
+        buffered[bufferedCount++] = cheapest;
+        bufferedBytes += ops.length(cheapest);
+        for (int e = succStart[cheapest]; e < succStart[cheapest + 1]; e++) {
+          if (!done[succ[e]] && --indegree[succ[e]] == 0)
+            ready[tail++] = succ[e];
+        }
+        continue;
+      }
+      int u = ready[head++];
+      done[u] = true;
+      remaining--;
+      order[ordered++] = u;
+      for (int e = succStart[u]; e < succStart[u + 1]; e++) {
+        if (!done[succ[e]] && --indegree[succ[e]] == 0)
+          ready[tail++] = succ[e];
+      }
+    }
+  }
+
+  /**
+   * Returns the number of bytes of copies buffered to break cycles.
+   *
+   * @return the bytes
+   */
+  long getBufferedBytes() {
+    return bufferedBytes;
+  }
+
+  /**
+   * Rewrites the file into the output of the commands.
+   * The file is damaged if this fails.
+   *
+   * @param file the source file, which receives the output
+   * @param patch the patch the commands were scanned from
+   * @param scratchDirectory the directory of the scratch file, or null for the default
+   * @param memoryScratch the most bytes buffered in memory rather than in the scratch file
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  void apply(FileChannel file, FileChannel patch, File scratchDirectory, long memoryScratch) throws IOException {
+    ByteBuffer bb = ByteBuffer.allocateDirect(BUFFER_SIZE);
+    ByteBuffer memory = null;
+    FileChannel scratch = null;
+    File scratchFile = null;
+    try {
+      if (bufferedBytes > memoryScratch) {
+        scratchFile = File.createTempFile("inplace", ".tmp", scratchDirectory);
+        scratch = FileChannel.open(scratchFile.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+      } else {
+        memory = ByteBuffer.allocate((int) bufferedBytes);
+      }
+      long position = 0;
+      for (int i = 0; i < bufferedCount; i++) {
+        int op = buffered[i];
+        if (memory != null) {
+          ByteBuffer slice = memory.duplicate();
+          slice.position((int) position).limit((int) position + ops.length(op));
+          read(file, ops.offset(op), slice);
+        } else {
+          transfer(file, ops.offset(op), scratch, position, ops.length(op), bb);
+        }
+        position += ops.length(op);
+      }
+      for (int i = 0; i < ordered; i++) {
+        int op = order[i];
+        move(file, ops.offset(op), ops.target(op), ops.length(op), bb);
+      }
+      position = 0;
+      for (int i = 0; i < bufferedCount; i++) {
+        int op = buffered[i];
+        if (memory != null) {
+          ByteBuffer slice = memory.duplicate();
+          slice.position((int) position).limit((int) position + ops.length(op));
+          write(file, ops.target(op), slice);
+        } else {
+          transfer(scratch, position, file, ops.target(op), ops.length(op), bb);
+        }
+        position += ops.length(op);
+      }
+      for (int i = 0; i < ops.count(); i++) {
+        if (ops.offset(i) < 0)
+          transfer(patch, -1 - ops.offset(i), file, ops.target(i), ops.length(i), bb);
+      }
+      file.truncate(ops.length());
+    } finally {
+      if (scratch != null)
+        scratch.close();
+      if (scratchFile != null)
+        Files.deleteIfExists(scratchFile.toPath());
+    }
+  }
+
+  /**
+   * Copies bytes within the file, like memmove, so that a copy may
+   * overlap its own output.
+   *
+   * @param file the file
+   * @param offset the source offset
+   * @param target the output offset
+   * @param length the length
+   * @param bb the buffer
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  private static void move(FileChannel file, long offset, long target, int length, ByteBuffer bb) throws IOException {
+    if (offset == target)
+      return;
+    if (offset > target || offset + length <= target) {
+      transfer(file, offset, file, target, length, bb);
+      return;
+    }
+    for (int end = length; end > 0; ) {
+      int n = Math.min(end, bb.capacity());
+      end -= n;
+      transfer(file, offset + end, file, target + end, n, bb);
+    }
+  }
+
+  /**
+   * Copies bytes between channels by blocks, in ascending order.
+   *
+   * @param in the channel read
+   * @param from the position read
+   * @param out the channel written
+   * @param to the position written
+   * @param length the length
+   * @param bb the buffer
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  private static void transfer(FileChannel in, long from, FileChannel out, long to, long length, ByteBuffer bb) throws IOException {
+    while (length > 0) {
+      bb.clear().limit((int) Math.min(length, bb.capacity()));
+      read(in, from, bb);
+      bb.flip();
+      write(out, to, bb);
+      from += bb.limit();
+      to += bb.limit();
+      length -= bb.limit();
+    }
+  }
+
+  /**
+   * Fills a buffer with a positional read.
+   *
+   * @param in the channel
+   * @param position the position
+   * @param bb the buffer
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  private static void read(FileChannel in, long position, ByteBuffer bb) throws IOException {
+    int start = bb.position();
+    while (bb.hasRemaining()) {
+      if (in.read(bb, position + bb.position() - start) == -1)
+        throw new EOFException("in copy " + position);
+    }
+  }
+
+  /**
+   * Writes out a buffer with a positional write.
+   *
+   * @param out the channel
+   * @param position the position
+   * @param bb the buffer
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  private static void write(FileChannel out, long position, ByteBuffer bb) throws IOException {
+    int start = bb.position();
+    while (bb.hasRemaining())
+      out.write(bb, position + bb.position() - start);
+  }
+}
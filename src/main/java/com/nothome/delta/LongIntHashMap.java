@@ -0,0 +1,263 @@
+/*
+ * LongIntHashMap.java
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a
+ * copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL
+ * THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS
+ * IN THE SOFTWARE.
+ *
+ */
+package com.nothome.delta;
+
+import java.util.Arrays;
+
+/**
+ * Open-addressing hash table mapping primitive <code>long</code> keys to
+ * non-negative <code>int</code> values.
+ * <p>
+ * Used for the checksum indexes, where a {@link java.util.HashMap} would
+ * allocate a node plus a boxed key and value per source chunk. Lookups do not
+ * allocate. Values must be zero or positive; -1 is returned for missing keys.
+ * <p>
+ * This class is not thread safe, although concurrent lookups are safe once
+ * the table is no longer modified.
+ */
+public final class LongIntHashMap {
+  /** Value returned for absent keys, also marks empty slots. */
+  public static final int NO_VALUE = -1;
+  /** Smallest table size. */
+  private static final int MIN_CAPACITY = 16;
+  /** Largest table size, limited by array indexing. */
+  private static final int MAX_CAPACITY = 1 << 30;
+  /** The keys. */
+  private long[] keys;
+  /** The values, {@link #NO_VALUE} for empty slots. */
+  private int[] values;
+  /** The mask, table length minus one. */
+  private int mask;
+  /** The number of entries. */
+  private int size;
+  /** Size at which the table grows. */
+  private int threshold;
+
+  /**
+   * Constructs a new LongIntHashMap sized for a default number of entries.
+   */
+  public LongIntHashMap() {
+    this(MIN_CAPACITY);
+  }
+
+  /**
+   * Constructs a new LongIntHashMap able to hold <code>expected</code>
+   * entries without resizing.
+   *
+   * @param expected the expected number of entries
+   */
+  public LongIntHashMap(long expected) {
+    if (expected < 0)
+      throw new IllegalArgumentException("expected " + expected);
+    allocate(capacityFor(expected));
+  }
+
+  /**
+   * Returns the table length needed for a number of entries at a load factor of 3/4.
+   *
+   * @param expected the expected number of entries
+   * @return a power of two
+   */
+  static int capacityFor(long expected) {
+    long needed = expected + expected / 3 + 1;
+    if (needed >= MAX_CAPACITY)
+      return MAX_CAPACITY;
+    return Math.max(MIN_CAPACITY, Integer.highestOneBit((int) needed - 1) << 1);
+  }
+
+  /**
+   * Constructs a LongIntHashMap from arrays written by an earlier instance,
+   * see {@link #keys()} and {@link #values()}.
+   *
+   * @param keys the keys
+   * @param values the values
+   * @param size the number of entries
+   * @throws IllegalArgumentException if the arrays are not such a table,
+   *     including when it has no empty slot to end lookups
+   */
+  LongIntHashMap(long[] keys, int[] values, int size) {
+    if (keys.length != values.length || Integer.bitCount(keys.length) != 1 || size < 0 || size >= keys.length)
+      throw new IllegalArgumentException("invalid table " + keys.length + " " + values.length + " " + size);
+    int empty = 0;
+    for (int v : values) {
+      if (v == NO_VALUE)
+        empty++;
+      else if (v < 0)
+        throw new IllegalArgumentException("invalid value " + v);
+    }
+    if (empty != keys.length - size)
+      throw new IllegalArgumentException("table holds " + (keys.length - empty) + " entries, not " + size);
+    this.keys = keys;
+    this.values = values;
+    this.size = size;
+    mask = keys.length - 1;
+    threshold = keys.length == MAX_CAPACITY ? MAX_CAPACITY - 1 : keys.length - keys.length / 4;
+  }
+
+  /**
+   * Returns the approximate number of heap bytes used by a table holding
+   * <code>entries</code> entries.
+   *
+   * @param entries the number of entries
+   * @return the number of bytes
+   */
+  public static long estimateBytes(long entries) {
+    return (long) capacityFor(entries) * (8 + 4);
+  }
+
+  /**
+   * Allocates empty arrays.
+   *
+   * @param capacity the capacity
+   */
+  private void allocate(int capacity) {
+    keys = new long[capacity];
+    values = new int[capacity];
+    Arrays.fill(values, NO_VALUE);
+    mask = capacity - 1;
+    threshold = capacity == MAX_CAPACITY ? MAX_CAPACITY - 1 : capacity - capacity / 4;
+  }
+
+  /**
+   * Spreads the key bits over the table index.
+   *
+   * @param key the key
+   * @return the hash
+   */
+  private static int mix(long key) {
+    key ^= key >>> 33;
+    key *= 0xff51afd7ed558ccdL;
+    key ^= key >>> 33;
+    return (int) key;
+  }
+
+  /**
+   * Returns the value for a key.
+   *
+   * @param key the key
+   * @return the value, or {@link #NO_VALUE} if absent
+   */
+  public int get(long key) {
+    int i = mix(key) & mask;
+    while (true) {
+      int v = values[i];
+      if (v == NO_VALUE || keys[i] == key)
+        return v;
+      i = (i + 1) & mask;
+    }
+  }
+
+  /**
+   * Associates a value with a key.
+   *
+   * @param key the key
+   * @param value the value, zero or positive
+   * @return the previous value, or {@link #NO_VALUE} if absent
+   */
+  public int put(long key, int value) {
+    if (value < 0)
+      throw new IllegalArgumentException("value " + value);
+    int i = mix(key) & mask;
+    while (true) {
+      int v = values[i];
+      if (v == NO_VALUE)
+        break;
+      if (keys[i] == key) {
+        values[i] = value;
+        return v;
+      }
+      i = (i + 1) & mask;
+    }
+    keys[i] = key;
+    values[i] = value;
+    if (++size >= threshold)
+      grow();
+    return NO_VALUE;
+  }
+
+  /**
+   * Doubles the table.
+   */
+  private void grow() {
+    if (keys.length == MAX_CAPACITY)
+      throw new IllegalStateException("table full " + size);
+    long[] oldKeys = keys;
+    int[] oldValues = values;
+    allocate(keys.length << 1);
+    for (int j = 0; j < oldKeys.length; j++) {
+      if (oldValues[j] == NO_VALUE)
+        continue;
+      int i = mix(oldKeys[j]) & mask;
+      while (values[i] != NO_VALUE)
+        i = (i + 1) & mask;
+      keys[i] = oldKeys[j];
+      values[i] = oldValues[j];
+    }
+  }
+
+  /**
+   * Returns the number of entries.
+   *
+   * @return the int
+   */
+  public int size() {
+    return size;
+  }
+
+  /**
+   * Returns the length of the backing arrays.
+   *
+   * @return the int
+   */
+  public int capacity() {
+    return keys.length;
+  }
+
+  /**
+   * Returns the backing key array; slots are empty where {@link #values()} is {@link #NO_VALUE}.
+   *
+   * @return the long[]
+   */
+  long[] keys() {
+    return keys;
+  }
+
+  /**
+   * Returns the backing value array.
+   *
+   * @return the int[]
+   */
+  int[] values() {
+    return values;
+  }
+
+  /**
+   * Returns a debug <code>String</code>.
+   *
+   * @return the string
+   */
+  @Override
+  public String toString() {
+    return "LongIntHashMap size=" + size + " capacity=" + keys.length;
+  }
+}
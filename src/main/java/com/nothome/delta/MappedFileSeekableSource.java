@@ -0,0 +1,156 @@
+/*
+ * MappedFileSeekableSource.java
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a
+ * copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL
+ * THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS
+ * IN THE SOFTWARE.
+ *
+ */
+package com.nothome.delta;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Memory-maps a file as a series of regions.
+ * Reads are served from the page cache without a system call and may cross
+ * region boundaries; files may be larger than 2GB.
+ * <p>
+ * Positional reads may be called concurrently.
+ * The mappings are released by the garbage collector, not by {@link #close()}.
+ */
+public class MappedFileSeekableSource implements SeekableSource {
+  /**
+   * Default region size of 1GB.
+   */
+  public static final int DEFAULT_REGION_SIZE = 1 << 30;
+  /** The regions. */
+  private MappedByteBuffer[] regions;
+  /** The region size. */
+  private final int regionSize;
+  /** The length. */
+  private final long length;
+  /** The position for {@link #read(ByteBuffer)}. */
+  private long pos;
+
+  /**
+   * Constructs a new MappedFileSeekableSource.
+   *
+   * @param file the file
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  public MappedFileSeekableSource(File file) throws IOException {
+    this(file, DEFAULT_REGION_SIZE);
+  }
+
+  /**
+   * Constructs a new MappedFileSeekableSource.
+   *
+   * @param file the file
+   * @param regionSize the size of each mapping
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  public MappedFileSeekableSource(File file, int regionSize) throws IOException {
+    if (regionSize <= 0)
+      throw new IllegalArgumentException("Invalid regionSize");
+    this.regionSize = regionSize;
+    try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+      length = channel.size();
+      regions = new MappedByteBuffer[(int) ((length + regionSize - 1) / regionSize)];
+      for (int i = 0; i < regions.length; i++) {
+        long start = (long) i * regionSize;
+        regions[i] = channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(regionSize, length - start));
+      }
+    }
+  }
+
+  /* (non-Javadoc)
+   * @see com.nothome.delta.SeekableSource#seek(long)
+   */
+  @Override
+  public void seek(long pos) throws IOException {
+    if (pos > length)
+      throw new IOException("pos " + pos + " cannot seek " + length);
+    this.pos = pos;
+  }
+
+  /* (non-Javadoc)
+   * @see com.nothome.delta.SeekableSource#read(java.nio.ByteBuffer)
+   */
+  @Override
+  public int read(ByteBuffer bb) throws IOException {
+    int n = read(pos, bb);
+    if (n > 0)
+      pos += n;
+    return n;
+  }
+
+  /**
+   * Reads from duplicates of the mappings, without using or changing the
+   * position set by {@link #seek(long)}. This method may be called concurrently.
+   *
+   * @param position the source offset
+   * @param bb the destination
+   * @return the number of bytes read, or -1 at EOF
+   */
+  @Override
+  public int read(long position, ByteBuffer bb) {
+    if (position >= length)
+      return -1;
+    int total = 0;
+    while (bb.hasRemaining() && position < length) {
+      ByteBuffer region = regions[(int) (position / regionSize)].duplicate();
+      int off = (int) (position % regionSize);
+      int n = Math.min(region.limit() - off, bb.remaining());
+      region.limit(off + n).position(off);
+      bb.put(region);
+      position += n;
+      total += n;
+    }
+    return total;
+  }
+
+  /* (non-Javadoc)
+   * @see com.nothome.delta.SeekableSource#length()
+   */
+  @Override
+  public long length() {
+    return length;
+  }
+
+  /* (non-Javadoc)
+   * @see java.io.Closeable#close()
+   */
+  @Override
+  public void close() throws IOException {
+    regions = new MappedByteBuffer[0];
+  }
+
+  /**
+   * Returns a debug <code>String</code>.
+   *
+   * @return the string
+   */
+  @Override
+  public String toString() {
+    return "MappedFileSeekable length=" + length + " regions=" + regions.length + " pos=" + pos;
+  }
+}
@@ -0,0 +1,433 @@
+/*
+ * PagedChecksum.java
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a
+ * copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL
+ * THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS
+ * IN THE SOFTWARE.
+ *
+ */
+package com.nothome.delta;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * An index of source chunks kept in memory-mapped files instead of the
+ * heap, for sources whose {@link Checksum} would not fit the heap or would
+ * have more than 2^31 chunks.
+ * <p>
+ * Chunks are hashed into buckets of {@value #SLOTS} entries, each entry
+ * holding the checksum and the <code>long</code> source offset of a chunk.
+ * Buckets live in segment files of up to 1GB, created in a given directory
+ * and mapped into memory, so the operating system pages them in and out.
+ * When a bucket is full, its oldest entry is dropped, and when more than
+ * <code>maxCandidates</code> chunks in a bucket share a checksum, the oldest of
+ * them is dropped; as with {@link Checksum}, the most recent chunks are kept.
+ * <p>
+ * A small front is kept in the heap: a bit filter of the checksums indexed,
+ * which answers most lookups of target positions without touching the
+ * segments, and a cache of the buckets read most recently.
+ * <p>
+ * The index is built by the constructor and may then be shared by several
+ * threads. {@link #close()} deletes the segment files; the index must not be
+ * used afterwards.
+ */
+public class PagedChecksum implements SourceIndex, Closeable {
+  /**
+   * Default size of 64MB of the in-heap front.
+   */
+  public static final long DEFAULT_FRONT_BYTES = 1L << 26;
+  /** Entries per bucket. */
+  static final int SLOTS = 16;
+  /** Bytes per entry: the checksum and the source offset plus 1, 0 when empty. */
+  private static final int SLOT_BYTES = 16;
+  /** Bytes per bucket. */
+  private static final int BUCKET_BYTES = SLOTS * SLOT_BYTES;
+  /** Average number of chunks per bucket. */
+  private static final int LOAD = SLOTS / 2;
+  /** Buckets per segment file, making 1GB segments. */
+  private static final int SEGMENT_BUCKETS = 1 << 22;
+  /** Buckets held by the cache. */
+  private static final int CACHE_BUCKETS = 1 << 12;
+  /** Most filter bits. */
+  private static final long MAX_FILTER_BITS = 1L << 36;
+  /** Bytes read from the source at a time. */
+  private static final int READ_SIZE = 1 << 20;
+  /** The chunk size. */
+  private final int chunkSize;
+  /** The rolling hash. */
+  private final RollingHash hash;
+  /** The maximum number of chunks kept per checksum. */
+  private final int maxCandidates;
+  /** The number of bits of a bucket number. */
+  private final int bucketBits;
+  /** The number of bits of a bucket number within its segment. */
+  private final int segmentBits;
+  /** The segment files. */
+  private final File[] files;
+  /** The mapped segments, or null when closed. */
+  private ByteBuffer[] segments;
+  /** Bits set for the checksums indexed. */
+  private final long[] filter;
+  /** The number of bits of a filter bit number. */
+  private final int filterBits;
+  /** The buckets read most recently, by the low bits of their number. */
+  private final Bucket[] cache = new Bucket[CACHE_BUCKETS];
+  /** The number of chunks indexed. */
+  private long chunks;
+
+  /**
+   * Indexes a source of known length, with a front of {@link #DEFAULT_FRONT_BYTES}.
+   *
+   * @param source the source
+   * @param chunkSize the chunk size
+   * @param maxCandidates the maximum number of chunks per checksum, at least 1
+   * @param hash the rolling hash
+   * @param directory the directory to create the segment files in, or null for the temporary directory
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  public PagedChecksum(SeekableSource source, int chunkSize, int maxCandidates, RollingHash hash, File directory) throws IOException {
+    this(source, chunkSize, maxCandidates, hash, directory, DEFAULT_FRONT_BYTES);
+  }
+
+  /**
+   * Indexes a source of known length.
+   *
+   * @param source the source
+   * @param chunkSize the chunk size
+   * @param maxCandidates the maximum number of chunks per checksum, at least 1
+   * @param hash the rolling hash
+   * @param directory the directory to create the segment files in, or null for the temporary directory
+   * @param frontBytes the approximate number of heap bytes of the front
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  public PagedChecksum(SeekableSource source, int chunkSize, int maxCandidates, RollingHash hash, File directory, long frontBytes) throws IOException {
+    this(source, chunkSize, maxCandidates, hash, directory, frontBytes, SEGMENT_BUCKETS);
+  }
+
+  /**
+   * Indexes a source of known length into segments of a given size.
+   *
+   * @param source the source
+   * @param chunkSize the chunk size
+   * @param maxCandidates the maximum number of chunks per checksum, at least 1
+   * @param hash the rolling hash
+   * @param directory the directory to create the segment files in, or null for the temporary directory
+   * @param frontBytes the approximate number of heap bytes of the front
+   * @param segmentBuckets the number of buckets per segment, a power of two
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  PagedChecksum(SeekableSource source, int chunkSize, int maxCandidates, RollingHash hash, File directory, long frontBytes,
+      int segmentBuckets) throws IOException {
+    if (chunkSize <= 0)
+      throw new IllegalArgumentException("chunkSize " + chunkSize);
+    if (maxCandidates <= 0)
+      throw new IllegalArgumentException("maxCandidates " + maxCandidates);
+    if (hash == null)
+      throw new NullPointerException("hash");
+    long length = source.length();
+    if (length < 0)
+      throw new IOException("source length unknown");
+    this.chunkSize = chunkSize;
+    this.hash = hash;
+    this.maxCandidates = maxCandidates;
+    long expected = length / chunkSize;
+    int bits = 0;
+    while ((1L << bits) * LOAD < expected)
+      bits++;
+    bucketBits = bits;
+    segmentBits = Math.min(bits, Integer.numberOfTrailingZeros(segmentBuckets));
+    int filterLog = 6;
+    long filterMax = Math.min(MAX_FILTER_BITS, Math.max(frontBytes - (long) CACHE_BUCKETS * BUCKET_BYTES, 0) * 8);
+    while (filterLog < 36 && 1L << (filterLog + 1) <= filterMax && 1L << filterLog < expected * 16)
+      filterLog++;
+    filterBits = filterLog;
+    filter = new long[1 << (filterLog - 6)];
+    files = new File[1 << (bits - segmentBits)];
+    segments = new ByteBuffer[files.length];
+    try {
+      for (int i = 0; i < files.length; i++) {
+        files[i] = File.createTempFile("index", ".seg", directory);
+        try (RandomAccessFile raf = new RandomAccessFile(files[i], "rw")) {
+          long size = (long) BUCKET_BYTES << segmentBits;
+          raf.setLength(size);
+          segments[i] = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+        }
+      }
+      addAll(source);
+    } catch (IOException | RuntimeException e) {
+      close();
+      throw e;
+    }
+  }
+
+  /**
+   * Reads the source from its current position, adding each chunk.
+   *
+   * @param source the source
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  private void addAll(SeekableSource source) throws IOException {
+    ByteBuffer bb = ByteBuffer.allocate(Math.max(READ_SIZE / chunkSize, 2) * chunkSize);
+    long offset = 0;
+    boolean eof = false;
+    while (!eof) {
+      while (bb.hasRemaining() && !eof)
+        eof = source.read(bb) == -1;
+      bb.flip();
+      while (bb.remaining() >= chunkSize) {
+        long checksum = hash.hash(bb, chunkSize);
+        bb.position(bb.position() + chunkSize);
+        add(checksum, offset);
+        offset += chunkSize;
+      }
+      bb.compact();
+    }
+  }
+
+  /**
+   * Appends a chunk to its bucket, dropping the oldest chunk sharing its
+   * checksum when there are <code>maxCandidates</code> of them, or else the
+   * oldest chunk of a full bucket.
+   *
+   * @param checksum the checksum
+   * @param offset the source offset
+   */
+  private void add(long checksum, long offset) {
+    long number = bucketNumber(checksum);
+    ByteBuffer segment = segments[(int) (number >>> segmentBits)];
+    int base = (int) (number & ((1L << segmentBits) - 1)) * BUCKET_BYTES;
+    int used = 0;
+    int same = 0;
+    int oldestSame = -1;
+    for (; used < SLOTS; used++) {
+      int p = base + used * SLOT_BYTES;
+      if (segment.getLong(p + 8) == 0)
+        break;
+      if (segment.getLong(p) == checksum && same++ == 0)
+        oldestSame = used;
+    }
+    int drop = same >= maxCandidates ? oldestSame : used == SLOTS ? 0 : -1;
+    if (drop != -1) {
+      for (int s = drop; s < used - 1; s++) {
+        int p = base + s * SLOT_BYTES;
+        segment.putLong(p, segment.getLong(p + SLOT_BYTES));
+        segment.putLong(p + 8, segment.getLong(p + SLOT_BYTES + 8));
+      }
+      used--;
+    }
+    int p = base + used * SLOT_BYTES;
+    segment.putLong(p, checksum);
+    segment.putLong(p + 8, offset + 1);
+    long bit = filterBit(checksum);
+    filter[(int) (bit >>> 6)] |= 1L << bit;
+    chunks++;
+  }
+
+  /**
+   * Returns the bucket of a checksum.
+   *
+   * @param checksum the checksum
+   * @return the long
+   */
+  private long bucketNumber(long checksum) {
+    return bucketBits == 0 ? 0 : (checksum * 0x9e3779b97f4a7c15L) >>> (64 - bucketBits);
+  }
+
+  /**
+   * Returns the filter bit of a checksum, mixed independently of its bucket.
+   *
+   * @param checksum the checksum
+   * @return the long
+   */
+  private long filterBit(long checksum) {
+    return (checksum * 0xc2b2ae3d27d4eb4fL) >>> (64 - filterBits);
+  }
+
+  /**
+   * Returns a bucket, from the cache or else read from its segment.
+   *
+   * @param number the bucket number
+   * @return the bucket
+   */
+  private Bucket bucket(long number) {
+    int line = (int) number & (CACHE_BUCKETS - 1);
+    Bucket bucket = cache[line];
+    if (bucket == null || bucket.number != number) {
+      bucket = new Bucket(number, segments[(int) (number >>> segmentBits)], (int) (number & ((1L << segmentBits) - 1)) * BUCKET_BYTES);
+      cache[line] = bucket;
+    }
+    return bucket;
+  }
+
+  /* (non-Javadoc)
+   * @see com.nothome.delta.SourceIndex#findEntry(long)
+   */
+  @Override
+  public long findEntry(long checksum) {
+    long bit = filterBit(checksum);
+    if ((filter[(int) (bit >>> 6)] & 1L << bit) == 0)
+      return -1;
+    long number = bucketNumber(checksum);
+    return bucket(number).find(checksum, SLOTS, number);
+  }
+
+  /* (non-Javadoc)
+   * @see com.nothome.delta.SourceIndex#nextEntry(long)
+   */
+  @Override
+  public long nextEntry(long entry) {
+    long number = entry / SLOTS;
+    Bucket bucket = bucket(number);
+    int slot = (int) (entry % SLOTS);
+    return bucket.find(bucket.entries[slot * 2], slot, number);
+  }
+
+  /* (non-Javadoc)
+   * @see com.nothome.delta.SourceIndex#getEntryOffset(long)
+   */
+  @Override
+  public long getEntryOffset(long entry) {
+    return bucket(entry / SLOTS).entries[(int) (entry % SLOTS) * 2 + 1] - 1;
+  }
+
+  /* (non-Javadoc)
+   * @see com.nothome.delta.SourceIndex#getChunkSize()
+   */
+  @Override
+  public int getChunkSize() {
+    return chunkSize;
+  }
+
+  /* (non-Javadoc)
+   * @see com.nothome.delta.SourceIndex#getRollingHash()
+   */
+  @Override
+  public RollingHash getRollingHash() {
+    return hash;
+  }
+
+  /**
+   * Returns the number of source chunks indexed.
+   *
+   * @return the long
+   */
+  public long getChunkCount() {
+    return chunks;
+  }
+
+  /**
+   * Returns the number of segment files.
+   *
+   * @return the int
+   */
+  public int getSegmentCount() {
+    return files.length;
+  }
+
+  /**
+   * Returns the approximate number of heap bytes used by the front.
+   *
+   * @return the long
+   */
+  public long estimateBytes() {
+    return filter.length * 8L + (long) CACHE_BUCKETS * (BUCKET_BYTES + 48);
+  }
+
+  /**
+   * Deletes the segment files. Their mappings are released when garbage
+   * collected, which some platforms require before the files are removed.
+   *
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  @Override
+  public void close() throws IOException {
+    segments = null;
+    IOException failed = null;
+    for (File file : files) {
+      if (file != null && file.exists() && !file.delete() && failed == null)
+        failed = new IOException("cannot delete " + file);
+    }
+    if (failed != null)
+      throw failed;
+  }
+
+  /**
+   * Returns a debug <code>String</code>.
+   *
+   * @return the string
+   */
+  @Override
+  public String toString() {
+    return super.toString() + " chunks=" + chunks + " buckets=" + (1L << bucketBits) + " segments=" + files.length;
+  }
+
+  /**
+   * A copy of the entries of a bucket. Immutable, so that buckets may be
+   * cached by threads sharing the index.
+   */
+  private static final class Bucket {
+    /** The bucket number. */
+    final long number;
+    /** The checksum and offset plus 1 of each entry, from oldest to newest. */
+    final long[] entries;
+    /** The number of entries. */
+    final int count;
+
+    /**
+     * Reads a bucket.
+     *
+     * @param number the number
+     * @param segment the segment
+     * @param base the position of the bucket in the segment
+     */
+    Bucket(long number, ByteBuffer segment, int base) {
+      this.number = number;
+      long[] e = new long[SLOTS * 2];
+      int n = 0;
+      for (; n < SLOTS; n++) {
+        int p = base + n * SLOT_BYTES;
+        e[n * 2 + 1] = segment.getLong(p + 8);
+        if (e[n * 2 + 1] == 0)
+          break;
+        e[n * 2] = segment.getLong(p);
+      }
+      this.entries = e;
+      this.count = n;
+    }
+
+    /**
+     * Finds the newest entry with a checksum before a slot.
+     *
+     * @param checksum the checksum
+     * @param before the slot to search before
+     * @param number the bucket number
+     * @return the entry, or -1
+     */
+    long find(long checksum, int before, long number) {
+      for (int s = Math.min(before, count) - 1; s >= 0; s--) {
+        if (entries[s * 2] == checksum)
+          return number * SLOTS + s;
+      }
+      return -1;
+    }
+  }
+}
@@ -0,0 +1,533 @@
+/*
+ * ParallelDelta.java
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a
+ * copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL
+ * THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS
+ * IN THE SOFTWARE.
+ *
+ */
+package com.nothome.delta;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Computes deltas using several threads.
+ * The target is split into segments of {@link #setSegmentSize(int)} bytes which are
+ * matched concurrently on a {@link ForkJoinPool} against one shared source and index,
+ * each by its own {@link Delta}. The index is also built on the pool.
+ * A copy found near the end of a segment may continue up to
+ * {@link #setOverlap(int)} bytes into the next one; the next segment's
+ * commands then start where that copy ended.
+ * The commands are joined into one GDIFF stream, merging copies that continue each other.
+ * <p>
+ * The output depends on the segment size and overlap but not on the number of threads.
+ * Larger segments produce patches closer to the ones from {@link Delta}.
+ * <p>
+ * This class is not thread safe. Use one instance per thread.
+ */
+public class ParallelDelta {
+  /**
+   * Default segment size of 8MB.
+   */
+  public static final int DEFAULT_SEGMENT_SIZE = 8 << 20;
+  /**
+   * Default overlap of 1MB.
+   */
+  public static final int DEFAULT_OVERLAP = 1 << 20;
+  /** The pool. */
+  private final ForkJoinPool pool;
+  /** The chunk size. */
+  private int chunkSize = Delta.DEFAULT_CHUNK_SIZE;
+  /** The max candidates. */
+  private int maxCandidates = Checksum.DEFAULT_MAX_CANDIDATES;
+  /** The rolling hash. */
+  private RollingHash rollingHash = RollingHash.ADLER;
+  /** The backward matching. */
+  private boolean backwardMatching;
+  /** The max index entries. */
+  private int maxIndexEntries;
+  /** The min chunk size. */
+  private int minChunkSize;
+  /** The average chunk size. */
+  private int averageChunkSize;
+  /** The max chunk size. */
+  private int maxChunkSize;
+  /** The paged index directory. */
+  private File pagedIndexDirectory;
+  /** The segment size. */
+  private int segmentSize = DEFAULT_SEGMENT_SIZE;
+  /** The overlap. */
+  private int overlap = DEFAULT_OVERLAP;
+
+  /**
+   * Constructs a new ParallelDelta using the common pool.
+   */
+  public ParallelDelta() {
+    this(ForkJoinPool.commonPool());
+  }
+
+  /**
+   * Constructs a new ParallelDelta.
+   *
+   * @param pool the pool segments are matched on
+   */
+  public ParallelDelta(ForkJoinPool pool) {
+    if (pool == null)
+      throw new NullPointerException("pool");
+    this.pool = pool;
+  }
+
+  /**
+   * Sets the chunk size.
+   *
+   * @param size the new chunk size
+   * @see Delta#setChunkSize(int)
+   */
+  public void setChunkSize(int size) {
+    if (size <= 0)
+      throw new IllegalArgumentException("Invalid size");
+    chunkSize = size;
+  }
+
+  /**
+   * Sets the max candidates.
+   *
+   * @param maxCandidates the new max candidates
+   * @see Delta#setMaxCandidates(int)
+   */
+  public void setMaxCandidates(int maxCandidates) {
+    if (maxCandidates <= 0)
+      throw new IllegalArgumentException("Invalid maxCandidates");
+    this.maxCandidates = maxCandidates;
+  }
+
+  /**
+   * Sets the max index entries.
+   *
+   * @param maxIndexEntries the new max index entries, or 0 to index every chunk
+   * @see Delta#setMaxIndexEntries(int)
+   */
+  public void setMaxIndexEntries(int maxIndexEntries) {
+    if (maxIndexEntries < 0)
+      throw new IllegalArgumentException("Invalid maxIndexEntries");
+    this.maxIndexEntries = maxIndexEntries;
+  }
+
+  /**
+   * Sets content-defined chunking. The source is then indexed on the calling thread.
+   *
+   * @param minChunkSize the least distance between anchors, at least 1
+   * @param averageChunkSize the average distance between anchors, a power of two, or 0 to turn this off
+   * @param maxChunkSize the greatest distance between anchors
+   * @see Delta#setContentDefinedChunking(int, int, int)
+   */
+  public void setContentDefinedChunking(int minChunkSize, int averageChunkSize, int maxChunkSize) {
+    if (averageChunkSize != 0 && (Integer.bitCount(averageChunkSize) != 1 || minChunkSize < 1 || maxChunkSize < minChunkSize))
+      throw new IllegalArgumentException("Invalid chunk sizes");
+    this.minChunkSize = minChunkSize;
+    this.averageChunkSize = averageChunkSize;
+    this.maxChunkSize = maxChunkSize;
+  }
+
+  /**
+   * Sets the paged index directory.
+   *
+   * @param pagedIndexDirectory the directory, or null to index sources in the heap
+   * @see Delta#setPagedIndex(File)
+   */
+  public void setPagedIndex(File pagedIndexDirectory) {
+    this.pagedIndexDirectory = pagedIndexDirectory;
+  }
+
+  /**
+   * Sets the rolling hash.
+   *
+   * @param rollingHash the new rolling hash
+   * @see Delta#setRollingHash(RollingHash)
+   */
+  public void setRollingHash(RollingHash rollingHash) {
+    if (rollingHash == null)
+      throw new NullPointerException("rollingHash");
+    this.rollingHash = rollingHash;
+  }
+
+  /**
+   * Sets the backward matching.
+   *
+   * @param backwardMatching the new backward matching
+   * @see Delta#setBackwardMatching(boolean)
+   */
+  public void setBackwardMatching(boolean backwardMatching) {
+    this.backwardMatching = backwardMatching;
+  }
+
+  /**
+   * Sets the number of target bytes matched per task.
+   *
+   * @param segmentSize the new segment size
+   */
+  public void setSegmentSize(int segmentSize) {
+    if (segmentSize <= 0)
+      throw new IllegalArgumentException("Invalid segmentSize");
+    this.segmentSize = segmentSize;
+  }
+
+  /**
+   * Sets how far a copy may extend past the end of its segment.
+   *
+   * @param overlap the new overlap
+   */
+  public void setOverlap(int overlap) {
+    if (overlap < 0)
+      throw new IllegalArgumentException("Invalid overlap");
+    this.overlap = overlap;
+  }
+
+  /**
+   * Compares the source bytes with target bytes, writing to output.
+   *
+   * @param source the source
+   * @param target the target
+   * @param output will be closed
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  public void compute(final byte[] source, final byte[] target, DiffWriter output) throws IOException {
+    compute(new Inputs() {
+      @Override
+      public SeekableSource openSource() {
+        return new ByteBufferSeekableSource(ByteBuffer.wrap(source));
+      }
+
+      @Override
+      public InputStream openTarget(long start, int length) {
+        return new ByteArrayInputStream(target, (int) start, length);
+      }
+
+      @Override
+      public long targetLength() {
+        return target.length;
+      }
+    }, output);
+  }
+
+  /**
+   * Compares the source file with a target file, writing to output.
+   * The tasks share one {@link FileChannelSeekableSource} and read the
+   * target separately.
+   *
+   * @param sourceFile the source file
+   * @param targetFile the target file
+   * @param output will be closed
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  public void compute(final File sourceFile, final File targetFile, DiffWriter output) throws IOException {
+    final long length = targetFile.length();
+    compute(new Inputs() {
+      @Override
+      public SeekableSource openSource() throws IOException {
+        return new FileChannelSeekableSource(sourceFile);
+      }
+
+      @Override
+      public InputStream openTarget(long start, int length) throws IOException {
+        byte[] b = new byte[length];
+        try (RandomAccessFile raf = new RandomAccessFile(targetFile, "r")) {
+          raf.seek(start);
+          raf.readFully(b);
+        }
+        return new ByteArrayInputStream(b);
+      }
+
+      @Override
+      public long targetLength() {
+        return length;
+      }
+    }, output);
+  }
+
+  /**
+   * Computes the delta, keeping at most two segments per thread in progress.
+   *
+   * @param in the inputs
+   * @param output the output
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  private void compute(Inputs in, DiffWriter output) throws IOException {
+    try (SeekableSource source = in.openSource()) {
+      if (pagedIndexDirectory != null) {
+        try (PagedChecksum checksum = new PagedChecksum(source, chunkSize, maxCandidates, rollingHash, pagedIndexDirectory)) {
+          compute(in, source, checksum, output);
+        }
+        return;
+      }
+      Checksum checksum;
+      if (averageChunkSize > 0)
+        checksum = Checksum.contentDefined(source, chunkSize, minChunkSize, averageChunkSize, maxChunkSize, maxCandidates, rollingHash);
+      else if (maxIndexEntries > 0)
+        checksum = Checksum.sampled(source, chunkSize, maxIndexEntries, pool, rollingHash);
+      else
+        checksum = new Checksum(source, chunkSize, maxCandidates, pool, rollingHash);
+      compute(in, source, checksum, output);
+    }
+  }
+
+  /**
+   * Computes the delta against a shared source.
+   *
+   * @param in the inputs
+   * @param source the source
+   * @param checksum the checksum
+   * @param output the output
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  private void compute(Inputs in, SeekableSource source, SourceIndex checksum, DiffWriter output) throws IOException {
+    long length = in.targetLength();
+    int ahead = Math.max(2, pool.getParallelism() * 2);
+    ArrayDeque<Segment> running = new ArrayDeque<Segment>();
+    Stitcher stitcher = new Stitcher(output);
+    long next = 0;
+    long done = 0;
+    try {
+      while (next < length || !running.isEmpty()) {
+        while (next < length && running.size() < ahead) {
+          int len = (int) Math.min(segmentSize, length - next);
+          Segment segment = new Segment(in, source, checksum, next, len, (int) Math.min(overlap, length - next - len));
+          pool.execute(segment);
+          running.add(segment);
+          next += segment.length;
+        }
+        Segment segment = running.remove();
+        DiffOps ops = join(segment);
+        long skip = done - segment.start;
+        if (skip < ops.length()) {
+          ops.replay(stitcher, skip);
+          done = segment.start + ops.length();
+        }
+      }
+      stitcher.flush();
+    } finally {
+      for (Segment segment : running)
+        segment.cancel(true);
+    }
+    output.close();
+  }
+
+  /**
+   * Waits for a segment.
+   *
+   * @param segment the segment
+   * @return the commands
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  private static DiffOps join(Segment segment) throws IOException {
+    try {
+      return segment.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw (IOException) new InterruptedIOException().initCause(e);
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof UncheckedIOException)
+        throw ((UncheckedIOException) cause).getCause();
+      if (cause instanceof RuntimeException)
+        throw (RuntimeException) cause;
+      if (cause instanceof Error)
+        throw (Error) cause;
+      throw new IOException(cause);
+    }
+  }
+
+  /**
+   * Opens the inputs of a task.
+   */
+  private interface Inputs {
+    /**
+     * Opens the source, which is shared by all tasks.
+     *
+     * @return the seekable source
+     * @throws IOException Signals that an I/O exception has occurred.
+     */
+    SeekableSource openSource() throws IOException;
+
+    /**
+     * Opens part of the target.
+     *
+     * @param start the start
+     * @param length the length
+     * @return the input stream
+     * @throws IOException Signals that an I/O exception has occurred.
+     */
+    InputStream openTarget(long start, int length) throws IOException;
+
+    /**
+     * Target length.
+     *
+     * @return the long
+     */
+    long targetLength();
+  }
+
+  /**
+   * Matches one target segment, recording the commands.
+   */
+  private class Segment extends RecursiveTask<DiffOps> {
+    /** The Constant serialVersionUID. */
+    private static final long serialVersionUID = 1;
+    /** The in. */
+    private final Inputs in;
+    /** The source. */
+    private final SeekableSource source;
+    /** The checksum. */
+    private final SourceIndex checksum;
+    /** The start. */
+    private final long start;
+    /** The length. */
+    private final int length;
+    /** The overlap. */
+    private final int overlap;
+
+    /**
+     * Instantiates a new segment.
+     *
+     * @param in the in
+     * @param source the source
+     * @param checksum the checksum
+     * @param start the start
+     * @param length the length
+     * @param overlap the overlap
+     */
+    Segment(Inputs in, SeekableSource source, SourceIndex checksum, long start, int length, int overlap) {
+      this.in = in;
+      this.source = source;
+      this.checksum = checksum;
+      this.start = start;
+      this.length = length;
+      this.overlap = overlap;
+    }
+
+    /* (non-Javadoc)
+     * @see java.util.concurrent.RecursiveTask#compute()
+     */
+    @Override
+    protected DiffOps compute() {
+      Delta delta = new Delta();
+      delta.setChunkSize(chunkSize);
+      delta.setMaxCandidates(maxCandidates);
+      delta.setBackwardMatching(backwardMatching);
+      DiffOps ops = new DiffOps();
+      try (InputStream target = in.openTarget(start, length + overlap)) {
+        delta.compute(checksum, source, target, ops, length);
+      } catch (IOException e) {
+        throw new UncheckedIOException(e);
+      }
+      return ops;
+    }
+  }
+
+  /**
+   * Passes commands on, merging copies that continue the previous copy.
+   */
+  private static class Stitcher implements DiffWriter {
+    /** The output. */
+    private final DiffWriter output;
+    /** The offset of the held copy. */
+    private long copyOffset;
+    /** The length of the held copy, 0 if none. */
+    private long copyLength;
+
+    /**
+     * Instantiates a new stitcher.
+     *
+     * @param output the output
+     */
+    Stitcher(DiffWriter output) {
+      this.output = output;
+    }
+
+    /* (non-Javadoc)
+     * @see com.nothome.delta.DiffWriter#addCopy(long, int)
+     */
+    @Override
+    public void addCopy(long offset, int length) throws IOException {
+      if (copyLength > 0 && copyOffset + copyLength == offset) {
+        copyLength += length;
+        return;
+      }
+      flushCopy();
+      copyOffset = offset;
+      copyLength = length;
+    }
+
+    /* (non-Javadoc)
+     * @see com.nothome.delta.DiffWriter#addData(byte)
+     */
+    @Override
+    public void addData(byte b) throws IOException {
+      flushCopy();
+      output.addData(b);
+    }
+
+    /* (non-Javadoc)
+     * @see com.nothome.delta.DiffWriter#addData(byte[], int, int)
+     */
+    @Override
+    public void addData(byte[] buf, int off, int len) throws IOException {
+      flushCopy();
+      output.addData(buf, off, len);
+    }
+
+    /**
+     * Writes the held copy.
+     *
+     * @throws IOException Signals that an I/O exception has occurred.
+     */
+    private void flushCopy() throws IOException {
+      if (copyLength > 0)
+        output.addCopy(copyOffset, copyLength);
+      copyLength = 0;
+    }
+
+    /* (non-Javadoc)
+     * @see com.nothome.delta.DiffWriter#flush()
+     */
+    @Override
+    public void flush() throws IOException {
+      flushCopy();
+      output.flush();
+    }
+
+    /* (non-Javadoc)
+     * @see com.nothome.delta.DiffWriter#close()
+     */
+    @Override
+    public void close() throws IOException {
+      flush();
+      output.close();
+    }
+  }
+}
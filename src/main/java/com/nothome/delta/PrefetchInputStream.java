@@ -0,0 +1,195 @@
+/*
+ * PrefetchInputStream.java
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a
+ * copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL
+ * THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS
+ * IN THE SOFTWARE.
+ *
+ */
+package com.nothome.delta;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Reads ahead of its reader on another thread, into a ring of blocks.
+ * When every block is full the reading thread waits, so at most
+ * <code>depth</code> blocks are read ahead.
+ * <p>
+ * Exceptions and errors of the underlying stream are thrown by the read
+ * reaching them.
+ * Closing this stream stops the reading thread but does not close the
+ * underlying stream.
+ */
+class PrefetchInputStream extends InputStream {
+  /** Marks the end of the stream. */
+  private static final ByteBuffer END = ByteBuffer.allocate(0);
+  /** The underlying stream. */
+  private final InputStream in;
+  /** Blocks read, in order. */
+  private final BlockingQueue<ByteBuffer> filled;
+  /** Blocks free to be read into. */
+  private final BlockingQueue<ByteBuffer> free;
+  /** The reading thread. */
+  private final Thread thread;
+  /** The block being consumed, or null. */
+  private ByteBuffer current;
+  /** The exception thrown reading ahead, or null. */
+  private volatile Throwable failure;
+  /** Whether this stream is closed. */
+  private volatile boolean closed;
+
+  /**
+   * Starts reading ahead.
+   *
+   * @param in the underlying stream
+   * @param blockSize the block size
+   * @param depth the number of blocks
+   */
+  PrefetchInputStream(InputStream in, int blockSize, int depth) {
+    this.in = in;
+    filled = new ArrayBlockingQueue<ByteBuffer>(depth + 1);
+    free = new ArrayBlockingQueue<ByteBuffer>(depth + 1);
+    for (int i = 0; i < depth; i++)
+      free.add(ByteBuffer.allocate(blockSize));
+    thread = new Thread(this::readAhead, "javaxdelta-prefetch");
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  /**
+   * Reads blocks until the end of the underlying stream or until closed.
+   */
+  private void readAhead() {
+    try {
+      while (!closed) {
+        ByteBuffer block = free.take();
+        if (closed)
+          break;
+        block.clear();
+        boolean eof = false;
+        while (block.hasRemaining() && !eof) {
+          int n = in.read(block.array(), block.position(), block.remaining());
+          if (n == -1)
+            eof = true;
+          else
+            block.position(block.position() + n);
+        }
+        block.flip();
+        if (block.hasRemaining())
+          filled.add(block);
+        if (eof)
+          break;
+      }
+    } catch (InterruptedException e) {
+      failure = new InterruptedIOException();
+    } catch (Throwable t) {
+      failure = t;
+    } finally {
+      filled.add(END);
+    }
+  }
+
+  /**
+   * Returns the block being consumed, taking the next one when it is used up.
+   *
+   * @return the block, or null at the end of the stream
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  private ByteBuffer block() throws IOException {
+    if (closed)
+      throw new IOException("closed");
+    if (current != null && current.hasRemaining())
+      return current;
+    if (current == END) {
+      Throwable t = failure;
+      if (t instanceof IOException)
+        throw (IOException) t;
+      if (t instanceof RuntimeException)
+        throw (RuntimeException) t;
+      if (t instanceof Error)
+        throw (Error) t;
+      if (t != null)
+        throw new IOException(t);
+      return null;
+    }
+    if (current != null)
+      free.add(current);
+    try {
+      current = filled.take();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException();
+    }
+    return block();
+  }
+
+  /* (non-Javadoc)
+   * @see java.io.InputStream#read()
+   */
+  @Override
+  public int read() throws IOException {
+    ByteBuffer block = block();
+    return block == null ? -1 : block.get() & 0xff;
+  }
+
+  /* (non-Javadoc)
+   * @see java.io.InputStream#read(byte[], int, int)
+   */
+  @Override
+  public int read(byte[] b, int off, int len) throws IOException {
+    if (len == 0)
+      return 0;
+    ByteBuffer block = block();
+    if (block == null)
+      return -1;
+    int n = Math.min(len, block.remaining());
+    block.get(b, off, n);
+    return n;
+  }
+
+  /* (non-Javadoc)
+   * @see java.io.InputStream#available()
+   */
+  @Override
+  public int available() throws IOException {
+    return current == null || closed ? 0 : current.remaining();
+  }
+
+  /**
+   * Stops the reading thread, waiting for a read in progress to return.
+   *
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  @Override
+  public void close() throws IOException {
+    if (closed)
+      return;
+    closed = true;
+    free.offer(END);
+    try {
+      thread.join();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException();
+    }
+  }
+}
@@ -70,11 +70,23 @@ public class RandomAccessFileSeekableSource implements SeekableSource {
   }
 
   /**
-   * Length.
+   * Reads using the file channel, without using or changing the position set
+   * by {@link #seek(long)}. This method may be called concurrently.
    *
-   * @return the long
+   * @param position the source offset
+   * @param bb the destination, heap or direct
+   * @return the number of bytes read, or -1 at EOF
    * @throws IOException Signals that an I/O exception has occurred.
    */
+  @Override
+  public int read(long position, ByteBuffer bb) throws IOException {
+    return raf.getChannel().read(bb, position);
+  }
+
+  /* (non-Javadoc)
+   * @see com.nothome.delta.SeekableSource#length()
+   */
+  @Override
   public long length() throws IOException {
     return raf.length();
   }
@@ -92,7 +104,9 @@ public class RandomAccessFileSeekableSource implements SeekableSource {
    */
   @Override
   public int read(ByteBuffer bb) throws IOException {
-    int c = raf.read(bb.array(), bb.position(), bb.remaining());
+    if (!bb.hasArray())
+      return raf.getChannel().read(bb);
+    int c = raf.read(bb.array(), bb.arrayOffset() + bb.position(), bb.remaining());
     if (c == -1)
       return -1;
     bb.position(bb.position() + c);
@@ -0,0 +1,88 @@
+/*
+ * RollingHash.java
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a
+ * copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL
+ * THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS
+ * IN THE SOFTWARE.
+ *
+ */
+package com.nothome.delta;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A hash over a window of bytes that can be rolled forward one byte at a time.
+ * The source chunks are indexed by their hash and the target is scanned by
+ * rolling the hash over it, so a stronger hash means fewer chunks that share a
+ * hash but do not match.
+ * <p>
+ * Implementations must be stateless and thread safe.
+ */
+public interface RollingHash {
+  /**
+   * The 32-bit Adler-like hash that {@link Checksum} has always used.
+   * This is the default.
+   */
+  RollingHash ADLER = new AdlerHash();
+  /**
+   * A 64-bit cyclic polynomial hash (Buzhash).
+   */
+  RollingHash BUZHASH = new BuzHash();
+
+  /**
+   * Returns the hash of <code>len</code> bytes starting at the position of the
+   * buffer. The buffer position is not changed.
+   *
+   * @param bb the bb
+   * @param len the window length
+   * @return the hash
+   */
+  long hash(ByteBuffer bb, int len);
+
+  /**
+   * Rolls the hash forward by one byte.
+   *
+   * @param hash the hash of the window starting with <code>out</code>
+   * @param out the byte leaving the window
+   * @param in the byte entering the window
+   * @param len the window length
+   * @return the hash of the window ending with <code>in</code>
+   */
+  long roll(long hash, byte out, byte in, int len);
+
+  /**
+   * Identifies the hash in index files, see {@link ChecksumFile}.
+   * Values up to 255 are reserved for the hashes defined here.
+   *
+   * @return the int
+   */
+  int id();
+
+  /**
+   * Returns the hash defined here with an id.
+   *
+   * @param id the id
+   * @return the rolling hash, or null if not defined here
+   */
+  static RollingHash forId(int id) {
+    if (id == ADLER.id())
+      return ADLER;
+    if (id == BUZHASH.id())
+      return BUZHASH;
+    return null;
+  }
+}
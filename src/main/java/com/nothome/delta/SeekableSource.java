@@ -52,4 +52,38 @@ public interface SeekableSource extends Closeable {
    * @throws IOException Signals that an I/O exception has occurred.
    */
   int read(ByteBuffer bb) throws IOException;
+
+  /**
+   * Reads up to {@link ByteBuffer#remaining()} bytes starting at
+   * <code>position</code>, returning the number of bytes read, or -1 if no
+   * bytes were read and EOF was reached.
+   * <p>
+   * Implementations supporting concurrent use override this to leave the
+   * position set by {@link #seek(long)} alone, so a single source can be
+   * shared by several threads.
+   * The default seeks and reads while holding the lock on this source;
+   * it is thread-safe only with respect to other positional reads and moves
+   * the position for {@link #read(ByteBuffer)}.
+   *
+   * @param position the source offset
+   * @param bb the destination
+   * @return the int
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  default int read(long position, ByteBuffer bb) throws IOException {
+    synchronized (this) {
+      seek(position);
+      return read(bb);
+    }
+  }
+
+  /**
+   * Returns the length of the source, or -1 if it is not known.
+   *
+   * @return the long
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  default long length() throws IOException {
+    return -1;
+  }
 }
@@ -0,0 +1,276 @@
+/*
+ * SegmentedGDiffWriter.java
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a
+ * copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL
+ * THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS
+ * IN THE SOFTWARE.
+ *
+ */
+package com.nothome.delta;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.zip.CRC32;
+
+/**
+ * Outputs a GDIFF diff as segments that can be patched independently, in a
+ * container which {@link GDiffPatcher} recognizes by its magic string.
+ * <p>
+ * The container starts with the magic string "4a 58 44 53" ("JXDS") and the
+ * version number. Each segment writes {@link #getSegmentSize()} bytes of
+ * output, the last one the rest, and consists of a header of big-endian
+ * numbers followed by a GDIFF stream of its own:
+ * <ul>
+ * <li>int the length of the GDIFF stream</li>
+ * <li>long the output offset</li>
+ * <li>int the output length</li>
+ * <li>int the CRC32 of the output</li>
+ * </ul>
+ * The segments end with an int 0, followed by the segment table: an int
+ * count and, per segment, the long position of its header in the
+ * container, the long output offset, the int output length and the int
+ * CRC32. The container ends with the long position of the table and the
+ * string "JXDT".
+ * <p>
+ * Copies are read back from the source to checksum the output.
+ * One segment is held in memory.
+ */
+public class SegmentedGDiffWriter implements DiffWriter, AutoCloseable {
+  /** The magic string and version number. */
+  static final byte[] MAGIC = { 'J', 'X', 'D', 'S', 1 };
+  /** The string ending the container. */
+  static final byte[] END = { 'J', 'X', 'D', 'T' };
+  /** The size of a segment header. */
+  static final int HEADER_SIZE = 20;
+  /** The size of a segment table entry. */
+  static final int ENTRY_SIZE = 24;
+  /** The size of the end of the container. */
+  static final int TRAILER_SIZE = 12;
+  /** The default number of output bytes per segment. */
+  public static final int DEFAULT_SEGMENT_SIZE = 8 << 20;
+  /** The output. */
+  private final DataOutputStream output;
+  /** The source, read to checksum copies. */
+  private final SeekableSource source;
+  /** The number of output bytes per segment. */
+  private final int segmentSize;
+  /** The GDIFF stream of the current segment. */
+  private final ByteArrayOutputStream segment = new ByteArrayOutputStream();
+  /** Writes the current segment. */
+  private GDiffWriter writer;
+  /** The checksum of the output of the current segment. */
+  private final CRC32 crc = new CRC32();
+  /** The output length of the current segment. */
+  private int length;
+  /** The output offset of the current segment. */
+  private long offset;
+  /** The segment table. */
+  private final ByteArrayOutputStream table = new ByteArrayOutputStream();
+  /** The number of segments written. */
+  private int count;
+  /** The number of bytes written to the output. */
+  private long written;
+  /** Holds source bytes being checksummed. */
+  private final ByteBuffer buf = ByteBuffer.allocate(1 << 16);
+  /** Whether the writer is closed. */
+  private boolean closed;
+
+  /**
+   * Constructs a new SegmentedGDiffWriter with segments of
+   * {@link #DEFAULT_SEGMENT_SIZE}.
+   *
+   * @param output the output
+   * @param source the source the diff is computed against
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  public SegmentedGDiffWriter(OutputStream output, SeekableSource source) throws IOException {
+    this(output, source, DEFAULT_SEGMENT_SIZE);
+  }
+
+  /**
+   * Constructs a new SegmentedGDiffWriter.
+   * Smaller segments can be patched on more threads, larger ones add
+   * fewer bytes and keep copies whole.
+   *
+   * @param output the output
+   * @param source the source the diff is computed against
+   * @param segmentSize the number of output bytes per segment
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  public SegmentedGDiffWriter(OutputStream output, SeekableSource source, int segmentSize) throws IOException {
+    if (segmentSize <= 0)
+      throw new IllegalArgumentException("segment size " + segmentSize);
+    this.output = new DataOutputStream(output);
+    this.source = source;
+    this.segmentSize = segmentSize;
+    this.output.write(MAGIC);
+    written = MAGIC.length;
+  }
+
+  /**
+   * Returns the number of output bytes per segment.
+   *
+   * @return the segment size
+   */
+  public int getSegmentSize() {
+    return segmentSize;
+  }
+
+  /**
+   * Returns the segment writer, starting a segment if needed.
+   *
+   * @return the writer
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  private GDiffWriter writer() throws IOException {
+    if (writer == null)
+      writer = new GDiffWriter(segment);
+    return writer;
+  }
+
+  /* (non-Javadoc)
+   * @see com.nothome.delta.DiffWriter#addCopy(long, int)
+   */
+  @Override
+  public void addCopy(long offset, int length) throws IOException {
+    while (length > 0) {
+      int n = Math.min(length, segmentSize - this.length);
+      writer().addCopy(offset, n);
+      checksum(offset, n);
+      this.length += n;
+      offset += n;
+      length -= n;
+      if (this.length == segmentSize)
+        writeSegment();
+    }
+  }
+
+  /**
+   * Checksums source bytes copied.
+   *
+   * @param offset the offset
+   * @param length the length
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  private void checksum(long offset, int length) throws IOException {
+    while (length > 0) {
+      buf.clear().limit(Math.min(buf.capacity(), length));
+      while (buf.hasRemaining()) {
+        if (source.read(offset + buf.position(), buf) == -1)
+          throw new EOFException("in copy " + offset + " " + length);
+      }
+      crc.update(buf.array(), 0, buf.position());
+      offset += buf.position();
+      length -= buf.position();
+    }
+  }
+
+  /* (non-Javadoc)
+   * @see com.nothome.delta.DiffWriter#addData(byte)
+   */
+  @Override
+  public void addData(byte b) throws IOException {
+    writer().addData(b);
+    crc.update(b);
+    if (++length == segmentSize)
+      writeSegment();
+  }
+
+  /* (non-Javadoc)
+   * @see com.nothome.delta.DiffWriter#addData(byte[], int, int)
+   */
+  @Override
+  public void addData(byte[] b, int off, int len) throws IOException {
+    while (len > 0) {
+      int n = Math.min(len, segmentSize - length);
+      writer().addData(b, off, n);
+      crc.update(b, off, n);
+      length += n;
+      off += n;
+      len -= n;
+      if (length == segmentSize)
+        writeSegment();
+    }
+  }
+
+  /**
+   * Writes the current segment and its table entry.
+   *
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  private void writeSegment() throws IOException {
+    if (length == 0)
+      return;
+    writer.close();
+    int checksum = (int) crc.getValue();
+    output.writeInt(segment.size());
+    output.writeLong(offset);
+    output.writeInt(length);
+    output.writeInt(checksum);
+    segment.writeTo(output);
+    DataOutputStream entry = new DataOutputStream(table);
+    entry.writeLong(written);
+    entry.writeLong(offset);
+    entry.writeInt(length);
+    entry.writeInt(checksum);
+    written += HEADER_SIZE + segment.size();
+    offset += length;
+    count++;
+    writer = null;
+    segment.reset();
+    crc.reset();
+    length = 0;
+  }
+
+  /**
+   * Flushes the output. The current segment is written when it is full or
+   * the writer is closed.
+   *
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  @Override
+  public void flush() throws IOException {
+    output.flush();
+  }
+
+  /**
+   * Writes the last segment and the segment table, closes the underlying
+   * stream. Closing again has no effect.
+   *
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  @Override
+  public void close() throws IOException {
+    if (closed)
+      return;
+    closed = true;
+    try (OutputStream os = output) {
+      writeSegment();
+      output.writeInt(0);
+      long position = written + 4;
+      output.writeInt(count);
+      table.writeTo(output);
+      output.writeLong(position);
+      output.write(END);
+      output.flush();
+    }
+  }
+}
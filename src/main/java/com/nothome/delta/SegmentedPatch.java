@@ -0,0 +1,571 @@
+/*
+ * SegmentedPatch.java
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a
+ * copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL
+ * THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS
+ * IN THE SOFTWARE.
+ *
+ */
+package com.nothome.delta;
+
+import static com.nothome.delta.SegmentedGDiffWriter.END;
+import static com.nothome.delta.SegmentedGDiffWriter.ENTRY_SIZE;
+import static com.nothome.delta.SegmentedGDiffWriter.HEADER_SIZE;
+import static com.nothome.delta.SegmentedGDiffWriter.MAGIC;
+import static com.nothome.delta.SegmentedGDiffWriter.TRAILER_SIZE;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.zip.CRC32;
+
+/**
+ * The segment table of a patch written by {@link SegmentedGDiffWriter},
+ * with the means to patch its segments independently.
+ */
+final class SegmentedPatch {
+  /** The size of the buffers of a segment being patched. */
+  private static final int BUFFER_SIZE = 1 << 16;
+  /** The patch. */
+  private final FileChannel patch;
+  /** The position of the container in the patch. */
+  private final long base;
+  /** The positions of the segment headers in the container. */
+  private final long[] positions;
+  /** The output offsets. */
+  private final long[] offsets;
+  /** The output lengths. */
+  private final int[] lengths;
+  /** The checksums of the output. */
+  private final int[] crcs;
+
+  /**
+   * Reads the segment table of a container.
+   *
+   * @param patch the patch
+   * @param base the position of the container in the patch
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  SegmentedPatch(FileChannel patch, long base) throws IOException {
+    this.patch = patch;
+    this.base = base;
+    long size = patch.size() - base;
+    if (size < MAGIC.length + 8 + TRAILER_SIZE)
+      throw new PatchException("segment table not found");
+    ByteBuffer trailer = read(size - TRAILER_SIZE, TRAILER_SIZE);
+    long table = trailer.getLong();
+    for (byte b : END) {
+      if (trailer.get() != b)
+        throw new PatchException("segment table not found");
+    }
+    if (table < MAGIC.length + 4 || table > size - TRAILER_SIZE - 4)
+      throw new PatchException("invalid segment table position " + table);
+    int count = read(table, 4).getInt();
+    if (count < 0 || (long) count * ENTRY_SIZE != size - TRAILER_SIZE - table - 4)
+      throw new PatchException("invalid segment count " + count);
+    positions = new long[count];
+    offsets = new long[count];
+    lengths = new int[count];
+    crcs = new int[count];
+    ByteBuffer entries = read(table + 4, count * ENTRY_SIZE);
+    long offset = 0;
+    for (int i = 0; i < count; i++) {
+      positions[i] = entries.getLong();
+      offsets[i] = entries.getLong();
+      lengths[i] = entries.getInt();
+      crcs[i] = entries.getInt();
+      if (offsets[i] != offset || lengths[i] <= 0 || positions[i] < MAGIC.length || positions[i] > table - HEADER_SIZE)
+        throw new PatchException("invalid segment " + i);
+      offset += lengths[i];
+    }
+  }
+
+  /**
+   * Checks whether bytes start with the magic string of the container.
+   *
+   * @param b the b
+   * @return true, if the bytes start with the magic string
+   */
+  static boolean isMagic(byte[] b) {
+    if (b.length < MAGIC.length)
+      return false;
+    for (int i = 0; i < MAGIC.length; i++) {
+      if (b[i] != MAGIC[i])
+        return false;
+    }
+    return true;
+  }
+
+  /**
+   * Reads bytes of the container.
+   *
+   * @param position the position in the container
+   * @param length the length
+   * @return the bytes, ready for reading
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  private ByteBuffer read(long position, int length) throws IOException {
+    ByteBuffer bb = ByteBuffer.allocate(length);
+    while (bb.hasRemaining()) {
+      if (patch.read(bb, base + position + bb.position()) == -1)
+        throw new EOFException("patch ended");
+    }
+    bb.flip();
+    return bb;
+  }
+
+  /**
+   * Returns the number of segments.
+   *
+   * @return the count
+   */
+  int count() {
+    return lengths.length;
+  }
+
+  /**
+   * Returns the output length.
+   *
+   * @return the length
+   */
+  long length() {
+    int n = lengths.length;
+    return n == 0 ? 0 : offsets[n - 1] + lengths[n - 1];
+  }
+
+  /**
+   * Scans the commands of all segments, in order.
+   *
+   * @return the commands
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  GDiffPatcher.Ops scan() throws IOException {
+    GDiffPatcher.Ops ops = new GDiffPatcher.Ops();
+    for (int i = 0; i < count(); i++) {
+      ByteBuffer header = read(positions[i], HEADER_SIZE + 5);
+      int size = header.getInt();
+      if (size <= 5 || header.getLong() != offsets[i] || header.getInt() != lengths[i] || header.getInt() != crcs[i]
+          || header.get() != (byte) 0xd1 || header.get() != (byte) 0xff || header.get() != (byte) 0xd1
+          || header.get() != (byte) 0xff || header.get() != 0x04)
+        throw new PatchException("invalid segment " + i);
+      patch.position(base + positions[i] + HEADER_SIZE + 5);
+      GDiffPatcher.scan(patch, ops);
+      if (ops.length() != offsets[i] + lengths[i] || patch.position() != base + positions[i] + HEADER_SIZE + size)
+        throw new PatchException("invalid segment " + i);
+    }
+    return ops;
+  }
+
+  /**
+   * Patches the segments, writing from the current position of
+   * <code>out</code> and leaving it positioned after the output, which is
+   * sized before it is written.
+   *
+   * @param source the source
+   * @param out the out
+   * @param pool the pool to patch segments on, or null to patch them on the calling thread
+   * @param resume whether to keep the output of segments that match their checksums
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  void apply(FileChannel source, FileChannel out, ForkJoinPool pool, boolean resume) throws IOException {
+    long start = out.position();
+    long length = length();
+    boolean[] done = resume ? verified(out, start) : new boolean[count()];
+    out.truncate(start + length);
+    if (length > 0 && out.size() < start + length)
+      out.write(ByteBuffer.allocate(1), start + length - 1);
+    List<SegmentTask> tasks = new ArrayList<SegmentTask>();
+    try {
+      for (int i = 0; i < count(); i++) {
+        if (done[i])
+          continue;
+        SegmentTask task = new SegmentTask(source, out, start, i);
+        if (pool == null) {
+          task.invoke();
+        } else {
+          pool.execute(task);
+          tasks.add(task);
+        }
+      }
+      for (SegmentTask task : tasks)
+        join(task);
+    } catch (UncheckedIOException e) {
+      throw e.getCause();
+    } finally {
+      for (SegmentTask task : tasks)
+        task.cancel(true);
+    }
+    out.position(start + length);
+  }
+
+  /**
+   * Returns the segments whose output does not match its checksum.
+   *
+   * @param out the out
+   * @param start the position of the output in out
+   * @return the indexes of the segments
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  int[] verify(FileChannel out, long start) throws IOException {
+    boolean[] verified = verified(out, start);
+    int n = 0;
+    for (boolean b : verified) {
+      if (!b)
+        n++;
+    }
+    int[] failed = new int[n];
+    n = 0;
+    for (int i = 0; i < verified.length; i++) {
+      if (!verified[i])
+        failed[n++] = i;
+    }
+    return failed;
+  }
+
+  /**
+   * Checks the output of each segment against its checksum.
+   *
+   * @param out the out
+   * @param start the position of the output in out
+   * @return whether the output of each segment matches
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  private boolean[] verified(FileChannel out, long start) throws IOException {
+    boolean[] verified = new boolean[count()];
+    ByteBuffer bb = ByteBuffer.allocate(BUFFER_SIZE);
+    CRC32 crc = new CRC32();
+    long size = out.size();
+    for (int i = 0; i < count() && start + offsets[i] + lengths[i] <= size; i++) {
+      crc.reset();
+      long position = start + offsets[i];
+      long end = position + lengths[i];
+      while (position < end) {
+        bb.clear().limit((int) Math.min(bb.capacity(), end - position));
+        int n = out.read(bb, position);
+        if (n == -1)
+          break;
+        crc.update(bb.array(), 0, n);
+        position += n;
+      }
+      verified[i] = position == end && (int) crc.getValue() == crcs[i];
+    }
+    return verified;
+  }
+
+  /**
+   * Waits for a task.
+   *
+   * @param task the task
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  private static void join(SegmentTask task) throws IOException {
+    try {
+      task.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw (IOException) new InterruptedIOException().initCause(e);
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof UncheckedIOException)
+        throw ((UncheckedIOException) cause).getCause();
+      if (cause instanceof RuntimeException)
+        throw (RuntimeException) cause;
+      if (cause instanceof Error)
+        throw (Error) cause;
+      throw new IOException(cause);
+    }
+  }
+
+  /**
+   * Patches segments from a stream, in order, checking each against its
+   * checksum. The segment table is not read.
+   *
+   * @param source the source
+   * @param patch the patch, positioned after the magic string
+   * @param out the out
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  static void patch(SeekableSource source, InputStream patch, OutputStream out) throws IOException {
+    DataInputStream in = new DataInputStream(patch);
+    GDiffPatcher patcher = new GDiffPatcher();
+    long offset = 0;
+    for (int i = 0; ; i++) {
+      int size = in.readInt();
+      if (size == 0)
+        break;
+      long segmentOffset = in.readLong();
+      int length = in.readInt();
+      int checksum = in.readInt();
+      if (size < 0 || segmentOffset != offset || length <= 0)
+        throw new PatchException("invalid segment " + i);
+      CheckedOutputStream os = new CheckedOutputStream(out);
+      LimitedInputStream is = new LimitedInputStream(in, size);
+      patcher.patch(source, is, os);
+      os.check(i, length, checksum);
+      if (is.remaining != 0)
+        throw new PatchException("invalid segment " + i);
+      offset += length;
+    }
+    out.flush();
+  }
+
+  /**
+   * Patches a segment using positional reads and writes.
+   */
+  private class SegmentTask extends RecursiveAction {
+    /** The Constant serialVersionUID. */
+    private static final long serialVersionUID = 1;
+    /** The source. */
+    private final FileChannel source;
+    /** The out. */
+    private final FileChannel out;
+    /** The position of the output in out. */
+    private final long start;
+    /** The segment. */
+    private final int index;
+
+    /**
+     * Instantiates a new segment task.
+     *
+     * @param source the source
+     * @param out the out
+     * @param start the position of the output in out
+     * @param index the segment
+     */
+    SegmentTask(FileChannel source, FileChannel out, long start, int index) {
+      this.source = source;
+      this.out = out;
+      this.start = start;
+      this.index = index;
+    }
+
+    /* (non-Javadoc)
+     * @see java.util.concurrent.RecursiveAction#compute()
+     */
+    @Override
+    protected void compute() {
+      try {
+        ByteBuffer header = read(positions[index], HEADER_SIZE);
+        int size = header.getInt();
+        if (size <= 0 || header.getLong() != offsets[index] || header.getInt() != lengths[index] || header.getInt() != crcs[index])
+          throw new PatchException("invalid segment " + index);
+        InputStream is = new BufferedInputStream(new ChannelInputStream(patch, base + positions[index] + HEADER_SIZE, size), BUFFER_SIZE);
+        CheckedOutputStream os = new CheckedOutputStream(new BufferedOutputStream(new ChannelOutputStream(out, start + offsets[index]), BUFFER_SIZE));
+        new GDiffPatcher().patch(new FileChannelSeekableSource(source), is, os);
+        os.check(index, lengths[index], crcs[index]);
+      } catch (IOException e) {
+        throw new UncheckedIOException(e);
+      }
+    }
+  }
+
+  /**
+   * Reads a range of a channel using positional reads.
+   */
+  private static class ChannelInputStream extends InputStream {
+    /** The channel. */
+    private final FileChannel channel;
+    /** The position. */
+    private long position;
+    /** The position after the range. */
+    private final long end;
+
+    /**
+     * Instantiates a new channel input stream.
+     *
+     * @param channel the channel
+     * @param position the position
+     * @param length the length
+     */
+    ChannelInputStream(FileChannel channel, long position, long length) {
+      this.channel = channel;
+      this.position = position;
+      this.end = position + length;
+    }
+
+    /* (non-Javadoc)
+     * @see java.io.InputStream#read()
+     */
+    @Override
+    public int read() throws IOException {
+      byte[] b = new byte[1];
+      return read(b, 0, 1) == -1 ? -1 : b[0] & 0xff;
+    }
+
+    /* (non-Javadoc)
+     * @see java.io.InputStream#read(byte[], int, int)
+     */
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+      if (position >= end)
+        return -1;
+      int n = channel.read(ByteBuffer.wrap(b, off, (int) Math.min(len, end - position)), position);
+      if (n > 0)
+        position += n;
+      return n;
+    }
+  }
+
+  /**
+   * Writes to a channel from a position using positional writes.
+   */
+  private static class ChannelOutputStream extends OutputStream {
+    /** The channel. */
+    private final FileChannel channel;
+    /** The position. */
+    private long position;
+
+    /**
+     * Instantiates a new channel output stream.
+     *
+     * @param channel the channel
+     * @param position the position
+     */
+    ChannelOutputStream(FileChannel channel, long position) {
+      this.channel = channel;
+      this.position = position;
+    }
+
+    /* (non-Javadoc)
+     * @see java.io.OutputStream#write(int)
+     */
+    @Override
+    public void write(int b) throws IOException {
+      write(new byte[] { (byte) b }, 0, 1);
+    }
+
+    /* (non-Javadoc)
+     * @see java.io.OutputStream#write(byte[], int, int)
+     */
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+      ByteBuffer bb = ByteBuffer.wrap(b, off, len);
+      while (bb.hasRemaining())
+        position += channel.write(bb, position);
+    }
+  }
+
+  /**
+   * Reads at most a number of bytes of a stream.
+   */
+  private static class LimitedInputStream extends FilterInputStream {
+    /** The number of bytes left. */
+    private long remaining;
+
+    /**
+     * Instantiates a new limited input stream.
+     *
+     * @param in the in
+     * @param limit the number of bytes
+     */
+    LimitedInputStream(InputStream in, long limit) {
+      super(in);
+      this.remaining = limit;
+    }
+
+    /* (non-Javadoc)
+     * @see java.io.FilterInputStream#read()
+     */
+    @Override
+    public int read() throws IOException {
+      if (remaining == 0)
+        return -1;
+      int b = in.read();
+      if (b != -1)
+        remaining--;
+      return b;
+    }
+
+    /* (non-Javadoc)
+     * @see java.io.FilterInputStream#read(byte[], int, int)
+     */
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+      if (remaining == 0)
+        return -1;
+      int n = in.read(b, off, (int) Math.min(len, remaining));
+      if (n > 0)
+        remaining -= n;
+      return n;
+    }
+  }
+
+  /**
+   * Counts and checksums the bytes written through it.
+   */
+  private static class CheckedOutputStream extends java.util.zip.CheckedOutputStream {
+    /** The number of bytes written. */
+    private long count;
+
+    /**
+     * Instantiates a new checked output stream.
+     *
+     * @param out the out
+     */
+    CheckedOutputStream(OutputStream out) {
+      super(out, new CRC32());
+    }
+
+    /* (non-Javadoc)
+     * @see java.util.zip.CheckedOutputStream#write(int)
+     */
+    @Override
+    public void write(int b) throws IOException {
+      super.write(b);
+      count++;
+    }
+
+    /* (non-Javadoc)
+     * @see java.util.zip.CheckedOutputStream#write(byte[], int, int)
+     */
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+      super.write(b, off, len);
+      count += len;
+    }
+
+    /**
+     * Flushes and checks the output of a segment.
+     *
+     * @param index the segment
+     * @param length the output length
+     * @param crc the checksum
+     * @throws IOException Signals that an I/O exception has occurred.
+     */
+    void check(int index, int length, int crc) throws IOException {
+      flush();
+      if (count != length)
+        throw new PatchException("segment " + index + " wrote " + count + " bytes instead of " + length);
+      if ((int) getChecksum().getValue() != crc)
+        throw new PatchException("segment " + index + " checksum mismatch");
+    }
+  }
+}
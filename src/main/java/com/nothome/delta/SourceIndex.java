@@ -0,0 +1,138 @@
+/*
+ * SourceIndex.java
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a
+ * copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL
+ * THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS
+ * IN THE SOFTWARE.
+ *
+ */
+package com.nothome.delta;
+
+/**
+ * An index of source chunks by checksum, as scanned by {@link Delta}.
+ * <p>
+ * Lookups return entries: opaque handles of indexed chunks, valid only for
+ * the index returning them. Implementations may be shared by several threads
+ * once built.
+ *
+ * @see Checksum
+ * @see PagedChecksum
+ */
+public interface SourceIndex {
+  /**
+   * Returns the chunk size the source was indexed with.
+   *
+   * @return the int
+   */
+  public int getChunkSize();
+
+  /**
+   * Returns the rolling hash the source was indexed with.
+   *
+   * @return the rolling hash
+   */
+  public RollingHash getRollingHash();
+
+  /**
+   * Finds a chunk with a checksum.
+   * If several chunks share the checksum, this is the last one indexed;
+   * use {@link #nextEntry(long)} for the others.
+   *
+   * @param checksum the checksum
+   * @return the entry, or -1 if not found
+   */
+  public long findEntry(long checksum);
+
+  /**
+   * Returns the next, older chunk sharing the checksum of an entry.
+   *
+   * @param entry an entry returned by {@link #findEntry(long)} or this method
+   * @return the entry, or -1 if there are no further chunks
+   */
+  public long nextEntry(long entry);
+
+  /**
+   * Returns the source offset of the chunk of an entry.
+   *
+   * @param entry an entry returned by {@link #findEntry(long)} or {@link #nextEntry(long)}
+   * @return the long
+   */
+  public long getEntryOffset(long entry);
+
+  /**
+   * Checks whether chunks with a checksum are indexed; target positions
+   * failing it need not be looked up. The default implementation returns true.
+   *
+   * @param checksum the checksum
+   * @return true, if chunks with the checksum are indexed
+   */
+  public default boolean isAnchor(long checksum) {
+    return true;
+  }
+
+  /**
+   * Returns how many chunks there are per indexed chunk on average.
+   * The default implementation returns 1.
+   *
+   * @return a power of two
+   */
+  public default int getSampling() {
+    return 1;
+  }
+
+  /**
+   * Checks whether the index holds content-defined anchors rather than chunks
+   * at multiples of the chunk size. The default implementation returns false.
+   *
+   * @return true, if content-defined
+   */
+  public default boolean isContentDefined() {
+    return false;
+  }
+
+  /**
+   * Returns the least distance between content-defined anchors.
+   * The default implementation returns 0.
+   *
+   * @return the int, 0 unless content-defined
+   */
+  public default int getMinChunkSize() {
+    return 0;
+  }
+
+  /**
+   * Returns the greatest distance between content-defined anchors.
+   * The default implementation returns 0.
+   *
+   * @return the int, 0 unless content-defined
+   */
+  public default int getMaxChunkSize() {
+    return 0;
+  }
+
+  /**
+   * Checks whether content-defined chunking places an anchor at a position.
+   * The default implementation returns false.
+   *
+   * @param checksum the checksum at the position
+   * @param distance the distance from the previous anchor
+   * @return true, if the position is an anchor
+   */
+  public default boolean isContentDefinedAnchor(long checksum, long distance) {
+    return false;
+  }
+}
@@ -0,0 +1,606 @@
+/*
+ * SuffixArray.java
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a
+ * copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL
+ * THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS
+ * IN THE SOFTWARE.
+ *
+ */
+package com.nothome.delta;
+
+/**
+ * Suffix array of a byte array, built in linear time with the SA-IS
+ * algorithm of Nong, Zhang and Chan, following the SA-IS implementation of
+ * Yuta Mori. Besides the text, the array takes 4 bytes per text byte, and
+ * building it uses at most about 2 more bytes per text byte.
+ * <p>
+ * Instances are immutable and may be shared by several threads.
+ */
+final class SuffixArray {
+  /** Alphabets up to this size get bucket arrays of their own. */
+  private static final int MIN_BUCKET_SIZE = 256;
+  /** The text. */
+  private final byte[] text;
+  /** The suffix array: text offsets in the lexicographic order of their suffixes. */
+  private final int[] sa;
+
+  /**
+   * Builds the suffix array of a text.
+   *
+   * @param text the text, not copied
+   */
+  SuffixArray(byte[] text) {
+    this.text = text;
+    this.sa = build(text);
+  }
+
+  /**
+   * Returns the suffix array.
+   *
+   * @return the int[]
+   */
+  int[] array() {
+    return sa;
+  }
+
+  /**
+   * Finds the longest prefix of <code>b[off, off + len)</code> found in the text.
+   * The binary search skips the prefix already known to match both ends of
+   * the range searched.
+   *
+   * @param b the bytes to find
+   * @param off the offset
+   * @param len the length
+   * @return the text offset in the high 32 bits and the match length in the low 32 bits
+   */
+  long longestMatch(byte[] b, int off, int len) {
+    int n = sa.length;
+    if (n == 0 || len == 0)
+      return 0;
+    int lo = 0;
+    int hi = n - 1;
+    int loMatch = match(sa[lo], b, off, len, 0);
+    int hiMatch = match(sa[hi], b, off, len, 0);
+    while (hi - lo > 1) {
+      int mid = (lo + hi) >>> 1;
+      int s = sa[mid];
+      int k = match(s, b, off, len, Math.min(loMatch, hiMatch));
+      if (k == len)
+        return (long) s << 32 | k;
+      if (s + k == text.length || (text[s + k] & 0xff) < (b[off + k] & 0xff)) {
+        lo = mid;
+        loMatch = k;
+      } else {
+        hi = mid;
+        hiMatch = k;
+      }
+    }
+    return loMatch >= hiMatch ? (long) sa[lo] << 32 | loMatch : (long) sa[hi] << 32 | hiMatch;
+  }
+
+  /**
+   * Returns the length of the common prefix of a suffix and the bytes.
+   *
+   * @param s the suffix
+   * @param b the bytes
+   * @param off the offset
+   * @param len the length
+   * @param k the length known to match
+   * @return the int
+   */
+  private int match(int s, byte[] b, int off, int len, int k) {
+    int max = Math.min(len, text.length - s);
+    while (k < max && text[s + k] == b[off + k])
+      k++;
+    return k;
+  }
+
+  /**
+   * Builds the suffix array of a text.
+   *
+   * @param text the text
+   * @return the int[]
+   */
+  static int[] build(byte[] text) {
+    int n = text.length;
+    int[] sa = new int[n];
+    if (n <= 1)
+      return sa;
+    sais(new ByteText(text), sa, 0, n, 256);
+    return sa;
+  }
+
+  /**
+   * An array of symbols, read and written by index.
+   */
+  private interface Text {
+    /**
+     * Gets a symbol.
+     *
+     * @param i the index
+     * @return the int
+     */
+    int get(int i);
+
+    /**
+     * Sets a symbol.
+     *
+     * @param i the index
+     * @param v the value
+     */
+    void set(int i, int v);
+
+    /**
+     * Adds to a symbol.
+     *
+     * @param i the index
+     * @param d the amount
+     * @return the new value
+     */
+    int update(int i, int d);
+  }
+
+  /**
+   * Unsigned bytes, read only.
+   */
+  private static final class ByteText implements Text {
+    /** The bytes. */
+    private final byte[] b;
+
+    /**
+     * Instantiates a new byte text.
+     *
+     * @param b the b
+     */
+    ByteText(byte[] b) {
+      this.b = b;
+    }
+
+    /* (non-Javadoc)
+     * @see com.nothome.delta.SuffixArray.Text#get(int)
+     */
+    @Override
+    public int get(int i) {
+      return b[i] & 0xff;
+    }
+
+    /* (non-Javadoc)
+     * @see com.nothome.delta.SuffixArray.Text#set(int, int)
+     */
+    @Override
+    public void set(int i, int v) {
+      throw new UnsupportedOperationException();
+    }
+
+    /* (non-Javadoc)
+     * @see com.nothome.delta.SuffixArray.Text#update(int, int)
+     */
+    @Override
+    public int update(int i, int d) {
+      throw new UnsupportedOperationException();
+    }
+  }
+
+  /**
+   * A range of an int array.
+   */
+  private static final class IntText implements Text {
+    /** The array. */
+    private final int[] a;
+    /** The offset of the range. */
+    private final int pos;
+
+    /**
+     * Instantiates a new int text.
+     *
+     * @param a the a
+     * @param pos the pos
+     */
+    IntText(int[] a, int pos) {
+      this.a = a;
+      this.pos = pos;
+    }
+
+    /* (non-Javadoc)
+     * @see com.nothome.delta.SuffixArray.Text#get(int)
+     */
+    @Override
+    public int get(int i) {
+      return a[pos + i];
+    }
+
+    /* (non-Javadoc)
+     * @see com.nothome.delta.SuffixArray.Text#set(int, int)
+     */
+    @Override
+    public void set(int i, int v) {
+      a[pos + i] = v;
+    }
+
+    /* (non-Javadoc)
+     * @see com.nothome.delta.SuffixArray.Text#update(int, int)
+     */
+    @Override
+    public int update(int i, int d) {
+      return a[pos + i] += d;
+    }
+  }
+
+  /**
+   * Counts the symbols.
+   *
+   * @param t the text
+   * @param c the counts
+   * @param n the text length
+   * @param k the alphabet size
+   */
+  private static void getCounts(Text t, Text c, int n, int k) {
+    for (int i = 0; i < k; ++i)
+      c.set(i, 0);
+    for (int i = 0; i < n; ++i)
+      c.update(t.get(i), 1);
+  }
+
+  /**
+   * Finds the starts or ends of the buckets.
+   *
+   * @param c the counts
+   * @param b the buckets
+   * @param k the alphabet size
+   * @param end true for the ends
+   */
+  private static void getBuckets(Text c, Text b, int k, boolean end) {
+    int sum = 0;
+    if (end) {
+      for (int i = 0; i < k; ++i) {
+        sum += c.get(i);
+        b.set(i, sum);
+      }
+    } else {
+      for (int i = 0; i < k; ++i) {
+        sum += c.get(i);
+        b.set(i, sum - c.get(i));
+      }
+    }
+  }
+
+  /**
+   * Sorts the LMS substrings by inducing from their first symbols.
+   *
+   * @param t the text
+   * @param sa the suffix array
+   * @param c the counts
+   * @param b the buckets
+   * @param n the text length
+   * @param k the alphabet size
+   */
+  private static void lmsSort(Text t, int[] sa, Text c, Text b, int n, int k) {
+    int j;
+    int c0;
+    int c1;
+    // L-type suffixes
+    if (c == b)
+      getCounts(t, c, n, k);
+    getBuckets(c, b, k, false);
+    j = n - 1;
+    int bi = b.get(c1 = t.get(j));
+    --j;
+    sa[bi++] = t.get(j) < c1 ? ~j : j;
+    for (int i = 0; i < n; ++i) {
+      if (0 < (j = sa[i])) {
+        if ((c0 = t.get(j)) != c1) {
+          b.set(c1, bi);
+          bi = b.get(c1 = c0);
+        }
+        --j;
+        sa[bi++] = t.get(j) < c1 ? ~j : j;
+        sa[i] = 0;
+      } else if (j < 0) {
+        sa[i] = ~j;
+      }
+    }
+    // S-type suffixes
+    if (c == b)
+      getCounts(t, c, n, k);
+    getBuckets(c, b, k, true);
+    c1 = 0;
+    bi = b.get(c1);
+    for (int i = n - 1; 0 <= i; --i) {
+      if (0 < (j = sa[i])) {
+        if ((c0 = t.get(j)) != c1) {
+          b.set(c1, bi);
+          bi = b.get(c1 = c0);
+        }
+        --j;
+        sa[--bi] = t.get(j) > c1 ? ~(j + 1) : j;
+        sa[i] = 0;
+      }
+    }
+  }
+
+  /**
+   * Compacts the sorted LMS substrings and names them.
+   *
+   * @param t the text
+   * @param sa the suffix array
+   * @param n the text length
+   * @param m the number of LMS substrings
+   * @return the number of distinct names
+   */
+  private static int lmsPostProc(Text t, int[] sa, int n, int m) {
+    int i;
+    int j;
+    int p;
+    int c0;
+    int c1;
+    // compact the sorted substrings into the first m items; 2m is at most n
+    for (i = 0; (p = sa[i]) < 0; ++i)
+      sa[i] = ~p;
+    if (i < m) {
+      for (j = i, ++i;; ++i) {
+        if ((p = sa[i]) < 0) {
+          sa[j++] = ~p;
+          sa[i] = 0;
+          if (j == m)
+            break;
+        }
+      }
+    }
+    // store the lengths of the substrings
+    i = n - 1;
+    j = n - 1;
+    c0 = t.get(n - 1);
+    do {
+      c1 = c0;
+    } while (0 <= --i && (c0 = t.get(i)) >= c1);
+    while (0 <= i) {
+      do {
+        c1 = c0;
+      } while (0 <= --i && (c0 = t.get(i)) <= c1);
+      if (0 <= i) {
+        sa[m + ((i + 1) >> 1)] = j - i;
+        j = i + 1;
+        do {
+          c1 = c0;
+        } while (0 <= --i && (c0 = t.get(i)) >= c1);
+      }
+    }
+    // name the substrings
+    int name = 0;
+    int q = n;
+    int qlen = 0;
+    for (i = 0; i < m; ++i) {
+      p = sa[i];
+      int plen = sa[m + (p >> 1)];
+      boolean diff = true;
+      if (plen == qlen && q + plen < n) {
+        for (j = 0; j < plen && t.get(p + j) == t.get(q + j); ++j) {
+        }
+        if (j == plen)
+          diff = false;
+      }
+      if (diff) {
+        ++name;
+        q = p;
+        qlen = plen;
+      }
+      sa[m + (p >> 1)] = name;
+    }
+    return name;
+  }
+
+  /**
+   * Induces the suffix array from the sorted LMS suffixes.
+   *
+   * @param t the text
+   * @param sa the suffix array
+   * @param c the counts
+   * @param b the buckets
+   * @param n the text length
+   * @param k the alphabet size
+   */
+  private static void induceSA(Text t, int[] sa, Text c, Text b, int n, int k) {
+    int j;
+    int c0;
+    int c1;
+    // L-type suffixes
+    if (c == b)
+      getCounts(t, c, n, k);
+    getBuckets(c, b, k, false);
+    j = n - 1;
+    int bi = b.get(c1 = t.get(j));
+    sa[bi++] = 0 < j && t.get(j - 1) < c1 ? ~j : j;
+    for (int i = 0; i < n; ++i) {
+      j = sa[i];
+      sa[i] = ~j;
+      if (0 < j) {
+        if ((c0 = t.get(--j)) != c1) {
+          b.set(c1, bi);
+          bi = b.get(c1 = c0);
+        }
+        sa[bi++] = 0 < j && t.get(j - 1) < c1 ? ~j : j;
+      }
+    }
+    // S-type suffixes
+    if (c == b)
+      getCounts(t, c, n, k);
+    getBuckets(c, b, k, true);
+    c1 = 0;
+    bi = b.get(c1);
+    for (int i = n - 1; 0 <= i; --i) {
+      if (0 < (j = sa[i])) {
+        if ((c0 = t.get(--j)) != c1) {
+          b.set(c1, bi);
+          bi = b.get(c1 = c0);
+        }
+        sa[--bi] = j == 0 || t.get(j - 1) > c1 ? ~j : j;
+      } else {
+        sa[i] = ~j;
+      }
+    }
+  }
+
+  /**
+   * Builds the suffix array of <code>t[0, n)</code> over the alphabet
+   * <code>[0, k)</code>, using <code>fs</code> free entries after
+   * <code>n</code> in <code>sa</code> for working space.
+   *
+   * @param t the text
+   * @param sa the suffix array
+   * @param fs the free space in sa
+   * @param n the text length
+   * @param k the alphabet size
+   */
+  private static void sais(Text t, int[] sa, int fs, int n, int k) {
+    Text c;
+    Text b;
+    int flags;
+    if (k <= MIN_BUCKET_SIZE) {
+      c = new IntText(new int[k], 0);
+      if (k <= fs) {
+        b = new IntText(sa, n + fs - k);
+        flags = 1;
+      } else {
+        b = new IntText(new int[k], 0);
+        flags = 3;
+      }
+    } else if (k <= fs) {
+      c = new IntText(sa, n + fs - k);
+      if (k <= fs - k) {
+        b = new IntText(sa, n + fs - k * 2);
+        flags = 0;
+      } else if (k <= MIN_BUCKET_SIZE * 4) {
+        b = new IntText(new int[k], 0);
+        flags = 2;
+      } else {
+        b = c;
+        flags = 8;
+      }
+    } else {
+      c = b = new IntText(new int[k], 0);
+      flags = 4 | 8;
+    }
+    // stage 1: reduce the problem by at least 1/2, sorting the LMS substrings
+    getCounts(t, c, n, k);
+    getBuckets(c, b, k, true);
+    for (int i = 0; i < n; ++i)
+      sa[i] = 0;
+    int bi = -1;
+    int i = n - 1;
+    int j = n;
+    int m = 0;
+    int c0 = t.get(n - 1);
+    int c1;
+    do {
+      c1 = c0;
+    } while (0 <= --i && (c0 = t.get(i)) >= c1);
+    while (0 <= i) {
+      do {
+        c1 = c0;
+      } while (0 <= --i && (c0 = t.get(i)) <= c1);
+      if (0 <= i) {
+        if (0 <= bi)
+          sa[bi] = j;
+        bi = b.update(c1, -1);
+        j = i;
+        ++m;
+        do {
+          c1 = c0;
+        } while (0 <= --i && (c0 = t.get(i)) >= c1);
+      }
+    }
+    int name;
+    if (1 < m) {
+      lmsSort(t, sa, c, b, n, k);
+      name = lmsPostProc(t, sa, n, m);
+    } else if (m == 1) {
+      sa[bi] = j + 1;
+      name = 1;
+    } else {
+      name = 0;
+    }
+    // stage 2: solve the reduced problem, recursing if the names are not unique
+    if (name < m) {
+      if ((flags & 4) != 0) {
+        c = null;
+        b = null;
+      }
+      if ((flags & 2) != 0)
+        b = null;
+      int newfs = n + fs - m * 2;
+      if ((flags & (1 | 4 | 8)) == 0) {
+        if (k + name <= newfs)
+          newfs -= k;
+        else
+          flags |= 8;
+      }
+      for (i = m + (n >> 1) - 1, j = m * 2 + newfs - 1; m <= i; --i) {
+        if (sa[i] != 0)
+          sa[j--] = sa[i] - 1;
+      }
+      sais(new IntText(sa, m + newfs), sa, newfs, m, name);
+      i = n - 1;
+      j = m * 2 - 1;
+      c0 = t.get(n - 1);
+      do {
+        c1 = c0;
+      } while (0 <= --i && (c0 = t.get(i)) >= c1);
+      while (0 <= i) {
+        do {
+          c1 = c0;
+        } while (0 <= --i && (c0 = t.get(i)) <= c1);
+        if (0 <= i) {
+          sa[j--] = i + 1;
+          do {
+            c1 = c0;
+          } while (0 <= --i && (c0 = t.get(i)) >= c1);
+        }
+      }
+      for (i = 0; i < m; ++i)
+        sa[i] = sa[m + sa[i]];
+      if ((flags & 4) != 0)
+        c = b = new IntText(new int[k], 0);
+      if ((flags & 2) != 0)
+        b = new IntText(new int[k], 0);
+    }
+    // stage 3: induce the result for the original problem
+    if ((flags & 8) != 0)
+      getCounts(t, c, n, k);
+    if (1 < m) {
+      // put the sorted LMS suffixes at the ends of their buckets
+      getBuckets(c, b, k, true);
+      i = m - 1;
+      j = n;
+      int p = sa[m - 1];
+      c1 = t.get(p);
+      do {
+        int q = b.get(c0 = c1);
+        while (q < j)
+          sa[--j] = 0;
+        do {
+          sa[--j] = p;
+          if (--i < 0)
+            break;
+          p = sa[i];
+        } while ((c1 = t.get(p)) == c0);
+      } while (0 <= i);
+      while (0 < j)
+        sa[--j] = 0;
+    }
+    induceSA(t, sa, c, b, n, k);
+  }
+}
@@ -0,0 +1,330 @@
+/*
+ * SuffixArrayDelta.java
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a
+ * copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL
+ * THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS
+ * IN THE SOFTWARE.
+ *
+ */
+package com.nothome.delta;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+
+/**
+ * Computes deltas against a source held in memory, like bsdiff, using a
+ * suffix array of the source instead of a sampled chunk index.
+ * <p>
+ * The longest source match is found at every target position, so matches
+ * shorter than a chunk or not aligned to one are found too. The copy and
+ * data instructions are then chosen for the least encoded size, using the
+ * GDIFF instruction lengths as {@link GDiffWriter} writes them, over windows
+ * of the target.
+ * This makes smaller patches than {@link Delta} for most inputs, at the cost
+ * of about 5 bytes of memory per source byte and slower indexing.
+ * <p>
+ * The source must fit in a byte array. The target is streamed.
+ * <p>
+ * This class is not thread safe. Use one instance per thread.
+ * The suffix array of the last source is kept, so computing deltas of
+ * several targets against the same source array indexes it once.
+ */
+public class SuffixArrayDelta {
+  /**
+   * Default window of 1MB: the target bytes whose instructions are chosen together.
+   */
+  public static final int DEFAULT_WINDOW_SIZE = 1 << 20;
+  /**
+   * Matches longer than this are continued at the next target position
+   * instead of searching the suffix array again, which keeps long matches
+   * from costing time quadratic in their length.
+   */
+  private static final int CONTINUE_LENGTH = 32;
+  /**
+   * The longest source supported: the largest byte array most virtual machines allocate.
+   */
+  private static final long MAX_SOURCE_LENGTH = Integer.MAX_VALUE - 8;
+  /** The window size. */
+  private int windowSize = DEFAULT_WINDOW_SIZE;
+  /** The source last indexed. */
+  private byte[] source;
+  /** The suffix array of the source. */
+  private SuffixArray index;
+
+  /**
+   * Sets the number of target bytes whose instructions are chosen together.
+   * Larger windows are slightly closer to optimal and use about 18 bytes of
+   * memory per window byte.
+   *
+   * @param windowSize the window size
+   */
+  public void setWindowSize(int windowSize) {
+    if (windowSize <= 0)
+      throw new IllegalArgumentException("Invalid window size: " + windowSize);
+    this.windowSize = windowSize;
+  }
+
+  /**
+   * Compares the source bytes with target bytes, writing to output.
+   *
+   * @param source the source
+   * @param target the target
+   * @param output the output
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  public void compute(byte[] source, byte[] target, OutputStream output) throws IOException {
+    compute(source, new ByteArrayInputStream(target), new GDiffWriter(output));
+  }
+
+  /**
+   * Compares the source bytes with target bytes, returning output.
+   *
+   * @param source the source
+   * @param target the target
+   * @return the byte[]
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  public byte[] compute(byte[] source, byte[] target) throws IOException {
+    ByteArrayOutputStream os = new ByteArrayOutputStream();
+    compute(source, target, os);
+    return os.toByteArray();
+  }
+
+  /**
+   * Compares the source file with a target file, writing to output.
+   * The source file is read into memory.
+   *
+   * @param sourceFile the source file
+   * @param targetFile the target file
+   * @param output will be closed
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  public void compute(File sourceFile, File targetFile, DiffWriter output) throws IOException {
+    if (sourceFile.length() > MAX_SOURCE_LENGTH)
+      throw new IOException("source is too large, max length is " + MAX_SOURCE_LENGTH);
+    byte[] sourceBytes = Files.readAllBytes(sourceFile.toPath());
+    try (InputStream is = new BufferedInputStream(new FileInputStream(targetFile))) {
+      compute(sourceBytes, is, output);
+    }
+  }
+
+  /**
+   * Compares the source bytes with target input, writing to output.
+   *
+   * @param sourceBytes the source bytes, which must not change while their suffix array is kept
+   * @param targetIS the target input
+   * @param output will be closed
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  public void compute(byte[] sourceBytes, InputStream targetIS, DiffWriter output) throws IOException {
+    if (source != sourceBytes) {
+      index = null;
+      index = new SuffixArray(sourceBytes);
+      source = sourceBytes;
+    }
+    Window window = new Window(windowSize);
+    while (window.read(targetIS) > 0) {
+      window.match();
+      window.parse();
+      window.write(output);
+    }
+    output.close();
+  }
+
+  /**
+   * A window of the target, with the longest source match at each of its
+   * positions and the cheapest instructions to encode it.
+   */
+  private class Window {
+    /** The target bytes. */
+    private final byte[] target;
+    /** The number of target bytes. */
+    private int length;
+    /** The source offset of the match at each position. */
+    private final int[] matchOffset;
+    /** The length of the match at each position. */
+    private final int[] matchLength;
+    /** The least encoded size of the window up to each position, ending with a copy. */
+    private final int[] cost;
+    /** The least encoded size of the window up to each position, ending within data. */
+    private final int[] dataCost;
+    /** The length of the data run ending at each position, on the way to its data cost. */
+    private final int[] runLength;
+    /** The position of the copy ending at each position, on the way to its cost. */
+    private final int[] copyStart;
+    /** Whether each position starts a chosen copy. */
+    private final boolean[] copy;
+    /** Scratch space for encoding copies. */
+    private final byte[] scratch = new byte[16];
+
+    /**
+     * Instantiates a new window.
+     *
+     * @param size the size
+     */
+    Window(int size) {
+      target = new byte[size];
+      matchOffset = new int[size];
+      matchLength = new int[size];
+      cost = new int[size + 1];
+      dataCost = new int[size + 1];
+      runLength = new int[size + 1];
+      copyStart = new int[size + 1];
+      copy = new boolean[size];
+    }
+
+    /**
+     * Reads the next window of the target.
+     *
+     * @param is the target
+     * @return the number of bytes read
+     * @throws IOException Signals that an I/O exception has occurred.
+     */
+    int read(InputStream is) throws IOException {
+      length = 0;
+      while (length < target.length) {
+        int n = is.read(target, length, target.length - length);
+        if (n == -1)
+          break;
+        length += n;
+      }
+      return length;
+    }
+
+    /**
+     * Finds the longest source match at each position, ending within the window.
+     */
+    void match() {
+      int offset = 0;
+      int len = 0;
+      for (int i = 0; i < length; i++) {
+        if (len > CONTINUE_LENGTH) {
+          offset++;
+          len--;
+        } else {
+          long m = index.longestMatch(target, i, length - i);
+          offset = (int) (m >>> 32);
+          len = (int) m;
+        }
+        matchOffset[i] = offset;
+        matchLength[i] = len;
+      }
+    }
+
+    /**
+     * Chooses between copying the longest match and a data byte at each
+     * position, from the start of the window forwards, for the least encoded
+     * size of the window. A copy costs its GDIFF instruction. A run of data
+     * costs its bytes and the instructions {@link GDiffWriter} writes for it:
+     * one byte up to {@link GDiffWriter#DATA_MAX} bytes, three bytes above
+     * that, and another instruction every {@link GDiffWriter#CHUNK_SIZE}
+     * bytes. The writer joins adjacent data, so a run only starts after a copy.
+     * Data continued from the previous window is costed as a run of its own.
+     */
+    void parse() {
+      cost[0] = 0;
+      dataCost[0] = Integer.MAX_VALUE;
+      for (int i = 1; i <= length; i++) {
+        cost[i] = Integer.MAX_VALUE;
+        dataCost[i] = Integer.MAX_VALUE;
+      }
+      for (int i = 0; i < length; i++) {
+        int start = cost[i] == Integer.MAX_VALUE ? Integer.MAX_VALUE : cost[i] + 2;
+        int extend = Integer.MAX_VALUE;
+        if (dataCost[i] != Integer.MAX_VALUE)
+          extend = dataCost[i] + 1 + header(runLength[i]);
+        if (extend <= start) {
+          dataCost[i + 1] = extend;
+          runLength[i + 1] = runLength[i] + 1;
+        } else {
+          dataCost[i + 1] = start;
+          runLength[i + 1] = 1;
+        }
+        int len = matchLength[i];
+        if (len > 0) {
+          int c = GDiffWriter.encodeCopy(scratch, 0, matchOffset[i], len) + Math.min(cost[i], dataCost[i]);
+          if (c < cost[i + len]) {
+            cost[i + len] = c;
+            copyStart[i + len] = i;
+          }
+        }
+      }
+      for (int i = 0; i < length; i++)
+        copy[i] = false;
+      int i = length;
+      boolean inData = dataCost[i] < cost[i];
+      while (i > 0) {
+        if (inData) {
+          i -= runLength[i];
+          inData = false;
+        } else {
+          i = copyStart[i];
+          copy[i] = true;
+          inData = dataCost[i] < cost[i];
+        }
+      }
+    }
+
+    /**
+     * Returns the instruction bytes added by growing a data run by one byte.
+     *
+     * @param run the length of the run so far
+     * @return the added instruction bytes
+     */
+    private int header(int run) {
+      int chunk = run % GDiffWriter.CHUNK_SIZE;
+      if (chunk == 0)
+        return 1;
+      return chunk == GDiffWriter.DATA_MAX ? 2 : 0;
+    }
+
+    /**
+     * Writes the chosen instructions.
+     *
+     * @param output the output
+     * @throws IOException Signals that an I/O exception has occurred.
+     */
+    void write(DiffWriter output) throws IOException {
+      int dataStart = 0;
+      boolean inData = false;
+      int i = 0;
+      while (i < length) {
+        if (copy[i]) {
+          if (inData)
+            output.addData(target, dataStart, i - dataStart);
+          output.addCopy(matchOffset[i], matchLength[i]);
+          i += matchLength[i];
+          inData = false;
+        } else {
+          if (!inData)
+            dataStart = i;
+          i++;
+          inData = true;
+        }
+      }
+      if (inData)
+        output.addData(target, dataStart, i - dataStart);
+    }
+  }
+}
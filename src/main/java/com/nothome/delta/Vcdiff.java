@@ -0,0 +1,302 @@
+/*
+ * Vcdiff.java
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a
+ * copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL
+ * THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS
+ * IN THE SOFTWARE.
+ *
+ */
+package com.nothome.delta;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+
+/**
+ * Constants and tables of the VCDIFF format shared by {@link VcdiffWriter}
+ * and {@link VcdiffPatcher}.
+ *
+ * @see <a href="https://tools.ietf.org/html/rfc3284">RFC 3284</a>
+ */
+final class Vcdiff {
+  /** The header bytes, 'V' 'C' 'D' with the high bits set and version 0. */
+  static final byte[] MAGIC = { (byte) 0xd6, (byte) 0xc3, (byte) 0xc4, 0 };
+  /** Hdr_Indicator: secondary compression is used. */
+  static final int VCD_DECOMPRESS = 0x01;
+  /** Hdr_Indicator: an application-defined code table is used. */
+  static final int VCD_CODETABLE = 0x02;
+  /** Hdr_Indicator: an application header follows, an xdelta3 extension. */
+  static final int VCD_APPHEADER = 0x04;
+  /** Win_Indicator: copies refer to a segment of the source. */
+  static final int VCD_SOURCE = 0x01;
+  /** Win_Indicator: copies refer to a segment of earlier target output. */
+  static final int VCD_TARGET = 0x02;
+  /** Win_Indicator: an Adler-32 of the target window follows, an xdelta3 extension. */
+  static final int VCD_ADLER32 = 0x04;
+
+  /** Instruction type: none. */
+  static final int NOOP = 0;
+  /** Instruction type: add bytes from the data section. */
+  static final int ADD = 1;
+  /** Instruction type: repeat one byte from the data section. */
+  static final int RUN = 2;
+  /** Instruction type: copy from the source or the target. */
+  static final int COPY = 3;
+
+  /** Size of the near address cache. */
+  static final int S_NEAR = 4;
+  /** Size of the same address cache, in 256 entry blocks. */
+  static final int S_SAME = 3;
+  /** Address mode: the address itself. */
+  static final int VCD_SELF = 0;
+  /** Address mode: distance back from the current position. */
+  static final int VCD_HERE = 1;
+
+  /** The first instruction type of each code. */
+  static final byte[] INST1 = new byte[256];
+  /** The first instruction size of each code, 0 when given separately. */
+  static final byte[] SIZE1 = new byte[256];
+  /** The first instruction address mode of each code. */
+  static final byte[] MODE1 = new byte[256];
+  /** The second instruction type of each code. */
+  static final byte[] INST2 = new byte[256];
+  /** The second instruction size of each code. */
+  static final byte[] SIZE2 = new byte[256];
+  /** The second instruction address mode of each code. */
+  static final byte[] MODE2 = new byte[256];
+
+  static {
+    // the default code table of RFC 3284 section 5.6
+    int i = 0;
+    set(i++, RUN, 0, 0, NOOP, 0, 0);
+    for (int size = 0; size <= 17; size++)
+      set(i++, ADD, size, 0, NOOP, 0, 0);
+    for (int mode = 0; mode < 9; mode++) {
+      set(i++, COPY, 0, mode, NOOP, 0, 0);
+      for (int size = 4; size <= 18; size++)
+        set(i++, COPY, size, mode, NOOP, 0, 0);
+    }
+    for (int mode = 0; mode < 6; mode++) {
+      for (int add = 1; add <= 4; add++)
+        for (int copy = 4; copy <= 6; copy++)
+          set(i++, ADD, add, 0, COPY, copy, mode);
+    }
+    for (int mode = 6; mode < 9; mode++) {
+      for (int add = 1; add <= 4; add++)
+        set(i++, ADD, add, 0, COPY, 4, mode);
+    }
+    for (int mode = 0; mode < 9; mode++)
+      set(i++, COPY, 4, mode, ADD, 1, 0);
+  }
+
+  /**
+   * Not instantiable.
+   */
+  private Vcdiff() {}
+
+  /**
+   * Sets a code table entry.
+   *
+   * @param code the code
+   * @param inst1 the inst1
+   * @param size1 the size1
+   * @param mode1 the mode1
+   * @param inst2 the inst2
+   * @param size2 the size2
+   * @param mode2 the mode2
+   */
+  private static void set(int code, int inst1, int size1, int mode1, int inst2, int size2, int mode2) {
+    INST1[code] = (byte) inst1;
+    SIZE1[code] = (byte) size1;
+    MODE1[code] = (byte) mode1;
+    INST2[code] = (byte) inst2;
+    SIZE2[code] = (byte) size2;
+    MODE2[code] = (byte) mode2;
+  }
+
+  /**
+   * Returns the code of a single ADD.
+   *
+   * @param size the size
+   * @return the code; the size is written separately if the code is 1
+   */
+  static int addCode(int size) {
+    return size <= 17 ? size + 1 : 1;
+  }
+
+  /**
+   * Returns the code of a single COPY.
+   *
+   * @param size the size
+   * @param mode the mode
+   * @return the code; the size is written separately if it is not 4 to 18
+   */
+  static int copyCode(int size, int mode) {
+    int base = 19 + mode * 16;
+    return size >= 4 && size <= 18 ? base + size - 3 : base;
+  }
+
+  /**
+   * Returns the code of an ADD followed by a COPY.
+   *
+   * @param addSize the add size
+   * @param copySize the copy size
+   * @param mode the copy mode
+   * @return the code, or -1 if there is none
+   */
+  static int addCopyCode(int addSize, int copySize, int mode) {
+    if (addSize < 1 || addSize > 4)
+      return -1;
+    if (mode < 6)
+      return copySize >= 4 && copySize <= 6 ? 163 + mode * 12 + (addSize - 1) * 3 + copySize - 4 : -1;
+    return copySize == 4 ? 235 + (mode - 6) * 4 + addSize - 1 : -1;
+  }
+
+  /**
+   * Returns the code of a COPY followed by an ADD.
+   *
+   * @param copySize the copy size
+   * @param mode the copy mode
+   * @param addSize the add size
+   * @return the code, or -1 if there is none
+   */
+  static int copyAddCode(int copySize, int mode, int addSize) {
+    return copySize == 4 && addSize == 1 ? 247 + mode : -1;
+  }
+
+  /**
+   * Writes an unsigned integer, 7 bits per byte, most significant first.
+   *
+   * @param os the os
+   * @param value the value
+   */
+  static void writeInt(ByteArrayOutputStream os, long value) {
+    int shift = 63 - Long.numberOfLeadingZeros(value | 1);
+    shift -= shift % 7;
+    for (; shift > 0; shift -= 7)
+      os.write((int) ((value >>> shift) & 0x7f) | 0x80);
+    os.write((int) (value & 0x7f));
+  }
+
+  /**
+   * Returns the number of bytes written by {@link #writeInt(ByteArrayOutputStream, long)}.
+   *
+   * @param value the value
+   * @return the int
+   */
+  static int intSize(long value) {
+    return (63 - Long.numberOfLeadingZeros(value | 1)) / 7 + 1;
+  }
+
+  /**
+   * The near and same address caches of RFC 3284 section 5.1.
+   */
+  static final class AddressCache {
+    /** The near cache. */
+    private final long[] near = new long[S_NEAR];
+    /** The next near slot. */
+    private int nextSlot;
+    /** The same cache. */
+    private final long[] same = new long[S_SAME * 256];
+    /** The value of the last encoded address. */
+    private long value;
+
+    /**
+     * Resets the caches for a new window.
+     */
+    void reset() {
+      Arrays.fill(near, 0);
+      Arrays.fill(same, 0);
+      nextSlot = 0;
+    }
+
+    /**
+     * Records an address.
+     *
+     * @param addr the addr
+     */
+    void update(long addr) {
+      near[nextSlot] = addr;
+      nextSlot = (nextSlot + 1) % S_NEAR;
+      same[(int) (addr % same.length)] = addr;
+    }
+
+    /**
+     * Decodes an address.
+     *
+     * @param value the value read: a byte for same modes, an integer otherwise
+     * @param here the current address
+     * @param mode the mode
+     * @return the address
+     */
+    long decode(long value, long here, int mode) {
+      long addr;
+      if (mode == VCD_SELF)
+        addr = value;
+      else if (mode == VCD_HERE)
+        addr = here - value;
+      else if (mode < 2 + S_NEAR)
+        addr = near[mode - 2] + value;
+      else
+        addr = same[(mode - 2 - S_NEAR) * 256 + (int) value];
+      update(addr);
+      return addr;
+    }
+
+    /**
+     * Chooses the mode encoding an address in the fewest bytes, and records it.
+     * The value to write is then returned by {@link #value()}.
+     *
+     * @param addr the addr
+     * @param here the current address
+     * @return the mode
+     */
+    int encode(long addr, long here) {
+      int slot = (int) (addr % same.length);
+      int mode;
+      if (same[slot] == addr) {
+        mode = 2 + S_NEAR + slot / 256;
+        value = slot & 0xff;
+      } else {
+        mode = VCD_SELF;
+        value = addr;
+        if (intSize(here - addr) < intSize(value)) {
+          mode = VCD_HERE;
+          value = here - addr;
+        }
+        for (int i = 0; i < S_NEAR; i++) {
+          long d = addr - near[i];
+          if (d >= 0 && intSize(d) < intSize(value)) {
+            mode = 2 + i;
+            value = d;
+          }
+        }
+      }
+      update(addr);
+      return mode;
+    }
+
+    /**
+     * Returns the value to write for the last encoded address: a byte for
+     * same modes, an integer otherwise.
+     *
+     * @return the long
+     */
+    long value() {
+      return value;
+    }
+  }
+}
@@ -0,0 +1,399 @@
+/*
+ * VcdiffPatcher.java
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a
+ * copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL
+ * THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS
+ * IN THE SOFTWARE.
+ *
+ */
+package com.nothome.delta;
+
+import static com.nothome.delta.Vcdiff.ADD;
+import static com.nothome.delta.Vcdiff.COPY;
+import static com.nothome.delta.Vcdiff.INST1;
+import static com.nothome.delta.Vcdiff.INST2;
+import static com.nothome.delta.Vcdiff.MODE1;
+import static com.nothome.delta.Vcdiff.MODE2;
+import static com.nothome.delta.Vcdiff.NOOP;
+import static com.nothome.delta.Vcdiff.RUN;
+import static com.nothome.delta.Vcdiff.SIZE1;
+import static com.nothome.delta.Vcdiff.SIZE2;
+import static com.nothome.delta.Vcdiff.S_NEAR;
+import static com.nothome.delta.Vcdiff.VCD_ADLER32;
+import static com.nothome.delta.Vcdiff.VCD_APPHEADER;
+import static com.nothome.delta.Vcdiff.VCD_CODETABLE;
+import static com.nothome.delta.Vcdiff.VCD_DECOMPRESS;
+import static com.nothome.delta.Vcdiff.VCD_SOURCE;
+import static com.nothome.delta.Vcdiff.VCD_TARGET;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.zip.Adler32;
+
+/**
+ * This class patches an input file with a VCDIFF (RFC 3284) patch file,
+ * such as one written by {@link VcdiffWriter} or xdelta3.
+ * <p>
+ * Patches using the default code table are supported, including copies
+ * within the target window, application headers and the Adler-32 window
+ * checksums written by xdelta3. Secondary compression, application-defined
+ * code tables and windows copying from earlier target output
+ * (<code>VCD_TARGET</code>) are rejected with a {@link PatchException}.
+ *
+ * @see <a href="https://tools.ietf.org/html/rfc3284">RFC 3284</a>
+ */
+public class VcdiffPatcher {
+  /** The address cache. */
+  private final Vcdiff.AddressCache cache = new Vcdiff.AddressCache();
+
+  /**
+   * Constructs a new VcdiffPatcher.
+   */
+  public VcdiffPatcher() {}
+
+  /**
+   * Patches to an output file.
+   *
+   * @param sourceFile the source file
+   * @param patchFile the patch file
+   * @param outputFile the output file
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  public void patch(File sourceFile, File patchFile, File outputFile) throws IOException {
+    try (SeekableSource source = new FileChannelSeekableSource(sourceFile);
+         InputStream patch = new BufferedInputStream(new FileInputStream(patchFile), 1 << 16);
+         OutputStream output = new BufferedOutputStream(new FileOutputStream(outputFile), 1 << 16)) {
+      patch(source, patch, output);
+    }
+  }
+
+  /**
+   * Patches to an output stream.
+   *
+   * @param source the source
+   * @param patch the patch
+   * @param output the output
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  public void patch(byte[] source, InputStream patch, OutputStream output) throws IOException {
+    patch(new ByteBufferSeekableSource(source), patch, output);
+  }
+
+  /**
+   * Patches in memory, returning the patch result.
+   *
+   * @param source the source
+   * @param patch the patch
+   * @return the byte[]
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  public byte[] patch(byte[] source, byte[] patch) throws IOException {
+    ByteArrayOutputStream os = new ByteArrayOutputStream();
+    patch(source, new ByteArrayInputStream(patch), os);
+    return os.toByteArray();
+  }
+
+  /**
+   * Patches to an output stream.
+   *
+   * @param source the source
+   * @param patch the patch
+   * @param out the out
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  public void patch(SeekableSource source, InputStream patch, OutputStream out) throws IOException {
+    DataInputStream in = new DataInputStream(patch);
+    for (byte b : Vcdiff.MAGIC) {
+      if (in.readByte() != b)
+        throw new PatchException("magic string not found, aborting!");
+    }
+    int indicator = in.readUnsignedByte();
+    if ((indicator & VCD_DECOMPRESS) != 0)
+      throw new PatchException("secondary compression is not supported");
+    if ((indicator & VCD_CODETABLE) != 0)
+      throw new PatchException("application-defined code tables are not supported");
+    if ((indicator & ~VCD_APPHEADER) != 0)
+      throw new PatchException("invalid header indicator " + indicator);
+    if ((indicator & VCD_APPHEADER) != 0)
+      skipFully(in, readLong(in));
+    while (true) {
+      int window = in.read();
+      if (window == -1)
+        break;
+      window(window, source, in, out);
+    }
+    out.flush();
+  }
+
+  /**
+   * Decodes a window.
+   *
+   * @param indicator the window indicator
+   * @param source the source
+   * @param in the in
+   * @param out the out
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  private void window(int indicator, SeekableSource source, DataInputStream in, OutputStream out) throws IOException {
+    if ((indicator & VCD_TARGET) != 0)
+      throw new PatchException("VCD_TARGET windows are not supported");
+    if ((indicator & ~(VCD_SOURCE | VCD_ADLER32)) != 0)
+      throw new PatchException("invalid window indicator " + indicator);
+    long segmentLength = 0;
+    long segmentPosition = 0;
+    if ((indicator & VCD_SOURCE) != 0) {
+      segmentLength = readLong(in);
+      segmentPosition = readLong(in);
+    }
+    long deltaLength = readLong(in);
+    if (deltaLength > Integer.MAX_VALUE - 8)
+      throw new PatchException("window too large " + deltaLength);
+    byte[] delta = new byte[(int) deltaLength];
+    in.readFully(delta);
+    Cursor header = new Cursor(delta, 0, delta.length);
+    long targetLength = header.readLong();
+    if (targetLength > Integer.MAX_VALUE - 8)
+      throw new PatchException("target window too large " + targetLength);
+    if (header.readByte() != 0)
+      throw new PatchException("secondary compression is not supported");
+    int dataLength = header.readInt();
+    int instLength = header.readInt();
+    int addrLength = header.readInt();
+    long checksum = -1;
+    if ((indicator & VCD_ADLER32) != 0) {
+      checksum = 0;
+      for (int i = 0; i < 4; i++)
+        checksum = (checksum << 8) | header.readByte();
+    }
+    int dataStart = header.position;
+    if ((long) dataStart + dataLength + instLength + addrLength != delta.length)
+      throw new PatchException("invalid section lengths");
+    Cursor data = new Cursor(delta, dataStart, dataLength);
+    Cursor inst = new Cursor(delta, dataStart + dataLength, instLength);
+    Cursor addr = new Cursor(delta, dataStart + dataLength + instLength, addrLength);
+
+    byte[] target = new byte[(int) targetLength];
+    int position = 0;
+    cache.reset();
+    while (inst.hasRemaining()) {
+      int code = inst.readByte();
+      for (int k = 0; k < 2; k++) {
+        int type = k == 0 ? INST1[code] : INST2[code];
+        if (type == NOOP)
+          continue;
+        int size = k == 0 ? SIZE1[code] : SIZE2[code];
+        if (size == 0)
+          size = inst.readInt();
+        if (size > target.length - position)
+          throw new PatchException("instruction exceeds the target window");
+        if (type == ADD) {
+          data.read(target, position, size);
+        } else if (type == RUN) {
+          byte b = (byte) data.readByte();
+          for (int i = 0; i < size; i++)
+            target[position + i] = b;
+        } else if (type == COPY) {
+          int mode = k == 0 ? MODE1[code] : MODE2[code];
+          long here = segmentLength + position;
+          long value = mode >= 2 + S_NEAR ? addr.readByte() : addr.readLong();
+          long address = cache.decode(value, here, mode);
+          if (address < 0 || address >= here)
+            throw new PatchException("invalid copy address " + address);
+          copy(source, segmentPosition, segmentLength, address, target, position, size);
+        }
+        position += size;
+      }
+    }
+    if (position != target.length || data.hasRemaining() || addr.hasRemaining())
+      throw new PatchException("window does not match its sections");
+    if (checksum != -1) {
+      Adler32 adler = new Adler32();
+      adler.update(target, 0, target.length);
+      if (adler.getValue() != checksum)
+        throw new PatchException("window checksum mismatch");
+    }
+    out.write(target);
+  }
+
+  /**
+   * Copies from the source segment and the target window.
+   *
+   * @param source the source
+   * @param segmentPosition the segment position
+   * @param segmentLength the segment length
+   * @param address the address in the segment followed by the target
+   * @param target the target window
+   * @param position the position in the target window
+   * @param size the size
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  private static void copy(SeekableSource source, long segmentPosition, long segmentLength, long address,
+      byte[] target, int position, int size) throws IOException {
+    int n = 0;
+    if (address < segmentLength) {
+      n = (int) Math.min(size, segmentLength - address);
+      ByteBuffer bb = ByteBuffer.wrap(target, position, n);
+      while (bb.hasRemaining()) {
+        if (source.read(segmentPosition + address + bb.position() - position, bb) == -1)
+          throw new EOFException("in copy " + (segmentPosition + address) + " " + n);
+      }
+    }
+    // target copies may overlap the bytes they produce
+    int from = (int) (address + n - segmentLength);
+    for (int i = n; i < size; i++)
+      target[position + i] = target[from++];
+  }
+
+  /**
+   * Reads a VCDIFF integer from the stream.
+   *
+   * @param in the in
+   * @return the long
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  private static long readLong(DataInputStream in) throws IOException {
+    long value = 0;
+    for (int i = 0; i < 9; i++) {
+      int b = in.readUnsignedByte();
+      value = (value << 7) | (b & 0x7f);
+      if ((b & 0x80) == 0)
+        return value;
+    }
+    throw new PatchException("integer too large");
+  }
+
+  /**
+   * Skips bytes.
+   *
+   * @param in the in
+   * @param n the n
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  private static void skipFully(DataInputStream in, long n) throws IOException {
+    while (n > 0) {
+      int len = (int) Math.min(n, Integer.MAX_VALUE);
+      int skipped = in.skipBytes(len);
+      if (skipped == 0) {
+        in.readByte();
+        skipped = 1;
+      }
+      n -= skipped;
+    }
+  }
+
+  /**
+   * Reads a section of a window.
+   */
+  private static class Cursor {
+    /** The buf. */
+    private final byte[] buf;
+    /** The position. */
+    private int position;
+    /** The limit. */
+    private final int limit;
+
+    /**
+     * Instantiates a new cursor.
+     *
+     * @param buf the buf
+     * @param position the position
+     * @param length the length
+     */
+    Cursor(byte[] buf, int position, int length) {
+      this.buf = buf;
+      this.position = position;
+      this.limit = position + length;
+    }
+
+    /**
+     * Checks for remaining bytes.
+     *
+     * @return true, if successful
+     */
+    boolean hasRemaining() {
+      return position < limit;
+    }
+
+    /**
+     * Reads an unsigned byte.
+     *
+     * @return the int
+     * @throws PatchException if the section ends
+     */
+    int readByte() throws PatchException {
+      if (position >= limit)
+        throw new PatchException("section ends early");
+      return buf[position++] & 0xff;
+    }
+
+    /**
+     * Reads bytes.
+     *
+     * @param b the b
+     * @param off the off
+     * @param len the len
+     * @throws PatchException if the section ends
+     */
+    void read(byte[] b, int off, int len) throws PatchException {
+      if (len > limit - position)
+        throw new PatchException("section ends early");
+      System.arraycopy(buf, position, b, off, len);
+      position += len;
+    }
+
+    /**
+     * Reads a VCDIFF integer.
+     *
+     * @return the long
+     * @throws PatchException if the section ends or the integer is too large
+     */
+    long readLong() throws PatchException {
+      long value = 0;
+      for (int i = 0; i < 9; i++) {
+        int b = readByte();
+        value = (value << 7) | (b & 0x7f);
+        if ((b & 0x80) == 0)
+          return value;
+      }
+      throw new PatchException("integer too large");
+    }
+
+    /**
+     * Reads a VCDIFF integer that must fit an int.
+     *
+     * @return the int
+     * @throws PatchException if the section ends or the integer is too large
+     */
+    int readInt() throws PatchException {
+      long value = readLong();
+      if (value > Integer.MAX_VALUE)
+        throw new PatchException("integer too large " + value);
+      return (int) value;
+    }
+  }
+}
@@ -0,0 +1,363 @@
+/*
+ * VcdiffWriter.java
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a
+ * copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL
+ * THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS
+ * IN THE SOFTWARE.
+ *
+ */
+package com.nothome.delta;
+
+import static com.nothome.delta.Vcdiff.ADD;
+import static com.nothome.delta.Vcdiff.COPY;
+import static com.nothome.delta.Vcdiff.NOOP;
+import static com.nothome.delta.Vcdiff.RUN;
+import static com.nothome.delta.Vcdiff.S_NEAR;
+import static com.nothome.delta.Vcdiff.SIZE1;
+import static com.nothome.delta.Vcdiff.VCD_SOURCE;
+import static com.nothome.delta.Vcdiff.writeInt;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Writes a VCDIFF (RFC 3284) patch.
+ * <p>
+ * Commands are gathered into target windows of up to
+ * {@link #DEFAULT_WINDOW_SIZE} bytes. Each window refers to the range of the
+ * source its copies use, and is encoded with the default code table into
+ * separate data, instruction and address sections. Copy addresses use the
+ * near and same caches, and runs of a repeated byte become RUN instructions.
+ * Secondary compression is not used, so the patches can be applied by
+ * {@link VcdiffPatcher} and by other VCDIFF decoders such as xdelta3.
+ *
+ * @see <a href="https://tools.ietf.org/html/rfc3284">RFC 3284</a>
+ */
+public class VcdiffWriter implements DiffWriter {
+  /** Default target window size of 8MB. */
+  public static final int DEFAULT_WINDOW_SIZE = 1 << 23;
+  /** Shortest run of a repeated byte written as a RUN. */
+  private static final int MIN_RUN = 8;
+  /** The output. */
+  private final OutputStream output;
+  /** The window size. */
+  private final int windowSize;
+  /** The commands of the current window. */
+  private final DiffOps window = new DiffOps();
+  /** The lowest source offset copied in the window. */
+  private long sourceStart = Long.MAX_VALUE;
+  /** The end of the highest source range copied in the window. */
+  private long sourceEnd;
+  /** Encodes windows. */
+  private final Encoder encoder = new Encoder();
+  /** Holds window headers. */
+  private final ByteArrayOutputStream header = new ByteArrayOutputStream();
+
+  /**
+   * Constructs a new VcdiffWriter.
+   *
+   * @param output the output
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  public VcdiffWriter(OutputStream output) throws IOException {
+    this(output, DEFAULT_WINDOW_SIZE);
+  }
+
+  /**
+   * Constructs a new VcdiffWriter.
+   *
+   * @param output the output
+   * @param windowSize the largest number of target bytes per window
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  public VcdiffWriter(OutputStream output, int windowSize) throws IOException {
+    if (windowSize <= 0)
+      throw new IllegalArgumentException("Invalid windowSize");
+    this.output = output;
+    this.windowSize = windowSize;
+    output.write(Vcdiff.MAGIC);
+    output.write(0);
+  }
+
+  /* (non-Javadoc)
+   * @see com.nothome.delta.DiffWriter#addCopy(long, int)
+   */
+  @Override
+  public void addCopy(long offset, int length) throws IOException {
+    while (length > 0) {
+      int len = (int) Math.min(length, windowSize - window.length());
+      window.addCopy(offset, len);
+      sourceStart = Math.min(sourceStart, offset);
+      sourceEnd = Math.max(sourceEnd, offset + len);
+      offset += len;
+      length -= len;
+      if (window.length() == windowSize)
+        writeWindow();
+    }
+  }
+
+  /* (non-Javadoc)
+   * @see com.nothome.delta.DiffWriter#addData(byte)
+   */
+  @Override
+  public void addData(byte b) throws IOException {
+    window.addData(b);
+    if (window.length() == windowSize)
+      writeWindow();
+  }
+
+  /* (non-Javadoc)
+   * @see com.nothome.delta.DiffWriter#addData(byte[], int, int)
+   */
+  @Override
+  public void addData(byte[] buf, int off, int len) throws IOException {
+    while (len > 0) {
+      int n = (int) Math.min(len, windowSize - window.length());
+      window.addData(buf, off, n);
+      off += n;
+      len -= n;
+      if (window.length() == windowSize)
+        writeWindow();
+    }
+  }
+
+  /**
+   * Encodes and writes the current window.
+   *
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  private void writeWindow() throws IOException {
+    if (window.length() == 0)
+      return;
+    boolean copies = sourceStart != Long.MAX_VALUE;
+    long segmentLength = copies ? sourceEnd - sourceStart : 0;
+    encoder.start(copies ? sourceStart : 0, segmentLength);
+    window.replay(encoder, 0);
+    encoder.finish();
+
+    header.reset();
+    writeInt(header, window.length());
+    header.write(0);
+    writeInt(header, encoder.data.size());
+    writeInt(header, encoder.inst.size());
+    writeInt(header, encoder.addr.size());
+    long deltaLength = header.size() + encoder.data.size() + encoder.inst.size() + encoder.addr.size();
+    ByteArrayOutputStream win = new ByteArrayOutputStream(32);
+    win.write(copies ? VCD_SOURCE : 0);
+    if (copies) {
+      writeInt(win, segmentLength);
+      writeInt(win, sourceStart);
+    }
+    writeInt(win, deltaLength);
+    win.writeTo(output);
+    header.writeTo(output);
+    encoder.data.writeTo(output);
+    encoder.inst.writeTo(output);
+    encoder.addr.writeTo(output);
+
+    window.clear();
+    sourceStart = Long.MAX_VALUE;
+    sourceEnd = 0;
+  }
+
+  /**
+   * Writes the current window and flushes the output.
+   * Each flush ends a window.
+   *
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  @Override
+  public void flush() throws IOException {
+    writeWindow();
+    output.flush();
+  }
+
+  /**
+   * Writes the last window and closes the output.
+   *
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  @Override
+  public void close() throws IOException {
+    try (OutputStream os = output) {
+      flush();
+    }
+  }
+
+  /**
+   * Encodes the commands of one window into its sections.
+   */
+  private static class Encoder implements DiffWriter {
+    /** The data section. */
+    private final ByteArrayOutputStream data = new ByteArrayOutputStream();
+    /** The instruction section. */
+    private final ByteArrayOutputStream inst = new ByteArrayOutputStream();
+    /** The address section. */
+    private final ByteArrayOutputStream addr = new ByteArrayOutputStream();
+    /** The address cache. */
+    private final Vcdiff.AddressCache cache = new Vcdiff.AddressCache();
+    /** The source offset of the segment. */
+    private long segmentStart;
+    /** The segment length. */
+    private long segmentLength;
+    /** The number of target bytes encoded. */
+    private long position;
+    /** The type of the instruction not yet written, or NOOP. */
+    private int pendingType;
+    /** The size of the pending instruction. */
+    private int pendingSize;
+    /** The mode of the pending instruction. */
+    private int pendingMode;
+
+    /**
+     * Starts a window.
+     *
+     * @param segmentStart the segment start
+     * @param segmentLength the segment length
+     */
+    void start(long segmentStart, long segmentLength) {
+      this.segmentStart = segmentStart;
+      this.segmentLength = segmentLength;
+      data.reset();
+      inst.reset();
+      addr.reset();
+      cache.reset();
+      position = 0;
+      pendingType = NOOP;
+    }
+
+    /**
+     * Writes the pending instruction.
+     */
+    void finish() {
+      if (pendingType == ADD) {
+        int code = Vcdiff.addCode(pendingSize);
+        inst.write(code);
+        if (SIZE1[code] == 0)
+          writeInt(inst, pendingSize);
+      } else if (pendingType == COPY) {
+        int code = Vcdiff.copyCode(pendingSize, pendingMode);
+        inst.write(code);
+        if (SIZE1[code] == 0)
+          writeInt(inst, pendingSize);
+      } else if (pendingType == RUN) {
+        inst.write(0);
+        writeInt(inst, pendingSize);
+      }
+      pendingType = NOOP;
+    }
+
+    /**
+     * Adds an instruction, combining it with the pending one when the code
+     * table allows.
+     *
+     * @param type the type
+     * @param size the size
+     * @param mode the mode
+     */
+    private void instruction(int type, int size, int mode) {
+      int code = -1;
+      if (pendingType == ADD && type == COPY)
+        code = Vcdiff.addCopyCode(pendingSize, size, mode);
+      else if (pendingType == COPY && type == ADD)
+        code = Vcdiff.copyAddCode(pendingSize, pendingMode, size);
+      if (code != -1) {
+        inst.write(code);
+        pendingType = NOOP;
+        return;
+      }
+      finish();
+      pendingType = type;
+      pendingSize = size;
+      pendingMode = mode;
+    }
+
+    /* (non-Javadoc)
+     * @see com.nothome.delta.DiffWriter#addCopy(long, int)
+     */
+    @Override
+    public void addCopy(long offset, int length) {
+      int mode = cache.encode(offset - segmentStart, segmentLength + position);
+      if (mode >= 2 + S_NEAR)
+        addr.write((int) cache.value());
+      else
+        writeInt(addr, cache.value());
+      instruction(COPY, length, mode);
+      position += length;
+    }
+
+    /* (non-Javadoc)
+     * @see com.nothome.delta.DiffWriter#addData(byte)
+     */
+    @Override
+    public void addData(byte b) {
+      addData(new byte[] { b }, 0, 1);
+    }
+
+    /* (non-Javadoc)
+     * @see com.nothome.delta.DiffWriter#addData(byte[], int, int)
+     */
+    @Override
+    public void addData(byte[] buf, int off, int len) {
+      int end = off + len;
+      int start = off;
+      int i = off;
+      while (i < end) {
+        int run = i + 1;
+        while (run < end && buf[run] == buf[i])
+          run++;
+        if (run - i >= MIN_RUN) {
+          if (i > start)
+            add(buf, start, i - start);
+          data.write(buf[i]);
+          instruction(RUN, run - i, 0);
+          position += run - i;
+          start = run;
+        }
+        i = run;
+      }
+      if (end > start)
+        add(buf, start, end - start);
+    }
+
+    /**
+     * Adds an ADD instruction.
+     *
+     * @param buf the buf
+     * @param off the off
+     * @param len the len
+     */
+    private void add(byte[] buf, int off, int len) {
+      data.write(buf, off, len);
+      instruction(ADD, len, 0);
+      position += len;
+    }
+
+    /* (non-Javadoc)
+     * @see com.nothome.delta.DiffWriter#flush()
+     */
+    @Override
+    public void flush() {}
+
+    /* (non-Javadoc)
+     * @see com.nothome.delta.DiffWriter#close()
+     */
+    @Override
+    public void close() {}
+  }
+}
@@ -81,6 +81,15 @@ public class CharBufferSeekableSource implements SeekableSource {
     return cur.read(charbuffer);
   }
 
+  /**
+   * Length.
+   *
+   * @return the number of characters
+   */
+  long length() {
+    return cb.limit();
+  }
+
   /* (non-Javadoc)
    * @see java.io.Closeable#close()
    */
@@ -26,14 +26,15 @@ package com.nothome.delta.text;
 
 import java.io.IOException;
 import java.nio.CharBuffer;
-import java.util.HashMap;
+
+import com.nothome.delta.LongIntHashMap;
 
 /**
  * Checksum that uses character streams.
  */
 public class Checksum {
   /** The checksums. */
-  protected HashMap<Long, Integer> checksums = new HashMap<Long, Integer>();
+  protected LongIntHashMap checksums;
   /** The Constant single_hash. */
   private static final char[] single_hash = com.nothome.delta.Checksum.getSingleHash();
 
@@ -46,6 +47,8 @@ public class Checksum {
    * @throws IOException Signals that an I/O exception has occurred.
    */
   public Checksum(Readable source, int chunkSize) throws IOException {
+    long length = source instanceof CharBufferSeekableSource ? ((CharBufferSeekableSource) source).length() : 0;
+    checksums = new LongIntHashMap(length / chunkSize);
     CharBuffer bb = CharBuffer.allocate(chunkSize * 2);
     int count = 0;
     while (true) {
@@ -126,8 +129,6 @@ public class Checksum {
    * @return the int
    */
   public int findChecksumIndex(long hashf) {
-    if (!checksums.containsKey(hashf))
-      return -1;
     return checksums.get(hashf);
   }
 
@@ -0,0 +1,134 @@
+/*
+ * BytesTest.java
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a
+ * copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL
+ * THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS
+ * IN THE SOFTWARE.
+ *
+ */
+package com.nothome.delta;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.lang.reflect.Method;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Random;
+
+import org.junit.Assume;
+import org.junit.Test;
+
+/**
+ * Tests {@link Bytes} and, when built, its Java 11 version from the
+ * multi-release jar.
+ */
+public class BytesTest {
+  /** Interface to either version. */
+  private interface Mismatch {
+    /**
+     * Mismatch.
+     *
+     * @param a the a
+     * @param aPos the a pos
+     * @param b the b
+     * @param bPos the b pos
+     * @param len the len
+     * @return the int
+     * @throws Exception the exception
+     */
+    int mismatch(ByteBuffer a, int aPos, ByteBuffer b, int bPos, int len) throws Exception;
+  }
+
+  /**
+   * Test the base version.
+   *
+   * @throws Exception the exception
+   */
+  @Test
+  public void testBase() throws Exception {
+    check(new Mismatch() {
+      @Override
+      public int mismatch(ByteBuffer a, int aPos, ByteBuffer b, int bPos, int len) {
+        return Bytes.mismatch(a, aPos, b, bPos, len);
+      }
+    });
+  }
+
+  /**
+   * Test the Java 11 version.
+   *
+   * @throws Exception the exception
+   */
+  @Test
+  public void testVersioned() throws Exception {
+    File dir = new File("target/classes/META-INF/versions/11");
+    Assume.assumeTrue(new File(dir, "com/nothome/delta/Bytes.class").exists());
+    @SuppressWarnings("resource")
+    ClassLoader loader = new URLClassLoader(new URL[] { dir.toURI().toURL() }, null);
+    final Method method = loader.loadClass("com.nothome.delta.Bytes").getDeclaredMethod("mismatch", ByteBuffer.class, int.class, ByteBuffer.class, int.class, int.class);
+    method.setAccessible(true);
+    check(new Mismatch() {
+      @Override
+      public int mismatch(ByteBuffer a, int aPos, ByteBuffer b, int bPos, int len) throws Exception {
+        return (Integer) method.invoke(null, a, aPos, b, bPos, len);
+      }
+    });
+  }
+
+  /**
+   * Compares with a byte loop for heap, direct and little-endian buffers.
+   *
+   * @param mismatch the mismatch
+   * @throws Exception the exception
+   */
+  private void check(Mismatch mismatch) throws Exception {
+    Random random = new Random(12);
+    byte[] data = new byte[4096];
+    random.nextBytes(data);
+    ByteBuffer heap = ByteBuffer.wrap(data);
+    ByteBuffer direct = ByteBuffer.allocateDirect(data.length);
+    direct.put(data).clear();
+    ByteBuffer little = ByteBuffer.wrap(data.clone()).order(ByteOrder.LITTLE_ENDIAN);
+    ByteBuffer sliced = ByteBuffer.wrap(new byte[data.length + 7], 7, data.length).slice();
+    sliced.put(data).clear();
+    ByteBuffer[] buffers = { heap, direct, little, sliced };
+    for (int i = 0; i < 2000; i++) {
+      int len = random.nextInt(3) == 0 ? random.nextInt(20) : random.nextInt(1000);
+      int aPos = random.nextInt(data.length - len);
+      int bPos = random.nextInt(4) == 0 ? random.nextInt(data.length - len) : aPos;
+      ByteBuffer a = buffers[random.nextInt(buffers.length)];
+      ByteBuffer b = buffers[random.nextInt(buffers.length)];
+      int expected = -1;
+      for (int j = 0; j < len; j++) {
+        if (data[aPos + j] != data[bPos + j]) {
+          expected = j;
+          break;
+        }
+      }
+      assertEquals(expected, mismatch.mismatch(a, aPos, b, bPos, len));
+      if (len > 0 && bPos == aPos) {
+        int at = random.nextInt(len);
+        ByteBuffer c = ByteBuffer.wrap(data.clone());
+        c.put(bPos + at, (byte) (data[bPos + at] + 1));
+        assertEquals(at, mismatch.mismatch(a, aPos, c, bPos, len));
+      }
+    }
+  }
+}
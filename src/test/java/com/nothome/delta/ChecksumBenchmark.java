@@ -0,0 +1,125 @@
+/*
+ * ChecksumBenchmark.java
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a
+ * copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL
+ * THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS
+ * IN THE SOFTWARE.
+ *
+ */
+package com.nothome.delta;
+
+import java.util.HashMap;
+import java.util.Random;
+
+/**
+ * Compares the memory use and lookup speed of {@link LongIntHashMap}
+ * against the <code>HashMap&lt;Long, Integer&gt;</code> previously used by
+ * {@link Checksum}.
+ * <p>
+ * Not run as part of the tests; run with
+ * <code>java -cp target/classes:target/test-classes com.nothome.delta.ChecksumBenchmark [entries]</code>.
+ */
+public class ChecksumBenchmark {
+  /**
+   * Used heap.
+   *
+   * @return the long
+   */
+  private static long usedHeap() {
+    Runtime rt = Runtime.getRuntime();
+    for (int i = 0; i < 3; i++)
+      System.gc();
+    return rt.totalMemory() - rt.freeMemory();
+  }
+
+  /**
+   * Generates the keys: checksums of random 16 byte chunks.
+   *
+   * @param n the n
+   * @return the long[]
+   */
+  private static long[] keys(int n) {
+    Random random = new Random(42);
+    byte[] chunk = new byte[16];
+    long[] keys = new long[n];
+    for (int i = 0; i < n; i++) {
+      random.nextBytes(chunk);
+      keys[i] = Checksum.queryChecksum(java.nio.ByteBuffer.wrap(chunk), chunk.length);
+    }
+    return keys;
+  }
+
+  /**
+   * Runs the benchmark.
+   *
+   * @param args optional number of entries
+   */
+  public static void main(String[] args) {
+    int n = args.length > 0 ? Integer.parseInt(args[0]) : 4000000;
+    long[] keys = keys(n);
+    long base = usedHeap();
+    long start = System.nanoTime();
+    HashMap<Long, Integer> boxed = new HashMap<Long, Integer>();
+    for (int i = 0; i < n; i++)
+      boxed.put(keys[i], i);
+    long boxedBuild = System.nanoTime() - start;
+    long boxedBytes = usedHeap() - base;
+    long sum = 0;
+    start = System.nanoTime();
+    for (int r = 0; r < 5; r++)
+      for (int i = 0; i < n; i++) {
+        long key = keys[i] + r;
+        if (boxed.containsKey(key))
+          sum += boxed.get(key);
+      }
+    long boxedLookup = System.nanoTime() - start;
+    boxed = null;
+
+    base = usedHeap();
+    start = System.nanoTime();
+    LongIntHashMap primitive = new LongIntHashMap(n);
+    for (int i = 0; i < n; i++)
+      primitive.put(keys[i], i);
+    long primitiveBuild = System.nanoTime() - start;
+    long primitiveBytes = usedHeap() - base;
+    start = System.nanoTime();
+    for (int r = 0; r < 5; r++)
+      for (int i = 0; i < n; i++) {
+        int v = primitive.get(keys[i] + r);
+        if (v != LongIntHashMap.NO_VALUE)
+          sum -= v;
+      }
+    long primitiveLookup = System.nanoTime() - start;
+
+    System.out.println("entries " + n + " (" + primitive.size() + " distinct), checksum " + sum);
+    report("HashMap<Long,Integer>", boxedBytes, boxedBuild, boxedLookup, 5L * n);
+    report("LongIntHashMap", primitiveBytes, primitiveBuild, primitiveLookup, 5L * n);
+  }
+
+  /**
+   * Report.
+   *
+   * @param name the name
+   * @param bytes the bytes
+   * @param build the build time in ns
+   * @param lookup the lookup time in ns
+   * @param lookups the number of lookups
+   */
+  private static void report(String name, long bytes, long build, long lookup, long lookups) {
+    System.out.printf("%-22s %8.1f MB %8.1f ms build %8.1f ns/lookup%n", name, bytes / 1e6, build / 1e6, (double) lookup / lookups);
+  }
+}
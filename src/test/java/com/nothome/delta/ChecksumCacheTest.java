@@ -0,0 +1,142 @@
+/*
+ * ChecksumCacheTest.java
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a
+ * copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL
+ * THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS
+ * IN THE SOFTWARE.
+ *
+ */
+package com.nothome.delta;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.Test;
+
+/**
+ * Tests {@link ChecksumCache}.
+ */
+public class ChecksumCacheTest {
+
+  /**
+   * Test hits, misses and eviction.
+   *
+   * @throws Exception the exception
+   */
+  @Test
+  public void testEviction() throws Exception {
+    byte[] a = new byte[16000];
+    byte[] b = new byte[16000];
+    new Random(1).nextBytes(a);
+    new Random(2).nextBytes(b);
+    long size = new Checksum(new ByteBufferSeekableSource(a), 16).estimateBytes();
+    ChecksumCache cache = new ChecksumCache(size * 2);
+    Checksum ca = cache.get("a", new ByteBufferSeekableSource(a), 16, 8, RollingHash.ADLER, null);
+    assertSame(ca, cache.get("a", new ByteBufferSeekableSource(a), 16, 8, RollingHash.ADLER, null));
+    assertEquals(1, cache.getHitCount());
+    assertEquals(1, cache.getMissCount());
+    assertEquals(size, cache.getBytes());
+    Checksum cb = cache.get("b", new ByteBufferSeekableSource(b), 16, 8, RollingHash.ADLER, null);
+    assertEquals(2, cache.size());
+    // a is used more recently than b, so b is evicted
+    cache.get("a", new ByteBufferSeekableSource(a), 16, 8, RollingHash.ADLER, null);
+    cache.get("a", new ByteBufferSeekableSource(a), 32, 8, RollingHash.ADLER, null);
+    assertEquals(1, cache.getEvictionCount());
+    assertSame(ca, cache.get("a", new ByteBufferSeekableSource(a), 16, 8, RollingHash.ADLER, null));
+    Checksum cb2 = cache.get("b", new ByteBufferSeekableSource(b), 16, 8, RollingHash.ADLER, null);
+    assertNotSame(cb, cb2);
+    assertEquals(4, cache.getMissCount());
+    assertEquals(3, cache.getHitCount());
+  }
+
+  /**
+   * Test that concurrent requests build an index once.
+   *
+   * @throws Exception the exception
+   */
+  @Test
+  public void testConcurrent() throws Exception {
+    final byte[] source = new byte[1 << 20];
+    new Random(3).nextBytes(source);
+    final ChecksumCache cache = new ChecksumCache(Long.MAX_VALUE);
+    ExecutorService executor = Executors.newFixedThreadPool(4);
+    try {
+      List<Future<Checksum>> futures = new ArrayList<Future<Checksum>>();
+      for (int i = 0; i < 8; i++) {
+        futures.add(executor.submit(new Callable<Checksum>() {
+          @Override
+          public Checksum call() throws Exception {
+            return cache.get("source", new ByteBufferSeekableSource(source), 16, 8, RollingHash.ADLER, null);
+          }
+        }));
+      }
+      Checksum first = futures.get(0).get();
+      for (Future<Checksum> future : futures)
+        assertSame(first, future.get());
+    } finally {
+      executor.shutdown();
+    }
+    assertEquals(1, cache.getMissCount());
+    assertEquals(7, cache.getHitCount());
+  }
+
+  /**
+   * Test deltas of files using the cache.
+   *
+   * @throws Exception the exception
+   */
+  @Test
+  public void testDelta() throws Exception {
+    Random random = new Random(4);
+    byte[] source = new byte[100000];
+    random.nextBytes(source);
+    byte[] target = ParallelDeltaTest.edit(source, random);
+    File sourceFile = File.createTempFile("source", ".bin");
+    File targetFile = File.createTempFile("target", ".bin");
+    try {
+      Files.write(sourceFile.toPath(), source);
+      Files.write(targetFile.toPath(), target);
+      byte[] expected = new Delta().compute(source, target);
+      ChecksumCache cache = new ChecksumCache(Long.MAX_VALUE);
+      for (int i = 0; i < 2; i++) {
+        Delta delta = new Delta();
+        delta.setChecksumCache(cache);
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        delta.compute(sourceFile, targetFile, new GDiffWriter(os));
+        assertArrayEquals(expected, os.toByteArray());
+      }
+      assertEquals(1, cache.getMissCount());
+      assertEquals(1, cache.getHitCount());
+    } finally {
+      sourceFile.delete();
+      targetFile.delete();
+    }
+  }
+}
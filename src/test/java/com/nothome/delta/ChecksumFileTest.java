@@ -0,0 +1,186 @@
+/*
+ * ChecksumFileTest.java
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a
+ * copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL
+ * THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS
+ * IN THE SOFTWARE.
+ *
+ */
+package com.nothome.delta;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests {@link ChecksumFile}.
+ */
+public class ChecksumFileTest {
+  /** The file. */
+  private File file;
+
+  /**
+   * Sets the up.
+   *
+   * @throws Exception the exception
+   */
+  @Before
+  public void setUp() throws Exception {
+    file = File.createTempFile("checksum", ".jxdi");
+  }
+
+  /**
+   * Tear down.
+   *
+   * @throws Exception the exception
+   */
+  @After
+  public void tearDown() throws Exception {
+    file.delete();
+  }
+
+  /**
+   * Test writing and reading an index.
+   *
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  @Test
+  public void testRoundTrip() throws IOException {
+    Random random = new Random(5);
+    byte[] source = new byte[200000];
+    random.nextBytes(source);
+    // repeated blocks make chains
+    for (int i = 0; i < 100; i++)
+      System.arraycopy(source, 0, source, 1000 + i * 64, 64);
+    byte[] target = ParallelDeltaTest.edit(source, random);
+    Checksum checksum = new Checksum(new ByteBufferSeekableSource(source), 16, 4);
+    ChecksumFile.write(checksum, new ByteBufferSeekableSource(source), file);
+    assertEquals(ChecksumFile.HEADER_SIZE + checksum.checksums().capacity() * 12L + checksum.getChunkCount() * 4L, file.length());
+
+    byte[] digest = ChecksumFile.digest(new ByteBufferSeekableSource(source));
+    Checksum loaded = ChecksumFile.read(file, source.length, digest);
+    assertEquals(16, loaded.getChunkSize());
+    assertEquals(checksum.getChunkCount(), loaded.getChunkCount());
+    ChecksumTest.assertSameIndex(source, 16, checksum, loaded);
+
+    Delta delta = new Delta();
+    delta.setChunkSize(16);
+    delta.setMaxCandidates(4);
+    byte[] expected = delta.compute(source, target);
+    ByteArrayOutputStream os = new ByteArrayOutputStream();
+    delta.compute(loaded, new ByteBufferSeekableSource(source), new ByteArrayInputStream(target), new GDiffWriter(os));
+    assertArrayEquals(expected, os.toByteArray());
+  }
+
+  /**
+   * Test that an index is rejected for another source.
+   *
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  @Test
+  public void testMismatch() throws IOException {
+    byte[] source = new byte[1000];
+    new Random(6).nextBytes(source);
+    ChecksumFile.write(new Checksum(new ByteBufferSeekableSource(source), 8), new ByteBufferSeekableSource(source), file);
+    try {
+      ChecksumFile.read(file, source.length + 1, null);
+      fail("length not checked");
+    } catch (IOException e) {
+      // expected
+    }
+    source[500]++;
+    try {
+      ChecksumFile.read(file, source.length, ChecksumFile.digest(new ByteBufferSeekableSource(source)));
+      fail("digest not checked");
+    } catch (IOException e) {
+      // expected
+    }
+    Delta delta = new Delta();
+    try {
+      delta.compute(ChecksumFile.read(file), new ByteBufferSeekableSource(source), new ByteArrayInputStream(source), new GDiffWriter(new ByteArrayOutputStream()));
+      fail("chunk size not checked");
+    } catch (IllegalArgumentException e) {
+      // expected
+    }
+  }
+
+  /**
+   * Test that an index with a damaged table is rejected instead of making
+   * lookups loop.
+   *
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  @Test
+  public void testCorrupt() throws IOException {
+    byte[] source = new byte[1000];
+    new Random(7).nextBytes(source);
+    ChecksumFile.write(new Checksum(new ByteBufferSeekableSource(source), 8), new ByteBufferSeekableSource(source), file);
+    byte[] index = Files.readAllBytes(file.toPath());
+    ByteBuffer bb = ByteBuffer.wrap(index);
+    int chunks = bb.getInt(56);
+    int capacity = bb.getInt(60);
+    int values = ChecksumFile.HEADER_SIZE + capacity * 8;
+    int next = values + capacity * 4;
+    int empty = values;
+    while (bb.getInt(empty) != LongIntHashMap.NO_VALUE)
+      empty += 4;
+    int full = values;
+    while (bb.getInt(full) == LongIntHashMap.NO_VALUE)
+      full += 4;
+
+    ByteBuffer damaged = ByteBuffer.wrap(index.clone());
+    for (int i = 0; i < capacity; i++)
+      damaged.putInt(values + i * 4, 0);
+    damaged.putInt(64, capacity - 1);
+    assertCorrupt(damaged, "no empty slot");
+    assertCorrupt(ByteBuffer.wrap(index.clone()).putInt(empty, 0), "size not checked");
+    assertCorrupt(ByteBuffer.wrap(index.clone()).putInt(full, chunks), "value not checked");
+    assertCorrupt(ByteBuffer.wrap(index.clone()).putInt(next + 4, 1), "chain not checked");
+    Files.write(file.toPath(), index);
+    assertEquals(chunks, ChecksumFile.read(file).getChunkCount());
+  }
+
+  /**
+   * Asserts that an index is rejected.
+   *
+   * @param index the index bytes
+   * @param message the message if it is read
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  private void assertCorrupt(ByteBuffer index, String message) throws IOException {
+    Files.write(file.toPath(), index.array());
+    try {
+      ChecksumFile.read(file);
+      fail(message);
+    } catch (IOException e) {
+      assertTrue(e.getMessage(), e.getMessage().startsWith("corrupt index file"));
+    }
+  }
+}
@@ -26,9 +26,16 @@
 package com.nothome.delta;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
 
+import java.io.File;
 import java.io.IOException;
+import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
 
 import org.junit.Test;
 
@@ -51,6 +58,170 @@ public class ChecksumTest {
     testCheck(10);
   }
 
+  /**
+   * Test that chunks sharing a checksum are chained, newest first, up to the limit.
+   *
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  @Test
+  public void testCandidates() throws IOException {
+    byte[] bytes = "0123abcd0123efgh0123".getBytes("ASCII");
+    long hash = Checksum.queryChecksum(ByteBuffer.wrap(bytes), 4);
+    Checksum checksum = new Checksum(new ByteBufferSeekableSource(bytes), 4);
+    assertEquals(4, checksum.findChecksumIndex(hash));
+    assertEquals(2, checksum.nextChecksumIndex(4));
+    assertEquals(0, checksum.nextChecksumIndex(2));
+    assertEquals(-1, checksum.nextChecksumIndex(0));
+    checksum = new Checksum(new ByteBufferSeekableSource(bytes), 4, 2);
+    assertEquals(4, checksum.findChecksumIndex(hash));
+    assertEquals(2, checksum.nextChecksumIndex(4));
+    assertEquals(-1, checksum.nextChecksumIndex(2));
+  }
+
+  /**
+   * Test that building on several threads gives the same index as one thread.
+   *
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  @Test
+  public void testParallel() throws IOException {
+    byte[] bytes = new byte[1 << 20];
+    Random random = new Random(2);
+    // a small alphabet, so that chunks share checksums
+    for (int i = 0; i < bytes.length; i++)
+      bytes[i] = (byte) random.nextInt(2);
+    ForkJoinPool pool = new ForkJoinPool(4);
+    Checksum sequential = new Checksum(new ByteBufferSeekableSource(bytes), 8, 3);
+    Checksum parallel = new Checksum(new ByteBufferSeekableSource(bytes), 8, 3, pool);
+    assertSameIndex(bytes, 8, sequential, parallel);
+    File file = File.createTempFile("checksum", ".bin");
+    try {
+      Files.write(file.toPath(), bytes);
+      try (RandomAccessFileSeekableSource source = new RandomAccessFileSeekableSource(new RandomAccessFile(file, "r"))) {
+        assertSameIndex(bytes, 8, sequential, new Checksum(source, 8, 3, pool));
+      }
+    } finally {
+      file.delete();
+    }
+  }
+
+  /**
+   * Test that a sampled index keeps at most its ceiling of anchor chunks,
+   * whether or not the source length is known.
+   *
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  @Test
+  public void testSampled() throws IOException {
+    byte[] bytes = new byte[1 << 20];
+    new Random(17).nextBytes(bytes);
+    SeekableSource unknownLength = new ByteBufferSeekableSource(bytes) {
+      @Override
+      public long length() {
+        return -1;
+      }
+    };
+    for (SeekableSource source : new SeekableSource[] { new ByteBufferSeekableSource(bytes), unknownLength }) {
+      Checksum checksum = Checksum.sampled(source, 16, 1000, null, RollingHash.BUZHASH);
+      assertTrue(checksum.getSampling() > 1);
+      assertTrue(checksum.getChunkCount() <= 1000);
+      int found = 0;
+      ByteBuffer bb = ByteBuffer.wrap(bytes);
+      for (int i = 0; i + 16 <= bytes.length; i += 16) {
+        bb.position(i);
+        long hash = RollingHash.BUZHASH.hash(bb, 16);
+        int index = checksum.findChecksumIndex(hash);
+        if (index != -1) {
+          assertTrue(checksum.isAnchor(hash));
+          assertEquals(i, checksum.getOffset(index));
+          assertEquals(-1, checksum.nextChecksumIndex(index));
+          found++;
+        }
+      }
+      assertTrue(found <= 1000);
+      // about half the ceiling is left after the last doubling
+      assertTrue(found > 250);
+    }
+  }
+
+  /**
+   * Test that content-defined anchors keep their bounds and are found
+   * again after an insertion.
+   *
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  @Test
+  public void testContentDefined() throws IOException {
+    byte[] bytes = new byte[1 << 18];
+    new Random(18).nextBytes(bytes);
+    // a run without content-defined anchors
+    Arrays.fill(bytes, 1000, 3000, (byte) 0);
+    Checksum checksum = Checksum.contentDefined(new ByteBufferSeekableSource(bytes), 16, 16, 64, 256, 1, RollingHash.BUZHASH);
+    assertTrue(checksum.isContentDefined());
+    int anchors = checksum.getChunkCount();
+    assertTrue(anchors > bytes.length / 128 && anchors < bytes.length / 32);
+    ByteBuffer bb = ByteBuffer.wrap(bytes);
+    long last = -1;
+    for (int i = 0; i < anchors; i++) {
+      long offset = checksum.getOffset(i);
+      if (last != -1)
+        assertTrue(offset - last >= 16 && offset - last <= 256);
+      bb.position((int) offset);
+      // anchors sharing a checksum, as in the run, map to the last of them
+      assertTrue(checksum.findChecksumIndex(RollingHash.BUZHASH.hash(bb, 16)) >= i);
+      last = offset;
+    }
+    // anchors after an insertion are at the same content
+    byte[] inserted = new byte[bytes.length + 5];
+    System.arraycopy(bytes, 0, inserted, 0, 5000);
+    System.arraycopy(bytes, 5000, inserted, 5005, bytes.length - 5000);
+    Checksum shifted = Checksum.contentDefined(new ByteBufferSeekableSource(inserted), 16, 16, 64, 256, 1, RollingHash.BUZHASH);
+    int same = 0;
+    for (int i = 0; i < shifted.getChunkCount(); i++) {
+      long offset = shifted.getOffset(i);
+      if (offset > 6000 && Arrays.binarySearch(offsets(checksum), offset - 5) >= 0)
+        same++;
+    }
+    assertTrue(same > (anchors - 100) * 9 / 10);
+  }
+
+  /**
+   * Returns the anchor offsets.
+   *
+   * @param checksum the checksum
+   * @return the long[]
+   */
+  private static long[] offsets(Checksum checksum) {
+    long[] offsets = new long[checksum.getChunkCount()];
+    for (int i = 0; i < offsets.length; i++)
+      offsets[i] = checksum.getOffset(i);
+    return offsets;
+  }
+
+  /**
+   * Asserts the chains of every chunk are the same.
+   *
+   * @param bytes the bytes
+   * @param chunk the chunk
+   * @param expected the expected
+   * @param actual the actual
+   */
+  static void assertSameIndex(byte[] bytes, int chunk, Checksum expected, Checksum actual) {
+    ByteBuffer bb = ByteBuffer.wrap(bytes);
+    for (int i = 0; i + chunk <= bytes.length; i += chunk) {
+      bb.position(i);
+      long hash = Checksum.queryChecksum(bb, chunk);
+      int e = expected.findChecksumIndex(hash);
+      int a = actual.findChecksumIndex(hash);
+      assertEquals(e, a);
+      while (e != -1) {
+        e = expected.nextChecksumIndex(e);
+        a = actual.nextChecksumIndex(a);
+        assertEquals(e, a);
+      }
+    }
+  }
+
   /**
    * Test check.
    *
@@ -0,0 +1,199 @@
+/*
+ * CompressedGDiffTest.java
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a
+ * copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL
+ * THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS
+ * IN THE SOFTWARE.
+ *
+ */
+package com.nothome.delta;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Tests {@link CompressedGDiffWriter} with {@link GDiffPatcher}.
+ */
+public class CompressedGDiffTest {
+  /**
+   * Computes a compressed delta.
+   *
+   * @param source the source
+   * @param target the target
+   * @return the byte[]
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  private static byte[] compressed(byte[] source, byte[] target) throws IOException {
+    ByteArrayOutputStream os = new ByteArrayOutputStream();
+    new Delta().compute(source, new ByteArrayInputStream(target), new CompressedGDiffWriter(os));
+    return os.toByteArray();
+  }
+
+  /**
+   * Test round trips of the resource files, which compress better than plain GDIFF.
+   *
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  @Test
+  public void testResources() throws IOException {
+    for (String[] pair : DeltaPatchTest.PAIRS) {
+      byte[] source = DeltaPatchTest.resource(pair[0]);
+      byte[] target = DeltaPatchTest.resource(pair[1]);
+      byte[] patch = compressed(source, target);
+      assertArrayEquals(pair[1], target, new GDiffPatcher().patch(source, patch));
+    }
+    byte[] source = DeltaPatchTest.resource("lorem-long.txt");
+    byte[] target = DeltaPatchTest.resource("lorem-long2.txt");
+    byte[] plain = new Delta().compute(source, target);
+    byte[] patch = compressed(source, target);
+    assertTrue(patch.length + " " + plain.length, patch.length < plain.length / 2);
+  }
+
+  /**
+   * Test a patch of many frames, read through the stream and channel paths.
+   *
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  @Test
+  public void testFrames() throws IOException {
+    Random random = new Random(15);
+    byte[] source = new byte[3 * CompressedGDiffWriter.FRAME_SIZE];
+    for (int i = 0; i < source.length; i++)
+      source[i] = (byte) ('a' + random.nextInt(8));
+    byte[] target = ParallelDeltaTest.edit(source, random);
+    // a literal run longer than a frame
+    byte[] literal = new byte[CompressedGDiffWriter.FRAME_SIZE * 2];
+    random.nextBytes(literal);
+    byte[] joined = Arrays.copyOf(target, target.length + literal.length);
+    System.arraycopy(literal, 0, joined, target.length, literal.length);
+    byte[] patch = compressed(source, joined);
+    assertArrayEquals(joined, new GDiffPatcher().patch(source, patch));
+
+    File sourceFile = File.createTempFile("source", ".bin");
+    File patchFile = File.createTempFile("patch", ".gdiffz");
+    File outputFile = File.createTempFile("output", ".bin");
+    try {
+      Files.write(sourceFile.toPath(), source);
+      Files.write(patchFile.toPath(), patch);
+      new GDiffPatcher().patch(sourceFile, patchFile, outputFile);
+      assertArrayEquals(joined, Files.readAllBytes(outputFile.toPath()));
+    } finally {
+      sourceFile.delete();
+      patchFile.delete();
+      outputFile.delete();
+    }
+  }
+
+  /**
+   * Test that flushing and closing again after close do nothing, as the
+   * command line does after compute has closed the output.
+   *
+   * @throws Exception the exception
+   */
+  @Test
+  public void testCloseTwice() throws Exception {
+    byte[] source = DeltaPatchTest.resource("lorem-long.txt");
+    byte[] target = DeltaPatchTest.resource("lorem-long2.txt");
+    ByteArrayOutputStream os = new ByteArrayOutputStream();
+    CompressedGDiffWriter output = new CompressedGDiffWriter(os);
+    new Delta().compute(source, new ByteArrayInputStream(target), output);
+    byte[] patch = os.toByteArray();
+    output.flush();
+    output.close();
+    assertArrayEquals(patch, os.toByteArray());
+    assertArrayEquals(target, new GDiffPatcher().patch(source, patch));
+
+    File sourceFile = File.createTempFile("source", ".bin");
+    File targetFile = File.createTempFile("target", ".bin");
+    File patchFile = File.createTempFile("patch", ".gdiffz");
+    try {
+      Files.write(sourceFile.toPath(), source);
+      Files.write(targetFile.toPath(), target);
+      Delta.main(new String[] { "-z", sourceFile.getPath(), targetFile.getPath(), patchFile.getPath() });
+      assertArrayEquals(target, new GDiffPatcher().patch(source, Files.readAllBytes(patchFile.toPath())));
+    } finally {
+      sourceFile.delete();
+      targetFile.delete();
+      patchFile.delete();
+    }
+  }
+
+  /**
+   * Test expanding a single byte at a time.
+   *
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  @Test
+  public void testSingleBytes() throws IOException {
+    byte[] source = DeltaPatchTest.resource("obj1.bin");
+    byte[] target = DeltaPatchTest.resource("obj2.bin");
+    byte[] patch = compressed(source, target);
+    InputStream is = new CompressedGDiffInputStream(new ByteArrayInputStream(patch, 5, patch.length - 5));
+    ByteArrayOutputStream os = new ByteArrayOutputStream();
+    for (int b; (b = is.read()) != -1;)
+      os.write(b);
+    is.close();
+    assertArrayEquals(target, new GDiffPatcher().patch(source, os.toByteArray()));
+  }
+
+  /**
+   * Test rejecting truncated and corrupted patches.
+   *
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  @Test
+  public void testCorrupt() throws IOException {
+    byte[] source = DeltaPatchTest.resource("lorem-long.txt");
+    byte[] patch = compressed(source, DeltaPatchTest.resource("lorem-long2.txt"));
+    assertRejected(source, Arrays.copyOf(patch, patch.length - 10));
+    byte[] bad = patch.clone();
+    // frame lengths
+    bad[5] = 0x7f;
+    assertRejected(source, bad);
+    bad = patch.clone();
+    bad[20] ^= 0x55;
+    assertRejected(source, bad);
+  }
+
+  /**
+   * Asserts that a patch is rejected.
+   *
+   * @param source the source
+   * @param patch the patch
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  private static void assertRejected(byte[] source, byte[] patch) throws IOException {
+    try {
+      new GDiffPatcher().patch(source, patch);
+      fail();
+    } catch (PatchException | EOFException | IllegalStateException e) {
+    }
+  }
+}
@@ -130,13 +130,63 @@ public class DeltaDiffPatchBoundariesTest {
   }
 
   /**
-   * Run.
+   * Test a match extended backwards into preceding data.
+   *
+   * @throws Exception the exception
+   */
+  @Test
+  public void testBackward() throws Exception {
+    String source = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdef";
+    String target = "#IJKLMNOPQRSTUVWXYZabcdef";
+    assertTrue(run(source, target, true) < run(source, target, false));
+  }
+
+  /**
+   * Test backward extension stops at the start of the source.
+   *
+   * @throws Exception the exception
+   */
+  @Test
+  public void testBackwardSourceStart() throws Exception {
+    String source = "0123456789abcdef0123456789ABCDEF";
+    String target = "xyz0123456789abcdef0123456789ABCDEF";
+    run(source, target);
+  }
+
+  /**
+   * Test backward extension over data preceded by a copy.
+   *
+   * @throws Exception the exception
+   */
+  @Test
+  public void testBackwardAfterCopy() throws Exception {
+    String source = "0123456789abcdef!ghijklmnopqrstuvwxyz0123456789ABCDEF";
+    String target = "0123456789abcdef?ghijklmnopqrstuvwxyz0123456789ABCDEF";
+    assertTrue(run(source, target, true) < run(source, target, false));
+  }
+
+  /**
+   * Run with and without backward matching.
    *
    * @param string1 the string1
    * @param string2 the string2
    * @throws Exception the exception
    */
   private void run(String string1, String string2) throws Exception {
+    run(string1, string2, false);
+    run(string1, string2, true);
+  }
+
+  /**
+   * Run.
+   *
+   * @param string1 the string1
+   * @param string2 the string2
+   * @param backward use backward matching
+   * @return the patch length
+   * @throws Exception the exception
+   */
+  private long run(String string1, String string2, boolean backward) throws Exception {
     File test1File = new File("test1.txt");
     File test2File = new File("test2.txt");
     OutputStream os = new FileOutputStream(test1File);
@@ -150,6 +200,7 @@ public class DeltaDiffPatchBoundariesTest {
     try {
       DiffWriter output = new GDiffWriter(new DataOutputStream(new BufferedOutputStream(new FileOutputStream(deltaFile))));
       Delta d = new Delta();
+      d.setBackwardMatching(backward);
       d.compute(test1File, test2File, output);
       assertTrue(deltaFile.exists());
       System.out.println(fmt(DeltaPatchTest.read(deltaFile)));
@@ -163,6 +214,7 @@ public class DeltaDiffPatchBoundariesTest {
       is.close();
       String got = new String(buf);
       assertEquals(string2, got);
+      return deltaFile.length();
     } finally {
       test1File.delete();
       test2File.delete();
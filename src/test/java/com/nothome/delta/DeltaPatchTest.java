@@ -25,6 +25,7 @@
  */
 package com.nothome.delta;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
 
@@ -36,6 +37,9 @@ import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.net.URL;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Random;
 
 import org.junit.After;
 import org.junit.Before;
@@ -45,12 +49,24 @@ import org.junit.Test;
  * Tests {@link Delta} and {@link GDiffPatcher}.
  */
 public class DeltaPatchTest {
+  /** The resource pairs of a source and a target. */
+  static final String[][] PAIRS = {
+    { "lorem.txt", "lorem2.txt" },
+    { "lorem-long.txt", "lorem-long2.txt" },
+    { "lorem-long2.txt", "lorem-long3.txt" },
+    { "ver1.txt", "ver2.txt" },
+    { "ver3.txt", "ver4.txt" },
+    { "obj1.bin", "obj2.bin" },
+    { "min1.bin", "min2.bin" },
+  };
   /** The test1 file. */
   private File test1File;
   /** The test2 file. */
   private File test2File;
   /** The chunk size. */
   private int chunkSize;
+  /** Whether source files are memory-mapped. */
+  private boolean memoryMapped;
 
   /**
    * Read.
@@ -75,6 +91,18 @@ public class DeltaPatchTest {
     }
   }
 
+  /**
+   * Reads a test resource.
+   *
+   * @param name the name
+   * @return the byte[]
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  static byte[] resource(String name) throws IOException {
+    URL url = DeltaPatchTest.class.getClassLoader().getResource(name);
+    return Files.readAllBytes(new File(url.getPath()).toPath());
+  }
+
   /**
    * Sets the up.
    *
@@ -224,6 +252,204 @@ public class DeltaPatchTest {
     doTest();
   }
 
+  /**
+   * Test with memory-mapped sources.
+   *
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  @Test
+  public void testMapped() throws IOException {
+    memoryMapped = true;
+    use("lorem-long.txt", "lorem-long3.txt");
+    doTest();
+    use("obj1.bin", "obj2.bin");
+    doTest();
+  }
+
+  /**
+   * Test patching files with copies and data larger than the patcher buffers,
+   * using channels and using a mapped source.
+   *
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  @Test
+  public void testLargeFiles() throws IOException {
+    Random random = new Random(11);
+    byte[] s = new byte[3 << 20];
+    random.nextBytes(s);
+    ByteArrayOutputStream target = new ByteArrayOutputStream();
+    target.write(s, 1 << 20, 2 << 20);
+    byte[] data = new byte[(3 << 20) / 2];
+    random.nextBytes(data);
+    target.write(data);
+    for (int i = 0; i < 1000; i++)
+      target.write(s, random.nextInt(s.length - 10000), random.nextInt(10000));
+    byte[] t = target.toByteArray();
+    File sourceFile = File.createTempFile("source", ".bin");
+    File patchFile = File.createTempFile("patch", ".gdiff");
+    File outputFile = File.createTempFile("output", ".bin");
+    try {
+      try (FileOutputStream os = new FileOutputStream(sourceFile)) {
+        os.write(s);
+      }
+      try (FileOutputStream os = new FileOutputStream(patchFile)) {
+        os.write(new Delta().compute(s, t));
+      }
+      GDiffPatcher patcher = new GDiffPatcher();
+      patcher.patch(sourceFile, patchFile, outputFile);
+      assertArrayEquals(t, Files.readAllBytes(outputFile.toPath()));
+      patcher.setMemoryMapped(true);
+      patcher.patch(sourceFile, patchFile, outputFile);
+      assertArrayEquals(t, Files.readAllBytes(outputFile.toPath()));
+    } finally {
+      sourceFile.delete();
+      patchFile.delete();
+      outputFile.delete();
+    }
+  }
+
+  /**
+   * Test that the longest of several source chunks sharing a checksum is copied.
+   *
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  @Test
+  public void testRepeatedBlocks() throws IOException {
+    Random random = new Random(7);
+    byte[] block = new byte[16];
+    byte[] tail1 = new byte[48];
+    byte[] tail2 = new byte[48];
+    random.nextBytes(block);
+    random.nextBytes(tail1);
+    random.nextBytes(tail2);
+    ByteArrayOutputStream source = new ByteArrayOutputStream();
+    source.write(block);
+    source.write(tail1);
+    source.write(block);
+    source.write(tail2);
+    ByteArrayOutputStream target = new ByteArrayOutputStream();
+    target.write(block);
+    target.write(tail1);
+    byte[] s = source.toByteArray();
+    byte[] t = target.toByteArray();
+    Delta single = new Delta();
+    single.setMaxCandidates(1);
+    byte[] singlePatch = single.compute(s, t);
+    byte[] patch = new Delta().compute(s, t);
+    assertTrue(patch.length < singlePatch.length);
+    GDiffPatcher patcher = new GDiffPatcher();
+    assertArrayEquals(t, patcher.patch(s, patch));
+    assertArrayEquals(t, patcher.patch(s, singlePatch));
+  }
+
+  /**
+   * Test choosing the chunk size from the source length and memory budget.
+   */
+  @Test
+  public void testChooseChunkSize() {
+    assertEquals(Delta.DEFAULT_CHUNK_SIZE, Delta.chooseChunkSize(0, 1 << 10));
+    assertEquals(Delta.DEFAULT_CHUNK_SIZE, Delta.chooseChunkSize(1 << 20, Delta.DEFAULT_INDEX_BUDGET));
+    long large = 8L << 30;
+    int size = Delta.chooseChunkSize(large, Delta.DEFAULT_INDEX_BUDGET);
+    assertTrue(Checksum.estimateBytes(large, size) <= Delta.DEFAULT_INDEX_BUDGET);
+    assertTrue(Checksum.estimateBytes(large, size / 2) > Delta.DEFAULT_INDEX_BUDGET);
+    assertEquals(Delta.MAX_ADAPTIVE_CHUNK_SIZE, Delta.chooseChunkSize(Long.MAX_VALUE / 2, 1));
+  }
+
+  /**
+   * Test a delta with a chunk size chosen for a small budget, and that the
+   * chunk size set is kept.
+   *
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  @Test
+  public void testAdaptiveChunkSize() throws IOException {
+    Random random = new Random(16);
+    byte[] s = new byte[1 << 20];
+    random.nextBytes(s);
+    byte[] t = ParallelDeltaTest.edit(s, random);
+    Delta delta = new Delta();
+    delta.setAdaptiveChunkSize(true);
+    delta.setIndexBudget(Checksum.estimateBytes(s.length, 64));
+    byte[] patch = delta.compute(s, t);
+    assertEquals(64, delta.getChunkSize());
+    assertArrayEquals(t, new GDiffPatcher().patch(s, patch));
+    delta.setIndexBudget(Delta.DEFAULT_INDEX_BUDGET);
+    delta.compute(s, t);
+    assertEquals(Delta.DEFAULT_CHUNK_SIZE, delta.getChunkSize());
+    // the size set is used again once the size is no longer chosen
+    delta.setChunkSize(32);
+    delta.setIndexBudget(Checksum.estimateBytes(s.length, 64));
+    delta.compute(s, t);
+    assertEquals(64, delta.getChunkSize());
+    delta.setAdaptiveChunkSize(false);
+    patch = delta.compute(s, t);
+    assertEquals(32, delta.getChunkSize());
+    Delta fixed = new Delta();
+    fixed.setChunkSize(32);
+    assertArrayEquals(fixed.compute(s, t), patch);
+  }
+
+  /**
+   * Test a delta against a sampled source index, which copies most of the
+   * target although it indexes one chunk in 64.
+   *
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  @Test
+  public void testSampledIndex() throws IOException {
+    Random random = new Random(17);
+    byte[] s = new byte[4 << 20];
+    random.nextBytes(s);
+    byte[] t = ParallelDeltaTest.edit(s, random);
+    byte[] full = new Delta().compute(s, t);
+    Delta delta = new Delta();
+    delta.setMaxIndexEntries(8192);
+    byte[] patch = delta.compute(s, t);
+    assertArrayEquals(t, new GDiffPatcher().patch(s, patch));
+    // segments shorter than the distance between anchors may be missed
+    assertTrue(patch.length > full.length);
+    assertTrue(patch.length < t.length / 8);
+    // the ceiling bounds the index, so the chunk size set is kept
+    delta.setAdaptiveChunkSize(true);
+    delta.setIndexBudget(Checksum.estimateBytes(s.length, 64));
+    assertArrayEquals(patch, delta.compute(s, t));
+    assertEquals(Delta.DEFAULT_CHUNK_SIZE, delta.getChunkSize());
+  }
+
+  /**
+   * Test content-defined chunking on a target with many small insertions,
+   * which defeat chunks at fixed offsets of a similar index size.
+   *
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  @Test
+  public void testContentDefinedChunking() throws IOException {
+    Random random = new Random(18);
+    byte[] s = new byte[1 << 20];
+    random.nextBytes(s);
+    // a run, where anchors are placed at the greatest distance
+    Arrays.fill(s, 1000, 100000, (byte) 0);
+    ByteArrayOutputStream target = new ByteArrayOutputStream();
+    for (int pos = 0; pos < s.length;) {
+      int len = Math.min(s.length - pos, 1 + random.nextInt(1000));
+      target.write(s, pos, len);
+      pos += len;
+      byte[] insert = new byte[1 + random.nextInt(8)];
+      random.nextBytes(insert);
+      target.write(insert);
+    }
+    byte[] t = target.toByteArray();
+    Delta fixed = new Delta();
+    fixed.setChunkSize(64);
+    byte[] fixedPatch = fixed.compute(s, t);
+    Delta delta = new Delta();
+    delta.setContentDefinedChunking(16, 64, 256);
+    byte[] patch = delta.compute(s, t);
+    assertArrayEquals(t, new GDiffPatcher().patch(s, patch));
+    assertTrue(patch.length + " " + fixedPatch.length, patch.length < fixedPatch.length / 2);
+  }
+
   /**
    * Do test.
    *
@@ -235,12 +461,14 @@ public class DeltaPatchTest {
     DiffWriter output = new GDiffWriter(new DataOutputStream(new BufferedOutputStream(new FileOutputStream(delta))));
     Delta d = new Delta();
     d.setChunkSize(chunkSize);
+    d.setMemoryMapped(memoryMapped);
     d.compute(test1File, test2File, output);
     assertTrue(delta.exists());
     System.out.println("delta length " + delta.length() + " for " + test1File + " " + test2File);
     System.out.println(toString(read(delta).toByteArray()));
     System.out.println("end patch");
     GDiffPatcher diffPatcher = new GDiffPatcher();
+    diffPatcher.setMemoryMapped(memoryMapped);
     diffPatcher.patch(test1File, delta, patchedFile);
     assertTrue(patchedFile.exists());
     assertEquals("file length", test2File.length(), patchedFile.length());
@@ -1,9 +1,13 @@
 package com.nothome.delta;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
 
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Random;
 
 import org.junit.Test;
 
@@ -32,4 +36,80 @@ public class GDiffWriterTest {
     assertEquals((byte) 0, ba[ba.length - 1]);
     assertEquals(5 + /*D*/1 + 2 + /*C*/4 + /*D*/1 + 3 + /*EOF*/1, os.toByteArray().length);
   }
+
+  /**
+   * Test that bulk data produces the same output as single bytes.
+   *
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  @Test
+  public void testBulk() throws IOException {
+    byte[] data = new byte[100000];
+    new Random(3).nextBytes(data);
+    int[] cuts = { 0, 10, 300, 70000, data.length };
+    ByteArrayOutputStream single = new ByteArrayOutputStream();
+    ByteArrayOutputStream bulk = new ByteArrayOutputStream();
+    ByteArrayOutputStream direct = new ByteArrayOutputStream();
+    GDiffWriter w1 = new GDiffWriter(single);
+    GDiffWriter w2 = new GDiffWriter(bulk);
+    GDiffWriter w3 = new GDiffWriter(direct);
+    for (int c = 1; c < cuts.length; c++) {
+      int off = cuts[c - 1];
+      int len = cuts[c] - off;
+      for (int i = off; i < off + len; i++)
+        w1.addData(data[i]);
+      w2.addData(data, off, len);
+      ByteBuffer bb = ByteBuffer.allocateDirect(len);
+      bb.put(data, off, len).flip();
+      w3.addData(bb);
+      assertEquals(0, bb.remaining());
+      w1.addCopy(1L << 32, c);
+      w2.addCopy(1L << 32, c);
+      w3.addCopy(1L << 32, c);
+    }
+    w1.close();
+    w2.close();
+    w3.close();
+    assertArrayEquals(single.toByteArray(), bulk.toByteArray());
+    assertArrayEquals(single.toByteArray(), direct.toByteArray());
+  }
+
+  /**
+   * Test that copies longer than a GDIFF copy are split.
+   *
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  @Test
+  public void testLongCopy() throws IOException {
+    ByteArrayOutputStream os = new ByteArrayOutputStream();
+    GDiffWriter w = new GDiffWriter(os);
+    long length = 5L << 30;
+    w.addCopy(10, length);
+    w.addCopy(0, 0L);
+    w.close();
+    ByteBuffer bb = ByteBuffer.wrap(os.toByteArray());
+    bb.position(5);
+    long offset = 10;
+    long copied = 0;
+    while (true) {
+      int command = bb.get() & 0xff;
+      if (command == 0)
+        break;
+      long o;
+      if (command == GDiffWriter.COPY_USHORT_INT) {
+        o = bb.getShort() & 0xffff;
+      } else if (command == GDiffWriter.COPY_INT_INT) {
+        o = bb.getInt();
+      } else {
+        assertEquals(GDiffWriter.COPY_LONG_INT, command);
+        o = bb.getLong();
+      }
+      int len = bb.getInt();
+      assertEquals(offset + copied, o);
+      assertTrue(len > 0);
+      copied += len;
+    }
+    assertEquals(length, copied);
+    assertEquals(0, bb.remaining());
+  }
 }
@@ -0,0 +1,232 @@
+/*
+ * InPlacePatchTest.java
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a
+ * copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL
+ * THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS
+ * IN THE SOFTWARE.
+ *
+ */
+package com.nothome.delta;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests {@link GDiffPatcher#patchInPlace(File, File)}.
+ */
+public class InPlacePatchTest {
+  /** The file patched. */
+  private File file;
+  /** The patch file. */
+  private File patchFile;
+  /** The directory of scratch files. */
+  private File directory;
+
+  /**
+   * Sets the up.
+   *
+   * @throws Exception the exception
+   */
+  @Before
+  public void setUp() throws Exception {
+    file = File.createTempFile("file", ".bin");
+    patchFile = File.createTempFile("patch", ".gdiff");
+    directory = Files.createTempDirectory("scratch").toFile();
+  }
+
+  /**
+   * Tear down.
+   *
+   * @throws Exception the exception
+   */
+  @After
+  public void tearDown() throws Exception {
+    file.delete();
+    patchFile.delete();
+    assertEquals("scratch files left", 0, directory.listFiles().length);
+    directory.delete();
+  }
+
+  /**
+   * Patches the source in place and checks the output.
+   *
+   * @param source the source
+   * @param patch the patch
+   * @param target the target
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  private void patch(byte[] source, byte[] patch, byte[] target) throws IOException {
+    Files.write(file.toPath(), source);
+    Files.write(patchFile.toPath(), patch);
+    new GDiffPatcher().patchInPlace(file, patchFile);
+    assertArrayEquals(target, Files.readAllBytes(file.toPath()));
+  }
+
+  /**
+   * Plans the patch in place.
+   *
+   * @param patch the patch
+   * @return the plan
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  private InPlacePatch plan(byte[] patch) throws IOException {
+    Files.write(patchFile.toPath(), patch);
+    try (FileChannel channel = FileChannel.open(patchFile.toPath(), StandardOpenOption.READ)) {
+      channel.position(5);
+      return new InPlacePatch(GDiffPatcher.scan(channel, new GDiffPatcher.Ops()));
+    }
+  }
+
+  /**
+   * Test the resource files, both ways.
+   *
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  @Test
+  public void testResources() throws IOException {
+    for (String[] pair : DeltaPatchTest.PAIRS) {
+      byte[] s = DeltaPatchTest.resource(pair[0]);
+      byte[] t = DeltaPatchTest.resource(pair[1]);
+      patch(s, new Delta().compute(s, t), t);
+      patch(t, new Delta().compute(t, s), s);
+    }
+    patch(new byte[100], new Delta().compute(new byte[100], new byte[0]), new byte[0]);
+  }
+
+  /**
+   * Test that two swapped blocks form a cycle, broken by buffering one.
+   *
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  @Test
+  public void testSwap() throws IOException {
+    byte[] source = new byte[3000];
+    new Random(1).nextBytes(source);
+    ByteArrayOutputStream os = new ByteArrayOutputStream();
+    GDiffWriter writer = new GDiffWriter(os);
+    writer.addCopy(2000, 1000);
+    writer.addCopy(1000, 1000);
+    writer.addCopy(0, 1000);
+    writer.close();
+    byte[] target = new byte[3000];
+    System.arraycopy(source, 2000, target, 0, 1000);
+    System.arraycopy(source, 1000, target, 1000, 1000);
+    System.arraycopy(source, 0, target, 2000, 1000);
+    assertEquals(1000, plan(os.toByteArray()).getBufferedBytes());
+    patch(source, os.toByteArray(), target);
+  }
+
+  /**
+   * Test copies overlapping their own output, moving bytes both ways.
+   *
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  @Test
+  public void testShift() throws IOException {
+    Random random = new Random(2);
+    byte[] source = new byte[5 << 20];
+    random.nextBytes(source);
+    byte[] longer = new byte[source.length + 1000];
+    random.nextBytes(longer);
+    System.arraycopy(source, 0, longer, 1000, source.length);
+    byte[] shorter = Arrays.copyOfRange(source, 1000, source.length);
+    for (byte[] target : new byte[][] { longer, shorter }) {
+      byte[] patch = new Delta().compute(source, target);
+      assertEquals(0, plan(patch).getBufferedBytes());
+      patch(source, patch, target);
+    }
+  }
+
+  /**
+   * Test shuffled blocks with edits, buffered in memory and in a scratch file.
+   *
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  @Test
+  public void testShuffle() throws IOException {
+    Random random = new Random(3);
+    byte[] source = new byte[4 << 20];
+    random.nextBytes(source);
+    List<Integer> blocks = new ArrayList<Integer>();
+    for (int i = 0; i < 64; i++)
+      blocks.add(i);
+    Collections.shuffle(blocks, random);
+    byte[] target = new byte[source.length + (1 << 16)];
+    for (int i = 0; i < 64; i++)
+      System.arraycopy(source, blocks.get(i) << 16, target, i << 16, 1 << 16);
+    for (int i = 0; i < 100; i++)
+      target[random.nextInt(target.length)] ^= 1;
+    byte[] patch = new Delta().compute(source, target);
+    InPlacePatch plan = plan(patch);
+    assertTrue(plan.getBufferedBytes() > 0);
+    patch(source, patch, target);
+
+    Files.write(file.toPath(), source);
+    try (FileChannel out = FileChannel.open(file.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+         FileChannel in = FileChannel.open(patchFile.toPath(), StandardOpenOption.READ)) {
+      plan.apply(out, in, directory, 0);
+    }
+    assertArrayEquals(target, Files.readAllBytes(file.toPath()));
+  }
+
+  /**
+   * Test segmented patches, checked after patching, and that compressed
+   * patches are refused.
+   *
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  @Test
+  public void testContainers() throws IOException {
+    Random random = new Random(4);
+    byte[] source = new byte[1 << 20];
+    random.nextBytes(source);
+    byte[] target = new byte[source.length];
+    for (int i = 0; i < 16; i++)
+      System.arraycopy(source, (15 - i) << 16, target, i << 16, 1 << 16);
+    ByteArrayOutputStream os = new ByteArrayOutputStream();
+    new Delta().compute(source, new ByteArrayInputStream(target), new SegmentedGDiffWriter(os, new ByteBufferSeekableSource(source), 100000));
+    patch(source, os.toByteArray(), target);
+
+    os.reset();
+    new Delta().compute(source, new ByteArrayInputStream(target), new CompressedGDiffWriter(os));
+    try {
+      patch(source, os.toByteArray(), target);
+      fail();
+    } catch (PatchException e) {
+      // expected
+    }
+  }
+}
@@ -0,0 +1,200 @@
+/*
+ * LargeFileTest.java
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a
+ * copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL
+ * THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS
+ * IN THE SOFTWARE.
+ *
+ */
+package com.nothome.delta;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests deltas of files over 2GB, using sparse files so that little is
+ * written to disk.
+ */
+public class LargeFileTest {
+  /** The length of the files, so that a copy is longer than a GDIFF copy can be. */
+  private static final long LENGTH = 3L << 30;
+  /** The offset of the edit. */
+  private static final long EDIT = 512L << 20;
+  /** The source. */
+  private File source;
+  /** The target. */
+  private File target;
+
+  /**
+   * Creates the files. Both have random blocks at the start, at the edit and
+   * after it, and at the end, with zeros in between; the target differs in
+   * the block at the edit.
+   *
+   * @throws Exception the exception
+   */
+  @Before
+  public void setUp() throws Exception {
+    source = File.createTempFile("large", ".src");
+    target = File.createTempFile("large", ".tgt");
+    assumeTrue(source.getUsableSpace() > 4 * LENGTH);
+    Random random = new Random(1);
+    byte[][] blocks = new byte[4][1 << 16];
+    for (byte[] block : blocks)
+      random.nextBytes(block);
+    byte[] edit = new byte[1000];
+    random.nextBytes(edit);
+    long[] offsets = { 0, EDIT, EDIT + edit.length, LENGTH - blocks[3].length };
+    for (File file : new File[] { source, target }) {
+      try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+        raf.setLength(LENGTH);
+        for (int i = 0; i < blocks.length; i++) {
+          raf.seek(offsets[i]);
+          raf.write(blocks[i]);
+        }
+        if (file == target) {
+          raf.seek(EDIT);
+          raf.write(edit);
+        }
+      }
+    }
+  }
+
+  /**
+   * Tear down.
+   *
+   * @throws Exception the exception
+   */
+  @After
+  public void tearDown() throws Exception {
+    source.delete();
+    target.delete();
+  }
+
+  /**
+   * Compares what is written with a file.
+   */
+  private static class VerifyingOutputStream extends OutputStream {
+    /** The expected bytes. */
+    private final InputStream expected;
+    /** Holds expected bytes. */
+    private final byte[] buf = new byte[1 << 16];
+    /** The number of bytes written. */
+    private long count;
+
+    /**
+     * Instantiates a new verifying output stream.
+     *
+     * @param file the expected file
+     * @throws IOException Signals that an I/O exception has occurred.
+     */
+    VerifyingOutputStream(File file) throws IOException {
+      expected = new FileInputStream(file);
+    }
+
+    /* (non-Javadoc)
+     * @see java.io.OutputStream#write(int)
+     */
+    @Override
+    public void write(int b) throws IOException {
+      write(new byte[] { (byte) b }, 0, 1);
+    }
+
+    /* (non-Javadoc)
+     * @see java.io.OutputStream#write(byte[], int, int)
+     */
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+      while (len > 0) {
+        int n = expected.read(buf, 0, Math.min(len, buf.length));
+        assertTrue("ends at " + count, n > 0);
+        for (int i = 0; i < n; i++) {
+          if (buf[i] != b[off + i])
+            throw new AssertionError("differs at " + (count + i));
+        }
+        count += n;
+        off += n;
+        len -= n;
+      }
+    }
+
+    /* (non-Javadoc)
+     * @see java.io.OutputStream#close()
+     */
+    @Override
+    public void close() throws IOException {
+      assertEquals(-1, expected.read());
+      expected.close();
+    }
+  }
+
+  /**
+   * Test a delta with a copy over 2GB long and offsets over 2GB, patched
+   * through the stream patcher.
+   *
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  @Test
+  public void testLargeFiles() throws IOException {
+    ByteArrayOutputStream os = new ByteArrayOutputStream();
+    Delta delta = new Delta();
+    delta.setAdaptiveChunkSize(true);
+    delta.compute(source, target, new GDiffWriter(os));
+    byte[] patch = os.toByteArray();
+    assertTrue("patch length " + patch.length, patch.length < 2000);
+    try (RandomAccessFileSeekableSource s = new RandomAccessFileSeekableSource(new RandomAccessFile(source, "r"));
+        VerifyingOutputStream out = new VerifyingOutputStream(target)) {
+      new GDiffPatcher().patch(s, new ByteArrayInputStream(patch), out);
+      assertEquals(LENGTH, out.count);
+    }
+  }
+
+  /**
+   * Test a sampled index of a source of more than 2^31 chunks, which keeps
+   * offsets over 2GB.
+   *
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  @Test
+  public void testSampledIndex() throws IOException {
+    try (RandomAccessFile raf = new RandomAccessFile(source, "r");
+        RandomAccessFileSeekableSource s = new RandomAccessFileSeekableSource(new RandomAccessFile(source, "r"))) {
+      // one byte chunks, of which there are only 256 checksums
+      Checksum checksum = Checksum.sampled(s, 1, 1024, null, RollingHash.ADLER);
+      assertEquals(1, checksum.getSampling());
+      raf.seek(LENGTH - 1);
+      ByteBuffer last = ByteBuffer.wrap(new byte[] { raf.readByte() });
+      long entry = checksum.findEntry(RollingHash.ADLER.hash(last, 1));
+      assertEquals(LENGTH - 1, checksum.getEntryOffset(entry));
+    }
+  }
+}
@@ -0,0 +1,77 @@
+/*
+ * LongIntHashMapTest.java
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a
+ * copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL
+ * THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS
+ * IN THE SOFTWARE.
+ *
+ */
+package com.nothome.delta;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Tests {@link LongIntHashMap}.
+ */
+public class LongIntHashMapTest {
+  /**
+   * Test put and get, including growing from the smallest size.
+   */
+  @Test
+  public void testPutGet() {
+    LongIntHashMap map = new LongIntHashMap();
+    Map<Long, Integer> expected = new HashMap<Long, Integer>();
+    Random random = new Random(1);
+    for (int i = 0; i < 100000; i++) {
+      long key = random.nextInt(50000) - 25000L;
+      assertEquals(expected.containsKey(key) ? expected.get(key) : -1, map.put(key, i));
+      expected.put(key, i);
+    }
+    assertEquals(expected.size(), map.size());
+    for (Map.Entry<Long, Integer> e : expected.entrySet())
+      assertEquals(e.getValue().intValue(), map.get(e.getKey()));
+    assertEquals(LongIntHashMap.NO_VALUE, map.get(Long.MAX_VALUE));
+  }
+
+  /**
+   * Test presizing.
+   */
+  @Test
+  public void testPresized() {
+    LongIntHashMap map = new LongIntHashMap(1000);
+    int capacity = map.capacity();
+    for (int i = 0; i < 1000; i++)
+      map.put(i * 31L, i);
+    assertEquals(capacity, map.capacity());
+    assertEquals(0, map.get(0));
+    assertEquals(999, map.get(999 * 31L));
+  }
+
+  /**
+   * Test negative values are rejected.
+   */
+  @Test(expected = IllegalArgumentException.class)
+  public void testNegativeValue() {
+    new LongIntHashMap().put(1, -1);
+  }
+}
@@ -0,0 +1,143 @@
+/*
+ * MappedFileSeekableSourceTest.java
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a
+ * copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL
+ * THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS
+ * IN THE SOFTWARE.
+ *
+ */
+package com.nothome.delta;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests {@link MappedFileSeekableSource}.
+ */
+public class MappedFileSeekableSourceTest {
+  /** The file. */
+  private File file;
+
+  /**
+   * Sets the up.
+   *
+   * @throws Exception the exception
+   */
+  @Before
+  public void setUp() throws Exception {
+    file = File.createTempFile("mapped", ".bin");
+  }
+
+  /**
+   * Tear down.
+   *
+   * @throws Exception the exception
+   */
+  @After
+  public void tearDown() throws Exception {
+    file.delete();
+  }
+
+  /**
+   * Test reads crossing region boundaries.
+   *
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  @Test
+  public void testRegions() throws IOException {
+    byte[] data = new byte[10000];
+    new Random(1).nextBytes(data);
+    try (FileOutputStream os = new FileOutputStream(file)) {
+      os.write(data);
+    }
+    try (MappedFileSeekableSource source = new MappedFileSeekableSource(file, 1000)) {
+      assertEquals(data.length, source.length());
+      ByteBuffer bb = ByteBuffer.allocate(2500);
+      source.seek(900);
+      assertEquals(2500, source.read(bb));
+      assertArrayEquals(copy(data, 900, 2500), bb.array());
+      bb.clear();
+      assertEquals(2500, source.read(bb));
+      assertArrayEquals(copy(data, 3400, 2500), bb.array());
+      bb.clear();
+      source.seek(9000);
+      assertEquals(1000, source.read(bb));
+      bb.flip();
+      assertEquals(ByteBuffer.wrap(data, 9000, 1000), bb);
+      bb.clear();
+      assertEquals(-1, source.read(bb));
+      ByteBuffer direct = ByteBuffer.allocateDirect(1500);
+      assertEquals(1500, source.read(1999, direct));
+      direct.flip();
+      assertEquals(ByteBuffer.wrap(data, 1999, 1500), direct);
+    }
+  }
+
+  /**
+   * Test offsets beyond 2GB using a sparse file.
+   *
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  @Test
+  public void testLarge() throws IOException {
+    long length = 3L << 30;
+    long offset = (1L << 31) + 12345;
+    byte[] data = "beyond two gigabytes".getBytes("US-ASCII");
+    try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+      raf.setLength(length);
+      raf.seek(offset);
+      raf.write(data);
+      raf.seek((1L << 30) - 5);
+      raf.write(data);
+    }
+    try (MappedFileSeekableSource source = new MappedFileSeekableSource(file)) {
+      assertEquals(length, source.length());
+      ByteBuffer bb = ByteBuffer.allocate(data.length);
+      source.seek(offset);
+      assertEquals(data.length, source.read(bb));
+      assertArrayEquals(data, bb.array());
+      bb.clear();
+      assertEquals(data.length, source.read((1L << 30) - 5, bb));
+      assertArrayEquals(data, bb.array());
+    }
+  }
+
+  /**
+   * Copy.
+   *
+   * @param data the data
+   * @param off the off
+   * @param len the len
+   * @return the byte[]
+   */
+  private static byte[] copy(byte[] data, int off, int len) {
+    byte[] b = new byte[len];
+    System.arraycopy(data, off, b, 0, len);
+    return b;
+  }
+}
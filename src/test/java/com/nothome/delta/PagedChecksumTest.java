@@ -0,0 +1,152 @@
+/*
+ * PagedChecksumTest.java
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a
+ * copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL
+ * THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS
+ * IN THE SOFTWARE.
+ *
+ */
+package com.nothome.delta;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests {@link PagedChecksum}.
+ */
+public class PagedChecksumTest {
+  /** The directory of the segment files. */
+  private File directory;
+
+  /**
+   * Sets the up.
+   *
+   * @throws Exception the exception
+   */
+  @Before
+  public void setUp() throws Exception {
+    directory = Files.createTempDirectory("paged").toFile();
+  }
+
+  /**
+   * Tear down.
+   *
+   * @throws Exception the exception
+   */
+  @After
+  public void tearDown() throws Exception {
+    File[] files = directory.listFiles();
+    assertEquals("segment files left", 0, files.length);
+    directory.delete();
+  }
+
+  /**
+   * Test that chunks are found over several segments, and that the
+   * segment files are deleted.
+   *
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  @Test
+  public void testFind() throws IOException {
+    Random random = new Random(1);
+    byte[] source = new byte[1 << 20];
+    random.nextBytes(source);
+    int found = 0;
+    try (PagedChecksum index = new PagedChecksum(new ByteBufferSeekableSource(source), 16, 4, RollingHash.ADLER, directory, 1 << 16, 64)) {
+      assertEquals(source.length / 16, index.getChunkCount());
+      assertTrue(index.getSegmentCount() > 1);
+      assertEquals(index.getSegmentCount(), directory.listFiles().length);
+      ByteBuffer bb = ByteBuffer.wrap(source);
+      for (int i = 0; i < source.length / 16; i++) {
+        bb.position(i * 16);
+        long hash = RollingHash.ADLER.hash(bb, 16);
+        for (long entry = index.findEntry(hash); entry != -1; entry = index.nextEntry(entry)) {
+          long offset = index.getEntryOffset(entry);
+          bb.position((int) offset);
+          assertEquals(hash, RollingHash.ADLER.hash(bb, 16));
+          if (offset == i * 16)
+            found++;
+        }
+      }
+    }
+    // full buckets drop a few chunks
+    assertTrue("found " + found, found > source.length / 16 * 99 / 100);
+  }
+
+  /**
+   * Test that the most recent chunks sharing a checksum are kept, newest first.
+   *
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  @Test
+  public void testCandidates() throws IOException {
+    byte[] source = new byte[16 * 100];
+    try (PagedChecksum index = new PagedChecksum(new ByteBufferSeekableSource(source), 16, 3, RollingHash.ADLER, null)) {
+      long entry = index.findEntry(RollingHash.ADLER.hash(ByteBuffer.wrap(source), 16));
+      for (int i = 99; i >= 97; i--) {
+        assertEquals(i * 16L, index.getEntryOffset(entry));
+        entry = index.nextEntry(entry);
+      }
+      assertEquals(-1, entry);
+      assertEquals(-1, index.findEntry(12345));
+    }
+  }
+
+  /**
+   * Test deltas computed with paged indexes by {@link Delta} and {@link ParallelDelta}.
+   *
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  @Test
+  public void testDelta() throws IOException {
+    Random random = new Random(2);
+    byte[] source = new byte[1 << 19];
+    random.nextBytes(source);
+    byte[] target = ParallelDeltaTest.edit(source, random);
+    byte[] heap = new Delta().compute(source, target);
+    Delta delta = new Delta();
+    delta.setPagedIndex(directory);
+    byte[] paged = delta.compute(source, target);
+    assertArrayEquals(target, new GDiffPatcher().patch(source, paged));
+    assertTrue(paged.length + " " + heap.length, paged.length <= heap.length * 101 / 100);
+
+    ForkJoinPool pool = new ForkJoinPool(2);
+    try {
+      ParallelDelta parallel = new ParallelDelta(pool);
+      parallel.setSegmentSize(1 << 16);
+      parallel.setPagedIndex(directory);
+      ByteArrayOutputStream os = new ByteArrayOutputStream();
+      parallel.compute(source, target, new GDiffWriter(os));
+      assertArrayEquals(target, new GDiffPatcher().patch(source, os.toByteArray()));
+    } finally {
+      pool.shutdown();
+    }
+  }
+}
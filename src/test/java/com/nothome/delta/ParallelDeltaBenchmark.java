@@ -0,0 +1,98 @@
+/*
+ * ParallelDeltaBenchmark.java
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a
+ * copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL
+ * THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS
+ * IN THE SOFTWARE.
+ *
+ */
+package com.nothome.delta;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Compares the throughput of {@link ParallelDelta} with {@link Delta} on
+ * synthetic data: a random source and a target with random insertions and deletions.
+ * <p>
+ * Not run as part of the tests; run with
+ * <code>java -cp target/classes:target/test-classes com.nothome.delta.ParallelDeltaBenchmark [MB]</code>.
+ */
+public class ParallelDeltaBenchmark {
+  /**
+   * Counts the bytes written.
+   */
+  static class CountingOutputStream extends OutputStream {
+    /** The count. */
+    long count;
+
+    /* (non-Javadoc)
+     * @see java.io.OutputStream#write(int)
+     */
+    @Override
+    public void write(int b) {
+      count++;
+    }
+
+    /* (non-Javadoc)
+     * @see java.io.OutputStream#write(byte[], int, int)
+     */
+    @Override
+    public void write(byte[] b, int off, int len) {
+      count += len;
+    }
+  }
+
+  /**
+   * Runs the benchmark.
+   *
+   * @param args optional source size in MB
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  public static void main(String[] args) throws IOException {
+    int mb = args.length > 0 ? Integer.parseInt(args[0]) : 64;
+    Random random = new Random(1);
+    byte[] source = new byte[mb << 20];
+    random.nextBytes(source);
+    byte[] target = ParallelDeltaTest.edit(source, random);
+    for (int round = 0; round < 3; round++) {
+      CountingOutputStream os = new CountingOutputStream();
+      long start = System.nanoTime();
+      new Delta().compute(new ByteBufferSeekableSource(source), new ByteArrayInputStream(target), new GDiffWriter(os));
+      report("Delta", System.nanoTime() - start, target.length, os.count);
+      os = new CountingOutputStream();
+      start = System.nanoTime();
+      new ParallelDelta().compute(source, target, new GDiffWriter(os));
+      report("ParallelDelta x" + ForkJoinPool.commonPool().getParallelism(), System.nanoTime() - start, target.length, os.count);
+    }
+  }
+
+  /**
+   * Report.
+   *
+   * @param name the name
+   * @param nanos the nanos
+   * @param length the target length
+   * @param patch the patch length
+   */
+  private static void report(String name, long nanos, long length, long patch) {
+    System.out.printf("%-18s %8.1f ms %8.1f MB/s patch %d bytes%n", name, nanos / 1e6, length / 1e6 / (nanos / 1e9), patch);
+  }
+}
@@ -0,0 +1,148 @@
+/*
+ * ParallelDeltaTest.java
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a
+ * copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL
+ * THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS
+ * IN THE SOFTWARE.
+ *
+ */
+package com.nothome.delta;
+
+import static org.junit.Assert.assertArrayEquals;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+import org.junit.Test;
+
+/**
+ * Tests {@link ParallelDelta}.
+ */
+public class ParallelDeltaTest {
+  /**
+   * Creates a target from the source with random edits.
+   *
+   * @param source the source
+   * @param random the random
+   * @return the byte[]
+   */
+  static byte[] edit(byte[] source, Random random) {
+    ByteArrayOutputStream os = new ByteArrayOutputStream();
+    int pos = 0;
+    while (pos < source.length) {
+      int len = Math.min(source.length - pos, random.nextInt(5000));
+      os.write(source, pos, len);
+      pos += len;
+      byte[] insert = new byte[random.nextInt(100)];
+      random.nextBytes(insert);
+      os.write(insert, 0, insert.length);
+      pos += random.nextInt(100);
+    }
+    return os.toByteArray();
+  }
+
+  /**
+   * Computes a patch.
+   *
+   * @param delta the delta
+   * @param source the source
+   * @param target the target
+   * @return the patch
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  private static byte[] compute(ParallelDelta delta, byte[] source, byte[] target) throws IOException {
+    ByteArrayOutputStream os = new ByteArrayOutputStream();
+    delta.compute(source, target, new GDiffWriter(os));
+    return os.toByteArray();
+  }
+
+  /**
+   * Test random edits with segments much smaller than the data.
+   *
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  @Test
+  public void testSegments() throws IOException {
+    Random random = new Random(5);
+    byte[] source = new byte[200000];
+    random.nextBytes(source);
+    byte[] target = edit(source, random);
+    GDiffPatcher patcher = new GDiffPatcher();
+    for (int segmentSize : new int[] { 100, 4096, 65536, 1 << 20 }) {
+      for (int overlap : new int[] { 0, 1000 }) {
+        ParallelDelta delta = new ParallelDelta(new ForkJoinPool(4));
+        delta.setSegmentSize(segmentSize);
+        delta.setOverlap(overlap);
+        byte[] patch = compute(delta, source, target);
+        assertArrayEquals(target, patcher.patch(source, patch));
+        delta.setBackwardMatching(true);
+        assertArrayEquals(target, patcher.patch(source, compute(delta, source, target)));
+        delta.setContentDefinedChunking(8, 32, 128);
+        assertArrayEquals(target, patcher.patch(source, compute(delta, source, target)));
+      }
+    }
+  }
+
+  /**
+   * Test the output does not depend on the number of threads.
+   *
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  @Test
+  public void testDeterministic() throws IOException {
+    Random random = new Random(6);
+    byte[] source = new byte[300000];
+    random.nextBytes(source);
+    byte[] target = edit(source, random);
+    ParallelDelta one = new ParallelDelta(new ForkJoinPool(1));
+    ParallelDelta many = new ParallelDelta(new ForkJoinPool(8));
+    one.setSegmentSize(10000);
+    many.setSegmentSize(10000);
+    assertArrayEquals(compute(one, source, target), compute(many, source, target));
+  }
+
+  /**
+   * Test files, including an empty target.
+   *
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  @Test
+  public void testFiles() throws IOException {
+    File source = new File(getClass().getClassLoader().getResource("obj1.bin").getPath());
+    File target = new File(getClass().getClassLoader().getResource("obj2.bin").getPath());
+    File empty = File.createTempFile("empty", ".bin");
+    File patch = File.createTempFile("patch", ".gdiff");
+    File patched = File.createTempFile("patched", ".bin");
+    try {
+      ParallelDelta delta = new ParallelDelta();
+      delta.setSegmentSize(8192);
+      for (File t : new File[] { target, empty }) {
+        delta.compute(source, t, new GDiffWriter(Files.newOutputStream(patch.toPath())));
+        new GDiffPatcher().patch(source, patch, patched);
+        assertArrayEquals(Files.readAllBytes(t.toPath()), Files.readAllBytes(patched.toPath()));
+      }
+    } finally {
+      empty.delete();
+      patch.delete();
+      patched.delete();
+    }
+  }
+}
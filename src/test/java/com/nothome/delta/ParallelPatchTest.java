@@ -0,0 +1,170 @@
+/*
+ * ParallelPatchTest.java
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a
+ * copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL
+ * THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS
+ * IN THE SOFTWARE.
+ *
+ */
+package com.nothome.delta;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+import org.junit.Test;
+
+/**
+ * Tests {@link GDiffPatcher#setApplyPool(ForkJoinPool)}.
+ */
+public class ParallelPatchTest extends PatchFilesTestBase {
+  /**
+   * Computes a patch, applies it on the pool, and checks the output.
+   *
+   * @param source the source
+   * @param target the target
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  private void roundTrip(byte[] source, byte[] target) throws IOException {
+    Files.write(sourceFile.toPath(), source);
+    Files.write(patchFile.toPath(), new Delta().compute(source, target));
+    GDiffPatcher patcher = new GDiffPatcher();
+    patcher.setApplyPool(pool);
+    patcher.patch(sourceFile, patchFile, outputFile);
+    assertArrayEquals(target, Files.readAllBytes(outputFile.toPath()));
+  }
+
+  /**
+   * Test the resource files.
+   *
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  @Test
+  public void testResources() throws IOException {
+    for (String[] pair : DeltaPatchTest.PAIRS) {
+      roundTrip(DeltaPatchTest.resource(pair[0]), DeltaPatchTest.resource(pair[1]));
+    }
+    roundTrip(new byte[0], new byte[0]);
+    roundTrip(new byte[100], new byte[0]);
+  }
+
+  /**
+   * Test an output of many tasks, with copies and data spanning tasks.
+   *
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  @Test
+  public void testTasks() throws IOException {
+    Random random = new Random(1);
+    byte[] source = new byte[20 << 20];
+    random.nextBytes(source);
+    byte[] target = new byte[24 << 20];
+    int position = 0;
+    while (position < target.length) {
+      int n = Math.min(target.length - position, random.nextInt(3 << 20));
+      if (random.nextInt(4) == 0) {
+        byte[] data = new byte[n];
+        random.nextBytes(data);
+        System.arraycopy(data, 0, target, position, n);
+      } else {
+        System.arraycopy(source, random.nextInt(source.length - n), target, position, n);
+      }
+      position += n;
+    }
+    roundTrip(source, target);
+  }
+
+  /**
+   * Test that the output is written from the channel position, and that
+   * what follows it is truncated.
+   *
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  @Test
+  public void testPosition() throws IOException {
+    byte[] source = "the quick brown fox jumps over the lazy dog".getBytes("US-ASCII");
+    byte[] target = "the lazy dog jumps over the quick brown fox".getBytes("US-ASCII");
+    Files.write(sourceFile.toPath(), source);
+    ByteArrayOutputStream patch = new ByteArrayOutputStream();
+    Delta delta = new Delta();
+    delta.setChunkSize(4);
+    delta.compute(source, target, patch);
+    Files.write(patchFile.toPath(), patch.toByteArray());
+    byte[] old = new byte[1000];
+    Arrays.fill(old, (byte) 'x');
+    Files.write(outputFile.toPath(), old);
+    GDiffPatcher patcher = new GDiffPatcher();
+    patcher.setApplyPool(pool);
+    try (FileChannel s = FileChannel.open(sourceFile.toPath(), StandardOpenOption.READ);
+         FileChannel p = FileChannel.open(patchFile.toPath(), StandardOpenOption.READ);
+         FileChannel o = FileChannel.open(outputFile.toPath(), StandardOpenOption.WRITE)) {
+      o.position(10);
+      patcher.patch(s, p, o);
+      assertEquals(10 + target.length, o.position());
+    }
+    byte[] expected = new byte[10 + target.length];
+    Arrays.fill(expected, (byte) 'x');
+    System.arraycopy(target, 0, expected, 10, target.length);
+    assertArrayEquals(expected, Files.readAllBytes(outputFile.toPath()));
+  }
+
+  /**
+   * Test that copies beyond the source and truncated patches fail.
+   *
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  @Test
+  public void testCorrupt() throws IOException {
+    Files.write(sourceFile.toPath(), new byte[100]);
+    ByteArrayOutputStream os = new ByteArrayOutputStream();
+    GDiffWriter writer = new GDiffWriter(os);
+    writer.addCopy(50, 100);
+    writer.close();
+    Files.write(patchFile.toPath(), os.toByteArray());
+    GDiffPatcher patcher = new GDiffPatcher();
+    patcher.setApplyPool(pool);
+    try {
+      patcher.patch(sourceFile, patchFile, outputFile);
+      fail();
+    } catch (EOFException e) {
+      // expected
+    }
+
+    os.reset();
+    writer = new GDiffWriter(os);
+    writer.addData(ByteBuffer.wrap(new byte[1000]));
+    writer.close();
+    Files.write(patchFile.toPath(), Arrays.copyOf(os.toByteArray(), 500));
+    try {
+      patcher.patch(sourceFile, patchFile, outputFile);
+      fail();
+    } catch (EOFException e) {
+      // expected
+    }
+  }
+}
@@ -0,0 +1,271 @@
+/*
+ * PipelinedDeltaTest.java
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a
+ * copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL
+ * THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS
+ * IN THE SOFTWARE.
+ *
+ */
+package com.nothome.delta;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.Test;
+
+/**
+ * Tests {@link Delta#setPipelined(boolean)}.
+ */
+public class PipelinedDeltaTest {
+  /**
+   * Computes a patch.
+   *
+   * @param source the source
+   * @param target the target
+   * @param pipelined whether to pipeline
+   * @return the patch
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  private byte[] compute(byte[] source, InputStream target, boolean pipelined) throws IOException {
+    Delta delta = new Delta();
+    delta.setPipelined(pipelined);
+    ByteArrayOutputStream os = new ByteArrayOutputStream();
+    delta.compute(source, target, new GDiffWriter(os));
+    return os.toByteArray();
+  }
+
+  /**
+   * Checks that the pipeline threads have ended.
+   */
+  @After
+  public void tearDown() {
+    for (Thread thread : Thread.getAllStackTraces().keySet())
+      assertFalse(thread.getName(), thread.getName().startsWith("javaxdelta-") && thread.isAlive());
+  }
+
+  /**
+   * Test that the resource patches are the same as without pipelining.
+   *
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  @Test
+  public void testResources() throws IOException {
+    for (String[] pair : DeltaPatchTest.PAIRS) {
+      byte[] source = DeltaPatchTest.resource(pair[0]);
+      byte[] target = DeltaPatchTest.resource(pair[1]);
+      byte[] patch = compute(source, new ByteArrayInputStream(target), true);
+      assertArrayEquals(pair[1], compute(source, new ByteArrayInputStream(target), false), patch);
+      assertArrayEquals(pair[1], target, new GDiffPatcher().patch(source, patch));
+    }
+    byte[] empty = new byte[0];
+    assertArrayEquals(empty, new GDiffPatcher().patch(empty, compute(empty, new ByteArrayInputStream(empty), true)));
+  }
+
+  /**
+   * Test a target of several blocks, read in small pieces, and from files.
+   *
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  @Test
+  public void testBlocks() throws IOException {
+    Random random = new Random(1);
+    byte[] source = new byte[6 << 20];
+    random.nextBytes(source);
+    byte[] target = ParallelDeltaTest.edit(source, random);
+    byte[] expected = compute(source, new ByteArrayInputStream(target), false);
+    InputStream trickle = new FilterInputStream(new ByteArrayInputStream(target)) {
+      @Override
+      public int read(byte[] b, int off, int len) throws IOException {
+        return super.read(b, off, Math.min(len, 1000));
+      }
+    };
+    assertArrayEquals(expected, compute(source, trickle, true));
+
+    File sourceFile = File.createTempFile("source", ".bin");
+    File targetFile = File.createTempFile("target", ".bin");
+    try {
+      Files.write(sourceFile.toPath(), source);
+      Files.write(targetFile.toPath(), target);
+      Delta delta = new Delta();
+      delta.setPipelined(true);
+      ByteArrayOutputStream os = new ByteArrayOutputStream();
+      delta.compute(sourceFile, targetFile, new GDiffWriter(os));
+      assertArrayEquals(expected, os.toByteArray());
+    } finally {
+      sourceFile.delete();
+      targetFile.delete();
+    }
+  }
+
+  /**
+   * Test that an exception reading the target is thrown by compute.
+   *
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  @Test
+  public void testReadFailure() throws IOException {
+    byte[] source = new byte[4 << 20];
+    new Random(2).nextBytes(source);
+    InputStream failing = new FilterInputStream(new ByteArrayInputStream(source)) {
+      private int read;
+
+      @Override
+      public int read(byte[] b, int off, int len) throws IOException {
+        if (read > 3 << 20)
+          throw new IOException("read failed");
+        int n = super.read(b, off, len);
+        read += n;
+        return n;
+      }
+    };
+    try {
+      compute(source, failing, true);
+      fail();
+    } catch (IOException e) {
+      assertEquals("read failed", e.getMessage());
+    }
+  }
+
+  /**
+   * Test that an unchecked exception reading the target is thrown by
+   * compute rather than taken for the end of the target.
+   *
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  @Test
+  public void testReadRuntimeFailure() throws IOException {
+    byte[] source = new byte[4 << 20];
+    new Random(2).nextBytes(source);
+    InputStream failing = new FilterInputStream(new ByteArrayInputStream(source)) {
+      private int read;
+
+      @Override
+      public int read(byte[] b, int off, int len) throws IOException {
+        if (read > 3 << 20)
+          throw new IllegalStateException("read failed");
+        int n = super.read(b, off, len);
+        read += n;
+        return n;
+      }
+    };
+    try {
+      compute(source, failing, true);
+      fail();
+    } catch (IllegalStateException e) {
+      assertEquals("read failed", e.getMessage());
+    }
+  }
+
+  /**
+   * Test that an exception writing the output is thrown by compute, and
+   * that the output is not closed then.
+   *
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  @Test
+  public void testWriteFailure() throws IOException {
+    Random random = new Random(3);
+    byte[] source = new byte[8 << 20];
+    random.nextBytes(source);
+    byte[] target = ParallelDeltaTest.edit(source, random);
+    final boolean[] closed = new boolean[1];
+    DiffWriter failing = new DiffWriter() {
+      private int copies;
+
+      @Override
+      public void addCopy(long offset, int length) throws IOException {
+        if (++copies == 50)
+          throw new IOException("write failed");
+      }
+
+      @Override
+      public void addData(byte b) {
+      }
+
+      @Override
+      public void flush() {
+      }
+
+      @Override
+      public void close() {
+        closed[0] = true;
+      }
+    };
+    Delta delta = new Delta();
+    delta.setPipelined(true);
+    try {
+      delta.compute(source, new ByteArrayInputStream(target), failing);
+      fail();
+    } catch (IOException e) {
+      assertEquals("write failed", e.getMessage());
+    }
+    assertFalse(closed[0]);
+  }
+
+  /**
+   * Test that an error writing the output is thrown by compute rather than
+   * ending the writing thread unnoticed.
+   *
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  @Test
+  public void testWriteError() throws IOException {
+    Random random = new Random(5);
+    byte[] source = new byte[8 << 20];
+    random.nextBytes(source);
+    byte[] target = ParallelDeltaTest.edit(source, random);
+    DiffWriter failing = new DiffWriter() {
+      @Override
+      public void addCopy(long offset, int length) {
+        throw new AssertionError("write failed");
+      }
+
+      @Override
+      public void addData(byte b) {
+      }
+
+      @Override
+      public void flush() {
+      }
+
+      @Override
+      public void close() {
+        fail("closed");
+      }
+    };
+    Delta delta = new Delta();
+    delta.setPipelined(true);
+    try {
+      delta.compute(source, new ByteArrayInputStream(target), failing);
+      fail();
+    } catch (AssertionError e) {
+      assertEquals("write failed", e.getMessage());
+    }
+  }
+}
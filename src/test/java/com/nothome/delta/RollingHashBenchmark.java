@@ -0,0 +1,132 @@
+/*
+ * RollingHashBenchmark.java
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a
+ * copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL
+ * THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS
+ * IN THE SOFTWARE.
+ *
+ */
+package com.nothome.delta;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+/**
+ * Compares the {@link RollingHash} implementations: the throughput of rolling
+ * over a target and the share of index hits whose source chunk does not
+ * actually match the target, which {@link Delta} must verify and reject.
+ * <p>
+ * The data is text-like, built from a small vocabulary, which is where the
+ * 32-bit hash collides most.
+ * <p>
+ * Not run as part of the tests; run with
+ * <code>java -cp target/classes:target/test-classes com.nothome.delta.RollingHashBenchmark [megabytes] [chunkSize]</code>.
+ */
+public class RollingHashBenchmark {
+
+  /**
+   * Generates text from a vocabulary of random words.
+   *
+   * @param length the length
+   * @param random the random
+   * @return the byte[]
+   */
+  static byte[] text(int length, Random random) {
+    String[] words = new String[2000];
+    for (int i = 0; i < words.length; i++) {
+      StringBuilder sb = new StringBuilder();
+      for (int j = 1 + random.nextInt(9); j > 0; j--)
+        sb.append((char) ('a' + random.nextInt(26)));
+      words[i] = sb.toString();
+    }
+    byte[] b = new byte[length];
+    int pos = 0;
+    while (pos < length) {
+      String w = words[random.nextInt(words.length)];
+      for (int i = 0; i < w.length() && pos < length; i++)
+        b[pos++] = (byte) w.charAt(i);
+      if (pos < length)
+        b[pos++] = (byte) (random.nextInt(12) == 0 ? '\n' : ' ');
+    }
+    return b;
+  }
+
+  /**
+   * Runs the benchmark.
+   *
+   * @param args optional size in megabytes and chunk size
+   * @throws Exception the exception
+   */
+  public static void main(String[] args) throws Exception {
+    int mb = args.length > 0 ? Integer.parseInt(args[0]) : 16;
+    int chunkSize = args.length > 1 ? Integer.parseInt(args[1]) : Delta.DEFAULT_CHUNK_SIZE;
+    Random random = new Random(1);
+    byte[] source = text(mb << 20, random);
+    byte[] target = text(mb << 20, random);
+    System.arraycopy(source, 0, target, 0, target.length / 2);
+    for (int round = 0; round < 2; round++) {
+      for (RollingHash hash : new RollingHash[] { RollingHash.ADLER, RollingHash.BUZHASH })
+        run(hash, source, target, chunkSize);
+    }
+  }
+
+  /**
+   * Indexes the source and scans the target at every offset.
+   *
+   * @param hash the hash
+   * @param source the source
+   * @param target the target
+   * @param chunkSize the chunk size
+   * @throws Exception the exception
+   */
+  private static void run(RollingHash hash, byte[] source, byte[] target, int chunkSize) throws Exception {
+    long start = System.nanoTime();
+    Checksum checksum = new Checksum(new ByteBufferSeekableSource(source), chunkSize, 1, null, hash);
+    long index = System.nanoTime() - start;
+
+    ByteBuffer bb = ByteBuffer.wrap(target);
+    start = System.nanoTime();
+    long h = hash.hash(bb, chunkSize);
+    long sum = h;
+    for (int i = 1; i + chunkSize <= target.length; i++) {
+      h = hash.roll(h, target[i - 1], target[i + chunkSize - 1], chunkSize);
+      sum += h;
+    }
+    long roll = System.nanoTime() - start;
+
+    long hits = 0;
+    long falseHits = 0;
+    h = hash.hash(bb, chunkSize);
+    for (int i = 0; i + chunkSize <= target.length; i++) {
+      if (i > 0)
+        h = hash.roll(h, target[i - 1], target[i + chunkSize - 1], chunkSize);
+      int c = checksum.findChecksumIndex(h);
+      if (c == -1)
+        continue;
+      hits++;
+      long offset = (long) c * chunkSize;
+      for (int j = 0; j < chunkSize; j++) {
+        if (source[(int) offset + j] != target[i + j]) {
+          falseHits++;
+          break;
+        }
+      }
+    }
+    System.out.printf("%-8s index %7.1f ms  roll %7.1f MB/s  hits %9d  false %9d (%5.2f%%)  [%d]%n", hash, index / 1e6,
+        target.length / (roll / 1e9) / 1e6, hits, falseHits, hits == 0 ? 0 : 100.0 * falseHits / hits, sum & 1);
+  }
+}
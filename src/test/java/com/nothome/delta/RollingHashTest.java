@@ -0,0 +1,105 @@
+/*
+ * RollingHashTest.java
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a
+ * copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL
+ * THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS
+ * IN THE SOFTWARE.
+ *
+ */
+package com.nothome.delta;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Tests the {@link RollingHash} implementations.
+ */
+public class RollingHashTest {
+
+  /**
+   * Test that rolling gives the hash of the new window.
+   */
+  @Test
+  public void testRoll() {
+    byte[] data = new byte[1000];
+    new Random(8).nextBytes(data);
+    for (RollingHash hash : new RollingHash[] { RollingHash.ADLER, RollingHash.BUZHASH }) {
+      for (int len : new int[] { 1, 16, 63, 64, 65, 200 }) {
+        ByteBuffer bb = ByteBuffer.wrap(data);
+        long h = hash.hash(bb, len);
+        for (int i = 1; i + len <= data.length; i++) {
+          h = hash.roll(h, data[i - 1], data[i + len - 1], len);
+          bb.position(i);
+          assertEquals(hash + " " + len + " " + i, hash.hash(bb, len), h);
+          assertEquals(i, bb.position());
+        }
+      }
+    }
+  }
+
+  /**
+   * Test that the default hash is the one of {@link Checksum#queryChecksum(ByteBuffer, int)}.
+   */
+  @Test
+  public void testCompatible() {
+    byte[] data = new byte[100];
+    new Random(9).nextBytes(data);
+    ByteBuffer bb = ByteBuffer.wrap(data);
+    assertEquals(Checksum.queryChecksum(bb, 16), RollingHash.ADLER.hash(bb, 16));
+    assertSame(RollingHash.BUZHASH, RollingHash.forId(RollingHash.BUZHASH.id()));
+  }
+
+  /**
+   * Test deltas and stored indexes using the 64-bit hash.
+   *
+   * @throws Exception the exception
+   */
+  @Test
+  public void testDelta() throws Exception {
+    Random random = new Random(10);
+    byte[] source = new byte[100000];
+    random.nextBytes(source);
+    byte[] target = ParallelDeltaTest.edit(source, random);
+    Delta delta = new Delta();
+    delta.setRollingHash(RollingHash.BUZHASH);
+    byte[] patch = delta.compute(source, target);
+    assertArrayEquals(target, new GDiffPatcher().patch(source, patch));
+    assertEquals(new Delta().compute(source, target).length, patch.length);
+
+    Checksum checksum = new Checksum(new ByteBufferSeekableSource(source), 16, 8, null, RollingHash.BUZHASH);
+    File file = File.createTempFile("checksum", ".jxdi");
+    try {
+      ChecksumFile.write(checksum, new ByteBufferSeekableSource(source), file);
+      Checksum loaded = ChecksumFile.read(file);
+      assertSame(RollingHash.BUZHASH, loaded.getRollingHash());
+      ByteArrayOutputStream os = new ByteArrayOutputStream();
+      new Delta().compute(loaded, new ByteBufferSeekableSource(source), new ByteArrayInputStream(target), new GDiffWriter(os));
+      assertArrayEquals(patch, os.toByteArray());
+    } finally {
+      file.delete();
+    }
+  }
+}
@@ -0,0 +1,199 @@
+/*
+ * SeekableSourceTest.java
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a
+ * copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL
+ * THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS
+ * IN THE SOFTWARE.
+ *
+ */
+package com.nothome.delta;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests the sequential and positional reads of {@link SeekableSource} implementations.
+ */
+public class SeekableSourceTest {
+  /** The data. */
+  private byte[] data;
+  /** The file. */
+  private File file;
+
+  /**
+   * Sets the up.
+   *
+   * @throws Exception the exception
+   */
+  @Before
+  public void setUp() throws Exception {
+    data = new byte[100000];
+    new Random(3).nextBytes(data);
+    file = File.createTempFile("source", ".bin");
+    try (FileOutputStream os = new FileOutputStream(file)) {
+      os.write(data);
+    }
+  }
+
+  /**
+   * Tear down.
+   *
+   * @throws Exception the exception
+   */
+  @After
+  public void tearDown() throws Exception {
+    file.delete();
+  }
+
+  /**
+   * Test byte buffer source.
+   *
+   * @throws Exception the exception
+   */
+  @Test
+  public void testByteBuffer() throws Exception {
+    try (SeekableSource source = new ByteBufferSeekableSource(data)) {
+      check(source);
+    }
+  }
+
+  /**
+   * Test file channel source.
+   *
+   * @throws Exception the exception
+   */
+  @Test
+  public void testFileChannel() throws Exception {
+    try (SeekableSource source = new FileChannelSeekableSource(file)) {
+      check(source);
+    }
+  }
+
+  /**
+   * Test the default positional read.
+   *
+   * @throws Exception the exception
+   */
+  @Test
+  public void testDefault() throws Exception {
+    final SeekableSource bb = new ByteBufferSeekableSource(data);
+    SeekableSource source = new SeekableSource() {
+      @Override
+      public void seek(long pos) throws IOException {
+        bb.seek(pos);
+      }
+
+      @Override
+      public int read(ByteBuffer dest) throws IOException {
+        return bb.read(dest);
+      }
+
+      @Override
+      public void close() throws IOException {
+        bb.close();
+      }
+    };
+    assertEquals(-1, source.length());
+    ByteBuffer dest = ByteBuffer.allocate(1000);
+    assertEquals(1000, source.read(5000, dest));
+    dest.flip();
+    assertEquals(ByteBuffer.wrap(data, 5000, 1000), dest);
+    readConcurrently(source);
+  }
+
+  /**
+   * Checks reads of a source of the data.
+   *
+   * @param source the source
+   * @throws Exception the exception
+   */
+  private void check(SeekableSource source) throws Exception {
+    assertEquals(data.length, source.length());
+    ByteBuffer dest = ByteBuffer.allocate(30000);
+    source.seek(1000);
+    assertEquals(30000, source.read(dest));
+    dest.flip();
+    assertEquals(ByteBuffer.wrap(data, 1000, 30000), dest);
+    // positional reads leave the position alone
+    ByteBuffer direct = ByteBuffer.allocateDirect(500);
+    assertEquals(500, source.read(99000, direct));
+    direct.flip();
+    assertEquals(ByteBuffer.wrap(data, 99000, 500), direct);
+    direct.clear();
+    assertEquals(-1, source.read(data.length, direct));
+    dest.clear();
+    assertEquals(30000, source.read(dest));
+    dest.flip();
+    assertEquals(ByteBuffer.wrap(data, 31000, 30000), dest);
+    source.seek(data.length - 10);
+    dest.clear();
+    assertEquals(10, source.read(dest));
+    dest.clear();
+    assertEquals(-1, source.read(dest));
+    readConcurrently(source);
+  }
+
+  /**
+   * Reads random ranges of the source on several threads.
+   *
+   * @param source the source
+   * @throws Exception the exception
+   */
+  private void readConcurrently(final SeekableSource source) throws Exception {
+    ExecutorService executor = Executors.newFixedThreadPool(4);
+    try {
+      List<Future<Void>> futures = new ArrayList<Future<Void>>();
+      for (int t = 0; t < 4; t++) {
+        final Random random = new Random(t);
+        futures.add(executor.submit(new Callable<Void>() {
+          @Override
+          public Void call() throws Exception {
+            ByteBuffer dest = ByteBuffer.allocate(777);
+            for (int i = 0; i < 200; i++) {
+              int position = random.nextInt(data.length - dest.capacity());
+              dest.clear();
+              while (dest.hasRemaining())
+                source.read(position + dest.position(), dest);
+              dest.flip();
+              assertEquals(ByteBuffer.wrap(data, position, dest.capacity()), dest);
+            }
+            return null;
+          }
+        }));
+      }
+      for (Future<Void> future : futures)
+        future.get();
+    } finally {
+      executor.shutdown();
+    }
+  }
+}
@@ -0,0 +1,194 @@
+/*
+ * SegmentedGDiffTest.java
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a
+ * copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL
+ * THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS
+ * IN THE SOFTWARE.
+ *
+ */
+package com.nothome.delta;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+import org.junit.Test;
+
+/**
+ * Tests {@link SegmentedGDiffWriter} and patching its segments.
+ */
+public class SegmentedGDiffTest extends PatchFilesTestBase {
+  /**
+   * Computes a segmented patch.
+   *
+   * @param source the source
+   * @param target the target
+   * @param segmentSize the segment size
+   * @return the patch
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  private byte[] compute(byte[] source, byte[] target, int segmentSize) throws IOException {
+    ByteArrayOutputStream os = new ByteArrayOutputStream();
+    new Delta().compute(source, new ByteArrayInputStream(target), new SegmentedGDiffWriter(os, new ByteBufferSeekableSource(source), segmentSize));
+    return os.toByteArray();
+  }
+
+  /**
+   * Patches the files.
+   *
+   * @param pool the pool, or null
+   * @param resume whether to resume
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  private void patch(ForkJoinPool pool, boolean resume) throws IOException {
+    GDiffPatcher patcher = new GDiffPatcher();
+    patcher.setApplyPool(pool);
+    patcher.setResume(resume);
+    patcher.patch(sourceFile, patchFile, outputFile);
+  }
+
+  /**
+   * Test round trips through streams and files, with and without a pool.
+   *
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  @Test
+  public void testRoundTrip() throws IOException {
+    for (String[] pair : DeltaPatchTest.PAIRS) {
+      byte[] s = DeltaPatchTest.resource(pair[0]);
+      byte[] t = DeltaPatchTest.resource(pair[1]);
+      for (int segmentSize : new int[] { 1, 100, 1 << 20 })
+        assertArrayEquals(pair[1] + " " + segmentSize, t, new GDiffPatcher().patch(s, compute(s, t, segmentSize)));
+    }
+    byte[] empty = new byte[0];
+    assertArrayEquals(empty, new GDiffPatcher().patch(empty, compute(empty, empty, 100)));
+
+    Random random = new Random(1);
+    byte[] source = new byte[4 << 20];
+    random.nextBytes(source);
+    byte[] target = ParallelDeltaTest.edit(source, random);
+    byte[] patch = compute(source, target, 1 << 16);
+    assertArrayEquals(target, new GDiffPatcher().patch(source, patch));
+    Files.write(sourceFile.toPath(), source);
+    Files.write(patchFile.toPath(), patch);
+    patch(null, false);
+    assertArrayEquals(target, Files.readAllBytes(outputFile.toPath()));
+    outputFile.delete();
+    patch(pool, false);
+    assertArrayEquals(target, Files.readAllBytes(outputFile.toPath()));
+    assertEquals(0, new GDiffPatcher().verify(patchFile, outputFile).length);
+  }
+
+  /**
+   * Test the segment table.
+   *
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  @Test
+  public void testTable() throws IOException {
+    Random random = new Random(2);
+    byte[] source = new byte[1 << 20];
+    random.nextBytes(source);
+    byte[] target = ParallelDeltaTest.edit(source, random);
+    Files.write(patchFile.toPath(), compute(source, target, 100000));
+    try (FileChannel patch = FileChannel.open(patchFile.toPath(), StandardOpenOption.READ)) {
+      SegmentedPatch segments = new SegmentedPatch(patch, 0);
+      assertEquals((target.length + 99999) / 100000, segments.count());
+      assertEquals(target.length, segments.length());
+    }
+  }
+
+  /**
+   * Test that damaged and missing segments are found by verify and patched
+   * again when resuming, while matching segments are skipped.
+   *
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  @Test
+  public void testResume() throws IOException {
+    Random random = new Random(3);
+    byte[] source = new byte[1 << 20];
+    random.nextBytes(source);
+    byte[] target = ParallelDeltaTest.edit(source, random);
+    Files.write(sourceFile.toPath(), source);
+    Files.write(patchFile.toPath(), compute(source, target, 100000));
+    patch(pool, false);
+    try (RandomAccessFile file = new RandomAccessFile(outputFile, "rw")) {
+      file.seek(250000);
+      file.write(~target[250000]);
+      file.setLength(550000);
+    }
+    int[] failed = new GDiffPatcher().verify(patchFile, outputFile);
+    int count = (target.length + 99999) / 100000;
+    assertEquals(count - 4, failed.length);
+    assertEquals(2, failed[0]);
+    assertEquals(5, failed[1]);
+
+    // a damaged header of the first segment is not read when it is skipped
+    try (RandomAccessFile file = new RandomAccessFile(patchFile, "rw")) {
+      file.seek(SegmentedGDiffWriter.MAGIC.length + 16);
+      file.writeInt(0);
+    }
+    patch(pool, true);
+    assertArrayEquals(target, Files.readAllBytes(outputFile.toPath()));
+    try {
+      patch(pool, false);
+      fail();
+    } catch (PatchException e) {
+      // expected
+    }
+  }
+
+  /**
+   * Test that a damaged segment fails its checksum.
+   *
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  @Test
+  public void testDamaged() throws IOException {
+    Random random = new Random(4);
+    byte[] source = new byte[1000];
+    byte[] target = new byte[100000];
+    random.nextBytes(target);
+    byte[] patch = compute(source, target, 10000);
+    patch[patch.length / 2] ^= 1;
+    try {
+      new GDiffPatcher().patch(source, patch);
+      fail();
+    } catch (PatchException e) {
+      // expected
+    }
+    Files.write(sourceFile.toPath(), source);
+    Files.write(patchFile.toPath(), patch);
+    try {
+      patch(pool, false);
+      fail();
+    } catch (PatchException e) {
+      // expected
+    }
+  }
+}
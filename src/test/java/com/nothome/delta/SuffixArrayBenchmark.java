@@ -0,0 +1,114 @@
+/*
+ * SuffixArrayBenchmark.java
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a
+ * copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL
+ * THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS
+ * IN THE SOFTWARE.
+ *
+ */
+package com.nothome.delta;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.Random;
+
+import com.nothome.delta.ParallelDeltaBenchmark.CountingOutputStream;
+
+/**
+ * Compares the patch sizes and times of {@link SuffixArrayDelta} with
+ * {@link Delta} on the test resources and on synthetic corpora.
+ * <p>
+ * Not run as part of the tests; run with
+ * <code>java -cp target/classes:target/test-classes com.nothome.delta.SuffixArrayBenchmark [MB]</code>.
+ */
+public class SuffixArrayBenchmark {
+  /**
+   * Changes single bytes, like relocated addresses in a rebuilt binary.
+   *
+   * @param source the source
+   * @param random the random
+   * @return the byte[]
+   */
+  private static byte[] patchBytes(byte[] source, Random random) {
+    byte[] target = source.clone();
+    for (int i = random.nextInt(200); i < target.length; i += 1 + random.nextInt(400))
+      target[i] = (byte) random.nextInt(256);
+    return target;
+  }
+
+  /**
+   * Moves blocks of random lengths to random places.
+   *
+   * @param source the source
+   * @param random the random
+   * @return the byte[]
+   */
+  private static byte[] moveBlocks(byte[] source, Random random) {
+    byte[] target = new byte[source.length];
+    int pos = 0;
+    while (pos < target.length) {
+      int len = Math.min(target.length - pos, 1 + random.nextInt(8192));
+      System.arraycopy(source, random.nextInt(source.length - len + 1), target, pos, len);
+      pos += len;
+    }
+    return target;
+  }
+
+  /**
+   * Runs the benchmark.
+   *
+   * @param args optional size of the synthetic corpora in megabytes
+   * @throws Exception the exception
+   */
+  public static void main(String[] args) throws Exception {
+    int mb = args.length > 0 ? Integer.parseInt(args[0]) : 16;
+    for (String[] pair : DeltaPatchTest.PAIRS)
+      run(pair[1], DeltaPatchTest.resource(pair[0]), DeltaPatchTest.resource(pair[1]));
+    Random random = new Random(1);
+    byte[] text = RollingHashBenchmark.text(mb << 20, random);
+    byte[] binary = new byte[mb << 20];
+    random.nextBytes(binary);
+    run("text, edits", text, ParallelDeltaTest.edit(text, random));
+    run("text, bytes", text, patchBytes(text, random));
+    run("text, moves", text, moveBlocks(text, random));
+    run("random, edits", binary, ParallelDeltaTest.edit(binary, random));
+    run("random, bytes", binary, patchBytes(binary, random));
+    run("random, moves", binary, moveBlocks(binary, random));
+  }
+
+  /**
+   * Computes both patches and prints their sizes and times.
+   *
+   * @param name the name
+   * @param source the source
+   * @param target the target
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  private static void run(String name, byte[] source, byte[] target) throws IOException {
+    CountingOutputStream os = new CountingOutputStream();
+    long start = System.nanoTime();
+    new Delta().compute(source, new ByteArrayInputStream(target), new GDiffWriter(os));
+    long time = System.nanoTime() - start;
+    long size = os.count;
+    os = new CountingOutputStream();
+    start = System.nanoTime();
+    new SuffixArrayDelta().compute(source, new ByteArrayInputStream(target), new GDiffWriter(os));
+    long saTime = System.nanoTime() - start;
+    System.out.printf("%-16s %10d bytes  Delta %10d bytes %8.1f ms  SuffixArrayDelta %10d bytes %8.1f ms  (%5.1f%%)%n", name,
+        target.length, size, time / 1e6, os.count, saTime / 1e6, 100.0 * os.count / size);
+  }
+}
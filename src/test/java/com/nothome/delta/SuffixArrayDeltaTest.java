@@ -0,0 +1,122 @@
+/*
+ * SuffixArrayDeltaTest.java
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a
+ * copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL
+ * THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS
+ * IN THE SOFTWARE.
+ *
+ */
+package com.nothome.delta;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Tests {@link SuffixArrayDelta}.
+ */
+public class SuffixArrayDeltaTest {
+  /**
+   * Test round trips of the resource files, and that the patches are no
+   * larger than those of {@link Delta}.
+   *
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  @Test
+  public void testResources() throws IOException {
+    SuffixArrayDelta delta = new SuffixArrayDelta();
+    for (String[] pair : DeltaPatchTest.PAIRS) {
+      byte[] source = DeltaPatchTest.resource(pair[0]);
+      byte[] target = DeltaPatchTest.resource(pair[1]);
+      byte[] patch = delta.compute(source, target);
+      assertArrayEquals(pair[1], target, new GDiffPatcher().patch(source, patch));
+      byte[] chunked = new Delta().compute(source, target);
+      assertTrue(pair[1] + " " + patch.length + " " + chunked.length, patch.length <= chunked.length);
+    }
+  }
+
+  /**
+   * Test round trips split into small windows, and of empty files.
+   *
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  @Test
+  public void testWindows() throws IOException {
+    for (String[] pair : DeltaPatchTest.PAIRS) {
+      byte[] source = DeltaPatchTest.resource(pair[0]);
+      byte[] target = DeltaPatchTest.resource(pair[1]);
+      for (int windowSize : new int[] { 1, 7, 100 }) {
+        SuffixArrayDelta delta = new SuffixArrayDelta();
+        delta.setWindowSize(windowSize);
+        assertArrayEquals(pair[1] + " " + windowSize, target, new GDiffPatcher().patch(source, delta.compute(source, target)));
+      }
+    }
+    byte[] text = DeltaPatchTest.resource("lorem.txt");
+    byte[] empty = new byte[0];
+    SuffixArrayDelta delta = new SuffixArrayDelta();
+    assertArrayEquals(empty, new GDiffPatcher().patch(text, delta.compute(text, empty)));
+    assertArrayEquals(text, new GDiffPatcher().patch(empty, delta.compute(empty, text)));
+  }
+
+  /**
+   * Test random edits of random data, written through other diff writers.
+   *
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  @Test
+  public void testRandom() throws IOException {
+    Random random = new Random(1);
+    byte[] source = new byte[1 << 18];
+    random.nextBytes(source);
+    byte[] target = ParallelDeltaTest.edit(source, random);
+    SuffixArrayDelta delta = new SuffixArrayDelta();
+    delta.setWindowSize(1 << 16);
+    byte[] patch = delta.compute(source, target);
+    assertArrayEquals(target, new GDiffPatcher().patch(source, patch));
+    assertTrue(patch.length < new Delta().compute(source, target).length);
+    ByteArrayOutputStream os = new ByteArrayOutputStream();
+    delta.compute(source, new ByteArrayInputStream(target), new VcdiffWriter(os));
+    assertArrayEquals(target, new VcdiffPatcher().patch(source, os.toByteArray()));
+  }
+
+  /**
+   * Test that data runs are written with the least GDIFF instructions around
+   * the lengths where they grow.
+   *
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  @Test
+  public void testDataRuns() throws IOException {
+    Random random = new Random(1);
+    byte[] empty = new byte[0];
+    int[][] runs = { { 246, 1 }, { 247, 3 }, { GDiffWriter.CHUNK_SIZE, 3 }, { GDiffWriter.CHUNK_SIZE + 1, 4 }, { 40000, 6 } };
+    for (int[] run : runs) {
+      byte[] target = new byte[run[0]];
+      random.nextBytes(target);
+      byte[] patch = new SuffixArrayDelta().compute(empty, target);
+      assertEquals(String.valueOf(run[0]), 5 + run[1] + run[0] + 1, patch.length);
+      assertArrayEquals(target, new GDiffPatcher().patch(empty, patch));
+    }
+  }
+}
@@ -0,0 +1,146 @@
+/*
+ * SuffixArrayTest.java
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a
+ * copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL
+ * THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS
+ * IN THE SOFTWARE.
+ *
+ */
+package com.nothome.delta;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Tests {@link SuffixArray} against sorting the suffixes directly.
+ */
+public class SuffixArrayTest {
+
+  /**
+   * Sorts the suffixes of a text by comparison.
+   *
+   * @param text the text
+   * @return the int[]
+   */
+  private static int[] naive(byte[] text) {
+    Integer[] sa = new Integer[text.length];
+    for (int i = 0; i < sa.length; i++)
+      sa[i] = i;
+    Arrays.sort(sa, (a, b) -> {
+      while (a < text.length && b < text.length) {
+        int d = (text[a] & 0xff) - (text[b] & 0xff);
+        if (d != 0)
+          return d;
+        a++;
+        b++;
+      }
+      return b - a;
+    });
+    int[] result = new int[sa.length];
+    for (int i = 0; i < sa.length; i++)
+      result[i] = sa[i];
+    return result;
+  }
+
+  /**
+   * Checks the suffix array of a text.
+   *
+   * @param text the text
+   */
+  private static void check(byte[] text) {
+    assertArrayEquals(naive(text), SuffixArray.build(text));
+  }
+
+  /**
+   * Tests short and degenerate texts.
+   */
+  @Test
+  public void testSmall() {
+    check(new byte[0]);
+    check(new byte[] { 7 });
+    check(new byte[] { 7, 7 });
+    check(new byte[] { 7, 3 });
+    check("banana".getBytes());
+    check("mississippi".getBytes());
+    check(new byte[] { (byte) 0xff, 0, (byte) 0x80, 0, (byte) 0xff });
+    check(new byte[1000]);
+  }
+
+  /**
+   * Tests random texts over alphabets of several sizes, including the small
+   * and repetitive ones that make the algorithm recurse deeply.
+   */
+  @Test
+  public void testRandom() {
+    Random random = new Random(1);
+    for (int round = 0; round < 300; round++) {
+      int k = 1 + random.nextInt(round % 3 == 0 ? 2 : 256);
+      byte[] text = new byte[random.nextInt(2000)];
+      for (int i = 0; i < text.length; i++)
+        text[i] = (byte) random.nextInt(k);
+      if (round % 5 == 0 && text.length > 10) {
+        int period = 1 + random.nextInt(text.length / 5);
+        for (int i = period; i < text.length; i++)
+          text[i] = random.nextInt(50) == 0 ? (byte) random.nextInt(k) : text[i - period];
+      }
+      check(text);
+    }
+  }
+
+  /**
+   * Tests that longest matches are found and are the longest.
+   */
+  @Test
+  public void testLongestMatch() {
+    Random random = new Random(2);
+    byte[] text = new byte[5000];
+    for (int i = 0; i < text.length; i++)
+      text[i] = (byte) random.nextInt(4);
+    SuffixArray sa = new SuffixArray(text);
+    for (int round = 0; round < 500; round++) {
+      byte[] b = new byte[1 + random.nextInt(40)];
+      if (round % 2 == 0) {
+        int p = random.nextInt(text.length - b.length);
+        System.arraycopy(text, p, b, 0, b.length);
+        b[random.nextInt(b.length)] = (byte) random.nextInt(4);
+      } else {
+        for (int i = 0; i < b.length; i++)
+          b[i] = (byte) random.nextInt(4);
+      }
+      long match = sa.longestMatch(b, 0, b.length);
+      int pos = (int) (match >>> 32);
+      int len = (int) match;
+      for (int i = 0; i < len; i++)
+        assertEquals(text[pos + i], b[i]);
+      int best = 0;
+      for (int s = 0; s < text.length; s++) {
+        int k = 0;
+        while (k < b.length && s + k < text.length && text[s + k] == b[k])
+          k++;
+        best = Math.max(best, k);
+      }
+      assertEquals(best, len);
+    }
+    assertTrue(new SuffixArray(new byte[0]).longestMatch(text, 0, 10) == 0);
+  }
+}
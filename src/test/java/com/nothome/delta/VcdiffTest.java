@@ -0,0 +1,234 @@
+/*
+ * VcdiffTest.java
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a
+ * copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL
+ * THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS
+ * IN THE SOFTWARE.
+ *
+ */
+package com.nothome.delta;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Random;
+import java.util.zip.Adler32;
+
+import org.junit.Test;
+
+/**
+ * Tests {@link VcdiffWriter} and {@link VcdiffPatcher}.
+ */
+public class VcdiffTest {
+  /**
+   * Computes a VCDIFF delta.
+   *
+   * @param source the source
+   * @param target the target
+   * @param windowSize the window size
+   * @return the byte[]
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  private static byte[] vcdiff(byte[] source, byte[] target, int windowSize) throws IOException {
+    ByteArrayOutputStream os = new ByteArrayOutputStream();
+    new Delta().compute(source, new ByteArrayInputStream(target), new VcdiffWriter(os, windowSize));
+    return os.toByteArray();
+  }
+
+  /**
+   * Test round trips of the resource files.
+   *
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  @Test
+  public void testResources() throws IOException {
+    for (String[] pair : DeltaPatchTest.PAIRS) {
+      byte[] source = DeltaPatchTest.resource(pair[0]);
+      byte[] target = DeltaPatchTest.resource(pair[1]);
+      byte[] patch = vcdiff(source, target, VcdiffWriter.DEFAULT_WINDOW_SIZE);
+      assertArrayEquals(pair[1], target, new VcdiffPatcher().patch(source, patch));
+    }
+  }
+
+  /**
+   * Test round trips split into many small windows.
+   *
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  @Test
+  public void testSmallWindows() throws IOException {
+    for (String[] pair : DeltaPatchTest.PAIRS) {
+      byte[] source = DeltaPatchTest.resource(pair[0]);
+      byte[] target = DeltaPatchTest.resource(pair[1]);
+      for (int windowSize : new int[] { 1, 7, 100 }) {
+        byte[] patch = vcdiff(source, target, windowSize);
+        assertArrayEquals(pair[1] + " " + windowSize, target, new VcdiffPatcher().patch(source, patch));
+      }
+    }
+  }
+
+  /**
+   * Test round trips of random edits, including runs and empty files.
+   *
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  @Test
+  public void testRandom() throws IOException {
+    Random random = new Random(14);
+    byte[] source = new byte[100000];
+    random.nextBytes(source);
+    byte[] target = ParallelDeltaTest.edit(source, random);
+    // a run in the target
+    for (int i = 5000; i < 5100; i++)
+      target[i] = 7;
+    assertArrayEquals(target, new VcdiffPatcher().patch(source, vcdiff(source, target, 4096)));
+    assertArrayEquals(new byte[0], new VcdiffPatcher().patch(source, vcdiff(source, new byte[0], 4096)));
+    assertArrayEquals(target, new VcdiffPatcher().patch(new byte[0], vcdiff(new byte[0], target, 4096)));
+  }
+
+  /**
+   * Test round trips through files.
+   *
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  @Test
+  public void testFiles() throws IOException {
+    File sourceFile = File.createTempFile("source", ".bin");
+    File patchFile = File.createTempFile("patch", ".vcdiff");
+    File outputFile = File.createTempFile("output", ".bin");
+    try {
+      byte[] source = DeltaPatchTest.resource("lorem-long.txt");
+      byte[] target = DeltaPatchTest.resource("lorem-long2.txt");
+      Files.write(sourceFile.toPath(), source);
+      Files.write(patchFile.toPath(), vcdiff(source, target, 1000));
+      new VcdiffPatcher().patch(sourceFile, patchFile, outputFile);
+      assertArrayEquals(target, Files.readAllBytes(outputFile.toPath()));
+    } finally {
+      sourceFile.delete();
+      patchFile.delete();
+      outputFile.delete();
+    }
+  }
+
+  /**
+   * Builds a patch by hand with an application header, a run, a copy
+   * spanning the source and the target window, an overlapping copy within
+   * the target window and an Adler-32 checksum, as xdelta3 writes them.
+   *
+   * @param target the expected target
+   * @return the byte[]
+   */
+  private static byte[] handMade(byte[] target) {
+    ByteArrayOutputStream delta = new ByteArrayOutputStream();
+    Vcdiff.writeInt(delta, target.length);
+    delta.write(0);
+    byte[] data = { 'x' };
+    // COPY 4 SELF, RUN 0 + size, COPY 6 HERE, COPY 6 SELF
+    byte[] inst = { 20, 0, 10, 38, 22 };
+    // source "cd", source "gh" then target "cdef", target "ef" overlapping
+    byte[] addr = { 2, 16, 26 };
+    Vcdiff.writeInt(delta, data.length);
+    Vcdiff.writeInt(delta, inst.length);
+    Vcdiff.writeInt(delta, addr.length);
+    Adler32 adler = new Adler32();
+    adler.update(target, 0, target.length);
+    long checksum = adler.getValue();
+    for (int i = 24; i >= 0; i -= 8)
+      delta.write((int) (checksum >>> i));
+    delta.write(data, 0, data.length);
+    delta.write(inst, 0, inst.length);
+    delta.write(addr, 0, addr.length);
+
+    ByteArrayOutputStream os = new ByteArrayOutputStream();
+    os.write(Vcdiff.MAGIC, 0, Vcdiff.MAGIC.length);
+    os.write(Vcdiff.VCD_APPHEADER);
+    Vcdiff.writeInt(os, 3);
+    os.write('a');
+    os.write('p');
+    os.write('p');
+    os.write(Vcdiff.VCD_SOURCE | Vcdiff.VCD_ADLER32);
+    Vcdiff.writeInt(os, 8);
+    Vcdiff.writeInt(os, 0);
+    Vcdiff.writeInt(os, delta.size());
+    os.write(delta.toByteArray(), 0, delta.size());
+    return os.toByteArray();
+  }
+
+  /**
+   * Test decoding a hand-made patch.
+   *
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  @Test
+  public void testHandMade() throws IOException {
+    byte[] source = "abcdefgh".getBytes(StandardCharsets.US_ASCII);
+    byte[] target = "cdefxxxxxxxxxxghcdefefefef".getBytes(StandardCharsets.US_ASCII);
+    byte[] patch = handMade(target);
+    assertArrayEquals(target, new VcdiffPatcher().patch(source, patch));
+    // corrupt the checksum
+    patch[patch.length - 10] ^= 1;
+    try {
+      new VcdiffPatcher().patch(source, patch);
+      fail();
+    } catch (PatchException e) {
+    }
+  }
+
+  /**
+   * Test rejecting unsupported or invalid patches.
+   *
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  @Test
+  public void testRejects() throws IOException {
+    byte[] source = DeltaPatchTest.resource("ver1.txt");
+    byte[] patch = vcdiff(source, DeltaPatchTest.resource("ver2.txt"), 1000);
+    byte[] bad = patch.clone();
+    bad[0] = (byte) 0xd1;
+    assertRejected(source, bad);
+    bad = patch.clone();
+    bad[4] = Vcdiff.VCD_DECOMPRESS;
+    assertRejected(source, bad);
+    bad = patch.clone();
+    bad[4] = Vcdiff.VCD_CODETABLE;
+    assertRejected(source, bad);
+    bad = patch.clone();
+    bad[5] = Vcdiff.VCD_TARGET;
+    assertRejected(source, bad);
+  }
+
+  /**
+   * Asserts that a patch is rejected.
+   *
+   * @param source the source
+   * @param patch the patch
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  private static void assertRejected(byte[] source, byte[] patch) throws IOException {
+    try {
+      new VcdiffPatcher().patch(source, patch);
+      fail();
+    } catch (PatchException e) {
+    }
+  }
+}